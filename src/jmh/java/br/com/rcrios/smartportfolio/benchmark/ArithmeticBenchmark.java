@@ -0,0 +1,66 @@
+package br.com.rcrios.smartportfolio.benchmark;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.rcrios.smartportfolio.FixedPoint;
+import br.com.rcrios.smartportfolio.Utils;
+
+/**
+ * BigDecimal sequences used to update portfolio shares and values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArithmeticBenchmark {
+
+  private BigDecimal shares = new BigDecimal("15234.123456");
+  private BigDecimal shareValue = new BigDecimal("1.873456");
+  private BigDecimal value = new BigDecimal("2500.5");
+
+  private long fixedShares = FixedPoint.valueOf(this.shares);
+  private long fixedShareValue = FixedPoint.valueOf(this.shareValue);
+  private long fixedValue = FixedPoint.valueOf(this.value);
+
+  /**
+   * Same sequence as PortfolioController#attach: value to shares, shares added, new total value.
+   */
+  @Benchmark
+  public BigDecimal attach() {
+    final BigDecimal added = this.value.divide(this.shareValue, Utils.DEFAULT_MATHCONTEXT);
+    final BigDecimal total = this.shares.add(added, Utils.DEFAULT_MATHCONTEXT);
+    return total.multiply(this.shareValue, Utils.DEFAULT_MATHCONTEXT);
+  }
+
+  /**
+   * Same sequence as MasterPropagationService, applied to one master.
+   */
+  @Benchmark
+  public BigDecimal propagateToMaster() {
+    final BigDecimal total = this.shares.add(this.value.divide(this.shareValue, Utils.DEFAULT_MATHCONTEXT), Utils.DEFAULT_MATHCONTEXT);
+    return total.multiply(this.shareValue, Utils.DEFAULT_MATHCONTEXT);
+  }
+
+  /**
+   * Same sequence as {@link #attach()}, with {@link FixedPoint} arithmetic.
+   */
+  @Benchmark
+  public long attachFixedPoint() {
+    final long added = FixedPoint.divide(this.fixedValue, this.fixedShareValue);
+    final long total = FixedPoint.add(this.fixedShares, added);
+    return FixedPoint.multiply(total, this.fixedShareValue);
+  }
+}
@@ -0,0 +1,110 @@
+package br.com.rcrios.smartportfolio.benchmark;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+
+/**
+ * JSON (de)serialization of the main REST payloads, with an ObjectMapper configured the same way Spring Boot does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+  private ObjectMapper mapper;
+  private Portfolio portfolio;
+  private MutualFund mutualFund;
+  private String portfolioJson;
+  private String mutualFundJson;
+
+  @Setup
+  public void setup() throws IOException {
+    this.mapper = Jackson2ObjectMapperBuilder.json().build();
+
+    final LegalEntity fund = legalEntity(1L, "Fund");
+    final LegalEntity manager = legalEntity(2L, "Manager");
+
+    this.mutualFund = new MutualFund();
+    this.mutualFund.setId(1L);
+    this.mutualFund.setFund(fund);
+    this.mutualFund.setManager(manager);
+    this.mutualFund.setTrustee(manager);
+    this.mutualFund.setShares(new BigDecimal("1523.123456"));
+    this.mutualFund.setValue(new BigDecimal("2853.456789"));
+    this.mutualFund.setCreationDate(new Date());
+    this.mutualFund.setLastUpdated(new Date());
+
+    final Portfolio master = portfolio(1L, "Master");
+    this.portfolio = portfolio(2L, "Portfolio");
+    this.portfolio.setMaster(master);
+    this.portfolio.add(this.mutualFund);
+
+    this.portfolioJson = this.mapper.writeValueAsString(this.portfolio);
+    this.mutualFundJson = this.mapper.writeValueAsString(this.mutualFund);
+  }
+
+  @Benchmark
+  public String serializePortfolio() throws IOException {
+    return this.mapper.writeValueAsString(this.portfolio);
+  }
+
+  @Benchmark
+  public Portfolio deserializePortfolio() throws IOException {
+    return this.mapper.readValue(this.portfolioJson, Portfolio.class);
+  }
+
+  @Benchmark
+  public String serializeMutualFund() throws IOException {
+    return this.mapper.writeValueAsString(this.mutualFund);
+  }
+
+  @Benchmark
+  public MutualFund deserializeMutualFund() throws IOException {
+    return this.mapper.readValue(this.mutualFundJson, MutualFund.class);
+  }
+
+  private static LegalEntity legalEntity(Long id, String name) {
+    final LegalEntity le = new LegalEntity();
+    le.setId(id);
+    le.setName(name);
+    le.setNationalTaxPayerId(String.valueOf(id));
+    le.setNickname(name);
+    return le;
+  }
+
+  private static Portfolio portfolio(Long id, String name) {
+    final Portfolio p = new Portfolio();
+    p.setId(id);
+    p.setName(name);
+    p.setShares(new BigDecimal("15234.123456"));
+    p.setShareValue(new BigDecimal("1.873456"));
+    p.setShareValueDate(new Date());
+    p.setValue(new BigDecimal("28540.456789"));
+    p.setBenchmarkValue(new BigDecimal("28000.5"));
+    p.setLastUpdated(new Date());
+    return p;
+  }
+}
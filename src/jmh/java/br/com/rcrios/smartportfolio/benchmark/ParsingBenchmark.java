@@ -0,0 +1,71 @@
+package br.com.rcrios.smartportfolio.benchmark;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.rcrios.smartportfolio.PoiUtils;
+import br.com.rcrios.smartportfolio.Utils;
+
+/**
+ * Number and date conversions done for every imported cell and every formatted date.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+  private double number = 1.873456123;
+  private String text = "1.873456123";
+  private String date = "02/01/2018";
+  private Date parsed = Utils.toDate("02/01/2018");
+
+  /**
+   * Double to String to BigDecimal round trip.
+   */
+  @Benchmark
+  public BigDecimal utilsNrFactoryDouble() {
+    return Utils.nrFactory(this.number);
+  }
+
+  @Benchmark
+  public BigDecimal utilsNrFactoryString() {
+    return Utils.nrFactory(this.text);
+  }
+
+  /**
+   * Double to String to BigDecimal round trip, as done for numeric cells.
+   */
+  @Benchmark
+  public BigDecimal poiNrFactoryDouble() {
+    return PoiUtils.nrFactory(this.number);
+  }
+
+  @Benchmark
+  public BigDecimal poiToNumber() {
+    return PoiUtils.toNumber(this.number);
+  }
+
+  @Benchmark
+  public Date utilsToDate() {
+    return Utils.toDate(this.date);
+  }
+
+  @Benchmark
+  public String utilsToString() {
+    return Utils.toString(this.parsed);
+  }
+}
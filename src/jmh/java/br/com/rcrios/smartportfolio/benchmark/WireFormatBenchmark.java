@@ -0,0 +1,162 @@
+package br.com.rcrios.smartportfolio.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+
+/**
+ * Serialization cost of a large portfolio list as plain JSON and as Smile, configured as in
+ * br.com.rcrios.smartportfolio.WebConfiguration, with and without gzip. Bytes on the wire of each format are reported
+ * by the counters of {@link #wireSize(WireSize)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+
+  /**
+   * Encoded size, in bytes, of the portfolio list in each format.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class WireSize {
+    public long json;
+    public long jsonGzip;
+    public long smile;
+    public long smileGzip;
+  }
+
+  @Param({ "1000" })
+  private int size;
+
+  private ObjectMapper json;
+  private ObjectMapper smile;
+  private List<Portfolio> portfolios;
+
+  @Setup
+  public void setup() throws IOException {
+    this.json = Jackson2ObjectMapperBuilder.json().build();
+
+    final SmileFactory factory = new SmileFactory();
+    factory.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+    this.smile = Jackson2ObjectMapperBuilder.json().factory(factory).build();
+
+    final LegalEntity manager = legalEntity(0L, "Manager");
+    final Portfolio root = portfolio(0L, "Root");
+    this.portfolios = new ArrayList<>(this.size);
+    for (long i = 1; i <= this.size; i++) {
+      final Portfolio p = portfolio(i, "Portfolio " + i);
+      p.setMaster(root);
+      p.add(mutualFund(i, legalEntity(i, "Fund " + i), manager));
+      this.portfolios.add(p);
+    }
+  }
+
+  @Benchmark
+  public byte[] serializeJson() throws IOException {
+    return this.json.writeValueAsBytes(this.portfolios);
+  }
+
+  @Benchmark
+  public byte[] serializeSmile() throws IOException {
+    return this.smile.writeValueAsBytes(this.portfolios);
+  }
+
+  @Benchmark
+  public byte[] serializeJsonGzip() throws IOException {
+    return gzip(this.json);
+  }
+
+  @Benchmark
+  public byte[] serializeSmileGzip() throws IOException {
+    return gzip(this.smile);
+  }
+
+  /**
+   * Encodes the list once in each format. Sizes don't change between runs, so a single shot is enough, and it keeps the
+   * counters from being added up over iterations.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 0)
+  @Measurement(iterations = 1)
+  public void wireSize(WireSize size) throws IOException {
+    size.json = this.serializeJson().length;
+    size.jsonGzip = this.serializeJsonGzip().length;
+    size.smile = this.serializeSmile().length;
+    size.smileGzip = this.serializeSmileGzip().length;
+  }
+
+  private byte[] gzip(ObjectMapper mapper) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+      mapper.writeValue(out, this.portfolios);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static LegalEntity legalEntity(Long id, String name) {
+    final LegalEntity le = new LegalEntity();
+    le.setId(id);
+    le.setName(name);
+    le.setNationalTaxPayerId(String.valueOf(id));
+    le.setNickname(name);
+    return le;
+  }
+
+  private static MutualFund mutualFund(Long id, LegalEntity fund, LegalEntity manager) {
+    final MutualFund mf = new MutualFund();
+    mf.setId(id);
+    mf.setFund(fund);
+    mf.setManager(manager);
+    mf.setTrustee(manager);
+    mf.setShares(new BigDecimal("1523.123456"));
+    mf.setValue(new BigDecimal("2853.456789"));
+    mf.setCreationDate(new Date());
+    mf.setLastUpdated(new Date());
+    return mf;
+  }
+
+  private static Portfolio portfolio(Long id, String name) {
+    final Portfolio p = new Portfolio();
+    p.setId(id);
+    p.setName(name);
+    p.setShares(new BigDecimal("15234.123456"));
+    p.setShareValue(new BigDecimal("1.873456"));
+    p.setShareValueDate(new Date());
+    p.setValue(new BigDecimal("28540.456789"));
+    p.setBenchmarkValue(new BigDecimal("28000.5"));
+    p.setLastUpdated(new Date());
+    return p;
+  }
+}
@@ -0,0 +1,176 @@
+package br.com.rcrios.smartportfolio;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Date conversions shared by the whole application, built on immutable {@link DateTimeFormatter}s instead of
+ * SimpleDateFormat. Formatters are created once per pattern and can be used by any number of threads at the same
+ * time, so there is no need to create a formatter per call or to guard a shared one.
+ *
+ * Like SimpleDateFormat, dates are converted in the system default time zone, which is also the one used by Hibernate to
+ * read DATE columns. Methods accept java.sql.Date too, whose toInstant isn't supported.
+ */
+public final class DateCodec {
+
+  /**
+   * Pattern of Date.toString, used by the JSON representation of portfolios.
+   */
+  public static final String JSON_PATTERN = "EEE MMM dd HH:mm:ss z yyyy";
+
+  private static final DateTimeFormatter DEFAULT_FORMATTER = DateTimeFormatter.ofPattern(Utils.DEFAULT_DATE_PATTERN);
+
+  /**
+   * Also accepts days and months with a single digit, as SimpleDateFormat does. Unlike the lenient SimpleDateFormat, it
+   * rejects trailing text, days that don't exist (e.g. 32/01/2018 or 29/02/2018, instead of rolling them over to the
+   * next month) and years with less than four digits.
+   */
+  private static final DateTimeFormatter DEFAULT_PARSER = DateTimeFormatter.ofPattern("d/M/uuuu").withResolverStyle(ResolverStyle.STRICT);
+  private static final DateTimeFormatter JSON_FORMATTER = DateTimeFormatter.ofPattern(JSON_PATTERN, Locale.US);
+
+  private static final Map<String, DateTimeFormatter> FORMATTERS = new ConcurrentHashMap<>();
+
+  /**
+   * Excel serial number of 1900-03-01. Excel thinks 1900-02-29 (serial 60) is a valid date, so serials before it are
+   * one day ahead of the ones after it.
+   */
+  private static final int EXCEL_LEAP_BUG = 61;
+  private static final LocalDate EXCEL_EPOCH = LocalDate.of(1899, 12, 31);
+  private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  static {
+    FORMATTERS.put(Utils.DEFAULT_DATE_PATTERN, DEFAULT_FORMATTER);
+    FORMATTERS.put(JSON_PATTERN, JSON_FORMATTER);
+  }
+
+  /**
+   * Hides utility class constructor
+   */
+  private DateCodec() {
+    // Empty
+  }
+
+  /**
+   * @return The formatter of the pattern, created on first use. Pattern letters are the ones of
+   *         {@link DateTimeFormatter}, which match SimpleDateFormat for the patterns used by this application.
+   */
+  public static DateTimeFormatter formatter(String pattern) {
+    return FORMATTERS.computeIfAbsent(pattern, DateTimeFormatter::ofPattern);
+  }
+
+  /**
+   * @return The date formatted with {@link Utils#DEFAULT_DATE_PATTERN}.
+   */
+  public static String format(Date date) {
+    return format(date, DEFAULT_FORMATTER);
+  }
+
+  public static String format(Date date, DateTimeFormatter formatter) {
+    return formatter.format(toZonedDateTime(date));
+  }
+
+  /**
+   * @return The epoch day formatted with {@link Utils#DEFAULT_DATE_PATTERN}.
+   */
+  public static String format(int epochDay) {
+    return DEFAULT_FORMATTER.format(LocalDate.ofEpochDay(epochDay));
+  }
+
+  /**
+   * @return The date formatted like Date.toString.
+   */
+  public static String toJson(Date date) {
+    return format(date, JSON_FORMATTER);
+  }
+
+  /**
+   * @throws DateTimeParseException
+   *           If the text doesn't match {@link Utils#DEFAULT_DATE_PATTERN}, has trailing text or isn't a valid date.
+   */
+  public static Date parse(String text) {
+    return parse(text, DEFAULT_PARSER);
+  }
+
+  /**
+   * Text without time fields is parsed to the start of the day and text without a time zone is parsed in the system
+   * default one.
+   *
+   * @throws DateTimeParseException
+   *           If the text doesn't match the formatter.
+   */
+  public static Date parse(String text, DateTimeFormatter formatter) {
+    final TemporalAccessor parsed = formatter.parse(text);
+    if (parsed.isSupported(ChronoField.INSTANT_SECONDS)) {
+      return new Date(Instant.from(parsed).toEpochMilli());
+    }
+
+    final LocalDate date = parsed.query(TemporalQueries.localDate());
+    if (date == null) {
+      throw new DateTimeParseException("Text has no date: " + text, text, 0);
+    }
+    final LocalTime time = parsed.query(TemporalQueries.localTime());
+    return new Date(atZone(time != null ? date.atTime(time) : date.atStartOfDay()).toInstant().toEpochMilli());
+  }
+
+  /**
+   * @throws DateTimeParseException
+   *           If the text isn't formatted like Date.toString.
+   */
+  public static Date fromJson(String text) {
+    return parse(text, JSON_FORMATTER);
+  }
+
+  public static LocalDate toLocalDate(Date date) {
+    return toZonedDateTime(date).toLocalDate();
+  }
+
+  public static int toEpochDay(Date date) {
+    return Math.toIntExact(toLocalDate(date).toEpochDay());
+  }
+
+  /**
+   * @return Start of the epoch day.
+   */
+  public static Date fromEpochDay(int epochDay) {
+    return new Date(atZone(LocalDate.ofEpochDay(epochDay).atStartOfDay()).toInstant().toEpochMilli());
+  }
+
+  /**
+   * Converts a date cell of a workbook that uses the 1900 date system, the same as POI DateUtil.getJavaDate(double)
+   * but without a Calendar per call. The integer part of the serial number is the day and the fraction is the time of
+   * the day, rounded to milliseconds.
+   */
+  public static Date fromExcel(double serial) {
+    final int wholeDays = (int) Math.floor(serial);
+    final long millis = Math.round((serial - wholeDays) * DAY_MILLIS);
+    final LocalDate day = EXCEL_EPOCH.plusDays(wholeDays < EXCEL_LEAP_BUG ? wholeDays : wholeDays - 1L);
+    return new Date(atZone(day.atStartOfDay().plusNanos(TimeUnit.MILLISECONDS.toNanos(millis))).toInstant().toEpochMilli());
+  }
+
+  /**
+   * Resolves local times like GregorianCalendar does: times in a daylight saving gap are moved forward by the length
+   * of the gap and times in an overlap get the later (standard time) offset.
+   */
+  private static ZonedDateTime atZone(LocalDateTime dateTime) {
+    return dateTime.atZone(ZoneId.systemDefault()).withLaterOffsetAtOverlap();
+  }
+
+  private static ZonedDateTime toZonedDateTime(Date date) {
+    return Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault());
+  }
+}
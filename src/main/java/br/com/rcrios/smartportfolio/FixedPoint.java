@@ -0,0 +1,219 @@
+package br.com.rcrios.smartportfolio;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Fixed point decimal arithmetic over primitive longs, with the scale of every money and share column (6). A long
+ * holds the decimal value multiplied by {@link #ONE}, so 1.5 is 1_500_000.
+ *
+ * Meant for loops that would otherwise allocate a BigDecimal per operation. Values should be converted from and to
+ * BigDecimal only at persistence and JSON boundaries.
+ *
+ * Multiplication and division are computed with 128 bits of intermediate precision and rounded once, with
+ * {@link RoundingMode#HALF_EVEN}, to scale 6. When the result has up to 10 integer digits (which is what columns with
+ * precision 16 and scale 6 hold), that's the same result of the BigDecimal operation with
+ * {@link Utils#DEFAULT_MATHCONTEXT} rounded to scale 6 with HALF_EVEN. The only exception is when DECIMAL64 itself
+ * rounds to a tie at the seventh decimal: rounding it again may be one unit off, while this class returns the correctly
+ * rounded value. No operation allocates objects.
+ *
+ * The database rounds values with more than 6 decimals on its own, and H2 does it with {@link RoundingMode#HALF_UP}.
+ * Values are rounded here instead: {@link #toBigDecimal(long)} always has scale 6, so what is bound is stored as is.
+ *
+ * Like {@link Math#addExact(long, long)}, operations throw {@link ArithmeticException} on overflow.
+ */
+public final class FixedPoint {
+
+  public static final int SCALE = 6;
+
+  /**
+   * Fixed point representation of 1.
+   */
+  public static final long ONE = 1_000_000L;
+
+  private static final long LOW_MASK = 0xFFFFFFFFL;
+  private static final long BASE = 1L << 32;
+
+  /**
+   * Hides utility class constructor
+   */
+  private FixedPoint() {
+    // Empty
+  }
+
+  /**
+   * @return The value rounded to scale 6 with {@link RoundingMode#HALF_EVEN}.
+   */
+  public static long valueOf(BigDecimal value) {
+    return value.setScale(SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+  }
+
+  /**
+   * @return The integer value as a fixed point number.
+   */
+  public static long valueOf(long value) {
+    return Math.multiplyExact(value, ONE);
+  }
+
+  public static BigDecimal toBigDecimal(long value) {
+    return BigDecimal.valueOf(value, SCALE);
+  }
+
+  public static String toString(long value) {
+    return toBigDecimal(value).toPlainString();
+  }
+
+  public static long add(long a, long b) {
+    return Math.addExact(a, b);
+  }
+
+  public static long subtract(long a, long b) {
+    return Math.subtractExact(a, b);
+  }
+
+  /**
+   * @return a * b, rounded to scale 6 with {@link RoundingMode#HALF_EVEN}.
+   */
+  public static long multiply(long a, long b) {
+    final boolean negative = (a < 0) != (b < 0);
+    final long ua = abs(a);
+    final long ub = abs(b);
+
+    final long hi = multiplyHigh(ua, ub);
+    final long lo = ua * ub;
+
+    final long quotient;
+    final long remainder;
+    if (hi == 0 && lo >= 0) {
+      quotient = lo / ONE;
+      remainder = lo % ONE;
+    } else {
+      // Divides the 128 bits product by ONE, one 32 bits limb at a time. Partial dividends never exceed 52 bits.
+      long cur = hi >>> 32;
+      final long q3 = cur / ONE;
+      cur = ((cur % ONE) << 32) | (hi & LOW_MASK);
+      final long q2 = cur / ONE;
+      cur = ((cur % ONE) << 32) | (lo >>> 32);
+      final long q1 = cur / ONE;
+      cur = ((cur % ONE) << 32) | (lo & LOW_MASK);
+      final long q0 = cur / ONE;
+
+      if (q3 != 0 || q2 != 0 || q1 >= (1L << 31)) {
+        throw new ArithmeticException("Fixed point overflow");
+      }
+      quotient = (q1 << 32) | q0;
+      remainder = cur % ONE;
+    }
+
+    return round(quotient, remainder, ONE, negative);
+  }
+
+  /**
+   * @return a / b, rounded to scale 6 with {@link RoundingMode#HALF_EVEN}.
+   */
+  public static long divide(long a, long b) {
+    if (b == 0) {
+      throw new ArithmeticException("Division by zero");
+    }
+
+    final boolean negative = (a < 0) != (b < 0);
+    final long ua = abs(a);
+    final long ub = abs(b);
+
+    // Dividend is a * ONE, which needs 128 bits when |a| is above ~9.2 million
+    final long hi = multiplyHigh(ua, ONE);
+    final long lo = ua * ONE;
+
+    final long quotient;
+    final long remainder;
+    if (hi == 0 && lo >= 0) {
+      quotient = lo / ub;
+      remainder = lo % ub;
+    } else {
+      if (Long.compareUnsigned(hi, ub) >= 0) {
+        throw new ArithmeticException("Fixed point overflow");
+      }
+      quotient = divideUnsigned(hi, lo, ub);
+      remainder = lo - quotient * ub;
+      if (quotient < 0) {
+        throw new ArithmeticException("Fixed point overflow");
+      }
+    }
+
+    return round(quotient, remainder, ub, negative);
+  }
+
+  /**
+   * Rounds a non negative quotient with {@link RoundingMode#HALF_EVEN} and applies the sign.
+   */
+  private static long round(long quotient, long remainder, long divisor, boolean negative) {
+    long result = quotient;
+    final int half = Long.compareUnsigned(remainder << 1, divisor);
+    if (half > 0 || (half == 0 && (quotient & 1) == 1)) {
+      result = Math.incrementExact(result);
+    }
+    return negative ? -result : result;
+  }
+
+  private static long abs(long value) {
+    if (value == Long.MIN_VALUE) {
+      throw new ArithmeticException("Fixed point overflow");
+    }
+    return value < 0 ? -value : value;
+  }
+
+  /**
+   * @return High 64 bits of the unsigned 128 bits product of two non negative longs.
+   */
+  private static long multiplyHigh(long a, long b) {
+    final long a1 = a >>> 32;
+    final long a0 = a & LOW_MASK;
+    final long b1 = b >>> 32;
+    final long b0 = b & LOW_MASK;
+
+    final long p00 = a0 * b0;
+    final long p01 = a0 * b1;
+    final long p10 = a1 * b0;
+    final long mid = (p00 >>> 32) + (p01 & LOW_MASK) + (p10 & LOW_MASK);
+    return a1 * b1 + (p01 >>> 32) + (p10 >>> 32) + (mid >>> 32);
+  }
+
+  /**
+   * Unsigned division of the 128 bits number (u1, u0) by v, from Hacker's Delight (divlu). Requires u1 < v, so the
+   * quotient fits in 64 bits.
+   */
+  private static long divideUnsigned(long u1, long u0, long v) {
+    final int s = Long.numberOfLeadingZeros(v);
+    final long vn = v << s;
+    final long vn1 = vn >>> 32;
+    final long vn0 = vn & LOW_MASK;
+
+    final long un32 = (u1 << s) | (s == 0 ? 0 : u0 >>> (64 - s));
+    final long un10 = u0 << s;
+    final long un1 = un10 >>> 32;
+    final long un0 = un10 & LOW_MASK;
+
+    long q1 = Long.divideUnsigned(un32, vn1);
+    long rhat = Long.remainderUnsigned(un32, vn1);
+    while (Long.compareUnsigned(q1, BASE) >= 0 || Long.compareUnsigned(q1 * vn0, BASE * rhat + un1) > 0) {
+      q1--;
+      rhat += vn1;
+      if (Long.compareUnsigned(rhat, BASE) >= 0) {
+        break;
+      }
+    }
+
+    final long un21 = un32 * BASE + un1 - q1 * vn;
+    long q0 = Long.divideUnsigned(un21, vn1);
+    rhat = Long.remainderUnsigned(un21, vn1);
+    while (Long.compareUnsigned(q0, BASE) >= 0 || Long.compareUnsigned(q0 * vn0, BASE * rhat + un0) > 0) {
+      q0--;
+      rhat += vn1;
+      if (Long.compareUnsigned(rhat, BASE) >= 0) {
+        break;
+      }
+    }
+
+    return q1 * BASE + q0;
+  }
+}
@@ -65,12 +65,7 @@ public final class PoiUtils {
   }
 
   public static BigDecimal getNumberFromCell(Row row, int cellIndex) {
-    final Object cellContent = getCellContent(row, cellIndex);
-    if (cellContent != null) {
-      return PoiUtils.nrFactory((double) cellContent);
-    }
-
-    return BigDecimal.ZERO;
+    return toNumber(getCellContent(row, cellIndex));
   }
 
   public static String getStringFromCell(Row row, int cellIndex) {
@@ -78,7 +73,34 @@ public final class PoiUtils {
   }
 
   public static Date getDateFromCell(Row row, int cellIndex) {
-    final Object cellContent = getCellContent(row, cellIndex);
+    return toDate(getCellContent(row, cellIndex));
+  }
+
+  /**
+   * Converts a cell content, as returned by {@link #getCellContent(Row, int)} or by {@link XlsxEventReader}, into a number.
+   *
+   * @param cellContent
+   *          Cell content. Must be null or a numeric cell value.
+   *
+   * @return The content as a BigDecimal or {@link BigDecimal#ZERO} if the content is null.
+   */
+  public static BigDecimal toNumber(Object cellContent) {
+    if (cellContent != null) {
+      return PoiUtils.nrFactory((double) cellContent);
+    }
+
+    return BigDecimal.ZERO;
+  }
+
+  /**
+   * Converts a cell content, as returned by {@link #getCellContent(Row, int)} or by {@link XlsxEventReader}, into a date.
+   *
+   * @param cellContent
+   *          Cell content. Must be null or a date formatted cell value.
+   *
+   * @return The content as a Date or null if the content is null.
+   */
+  public static Date toDate(Object cellContent) {
     if (cellContent != null) {
       return (Date) cellContent;
     }
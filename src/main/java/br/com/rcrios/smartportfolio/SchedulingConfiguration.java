@@ -0,0 +1,74 @@
+package br.com.rcrios.smartportfolio;
+
+import java.util.Date;
+import java.util.Optional;
+
+import org.quartz.CronScheduleBuilder;
+import org.quartz.JobBuilder;
+import org.quartz.JobDataMap;
+import org.quartz.JobDetail;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+
+import br.com.rcrios.smartportfolio.service.HierarchySnapshotJob;
+import br.com.rcrios.smartportfolio.service.RevaluationJob;
+import br.com.rcrios.smartportfolio.service.RevaluationService;
+
+/**
+ * Quartz jobs. The revaluation job runs on {@code smartportfolio.revaluation.cron}, nightly by default. A run
+ * interrupted by a crash is resumed as soon as the application is ready, since the in-memory job store doesn't keep
+ * misfired triggers across restarts.
+ *
+ * The hierarchy snapshot job runs on {@code smartportfolio.journal.snapshot-cron}, every 15 minutes by default.
+ */
+@Configuration
+public class SchedulingConfiguration {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SchedulingConfiguration.class);
+
+  @Autowired
+  private RevaluationService revaluation;
+
+  @Bean
+  public JobDetail revaluationJob() {
+    return JobBuilder.newJob(RevaluationJob.class).withIdentity(RevaluationJob.KEY).storeDurably().build();
+  }
+
+  @Bean
+  public Trigger revaluationTrigger(JobDetail revaluationJob, @Value("${smartportfolio.revaluation.cron:0 0 23 * * ?}") String cron) {
+    return TriggerBuilder.newTrigger().forJob(revaluationJob).withIdentity("revaluation")
+        .withSchedule(CronScheduleBuilder.cronSchedule(cron).withMisfireHandlingInstructionFireAndProceed()).build();
+  }
+
+  @Bean
+  public JobDetail hierarchySnapshotJob() {
+    return JobBuilder.newJob(HierarchySnapshotJob.class).withIdentity(HierarchySnapshotJob.KEY).storeDurably().build();
+  }
+
+  @Bean
+  public Trigger hierarchySnapshotTrigger(JobDetail hierarchySnapshotJob,
+      @Value("${smartportfolio.journal.snapshot-cron:0 0/15 * * * ?}") String cron) {
+    return TriggerBuilder.newTrigger().forJob(hierarchySnapshotJob).withIdentity("hierarchySnapshot")
+        .withSchedule(CronScheduleBuilder.cronSchedule(cron).withMisfireHandlingInstructionDoNothing()).build();
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void resumeRevaluation(ApplicationReadyEvent event) throws SchedulerException {
+    final Optional<Date> interrupted = this.revaluation.interrupted();
+    if (interrupted.isPresent()) {
+      LOGGER.info("Valuation run at {} was interrupted. Resuming it.", Utils.toString(interrupted.get()));
+      final JobDataMap data = new JobDataMap();
+      data.put(RevaluationJob.DATE, Utils.toString(interrupted.get()));
+      event.getApplicationContext().getBean(Scheduler.class).triggerJob(RevaluationJob.KEY, data);
+    }
+  }
+}
@@ -2,8 +2,7 @@ package br.com.rcrios.smartportfolio;
 
 import java.math.BigDecimal;
 import java.math.MathContext;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
 import java.util.Date;
 import java.util.Objects;
 
@@ -49,8 +48,7 @@ public final class Utils {
   }
 
   public static String toString(Date date, String format) {
-    SimpleDateFormat sdf = new SimpleDateFormat(format);
-    return date == null ? "" : sdf.format(date);
+    return date == null ? "" : DateCodec.format(date, DateCodec.formatter(format));
   }
 
   public static Date toDate(String date) {
@@ -58,10 +56,9 @@ public final class Utils {
   }
 
   public static Date toDate(String date, String pattern) {
-    SimpleDateFormat formatter = new SimpleDateFormat(pattern);
     try {
-      return formatter.parse(date);
-    } catch (ParseException e) {
+      return DEFAULT_DATE_PATTERN.equals(pattern) ? DateCodec.parse(date) : DateCodec.parse(date, DateCodec.formatter(pattern));
+    } catch (DateTimeException e) {
       LOGGER.error("Could not convert '" + Objects.toString(date) + "' to a Date object using pattern '" + Objects.toString(pattern) + "'.", e);
       return null;
     }
@@ -0,0 +1,31 @@
+package br.com.rcrios.smartportfolio;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * Smile (binary JSON) responses, selected with 'Accept: application/x-jackson-smile'. Its mapper is configured by the
+ * same builder Spring Boot uses for JSON, so both formats carry the same fields. The builder is shared, so it's only
+ * applied to the mapper and never changed. Field names are written once per response and referenced afterwards, and so
+ * are short repeated strings, such as dates and legal entity names.
+ *
+ * Compression of JSON, NDJSON and Smile responses is configured by the server.compression properties.
+ */
+@Configuration
+public class WebConfiguration {
+
+  @Bean
+  public MappingJackson2SmileHttpMessageConverter smileConverter(Jackson2ObjectMapperBuilder builder) {
+    final SmileFactory factory = new SmileFactory();
+    factory.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+    final ObjectMapper mapper = new ObjectMapper(factory);
+    builder.configure(mapper);
+    return new MappingJackson2SmileHttpMessageConverter(mapper);
+  }
+}
@@ -0,0 +1,231 @@
+package br.com.rcrios.smartportfolio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads XLSX workbooks through POI event API ({@link XSSFReader}), parsing the sheet XML with SAX. Rows are never
+ * materialized as {@link org.apache.poi.ss.usermodel.Row} objects, so memory usage doesn't depend on the workbook
+ * size.
+ *
+ * Cell contents follow the same rules as {@link PoiUtils#getCellContent(org.apache.poi.ss.usermodel.Row, int)}: strings
+ * are reported as String, date formatted numbers as Date, other numbers as Double and every other cell type as null.
+ * Hence, {@link PoiUtils#toNumber(Object)} and {@link PoiUtils#toDate(Object)} can be used to convert them.
+ */
+public final class XlsxEventReader {
+  private static final Logger LOGGER = LoggerFactory.getLogger(XlsxEventReader.class);
+
+  /**
+   * Receives the content of each non empty row read from the sheet.
+   */
+  @FunctionalInterface
+  public interface RowHandler {
+    /**
+     * @param rowIndex
+     *          Zero based row index
+     * @param cells
+     *          Cell contents indexed by column. The array is reused between rows, so it must not be retained.
+     */
+    void handle(int rowIndex, Object[] cells);
+  }
+
+  /**
+   * Hides utility class constructor
+   */
+  private XlsxEventReader() {
+    // Empty
+  }
+
+  /**
+   * Reads the first sheet of a XLSX file.
+   *
+   * @param xlsx
+   *          File to be read. It's opened read only.
+   * @param columns
+   *          Number of columns that will be reported to the handler. Cells beyond that are ignored.
+   * @param handler
+   *          Callback that will receive each row.
+   *
+   * @return Number of rows reported to the handler.
+   */
+  public static int read(File xlsx, int columns, RowHandler handler) {
+    try (OPCPackage pkg = OPCPackage.open(xlsx, PackageAccess.READ)) {
+      final XSSFReader reader = new XSSFReader(pkg);
+      final ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+      final StylesTable styles = reader.getStylesTable();
+
+      final Iterator<InputStream> sheets = reader.getSheetsData();
+      if (!sheets.hasNext()) {
+        LOGGER.warn("Workbook '{}' doesn't have any sheet.", xlsx);
+        return 0;
+      }
+
+      try (InputStream sheet = sheets.next()) {
+        final SheetHandler sheetHandler = new SheetHandler(strings, styles, columns, handler);
+        final XMLReader parser = SAXHelper.newXMLReader();
+        parser.setContentHandler(sheetHandler);
+        parser.parse(new InputSource(sheet));
+        return sheetHandler.rows;
+      }
+    } catch (IOException | OpenXML4JException | SAXException | ParserConfigurationException e) {
+      throw new SmartPortfolioRuntimeException("Failed to read workbook '" + Objects.toString(xlsx) + "'.", e);
+    }
+  }
+
+  /**
+   * SAX handler for a worksheet part. See ECMA-376, section 18.3.1.4 (c element).
+   */
+  private static final class SheetHandler extends DefaultHandler {
+    private final ReadOnlySharedStringsTable strings;
+    private final StylesTable styles;
+    private final RowHandler handler;
+    private final Object[] cells;
+    private final StringBuilder text = new StringBuilder();
+
+    private int rows;
+    private int rowIndex = -1;
+    private boolean rowHasContent;
+
+    private int column;
+    private String cellType;
+    private String cellStyle;
+    private boolean formula;
+    private boolean readingText;
+
+    SheetHandler(ReadOnlySharedStringsTable strings, StylesTable styles, int columns, RowHandler handler) {
+      this.strings = strings;
+      this.styles = styles;
+      this.handler = handler;
+      this.cells = new Object[columns];
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+      switch (localName) {
+      case "row":
+        Arrays.fill(this.cells, null);
+        this.rowHasContent = false;
+        this.column = -1;
+        final String rowReference = attributes.getValue("r");
+        this.rowIndex = rowReference != null ? Integer.parseInt(rowReference) - 1 : this.rowIndex + 1;
+        break;
+      case "c":
+        final String reference = attributes.getValue("r");
+        this.column = reference != null ? new CellReference(reference).getCol() : this.column + 1;
+        this.cellType = attributes.getValue("t");
+        this.cellStyle = attributes.getValue("s");
+        this.formula = false;
+        this.text.setLength(0);
+        break;
+      case "f":
+        this.formula = true;
+        break;
+      case "v":
+      case "t":
+        this.readingText = true;
+        break;
+      default:
+        break;
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if (this.readingText) {
+        this.text.append(ch, start, length);
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      switch (localName) {
+      case "v":
+      case "t":
+        this.readingText = false;
+        break;
+      case "c":
+        if (this.column < this.cells.length) {
+          final Object content = this.content();
+          if (content != null) {
+            this.cells[this.column] = content;
+            this.rowHasContent = true;
+          }
+        }
+        break;
+      case "row":
+        if (this.rowHasContent) {
+          this.handler.handle(this.rowIndex, this.cells);
+          this.rows++;
+        }
+        break;
+      default:
+        break;
+      }
+    }
+
+    private Object content() {
+      if (this.text.length() == 0) {
+        return null;
+      }
+
+      if (this.formula) {
+        LOGGER.warn("SmartPortfolio not able to process cell content of type 'FORMULA'. Ignoring it.");
+        return null;
+      }
+
+      final String value = this.text.toString();
+
+      if (this.cellType == null || "n".equals(this.cellType)) {
+        final double number = Double.parseDouble(value);
+        if (this.isDateFormatted(number)) {
+          return DateCodec.fromExcel(number);
+        }
+        return number;
+      }
+
+      switch (this.cellType) {
+      case "s":
+        return this.strings.getEntryAt(Integer.parseInt(value));
+      case "inlineStr":
+      case "str":
+        return value;
+      default:
+        LOGGER.warn("SmartPortfolio not able to process cell content of type '{}'. Ignoring it.", this.cellType);
+        return null;
+      }
+    }
+
+    private boolean isDateFormatted(double number) {
+      if (this.cellStyle == null || this.styles == null || !DateUtil.isValidExcelDate(number)) {
+        return false;
+      }
+
+      final XSSFCellStyle style = this.styles.getStyleAt(Integer.parseInt(this.cellStyle));
+      return style != null && DateUtil.isADateFormat(style.getDataFormat(), style.getDataFormatString());
+    }
+  }
+}
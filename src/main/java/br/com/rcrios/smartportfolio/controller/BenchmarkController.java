@@ -0,0 +1,143 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.Benchmark;
+import br.com.rcrios.smartportfolio.model.BenchmarkPeriod;
+import br.com.rcrios.smartportfolio.model.BenchmarkType;
+import br.com.rcrios.smartportfolio.model.DatedValue;
+import br.com.rcrios.smartportfolio.repository.BenchmarkRepository;
+import br.com.rcrios.smartportfolio.service.BenchmarkIndex;
+
+/**
+ * Exposes services related with Benchmark objects.
+ */
+@CrossOrigin
+@RestController
+@RequestMapping(value = "/api/benchmarks/")
+public class BenchmarkController {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkController.class);
+
+  @Autowired
+  private BenchmarkIndex index;
+
+  @Autowired
+  private BenchmarkRepository repo;
+
+  @Autowired
+  private ObjectMapper mapper;
+
+  /**
+   * Computes the compounded factor of a benchmark for many periods in a single call.
+   *
+   * @see BenchmarkIndex
+   *
+   * @param type
+   *          Benchmark type
+   * @param periods
+   *          Periods to be computed. Each one includes its start date and excludes its end date.
+   *
+   * @return The same periods, with their factors filled, wrapped by a {@link ResponseEntity} with
+   *         {@literal HttpStatus#OK}. If any date can't be parsed, the ResponseEntity will have a
+   *         {@literal HttpStatus#BAD_REQUEST}.
+   */
+  @PostMapping("v1/{type}/factors")
+  public ResponseEntity<List<BenchmarkPeriod>> getFactors(@PathVariable("type") BenchmarkType type, @RequestBody List<BenchmarkPeriod> periods) {
+    LOGGER.debug("Computing {} factors of {} periods", type, periods.size());
+
+    final List<Date[]> dates = new ArrayList<>(periods.size());
+    for (final BenchmarkPeriod period : periods) {
+      final Date start = period.getStart() != null ? Utils.toDate(period.getStart()) : null;
+      final Date end = period.getEnd() != null ? Utils.toDate(period.getEnd()) : null;
+      if (start == null || end == null) {
+        return new ResponseEntity<>(periods, HttpStatus.BAD_REQUEST);
+      }
+      dates.add(new Date[] { start, end });
+    }
+
+    final BigDecimal[] factors = this.index.factors(type, dates);
+    for (int i = 0; i < factors.length; i++) {
+      periods.get(i).setFactor(factors[i]);
+    }
+    return new ResponseEntity<>(periods, HttpStatus.OK);
+  }
+
+  /**
+   * Streams the daily factors of a benchmark between two dates straight from the repository to the response, as
+   * {@link DatedValue} elements ordered by date.
+   *
+   * @param type
+   *          Benchmark type
+   * @param from
+   *          First date, inclusive, formatted as {@link Utils#DEFAULT_DATE_PATTERN}
+   * @param to
+   *          Last date, inclusive, formatted as {@link Utils#DEFAULT_DATE_PATTERN}
+   * @param format
+   *          'ndjson' for one JSON document per line (application/x-ndjson). Otherwise a JSON array is written.
+   *
+   *          If a date can't be parsed, the response will have a {@literal HttpStatus#BAD_REQUEST}.
+   */
+  @Transactional(readOnly = true)
+  @GetMapping("v1/{type}/history")
+  public void history(@PathVariable("type") BenchmarkType type, @RequestParam("from") String from, @RequestParam("to") String to,
+      @RequestParam(value = "format", required = false) String format, HttpServletResponse response) {
+    final Date fromDate = Utils.toDate(from);
+    final Date toDate = Utils.toDate(to);
+    if (fromDate == null || toDate == null) {
+      response.setStatus(HttpStatus.BAD_REQUEST.value());
+      return;
+    }
+
+    ResponseStreams.write(this.repo.streamRange(type, fromDate, toDate), format, response, this.mapper);
+  }
+
+  /**
+   * Daily factor of a benchmark at the latest date on or before the given one.
+   *
+   * @param type
+   *          Benchmark type
+   * @param date
+   *          Date formatted as {@link Utils#DEFAULT_DATE_PATTERN}
+   *
+   * @return The factor and its date wrapped by a {@link ResponseEntity} with {@literal HttpStatus#OK}. If there is no
+   *         factor, the ResponseEntity will have a {@literal HttpStatus#NOT_FOUND}. If the date can't be parsed, it will
+   *         have a {@literal HttpStatus#BAD_REQUEST}.
+   */
+  @GetMapping("v1/{type}/asof")
+  public ResponseEntity<DatedValue> getAsOf(@PathVariable("type") BenchmarkType type, @RequestParam("date") String date) {
+    final Date asOf = Utils.toDate(date);
+    if (asOf == null) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+
+    final Optional<Benchmark> benchmark = this.repo.findFirstByTypeAndDateLessThanEqualOrderByDateDesc(type, asOf);
+    if (!benchmark.isPresent()) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    return new ResponseEntity<>(new DatedValue(benchmark.get().getDate(), benchmark.get().getDailyFactor()), HttpStatus.OK);
+  }
+}
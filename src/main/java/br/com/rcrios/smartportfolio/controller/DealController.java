@@ -0,0 +1,120 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.Position;
+import br.com.rcrios.smartportfolio.repository.MutualFundRepository;
+import br.com.rcrios.smartportfolio.service.DealImportResult;
+import br.com.rcrios.smartportfolio.service.DealImporter;
+import br.com.rcrios.smartportfolio.service.ImportSummary;
+import br.com.rcrios.smartportfolio.service.PositionEngine;
+
+/**
+ * Exposes services related with Deal objects.
+ */
+@CrossOrigin
+@RestController
+@RequestMapping(value = "/api/deals/")
+public class DealController {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DealController.class);
+
+  @Autowired
+  private PositionEngine engine;
+
+  @Autowired
+  private MutualFundRepository mfRepository;
+
+  @Autowired
+  private DealImporter importer;
+
+  @Autowired
+  private ObjectMapper mapper;
+
+  /**
+   * @see PositionEngine
+   *
+   * @return Current positions of all mutual funds with deals, wrapped by a {@link ResponseEntity} with
+   *         {@literal HttpStatus#OK}.
+   */
+  @GetMapping("v1/positions")
+  public ResponseEntity<List<Position>> getPositions() {
+    return new ResponseEntity<>(this.engine.current(), HttpStatus.OK);
+  }
+
+  /**
+   * Position of a mutual fund derived from its deals.
+   *
+   * @see PositionEngine
+   *
+   * @param mutualFundId
+   *          MutualFund id
+   * @param date
+   *          Optional date formatted as {@link Utils#DEFAULT_DATE_PATTERN}. If present, the position after all deals up
+   *          to that date is returned. Otherwise, the current position.
+   *
+   * @return The position wrapped by a {@link ResponseEntity} with {@literal HttpStatus#OK}. If there is no such mutual
+   *         fund, the ResponseEntity will have a {@literal HttpStatus#NOT_FOUND}. If the date can't be parsed, it will
+   *         have a {@literal HttpStatus#BAD_REQUEST}.
+   */
+  @GetMapping("v1/positions/{mutualFundId}")
+  public ResponseEntity<Position> getPosition(@PathVariable("mutualFundId") Long mutualFundId, @RequestParam(value = "date", required = false) String date) {
+    Date asOf = null;
+    if (date != null) {
+      asOf = Utils.toDate(date);
+      if (asOf == null) {
+        return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+      }
+    }
+
+    if (!this.mfRepository.existsById(mutualFundId)) {
+      LOGGER.debug("Mutual fund {} not found", mutualFundId);
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+
+    return new ResponseEntity<>(asOf != null ? this.engine.asOf(mutualFundId, asOf) : this.engine.current(mutualFundId), HttpStatus.OK);
+  }
+
+  /**
+   * Imports deals from a NDJSON request body, one deal per line.
+   *
+   * @see DealImporter
+   *
+   * @return NDJSON with a {@link DealImportResult} for each non blank line, in order, followed by the
+   *         {@link ImportSummary}. Results are streamed as batches are persisted, with {@literal HttpStatus#OK}.
+   */
+  @PostMapping(value = "v1/import", consumes = ResponseStreams.NDJSON_VALUE)
+  public void importDeals(HttpServletRequest request, HttpServletResponse response) {
+    ResponseStreams.write(true, response, this.mapper, sink -> {
+      try (Reader reader = new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8)) {
+        sink.accept(this.importer.importNdjson(reader, sink::accept));
+      } catch (final IOException e) {
+        throw new SmartPortfolioRuntimeException("Failed to read deals.", e);
+      }
+    });
+  }
+}
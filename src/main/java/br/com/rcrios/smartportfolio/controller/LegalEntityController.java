@@ -1,50 +1,97 @@
 package br.com.rcrios.smartportfolio.controller;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.servlet.http.HttpServletResponse;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.annotation.Timed;
 
 import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
 import br.com.rcrios.smartportfolio.model.InvalidObject;
 import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.TransactionType;
 import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.repository.PreconditionFailed;
+import br.com.rcrios.smartportfolio.service.Journal;
+import br.com.rcrios.smartportfolio.service.WriteConflict;
 
 /**
- * Exposes services related with a LegalEntity object.
+ * Exposes services related with a LegalEntity object. Read endpoints answer conditional GETs with
+ * {@literal HttpStatus#NOT_MODIFIED} (see {@link ReadValidators}). Writes are recorded by {@link Journal} once
+ * committed.
  */
 @CrossOrigin
 @RestController
 @RequestMapping(value = "/api/legalentities/")
+@Timed(value = "smartportfolio.controller", extraTags = { "controller", "legalentities" })
 public class LegalEntityController {
   private static final Logger LOGGER = LoggerFactory.getLogger(LegalEntityController.class);
 
+  private static final int WRITE_ATTEMPTS = 3;
+
   @Autowired
   private LegalEntityRepository repo;
 
+  @Autowired
+  private ReadValidators validators;
+
+  @Autowired
+  private Journal journal;
+
+  @Autowired
+  private SmileSupport smile;
+
+  @Autowired
+  private ObjectMapper mapper;
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
   /**
    * Persists a LegalEntity object into the repository.
    *
+   * The posted version is ignored: an existing legal entity is saved over its current version, as it always was. Clients
+   * that must not overwrite concurrent changes send the ETag they read as If-Match, and the save is rejected with
+   * {@link HttpStatus#PRECONDITION_FAILED} if it's no longer current.
+   *
    * @param person
    *          Object to be persisted
+   * @param ifMatch
+   *          ETag of the legal entity when it was read. Optional.
    *
    * @return A ResponseEntity whose body is a LegalEntity object and HttpStatus.OK. If the save action fails, the
    *         ResponseEntity will have a HttpStatus that indicates the error and the body will be the error description.
    */
   @PostMapping("v1/")
-  public ResponseEntity<LegalEntity> save(@RequestBody LegalEntity legalEntity) {
+  public ResponseEntity<LegalEntity> save(@RequestBody LegalEntity legalEntity,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
     LOGGER.debug("Saving {}", legalEntity);
 
     try {
@@ -55,18 +102,45 @@ public class LegalEntityController {
       throw new InvalidObject(msg, e);
     }
 
+    final TransactionType type = legalEntity.getId() == null ? TransactionType.CREATE_PERSON : TransactionType.UPDATE;
     LegalEntity saved = null;
     try {
-      saved = this.repo.save(legalEntity);
+      for (int attempt = 1; saved == null; attempt++) {
+        try {
+          this.current(legalEntity, ifMatch);
+          saved = this.repo.save(legalEntity);
+        } catch (final OptimisticLockingFailureException e) {
+          // Only a save racing another one for the same legal entity gets here
+          if (ifMatch != null || attempt >= WRITE_ATTEMPTS) {
+            throw new WriteConflict("Legal entity is being changed concurrently. Read it again before saving.", e);
+          }
+        }
+      }
     } catch (final DataAccessException e) {
       final String msg = "Failed to save legal entity. Full stacktrace was logged with id " + System.currentTimeMillis();
       LOGGER.warn(msg, e);
       throw new SmartPortfolioRuntimeException(msg, e);
     }
 
+    this.journal.append(type, LegalEntity.class, Collections.singleton(saved.getId()), saved);
     return new ResponseEntity<>(saved, HttpStatus.CREATED);
   }
 
+  /**
+   * Gives an existing legal entity its current version, after checking it against If-Match.
+   */
+  private void current(LegalEntity legalEntity, String ifMatch) {
+    final Optional<LegalEntity> current = legalEntity.getId() != null ? this.repo.findById(legalEntity.getId()) : Optional.empty();
+    if (!current.isPresent()) {
+      return;
+    }
+
+    if (ifMatch != null && !this.validators.matches(current.get(), ifMatch)) {
+      throw new PreconditionFailed("Legal entity '" + legalEntity.getId() + "' was changed since it was read. Read it again before saving.");
+    }
+    legalEntity.setVersion(current.get().getVersion());
+  }
+
   /**
    * Retrieves a LegalEntoty by its national tax payer id
    *
@@ -76,12 +150,15 @@ public class LegalEntityController {
    *         {@literal HttpStatus#NO_CONTENT}.
    */
   @GetMapping("v1/{ntpid}")
-  public ResponseEntity<LegalEntity> getLegalEntity(@PathVariable("ntpid") String nationalTaxPayerId) {
+  public ResponseEntity<LegalEntity> getLegalEntity(@PathVariable("ntpid") String nationalTaxPayerId, WebRequest request) {
     LOGGER.debug("Getting legal entity with ntpId '{}'", nationalTaxPayerId);
 
     final Optional<LegalEntity> result = this.repo.findByNationalTaxPayerId(nationalTaxPayerId);
 
     if (result.isPresent()) {
+      if (this.validators.legalEntity(result.get(), request)) {
+        return null;
+      }
       return new ResponseEntity<>(result.get(), HttpStatus.OK);
     }
 
@@ -89,15 +166,33 @@ public class LegalEntityController {
   }
 
   /**
-   * Retrieves ALL legal entities from repository.
+   * Retrieves legal entities from repository. Without parameters, ALL legal entities are returned at once. If 'after' or
+   * 'limit' is provided, a single page is returned using keyset (cursor) pagination on id: the next page is requested
+   * with the cursor returned in the {@value ResponseStreams#NEXT_CURSOR_HEADER} header, which is absent on the last page.
    *
    * @see https://docs.spring.io/spring-framework/docs/current/javadoc-api/org/springframework/http/ResponseEntity.html
+   * @see #stream(String, WebRequest, HttpServletResponse)
+   *
+   * @param after
+   *          Cursor. Only legal entities with greater ids are returned. Optional.
+   * @param limit
+   *          Page size. Optional, limited to {@value ResponseStreams#MAX_PAGE_SIZE}.
    *
    * @return A list of legal entities wrapped by a {@link ResponseEntity}. If the list is empty, ResponseEntity will have
    *         a {@literal HttpStatus#NO_CONTENT}.
    */
   @GetMapping("v1/")
-  public ResponseEntity<List<LegalEntity>> getAll() {
+  public ResponseEntity<List<LegalEntity>> getAll(@RequestParam(value = "after", required = false) Long after,
+      @RequestParam(value = "limit", required = false) Integer limit, WebRequest request) {
+    if (this.validators.legalEntities(request)) {
+      return null;
+    }
+
+    if (after != null || limit != null) {
+      final Pageable page = ResponseStreams.firstPage(limit);
+      return ResponseStreams.page(this.repo.findByIdGreaterThanOrderByIdAsc(after != null ? after : 0L, page), page, LegalEntity::getId);
+    }
+
     final List<LegalEntity> result = this.repo.findAll();
     if (result.isEmpty()) {
       return new ResponseEntity<>(result, HttpStatus.NO_CONTENT);
@@ -105,4 +200,24 @@ public class LegalEntityController {
       return new ResponseEntity<>(result, HttpStatus.OK);
     }
   }
+
+  /**
+   * Streams ALL legal entities, ordered by id, straight from the repository to the response. Heap usage doesn't depend
+   * on the number of legal entities and the first one is sent before the last one is read. Since the status is sent
+   * before reading the repository, an empty result is an empty array (or body) with {@literal HttpStatus#OK}.
+   *
+   * @param format
+   *          'ndjson' for one JSON document per line (application/x-ndjson). Otherwise a JSON array is written, or a
+   *          Smile array if it's preferred by the Accept header.
+   */
+  @Transactional(readOnly = true)
+  @GetMapping("v1/stream")
+  public void stream(@RequestParam(value = "format", required = false) String format, WebRequest request, HttpServletResponse response) {
+    if (this.validators.legalEntities(request)) {
+      return;
+    }
+
+    ResponseStreams.write(this.repo.streamAll(), format, response, this.smile.mapper(request, format, this.mapper),
+        ResponseStreams.clearing(this.entityManager));
+  }
 }
@@ -0,0 +1,177 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.repository.MutualFundShareRepository;
+import br.com.rcrios.smartportfolio.service.ImportSummary;
+import br.com.rcrios.smartportfolio.service.MutualFundShareImporter;
+import br.com.rcrios.smartportfolio.service.NavStore;
+
+/**
+ * Exposes services related with MutualFundShare objects (mutual fund share values history).
+ */
+@CrossOrigin
+@RestController
+@RequestMapping(value = "/api/mutualfundshares/")
+public class MutualFundShareController {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MutualFundShareController.class);
+
+  @Autowired
+  private MutualFundShareImporter importer;
+
+  @Autowired
+  private NavStore navStore;
+
+  @Autowired
+  private MutualFundShareRepository repo;
+
+  @Autowired
+  private ObjectMapper mapper;
+
+  /**
+   * Imports mutual fund share values from a XLSX workbook. The upload is spooled to a temporary file, because POI event
+   * API needs random access to the zip package, and removed afterwards.
+   *
+   * @see MutualFundShareImporter
+   *
+   * @param file
+   *          XLSX workbook
+   *
+   * @return An {@link ImportSummary} wrapped by a {@link ResponseEntity} with {@literal HttpStatus#OK}. If the workbook
+   *         can't be read, will return a {@link org.springframework.web.bind.annotation.ResponseStatus} with code
+   *         {@link HttpStatus#INTERNAL_SERVER_ERROR}.
+   */
+  @PostMapping("v1/import")
+  public ResponseEntity<ImportSummary> importXlsx(@RequestParam("file") MultipartFile file) {
+    LOGGER.debug("Importing mutual fund shares from '{}' ({} bytes)", file.getOriginalFilename(), file.getSize());
+
+    File xlsx = null;
+    try {
+      xlsx = File.createTempFile("smartportfolio-shares-", ".xlsx");
+      file.transferTo(xlsx);
+
+      return new ResponseEntity<>(this.importer.importXlsx(xlsx), HttpStatus.OK);
+    } catch (final IOException e) {
+      final String msg = "Failed to import mutual fund shares. Full stacktrace was logged with id " + System.currentTimeMillis();
+      LOGGER.warn(msg, e);
+      throw new SmartPortfolioRuntimeException(msg, e);
+    } finally {
+      if (xlsx != null) {
+        try {
+          Files.deleteIfExists(xlsx.toPath());
+        } catch (final IOException e) {
+          LOGGER.warn("Unable to remove temporary file '{}'.", xlsx, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Share values of a fund between two dates, read from {@link NavStore}.
+   *
+   * @param fundId
+   *          Fund (LegalEntity) id
+   * @param from
+   *          First date, inclusive, formatted as {@link Utils#DEFAULT_DATE_PATTERN}
+   * @param to
+   *          Last date, inclusive, formatted as {@link Utils#DEFAULT_DATE_PATTERN}
+   *
+   * @return Share values keyed by date, in ascending order, wrapped by a {@link ResponseEntity} with
+   *         {@literal HttpStatus#OK}. If a date can't be parsed, the ResponseEntity will have a
+   *         {@literal HttpStatus#BAD_REQUEST}.
+   */
+  @GetMapping("v1/{fundId}/nav")
+  public ResponseEntity<Map<String, BigDecimal>> getRange(@PathVariable("fundId") Long fundId, @RequestParam("from") String from,
+      @RequestParam("to") String to) {
+    final Date fromDate = Utils.toDate(from);
+    final Date toDate = Utils.toDate(to);
+    if (fromDate == null || toDate == null) {
+      return new ResponseEntity<>(new LinkedHashMap<>(), HttpStatus.BAD_REQUEST);
+    }
+
+    final Map<String, BigDecimal> result = new LinkedHashMap<>();
+    this.navStore.range(fundId, fromDate, toDate, (day, value) -> result.put(DateCodec.format(day), NavStore.fromFixed(value)));
+    return new ResponseEntity<>(result, HttpStatus.OK);
+  }
+
+  /**
+   * Share value of a fund at the latest date on or before the given one, read from {@link NavStore}.
+   *
+   * @param fundId
+   *          Fund (LegalEntity) id
+   * @param date
+   *          Date formatted as {@link Utils#DEFAULT_DATE_PATTERN}
+   *
+   * @return The share value wrapped by a {@link ResponseEntity} with {@literal HttpStatus#OK}. If there is no value,
+   *         the ResponseEntity will have a {@literal HttpStatus#NOT_FOUND}. If the date can't be parsed, it will have
+   *         a {@literal HttpStatus#BAD_REQUEST}.
+   */
+  @GetMapping("v1/{fundId}/nav/asof")
+  public ResponseEntity<BigDecimal> getAsOf(@PathVariable("fundId") Long fundId, @RequestParam("date") String date) {
+    final Date asOf = Utils.toDate(date);
+    if (asOf == null) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+
+    final BigDecimal value = this.navStore.valueAsOf(fundId, asOf);
+    return new ResponseEntity<>(value, value != null ? HttpStatus.OK : HttpStatus.NOT_FOUND);
+  }
+
+  /**
+   * Streams the share values of a fund between two dates straight from the repository to the response, as
+   * {@link br.com.rcrios.smartportfolio.model.DatedValue} elements ordered by date. Meant for long windows, which
+   * {@link #getRange(Long, String, String)} would build in memory.
+   *
+   * @param fundId
+   *          Fund (LegalEntity) id
+   * @param from
+   *          First date, inclusive, formatted as {@link Utils#DEFAULT_DATE_PATTERN}
+   * @param to
+   *          Last date, inclusive, formatted as {@link Utils#DEFAULT_DATE_PATTERN}
+   * @param format
+   *          'ndjson' for one JSON document per line (application/x-ndjson). Otherwise a JSON array is written.
+   *
+   *          If a date can't be parsed, the response will have a {@literal HttpStatus#BAD_REQUEST}.
+   */
+  @Transactional(readOnly = true)
+  @GetMapping("v1/{fundId}/history")
+  public void history(@PathVariable("fundId") Long fundId, @RequestParam("from") String from, @RequestParam("to") String to,
+      @RequestParam(value = "format", required = false) String format, HttpServletResponse response) {
+    final Date fromDate = Utils.toDate(from);
+    final Date toDate = Utils.toDate(to);
+    if (fromDate == null || toDate == null) {
+      response.setStatus(HttpStatus.BAD_REQUEST.value());
+      return;
+    }
+
+    ResponseStreams.write(this.repo.streamRange(fundId, fromDate, toDate), format, response, this.mapper);
+  }
+}
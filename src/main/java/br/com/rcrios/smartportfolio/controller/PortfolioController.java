@@ -1,17 +1,32 @@
 package br.com.rcrios.smartportfolio.controller;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.servlet.http.HttpServletResponse;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
@@ -21,42 +36,126 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 
 import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
 import br.com.rcrios.smartportfolio.Utils;
 import br.com.rcrios.smartportfolio.model.InvalidObject;
 import br.com.rcrios.smartportfolio.model.MutualFund;
 import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.model.PortfolioFacts;
+import br.com.rcrios.smartportfolio.model.PortfolioSummary;
+import br.com.rcrios.smartportfolio.model.TransactionType;
+import br.com.rcrios.smartportfolio.repository.PortfolioClosureRepository;
 import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+import br.com.rcrios.smartportfolio.repository.PortfolioSubtree;
 import br.com.rcrios.smartportfolio.repository.PreconditionFailed;
+import br.com.rcrios.smartportfolio.service.Journal;
+import br.com.rcrios.smartportfolio.service.MasterPropagationService;
+import br.com.rcrios.smartportfolio.service.PortfolioFactsEngine;
+import br.com.rcrios.smartportfolio.service.PortfolioHierarchyCache;
+import br.com.rcrios.smartportfolio.service.PortfolioLocks;
+import br.com.rcrios.smartportfolio.service.PropagationQueue;
+import br.com.rcrios.smartportfolio.service.ValuationEngine;
+import br.com.rcrios.smartportfolio.service.ValuationSummary;
+import br.com.rcrios.smartportfolio.service.WorkbookExporter;
 
 /**
- * All responses are wrapped into a {@link ResponseEntity}.
+ * All responses are wrapped into a {@link ResponseEntity}. Read endpoints answer conditional GETs with
+ * {@literal HttpStatus#NOT_MODIFIED}, without loading portfolios (see {@link ReadValidators}). Writes are recorded by
+ * {@link Journal} once committed.
  */
 @CrossOrigin
 @RestController
 @RequestMapping(value = "/api/portfolios")
+@Timed(value = "smartportfolio.controller", extraTags = { "controller", "portfolios" })
 public class PortfolioController {
   private static final Logger LOGGER = LoggerFactory.getLogger(PortfolioController.class);
 
   @Autowired
   private PortfolioRepository repo;
 
+  @Autowired
+  private PortfolioClosureRepository closures;
+
+  @Autowired
+  private MasterPropagationService propagation;
+
+  @Autowired
+  private PropagationQueue queue;
+
+  /**
+   * Default of the 'async' parameter of writes.
+   */
+  @Value("${smartportfolio.propagation.async:false}")
+  private boolean asyncByDefault;
+
+  @Autowired
+  private PortfolioHierarchyCache cache;
+
+  @Autowired
+  private ValuationEngine valuation;
+
+  @Autowired
+  private PortfolioLocks locks;
+
+  @Autowired
+  private PortfolioFactsEngine facts;
+
+  @Autowired
+  private ReadValidators validators;
+
+  @Autowired
+  private Journal journal;
+
+  @Autowired
+  private WorkbookExporter exporter;
+
+  @Autowired
+  private SmileSupport smile;
+
+  @Autowired
+  private ObjectMapper mapper;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
+  private final DistributionSummary attachSaves;
+
+  @Autowired
+  public PortfolioController(MeterRegistry registry) {
+    this.attachSaves = DistributionSummary.builder("smartportfolio.portfolios.attach.saves")
+        .description("Number of portfolios written by a single attach: the portfolio itself and its masters").register(registry);
+  }
+
   /**
    * If a portfolio is being created (through a POST request), the action will only impact its share quantity, not its
-   * share value. If portfolio being saved has masters attached to it, they will also be updated.
+   * share value. If portfolio being saved has masters attached to it, they will also be updated, in the same transaction.
    *
-   * @see #updateMaster(Portfolio)
+   * @see #updateMaster(Portfolio, boolean)
    *
    * @param portfolio
+   * @param async
+   *          If true, returns as soon as the portfolio is committed and its masters are updated by
+   *          {@link PropagationQueue}. Defaults to {@code smartportfolio.propagation.async}, false unless configured.
    *
    * @return If everything works, will return a ResponseEntity with {@link HttpStatus#OK} and a Portfolio in its body.
    *         Otherwise will return a {@link org.springframework.web.bind.annotation.ResponseStatus} with code
-   *         {@link HttpStatus#UNPROCESSABLE_ENTITY} if the posted object isn't valid, or
-   *         {@link HttpStatus#INTERNAL_SERVER_ERROR} if a DataAccessException occurs.
+   *         {@link HttpStatus#UNPROCESSABLE_ENTITY} if the posted object isn't valid or would be moved below itself,
+   *         {@link HttpStatus#INTERNAL_SERVER_ERROR} if a DataAccessException occurs, or {@link HttpStatus#CONFLICT} if
+   *         it was changed after the posted version was read (see {@link PortfolioLocks}).
    */
   @PostMapping("v1/")
-  public ResponseEntity<Portfolio> save(@RequestBody Portfolio portfolio) {
+  public ResponseEntity<Portfolio> save(@RequestBody Portfolio portfolio, @RequestParam(value = "async", required = false) Boolean async) {
     LOGGER.debug("Saving {}", portfolio);
 
     try {
@@ -67,6 +166,21 @@ public class PortfolioController {
       throw new InvalidObject(msg, e);
     }
 
+    final Long masterId = portfolio.getMaster() != null ? portfolio.getMaster().getId() : null;
+    if (portfolio.getId() != null && masterId != null && this.closures.existsByAncestorIdAndDescendantId(portfolio.getId(), masterId)) {
+      throw new InvalidObject("Portfolio '" + portfolio.getId() + "' can't have '" + masterId + "' as master. It's in its own subtree.");
+    }
+
+    final TransactionType type = portfolio.getId() == null ? TransactionType.CREATE_PORTFOLIO : TransactionType.UPDATE;
+    final boolean queued = async != null ? async : this.asyncByDefault;
+    final Portfolio saved = this.locks.writeVersioned(Arrays.asList(portfolio.getId(), masterId),
+        () -> new TransactionTemplate(this.transactionManager).execute(status -> this.create(portfolio, queued)));
+    this.journal.append(type, Portfolio.class, this.written(saved.getId()), saved);
+
+    return new ResponseEntity<>(saved, HttpStatus.CREATED);
+  }
+
+  private Portfolio create(Portfolio portfolio, boolean queued) {
     Portfolio saved = null;
     try {
 
@@ -76,6 +190,8 @@ public class PortfolioController {
 
       saved = this.repo.save(portfolio);
       LOGGER.trace("Saved {}", saved);
+    } catch (final OptimisticLockingFailureException e) {
+      throw e;
     } catch (final DataAccessException e) {
       final String msg = "Failed to save portfolio. Full stacktrace was logged with id " + System.currentTimeMillis();
       LOGGER.warn(msg, e);
@@ -86,20 +202,42 @@ public class PortfolioController {
       throw new SmartPortfolioRuntimeException("Something went wrong saving " + portfolio);
     }
 
-    this.updateMaster(portfolio);
-
-    return new ResponseEntity<>(saved, HttpStatus.CREATED);
+    this.updateMaster(portfolio, queued);
+    return saved;
   }
 
   /**
-   * Retrieves ALL portfolios from repository.
+   * Retrieves portfolios from repository. Without parameters, ALL portfolios are returned at once. If 'after' or 'limit'
+   * is provided, a single page is returned using keyset (cursor) pagination on id: the next page is requested with the
+   * cursor returned in the {@value ResponseStreams#NEXT_CURSOR_HEADER} header, which is absent on the last page.
+   *
+   * Every returned portfolio, and every portfolio of its master chain, carries its {@link PortfolioFacts}, computed for
+   * the whole tree by {@link PortfolioFactsEngine}.
+   *
+   * @see #stream(String, WebRequest, HttpServletResponse)
+   *
+   * @param after
+   *          Cursor. Only portfolios with greater ids are returned. Optional.
+   * @param limit
+   *          Page size. Optional, limited to {@value ResponseStreams#MAX_PAGE_SIZE}.
    *
    * @return A list of portfolios wrapped by a {@link ResponseEntity} with {@literal HttpStatus#OK}. If the list is empty,
    *         ResponseEntity will have a {@literal HttpStatus#NO_CONTENT}.
    */
   @GetMapping("v1/")
-  public ResponseEntity<List<Portfolio>> getAll() {
-    final List<Portfolio> result = this.repo.findAll();
+  public ResponseEntity<List<Portfolio>> getAll(@RequestParam(value = "after", required = false) Long after,
+      @RequestParam(value = "limit", required = false) Integer limit, WebRequest request) {
+    if (this.validators.portfolios(request)) {
+      return null;
+    }
+
+    if (after != null || limit != null) {
+      final Pageable page = ResponseStreams.firstPage(limit);
+      final List<Portfolio> portfolios = this.repo.findByIdGreaterThanOrderByIdAsc(after != null ? after : 0L, page);
+      return ResponseStreams.page(this.facts.attach(portfolios), page, Portfolio::getId);
+    }
+
+    final List<Portfolio> result = this.facts.attach(this.repo.findAll());
     if (result.isEmpty()) {
       return new ResponseEntity<>(result, HttpStatus.NO_CONTENT);
     } else {
@@ -108,7 +246,96 @@ public class PortfolioController {
   }
 
   /**
-   * Retrieves a single portfolio.
+   * Same as {@link #getAll(Long, Integer, WebRequest)}, but returns {@link PortfolioSummary} objects, selected by '?view=summary'.
+   * Summaries are read with a single join query and don't carry mutual funds nor the master object graph, so they are
+   * much cheaper to load and to serialize.
+   *
+   * @param after
+   *          Cursor. Only portfolios with greater ids are returned. Optional.
+   * @param limit
+   *          Page size. Optional, limited to {@value ResponseStreams#MAX_PAGE_SIZE}.
+   *
+   * @return A list of summaries wrapped by a {@link ResponseEntity} with {@literal HttpStatus#OK}. If the list is empty,
+   *         ResponseEntity will have a {@literal HttpStatus#NO_CONTENT}.
+   */
+  @GetMapping(value = "v1/", params = "view=summary")
+  public ResponseEntity<List<PortfolioSummary>> getAllSummaries(@RequestParam(value = "after", required = false) Long after,
+      @RequestParam(value = "limit", required = false) Integer limit, WebRequest request) {
+    if (this.validators.summaries(request)) {
+      return null;
+    }
+
+    if (after != null || limit != null) {
+      final Pageable page = ResponseStreams.firstPage(limit);
+      final List<PortfolioSummary> summaries = this.repo.findSummariesAfter(after != null ? after : 0L, page);
+      return ResponseStreams.page(this.facts.attachSummaries(summaries), page, PortfolioSummary::getId);
+    }
+
+    final List<PortfolioSummary> result = this.facts.attachSummaries(this.repo.findAllSummaries());
+    if (result.isEmpty()) {
+      return new ResponseEntity<>(result, HttpStatus.NO_CONTENT);
+    } else {
+      return new ResponseEntity<>(result, HttpStatus.OK);
+    }
+  }
+
+  /**
+   * Streams ALL portfolios, ordered by id, straight from the repository to the response. Heap usage doesn't depend on
+   * the number of portfolios and the first portfolio is sent before the last one is read. Since the status is sent
+   * before reading the repository, an empty result is an empty array (or body) with {@literal HttpStatus#OK}.
+   *
+   * @param format
+   *          'ndjson' for one JSON document per line (application/x-ndjson). Otherwise a JSON array is written, or a
+   *          Smile array if it's preferred by the Accept header.
+   */
+  @Transactional(readOnly = true)
+  @GetMapping("v1/stream")
+  public void stream(@RequestParam(value = "format", required = false) String format, WebRequest request, HttpServletResponse response) {
+    if (this.validators.portfolios(request)) {
+      return;
+    }
+
+    final Map<Long, PortfolioFacts> all = this.facts.getFacts();
+    ResponseStreams.write(this.repo.streamAll().peek(p -> PortfolioFactsEngine.attach(all, p)), format, response, this.smile.mapper(request, format, this.mapper),
+        ResponseStreams.clearing(this.entityManager));
+  }
+
+  /**
+   * Exports the portfolio tree, every mutual fund held and the share history of their funds as an XLSX workbook, written
+   * straight to the response by {@link WorkbookExporter}. Memory usage doesn't depend on the length of the history.
+   *
+   * @param from
+   *          First date of the share history, formatted as {@link Utils#DEFAULT_DATE_PATTERN}. If absent, the whole
+   *          history is exported.
+   * @param to
+   *          Last date of the share history, formatted as {@link Utils#DEFAULT_DATE_PATTERN}. If absent, today is used.
+   *
+   * @return Nothing, with {@literal HttpStatus#OK}, once the workbook is written. If a date can't be parsed, the
+   *         response will have a {@literal HttpStatus#BAD_REQUEST}.
+   */
+  @GetMapping("v1/export")
+  public ResponseEntity<Void> export(@RequestParam(value = "from", required = false) String from,
+      @RequestParam(value = "to", required = false) String to, HttpServletResponse response) {
+    final Date first = from != null ? Utils.toDate(from) : new Date(0);
+    final Date last = to != null ? Utils.toDate(to) : new Date();
+    if (first == null || last == null) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+
+    LOGGER.debug("Exporting workbook with share history from '{}' to '{}'", Utils.toString(first), Utils.toString(last));
+    response.setStatus(HttpStatus.OK.value());
+    response.setContentType(WorkbookExporter.CONTENT_TYPE);
+    response.setHeader("Content-Disposition", "attachment; filename=\"smartportfolio-" + Utils.toString(last, "yyyyMMdd") + ".xlsx\"");
+    try {
+      this.exporter.export(first, last, response.getOutputStream());
+    } catch (final IOException e) {
+      throw new SmartPortfolioRuntimeException("Unable to write exported workbook.", e);
+    }
+    return null;
+  }
+
+  /**
+   * Retrieves a single portfolio from {@link PortfolioHierarchyCache}.
    *
    * @param id
    *          Internal portfolio identification.
@@ -117,20 +344,24 @@ public class PortfolioController {
    *         ResponseEntity will have a {@literal HttpStatus#NOT_FOUND}.
    */
   @GetMapping("v1/{id}")
-  public ResponseEntity<Portfolio> getById(@PathVariable("id") Long id) {
+  public ResponseEntity<Portfolio> getById(@PathVariable("id") Long id, WebRequest request) {
     LOGGER.debug("Getting portfolio with id '{}'", id);
 
-    final Optional<Portfolio> result = this.repo.findById(id);
+    if (this.validators.portfolio(Optional.of(id), request)) {
+      return null;
+    }
+
+    final Optional<Portfolio> result = this.cache.getById(id);
 
     if (result.isPresent()) {
-      return new ResponseEntity<>(result.get(), HttpStatus.OK);
+      return new ResponseEntity<>(this.facts.attach(result.get()), HttpStatus.OK);
     }
 
     return new ResponseEntity<>(new Portfolio(), HttpStatus.NOT_FOUND);
   }
 
   /**
-   * Retrieves a single portfolio.
+   * Retrieves a single portfolio from {@link PortfolioHierarchyCache}.
    *
    * @param name
    *          String that will be used to locate the Portfolio. Case INsensitive. Perfect match.
@@ -141,53 +372,146 @@ public class PortfolioController {
    *         {@literal HttpStatus#NOT_FOUND}.
    */
   @GetMapping("v1")
-  public ResponseEntity<Portfolio> getByName(@RequestParam("name") String name) {
+  public ResponseEntity<Portfolio> getByName(@RequestParam("name") String name, WebRequest request) {
     LOGGER.debug("Getting portfolio with name '{}'", name);
 
-    final Optional<Portfolio> result = this.repo.findFirstByNameIgnoreCase(name);
+    if (this.validators.portfolio(this.cache.getIdByName(name), request)) {
+      return null;
+    }
+
+    final Optional<Portfolio> result = this.cache.getByName(name);
 
     if (result.isPresent()) {
-      return new ResponseEntity<>(result.get(), HttpStatus.OK);
+      return new ResponseEntity<>(this.facts.attach(result.get()), HttpStatus.OK);
     }
 
     return new ResponseEntity<>(new Portfolio(), HttpStatus.NOT_FOUND);
   }
 
+  /**
+   * Retrieves a portfolio and every portfolio below it, at any depth, as {@link PortfolioSummary} objects. They are read
+   * with a single query over the closure table, instead of one query per level.
+   *
+   * @param id
+   *          Internal identification of the top portfolio.
+   *
+   * @return Summaries ordered by depth and id, wrapped by a {@link ResponseEntity} with {@literal HttpStatus#OK}. If ID
+   *         doesn't exist, ResponseEntity will have a {@literal HttpStatus#NOT_FOUND}.
+   */
+  @GetMapping("v1/{id}/subtree")
+  public ResponseEntity<List<PortfolioSummary>> getSubtree(@PathVariable("id") Long id, WebRequest request) {
+    if (this.validators.summaries(request)) {
+      return null;
+    }
+
+    final List<PortfolioSummary> result = this.repo.findSubtreeSummaries(id);
+    if (result.isEmpty()) {
+      return new ResponseEntity<>(result, HttpStatus.NOT_FOUND);
+    }
+    return new ResponseEntity<>(this.facts.attachSummaries(result), HttpStatus.OK);
+  }
+
+  /**
+   * Totals of a portfolio and every portfolio below it: number of portfolios, height, and number and value of the mutual
+   * funds they hold. Computed by the database with a single query over the closure table.
+   *
+   * @param id
+   *          Internal identification of the top portfolio.
+   *
+   * @return Totals wrapped by a {@link ResponseEntity} with {@literal HttpStatus#OK}. If ID doesn't exist,
+   *         ResponseEntity will have a {@literal HttpStatus#NOT_FOUND}.
+   */
+  @GetMapping("v1/{id}/subtree/totals")
+  public ResponseEntity<PortfolioSubtree> getSubtreeTotals(@PathVariable("id") Long id) {
+    final PortfolioSubtree result = this.closures.findSubtree(id);
+    if (result == null || result.getPortfolios() == 0) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    return new ResponseEntity<>(result, HttpStatus.OK);
+  }
+
   /**
    * Retrieves the root portfolio. Root portfolio is the main portfolio, to which other portfolios are attached. It's the
-   * only one that has a null master.
+   * only one that has a null master. It's read from {@link PortfolioHierarchyCache}.
    *
    * @return A portfolio wrapped by a {@link ResponseEntity}. Otherwise will return a
    *         {@link org.springframework.web.bind.annotation.ResponseStatus} with code
    *         {@link HttpStatus#PRECONDITION_FAILED}
    */
   @GetMapping("v1/root")
-  public ResponseEntity<Portfolio> getRootValue() {
-    final Optional<Portfolio> result = this.repo.getRootPortfolio();
+  public ResponseEntity<Portfolio> getRootValue(WebRequest request) {
+    if (this.validators.portfolio(this.cache.getRootId(), request)) {
+      return null;
+    }
+
+    final Optional<Portfolio> result = this.cache.getRoot();
 
     if (result.isPresent()) {
-      return new ResponseEntity<>(result.get(), HttpStatus.OK);
+      return new ResponseEntity<>(this.facts.attach(result.get()), HttpStatus.OK);
     }
 
     throw new PreconditionFailed("SmartPortfolio isn't properly configured. It doesn't have a root portfolio.");
   }
 
+  /**
+   * Values the whole portfolio tree from the latest mutual fund share values on or before a date.
+   *
+   * @see ValuationEngine
+   *
+   * @param date
+   *          Valuation date, formatted as {@link Utils#DEFAULT_DATE_PATTERN}. If absent, today is used.
+   *
+   * @return A {@link ValuationSummary} wrapped by a {@link ResponseEntity} with {@literal HttpStatus#OK}. If the date
+   *         can't be parsed, the ResponseEntity will have a {@literal HttpStatus#BAD_REQUEST}.
+   */
+  @PostMapping("v1/valuation")
+  public ResponseEntity<ValuationSummary> value(@RequestParam(value = "date", required = false) String date) {
+    final Date asOf = date != null ? Utils.toDate(date) : new Date();
+    if (asOf == null) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+
+    LOGGER.debug("Valuing portfolio tree at '{}'", Utils.toString(asOf));
+    final ValuationSummary summary = this.valuation.value(asOf);
+    this.journal.append(TransactionType.UPDATE, Portfolio.class, Collections.emptyList(), summary);
+    return new ResponseEntity<>(summary, HttpStatus.OK);
+  }
+
   /**
    * Attach a mutual fund to a portfolio. When attaching, portfolio shares will be updated. If portfolio being modified
-   * has masters attached to it, they will also be updated. Changes will only be applied to quantity. Share value will not
-   * be changed.
+   * has masters attached to it, they will also be updated, in the same transaction. Changes will only be applied to
+   * quantity. Share value will not be changed.
    *
-   * @see #updateMaster(Portfolio, MutualFund)
+   * @see #updateMaster(Portfolio, MutualFund, boolean)
    *
    * @param portfolio
+   * @param async
+   *          If true, returns as soon as the portfolio is committed and its masters are updated by
+   *          {@link PropagationQueue}. Defaults to {@code smartportfolio.propagation.async}, false unless configured.
    *
    * @return If everything works, will return a ResponseEntity with {@link HttpStatus#OK} and a Portfolio in its body.
    *         Otherwise will return a {@link org.springframework.web.bind.annotation.ResponseStatus} with code
    *         {@link HttpStatus#INTERNAL_SERVER_ERROR} if the portfolio doesn't exist or if the system wasn't able to
-   *         attach the mutual fund.
+   *         attach the mutual fund, or {@link HttpStatus#CONFLICT} if concurrent writes kept changing it (see
+   *         {@link PortfolioLocks}).
    */
   @PatchMapping("v1/{id}")
-  public ResponseEntity<Portfolio> attach(@PathVariable Long id, @RequestBody MutualFund mf) {
+  public ResponseEntity<Portfolio> attach(@PathVariable Long id, @RequestBody MutualFund mf,
+      @RequestParam(value = "async", required = false) Boolean async) {
+    final boolean queued = async != null ? async : this.asyncByDefault;
+    // Only the attempt that commits is measured
+    final int[] saves = new int[1];
+    final Portfolio saved = this.locks.write(id, () -> new TransactionTemplate(this.transactionManager).execute(status -> {
+      final Portfolio attached = this.attachTo(id, mf);
+      saves[0] = 1 + this.updateMaster(attached, mf, queued);
+      return attached;
+    }));
+    this.attachSaves.record(saves[0]);
+    this.journal.append(TransactionType.UPDATE, Portfolio.class, this.written(id), saved);
+    return new ResponseEntity<>(saved, HttpStatus.OK);
+  }
+
+  private Portfolio attachTo(Long id, MutualFund mf) {
     final Optional<Portfolio> p = this.repo.findById(id);
     if (!p.isPresent()) {
       throw new SmartPortfolioRuntimeException("Impossible to attach mutual fund. Portfolio '" + Objects.toString(id) + "' not found.");
@@ -210,54 +534,63 @@ public class PortfolioController {
     final Portfolio saved = this.repo.save(portfolio);
     LOGGER.trace("Mutual fund was attached to portfolio successluly. {}", saved);
 
-    this.updateMaster(saved, mf);
-
-    return new ResponseEntity<>(saved, HttpStatus.OK);
+    return saved;
   }
 
   /**
-   * Update a master portfolio from portfolio based on values from a mutual fund. Portfolio shares will be increased by
-   * mutual fund value divided by portfolio share value. Will recursively update all masters.
+   * Update all masters of a portfolio based on values from a mutual fund. Master shares will be increased by mutual fund
+   * value divided by master share value.
+   *
+   * @see MasterPropagationService#propagate(Portfolio, BigDecimal)
+   * @see PropagationQueue#submit(Portfolio, BigDecimal)
    *
    * @param portfolio
    * @param mf
+   * @param queued
+   *          If true, masters are updated later, by PropagationQueue.
+   *
+   * @return Number of masters updated. Always 0 if queued.
    */
-  private void updateMaster(Portfolio portfolio, MutualFund mf) {
-    Portfolio master = portfolio.getMaster();
-    while (master != null) {
-      LOGGER.debug("Updating master '{}'", master);
-
-      final BigDecimal shares = mf.getValue().divide(master.getShareValue(), Utils.DEFAULT_MATHCONTEXT);
-      master.setShares(master.getShares().add(shares, Utils.DEFAULT_MATHCONTEXT));
-      master.setValue(master.getShares().multiply(master.getShareValue(), Utils.DEFAULT_MATHCONTEXT));
-      master.setLastUpdated(portfolio.getLastUpdated());
-
-      master = this.repo.save(master).getMaster();
-      LOGGER.trace("Post master update: '{}'", master);
+  private int updateMaster(Portfolio portfolio, MutualFund mf, boolean queued) {
+    if (queued) {
+      this.queue.submit(portfolio, mf.getValue());
+      return 0;
     }
+    return this.propagation.propagate(portfolio, mf.getValue());
   }
 
   /**
-   * Update a master portfolio based on values from its children. Master shares will be increased by child portfolio value
-   * divided by master share value. Will recursively update all masters.
+   * Update all masters of a portfolio based on values from its children. Master shares will be increased by child
+   * portfolio value divided by master share value.
+   *
+   * @see MasterPropagationService#propagate(Portfolio, BigDecimal)
+   * @see PropagationQueue#submit(Portfolio, BigDecimal)
    *
    * @param portfolio
+   * @param queued
+   *          If true, masters are updated later, by PropagationQueue.
    */
-  private void updateMaster(Portfolio portfolio) {
-    Portfolio master = portfolio.getMaster();
-
+  private void updateMaster(Portfolio portfolio, boolean queued) {
     LOGGER.debug("Portfolio '{}' has a master: {}", portfolio.getName(), portfolio.getMasterAsString());
 
-    while (master != null) {
-      LOGGER.debug("Updating master portfolio '{}'", master);
-
-      final BigDecimal shares = portfolio.getValue().divide(master.getShareValue(), Utils.DEFAULT_MATHCONTEXT);
-      master.setShares(master.getShares().add(shares, Utils.DEFAULT_MATHCONTEXT));
-      master.setValue(master.getShares().multiply(master.getShareValue(), Utils.DEFAULT_MATHCONTEXT));
-      master.setLastUpdated(portfolio.getLastUpdated());
-
-      master = this.repo.save(master).getMaster();
-      LOGGER.trace("Post master portfolio update: '{}'", master);
+    if (queued) {
+      this.queue.submit(portfolio, portfolio.getValue());
+    } else {
+      this.propagation.propagate(portfolio, portfolio.getValue());
     }
   }
+
+  /**
+   * Master propagation writes every master of the portfolio too, so they are journaled along with it. A snapshot
+   * written before the portfolio was created, or moved, doesn't link it to its current masters, so replaying its id
+   * alone wouldn't evict them.
+   *
+   * @return Ids of the portfolio and of all its masters.
+   */
+  private List<Long> written(Long id) {
+    final List<Long> ids = new ArrayList<>();
+    ids.add(id);
+    ids.addAll(this.closures.findAncestorIds(id));
+    return ids;
+  }
 }
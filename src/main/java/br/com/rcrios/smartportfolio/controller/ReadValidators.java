@@ -0,0 +1,125 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import java.util.Date;
+import java.util.Optional;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.service.PortfolioHierarchyCache;
+import br.com.rcrios.smartportfolio.service.PortfolioStamp;
+
+/**
+ * Conditional GETs for the read endpoints. Validators are computed before the response body, from the versions kept by
+ * {@link PortfolioHierarchyCache} and from {@link LegalEntityRepository#stamp()}, which is served by the query
+ * cache. A poll of an unchanged resource is answered with {@literal HttpStatus#NOT_MODIFIED} and the entity graph is
+ * never loaded.
+ *
+ * ETags are strong. Portfolio representations embed legal entities, so their ETags also carry the legal entity stamp.
+ * Mutual fund values are only written by valuation, which also increases the version of the portfolios holding them.
+ *
+ * lastUpdated is a date, so it's only sent as Last-Modified after that day is over: a change later in the same day
+ * wouldn't move it. It isn't sent for representations that embed legal entities either, since they have no such date.
+ * Clients should poll with If-None-Match.
+ *
+ * JSON and Smile representations have distinct ETags and responses vary on Accept. Compression is applied by the server
+ * afterwards and keeps the ETag; responses vary on Accept-Encoding.
+ */
+@Component
+class ReadValidators {
+
+  @Autowired
+  private PortfolioHierarchyCache cache;
+
+  @Autowired
+  private LegalEntityRepository leRepo;
+
+  @Autowired
+  private SmileSupport smile;
+
+  /**
+   * @param id
+   *          Portfolio id. If empty, or if there is no such portfolio, the request is never considered not modified.
+   *
+   * @return True if the response was already completed with {@literal HttpStatus#NOT_MODIFIED}.
+   */
+  boolean portfolio(Optional<Long> id, WebRequest request) {
+    final Optional<PortfolioStamp> stamp = id.flatMap(this.cache::getStamp);
+    return stamp.isPresent() && this.check(request, "p" + stamp.get().getVersion() + "-" + this.leRepo.stamp(), -1);
+  }
+
+  /**
+   * For listings and streams of full portfolios.
+   */
+  boolean portfolios(WebRequest request) {
+    return this.check(request, "ps" + this.cache.getStamp().getVersion() + "-" + this.leRepo.stamp(), -1);
+  }
+
+  /**
+   * For listings of {@link br.com.rcrios.smartportfolio.model.PortfolioSummary}, which don't embed legal entities.
+   */
+  boolean summaries(WebRequest request) {
+    final PortfolioStamp stamp = this.cache.getStamp();
+    return this.check(request, "s" + stamp.getVersion(), lastModified(stamp.getLastUpdated()));
+  }
+
+  /**
+   * Legal entities are flat and read from the second level cache, so the entity itself is the cheap lookup.
+   */
+  boolean legalEntity(LegalEntity legalEntity, WebRequest request) {
+    return this.check(request, etag(legalEntity), -1);
+  }
+
+  /**
+   * @param ifMatch
+   *          If-Match header of a save.
+   *
+   * @return True if it carries the current ETag of the legal entity, in either representation, or '*'.
+   */
+  boolean matches(LegalEntity legalEntity, String ifMatch) {
+    final String etag = '"' + etag(legalEntity);
+    for (final String tag : ifMatch.split(",")) {
+      final String value = tag.trim();
+      if ("*".equals(value) || value.equals(etag + '"') || value.equals(etag + "-smile\"")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * For listings and streams of legal entities.
+   */
+  boolean legalEntities(WebRequest request) {
+    return this.check(request, "les" + this.leRepo.stamp(), -1);
+  }
+
+  private boolean check(WebRequest request, String etag, long lastModified) {
+    if (request instanceof NativeWebRequest) {
+      final HttpServletResponse response = ((NativeWebRequest) request).getNativeResponse(HttpServletResponse.class);
+      if (response != null) {
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+      }
+    }
+    return request.checkNotModified(this.smile.requested(request) ? etag + "-smile" : etag, lastModified);
+  }
+
+  private static String etag(LegalEntity legalEntity) {
+    return "le" + legalEntity.getId() + "v" + legalEntity.getVersion();
+  }
+
+  private static long lastModified(Date lastUpdated) {
+    if (lastUpdated == null || DateCodec.toEpochDay(lastUpdated) >= DateCodec.toEpochDay(new Date())) {
+      return -1;
+    }
+    return lastUpdated.getTime();
+  }
+}
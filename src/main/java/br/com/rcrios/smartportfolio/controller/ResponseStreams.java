@@ -0,0 +1,190 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+
+/**
+ * Helpers shared by controllers to return large collections: keyset (cursor) pages and JSON / NDJSON streams.
+ */
+final class ResponseStreams {
+
+  /**
+   * Response header that holds the cursor of the next page. Absent on the last page.
+   */
+  static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+  static final String NDJSON = "ndjson";
+  static final String NDJSON_VALUE = "application/x-ndjson";
+
+  static final int DEFAULT_PAGE_SIZE = 100;
+  static final int MAX_PAGE_SIZE = 1000;
+
+  /**
+   * Rows written between two flushes of the response output stream.
+   */
+  private static final int FLUSH_INTERVAL = 100;
+
+  /**
+   * Entities written between two clears of the persistence context.
+   */
+  private static final int CLEAR_INTERVAL = 100;
+
+  /**
+   * Hides utility class constructor
+   */
+  private ResponseStreams() {
+    // Empty
+  }
+
+  /**
+   * @param limit
+   *          Requested page size. Null means {@link #DEFAULT_PAGE_SIZE}. Limited to {@link #MAX_PAGE_SIZE}.
+   *
+   * @return The first page of the given size. Keyset queries filter by the cursor, so the page number is always 0.
+   */
+  static Pageable firstPage(Integer limit) {
+    final int size = limit == null || limit <= 0 ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+    return PageRequest.of(0, size);
+  }
+
+  /**
+   * Wraps a keyset page. If the page is full, the id of its last element is returned in {@link #NEXT_CURSOR_HEADER}.
+   *
+   * @return A ResponseEntity with {@link HttpStatus#OK} or, if the page is empty, {@link HttpStatus#NO_CONTENT}.
+   */
+  static <T> ResponseEntity<List<T>> page(List<T> page, Pageable pageable, Function<T, Long> id) {
+    if (page.isEmpty()) {
+      return new ResponseEntity<>(page, HttpStatus.NO_CONTENT);
+    }
+
+    final HttpHeaders headers = new HttpHeaders();
+    if (page.size() >= pageable.getPageSize()) {
+      headers.set(NEXT_CURSOR_HEADER, String.valueOf(id.apply(page.get(page.size() - 1))));
+    }
+    return new ResponseEntity<>(page, headers, HttpStatus.OK);
+  }
+
+  /**
+   * Writes every element of the stream straight to the response, either as a JSON array or as NDJSON (one JSON document
+   * per line). If the mapper writes Smile (see {@link SmileSupport}), the array is written in Smile. The output is
+   * flushed after the first element and then periodically, so the client receives data while the repository is still
+   * being read.
+   *
+   * @param stream
+   *          Elements to be written. It's closed by this method.
+   * @param format
+   *          {@link #NDJSON} or anything else for a JSON array.
+   * @param written
+   *          Called after each element is written. Streams of entities use {@link #clearing(EntityManager)}, so the
+   *          persistence context doesn't grow with the stream.
+   */
+  static <T> void write(Stream<T> stream, String format, HttpServletResponse response, ObjectMapper mapper, Consumer<T> written) {
+    try (Stream<T> elements = stream) {
+      write(NDJSON.equalsIgnoreCase(format), response, mapper, sink -> {
+        final Iterator<T> it = elements.iterator();
+        while (it.hasNext()) {
+          final T element = it.next();
+          sink.accept(element);
+          written.accept(element);
+        }
+      });
+    }
+  }
+
+  /**
+   * Same as {@link #write(Stream, String, HttpServletResponse, ObjectMapper, Consumer)}, for streams of values that
+   * aren't entities, so nothing has to be done after each one is written.
+   */
+  static <T> void write(Stream<T> stream, String format, HttpServletResponse response, ObjectMapper mapper) {
+    write(stream, format, response, mapper, element -> {
+    });
+  }
+
+  /**
+   * Callback for {@link #write(Stream, String, HttpServletResponse, ObjectMapper, Consumer)} that clears the persistence
+   * context every {@value #CLEAR_INTERVAL} entities. Detaching each entity isn't enough: detach doesn't cascade to eagerly
+   * loaded associations (masters, mutual funds, legal entities), which would stay managed until the end of the stream.
+   * Associations shared by several entities are loaded once per interval.
+   */
+  static <T> Consumer<T> clearing(EntityManager entityManager) {
+    final long[] count = new long[1];
+    return element -> {
+      if (++count[0] % CLEAR_INTERVAL == 0) {
+        entityManager.clear();
+      }
+    };
+  }
+
+  /**
+   * Same as {@link #write(Stream, String, HttpServletResponse, ObjectMapper, Consumer)}, for elements pushed by a
+   * producer as they are available.
+   *
+   * @param producer
+   *          Receives the sink that writes each element to the response.
+   */
+  static void write(boolean ndjson, HttpServletResponse response, ObjectMapper mapper, Consumer<Consumer<Object>> producer) {
+    response.setStatus(HttpStatus.OK.value());
+    if (mapper.getFactory() instanceof SmileFactory) {
+      response.setContentType(SmileSupport.SMILE_VALUE);
+    } else {
+      response.setContentType(ndjson ? NDJSON_VALUE : MediaType.APPLICATION_JSON_UTF8_VALUE);
+      response.setCharacterEncoding("UTF-8");
+    }
+
+    final ObjectWriter writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    try (OutputStream out = response.getOutputStream(); JsonGenerator generator = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+      // Root values are only written by NDJSON, whose separator is the line break. Smile doesn't support separators.
+      if (ndjson) {
+        generator.setRootValueSeparator(null);
+      } else {
+        generator.writeStartArray();
+      }
+
+      final long[] count = new long[1];
+      producer.accept(element -> {
+        try {
+          writer.writeValue(generator, element);
+          if (ndjson) {
+            generator.writeRaw('\n');
+          }
+          if (++count[0] % FLUSH_INTERVAL == 1) {
+            generator.flush();
+          }
+        } catch (final IOException e) {
+          throw new SmartPortfolioRuntimeException("Failed to stream response.", e);
+        }
+      });
+
+      if (!ndjson) {
+        generator.writeEndArray();
+      }
+    } catch (final IOException e) {
+      throw new SmartPortfolioRuntimeException("Failed to stream response.", e);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.WebRequest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Content negotiation of Smile for the endpoints that don't go through message converters: streams and the validators
+ * of conditional GETs, whose ETags must differ between JSON and Smile.
+ *
+ * @see br.com.rcrios.smartportfolio.WebConfiguration
+ */
+@Component
+class SmileSupport {
+
+  static final String SMILE_VALUE = "application/x-jackson-smile";
+  static final MediaType SMILE = MediaType.parseMediaType(SMILE_VALUE);
+
+  @Autowired
+  private MappingJackson2SmileHttpMessageConverter converter;
+
+  /**
+   * Same choice as the message converters: JSON wins unless Smile is preferred by the Accept header, so wildcards keep
+   * getting JSON.
+   */
+  boolean requested(WebRequest request) {
+    final String accept = request.getHeader(HttpHeaders.ACCEPT);
+    if (accept == null) {
+      return false;
+    }
+
+    final List<MediaType> types;
+    try {
+      types = MediaType.parseMediaTypes(accept);
+    } catch (final InvalidMediaTypeException e) {
+      return false;
+    }
+
+    MediaType.sortBySpecificityAndQuality(types);
+    for (final MediaType type : types) {
+      if (type.includes(MediaType.APPLICATION_JSON)) {
+        return false;
+      }
+      if (type.includes(SMILE)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param format
+   *          Format requested from a stream. NDJSON is text, so it's always written with the JSON mapper.
+   * @param json
+   *          The JSON mapper.
+   *
+   * @return The mapper for a stream, to be passed to {@link ResponseStreams}.
+   */
+  ObjectMapper mapper(WebRequest request, String format, ObjectMapper json) {
+    if (ResponseStreams.NDJSON.equalsIgnoreCase(format) || !this.requested(request)) {
+      return json;
+    }
+    return this.converter.getObjectMapper();
+  }
+}
@@ -10,10 +10,16 @@ import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
 
+/**
+ * Daily factor of a benchmark at a date. A benchmark has at most one factor per date.
+ */
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = { "type", "date" }))
 public class Benchmark {
   /**
    * Primary key. Internal system ID for benchmarks.
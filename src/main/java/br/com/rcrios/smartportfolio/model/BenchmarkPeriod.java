@@ -0,0 +1,57 @@
+package br.com.rcrios.smartportfolio.model;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * A period of time and the compounded benchmark factor over it. Used to query many periods at once.
+ *
+ * Dates are formatted as {@link br.com.rcrios.smartportfolio.Utils#DEFAULT_DATE_PATTERN}. The period includes the start
+ * date and excludes the end date, so a value invested on 'start' is worth value * factor on 'end'.
+ */
+public class BenchmarkPeriod implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private String start;
+  private String end;
+  private BigDecimal factor;
+
+  public BenchmarkPeriod() {
+    // Empty
+  }
+
+  public BenchmarkPeriod(String start, String end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  public String getStart() {
+    return start;
+  }
+
+  public void setStart(String start) {
+    this.start = start;
+  }
+
+  public String getEnd() {
+    return end;
+  }
+
+  public void setEnd(String end) {
+    this.end = end;
+  }
+
+  public BigDecimal getFactor() {
+    return factor;
+  }
+
+  public void setFactor(BigDecimal factor) {
+    this.factor = factor;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("BenchmarkPeriod [start=%s, end=%s, factor=%s]", start, end, factor);
+  }
+}
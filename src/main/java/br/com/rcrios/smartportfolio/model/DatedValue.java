@@ -0,0 +1,51 @@
+package br.com.rcrios.smartportfolio.model;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+
+/**
+ * A value at a date, like a mutual fund share value or a benchmark daily factor. Built by repository queries that read
+ * histories without loading entities.
+ *
+ * The date is formatted as {@link br.com.rcrios.smartportfolio.Utils#DEFAULT_DATE_PATTERN}.
+ */
+public class DatedValue implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private String date;
+  private BigDecimal value;
+
+  public DatedValue() {
+    // Empty
+  }
+
+  public DatedValue(Date date, BigDecimal value) {
+    this.date = DateCodec.format(date);
+    this.value = value;
+  }
+
+  public String getDate() {
+    return date;
+  }
+
+  public void setDate(String date) {
+    this.date = date;
+  }
+
+  public BigDecimal getValue() {
+    return value;
+  }
+
+  public void setValue(BigDecimal value) {
+    this.value = value;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("DatedValue [date=%s, value=%s]", date, value);
+  }
+}
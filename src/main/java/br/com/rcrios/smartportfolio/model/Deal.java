@@ -1,7 +1,6 @@
 package br.com.rcrios.smartportfolio.model;
 
 import java.math.BigDecimal;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 import javax.persistence.Column;
@@ -10,14 +9,19 @@ import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.ManyToOne;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import br.com.rcrios.smartportfolio.Utils;
+
 @Entity
+@Table(indexes = @Index(columnList = "mutual_fund_id, date"))
 public class Deal {
   private static final Logger LOGGER = LoggerFactory.getLogger(Deal.class);
 
@@ -71,6 +75,13 @@ public class Deal {
       throw new InvalidObject("Deal must have a valid mutual fund.");
     }
 
+    Deal.validateDetails(toBeValidated);
+  }
+
+  /**
+   * Validates everything but the mutual fund, which bulk imports validate once for many deals.
+   */
+  public static void validateDetails(Deal toBeValidated) {
     if (toBeValidated.getDate() == null) {
       throw new InvalidObject("Deal date cannot be null.");
     }
@@ -157,9 +168,7 @@ public class Deal {
 
   @Override
   public String toString() {
-    SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
-
-    return String.format("Deal [id=%s, date=%s, value=%s, shares=%s, type=%s, mutualFund.id=%s, mutualFund.name=%s, comments=%s]", id, sdf.format(date), value, shares, type,
+    return String.format("Deal [id=%s, date=%s, value=%s, shares=%s, type=%s, mutualFund.id=%s, mutualFund.name=%s, comments=%s]", id, Utils.toString(date), value, shares, type,
         mutualFund != null ? mutualFund.getId() : null, mutualFund != null ? (mutualFund.getFund() != null ? mutualFund.getFund().getName() : null) : null, comments);
   }
 }
@@ -2,20 +2,33 @@ package br.com.rcrios.smartportfolio.model;
 
 import java.io.Serializable;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Version;
 
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * LegalEntity is any non-human entity, (firm, government agency, etc) that is recognized as having privileges and obligations, such as having the ability to
  * enter into contracts, to sue, and to be sued. It is the underlying business entity behind a mutual fund.
+ *
+ * Legal entities are reference data: they are kept in the second level cache, by id and by national tax payer id.
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@NaturalIdCache
+@BatchSize(size = 50)
 public class LegalEntity implements Serializable {
   private static final Logger LOGGER = LoggerFactory.getLogger(LegalEntity.class);
 
@@ -40,11 +53,20 @@ public class LegalEntity implements Serializable {
   private String nickname;
 
   /**
-   * National tax payer id (in Brazil, CNPJ). An unique id that identifies the entity into government agencies.
+   * National tax payer id (in Brazil, CNPJ). An unique id that identifies the entity into government agencies. Mutable,
+   * since a legal entity may be saved again with a corrected id.
    */
+  @NaturalId(mutable = true)
   @Column(nullable = false, unique = true)
   private String nationalTaxPayerId;
 
+  /**
+   * Optimistic lock. Also used by the validators (ETag) of the read endpoints. Clients don't need to send it back: saves
+   * are only checked against it if they carry If-Match.
+   */
+  @Version
+  private long version;
+
   /**
    * Verifies if the provided object is valid. If it is not, throws an SmartPortfolioRuntimeException. To be valid, a LegalEntity must be not null and also must
    * have a name and a national tax payer id.
@@ -113,8 +135,16 @@ public class LegalEntity implements Serializable {
     this.nationalTaxPayerId = nationalTaxPayerId;
   }
 
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
   @Override
   public String toString() {
-    return String.format("LegalEntity [id=%s, name=%s, nickname=%s, nationalTaxPayerId=%s]", id, name, nickname, nationalTaxPayerId);
+    return String.format("LegalEntity [id=%s, name=%s, nickname=%s, nationalTaxPayerId=%s, version=%s]", id, name, nickname, nationalTaxPayerId, version);
   }
 }
@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.math.BigDecimal;
 import java.util.Date;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
@@ -14,6 +15,10 @@ import javax.persistence.ManyToOne;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,8 +29,12 @@ import org.slf4j.LoggerFactory;
  * 
  * @see {@link https://en.wikipedia.org/wiki/Mutual_fund}
  *
+ *      Mutual funds are kept in the second level cache. Their legal entities are fetched by id instead of joined, so they
+ *      come from the cache as well.
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class MutualFund implements Serializable {
   private static final Logger LOGGER = LoggerFactory.getLogger(MutualFund.class);
 
@@ -36,12 +45,15 @@ public class MutualFund implements Serializable {
   private Long id;
 
   @ManyToOne(fetch = FetchType.EAGER, optional = false)
+  @Fetch(FetchMode.SELECT)
   private LegalEntity fund;
 
   @ManyToOne(fetch = FetchType.EAGER, optional = false)
+  @Fetch(FetchMode.SELECT)
   private LegalEntity manager;
 
   @ManyToOne(fetch = FetchType.EAGER, optional = false)
+  @Fetch(FetchMode.SELECT)
   private LegalEntity trustee;
 
   @Column(precision = 16, scale = 6, nullable = false)
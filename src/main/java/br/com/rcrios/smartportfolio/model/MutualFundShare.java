@@ -11,19 +11,22 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This entity holds mutual fund share values.
+ * This entity holds mutual fund share values. A fund has at most one share value per date.
  * 
  * @see {@link https://en.wikipedia.org/wiki/Net_asset_value}
  *
  */
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = { "mutual_fund_id", "date" }))
 public class MutualFundShare implements Serializable {
   private static final Logger LOGGER = LoggerFactory.getLogger(MutualFundShare.class);
 
@@ -18,6 +18,7 @@ import javax.persistence.OneToMany;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 import javax.persistence.Transient;
+import javax.persistence.Version;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +27,8 @@ import org.springframework.lang.NonNull;
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
+import br.com.rcrios.smartportfolio.DateCodec;
+
 @Entity
 public class Portfolio implements Serializable {
   private static final Logger LOGGER = LoggerFactory.getLogger(Portfolio.class);
@@ -45,7 +48,7 @@ public class Portfolio implements Serializable {
   @OneToMany(fetch = FetchType.EAGER)
   private List<MutualFund> mutualFund = new ArrayList<>();
 
-  @JsonFormat(pattern = "EEE MMM dd HH:mm:ss z yyyy", locale = "US")
+  @JsonFormat(pattern = DateCodec.JSON_PATTERN, locale = "US")
   @Temporal(TemporalType.DATE)
   @Column(nullable = false)
   private Date shareValueDate;
@@ -59,14 +62,32 @@ public class Portfolio implements Serializable {
   @Column(precision = 16, scale = 6, nullable = false)
   private BigDecimal value;
 
+  /**
+   * Share value and date before the latest valuation, kept by the valuation engine when the valuation date moves
+   * forward. Null until the portfolio is valued at a later date than its initial one.
+   */
+  @Column(precision = 16, scale = 6)
+  private BigDecimal previousShareValue;
+
+  @JsonFormat(pattern = DateCodec.JSON_PATTERN, locale = "US")
+  @Temporal(TemporalType.DATE)
+  private Date previousShareValueDate;
+
   @Column(precision = 16, scale = 6, nullable = false)
   private BigDecimal benchmarkValue;
 
-  @JsonFormat(pattern = "EEE MMM dd HH:mm:ss z yyyy", locale = "US")
+  @JsonFormat(pattern = DateCodec.JSON_PATTERN, locale = "US")
   @Temporal(TemporalType.DATE)
   @Column(nullable = false)
   private Date lastUpdated;
 
+  /**
+   * Optimistic lock. Writes that bypass Hibernate (valuation and master propagation) also increase it, so a portfolio
+   * changed by them after being read can't be saved over.
+   */
+  @Version
+  private long version;
+
   @JsonInclude()
   @Transient
   private PortfolioFacts facts;
@@ -195,6 +216,29 @@ public class Portfolio implements Serializable {
     this.value = value;
   }
 
+  public BigDecimal getPreviousShareValue() {
+    return this.previousShareValue;
+  }
+
+  public void setPreviousShareValue(BigDecimal previousShareValue) {
+    this.previousShareValue = previousShareValue;
+  }
+
+  public Date getPreviousShareValueDate() {
+    if (this.previousShareValueDate != null) {
+      return new Date(this.previousShareValueDate.getTime());
+    }
+    return null;
+  }
+
+  public void setPreviousShareValueDate(Date previousShareValueDate) {
+    if (previousShareValueDate != null) {
+      this.previousShareValueDate = new Date(previousShareValueDate.getTime());
+    } else {
+      this.previousShareValueDate = null;
+    }
+  }
+
   public BigDecimal getBenchmarkValue() {
     return this.benchmarkValue;
   }
@@ -218,6 +262,14 @@ public class Portfolio implements Serializable {
     }
   }
 
+  public long getVersion() {
+    return this.version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
   public PortfolioFacts getFacts() {
     return this.facts;
   }
@@ -228,8 +280,8 @@ public class Portfolio implements Serializable {
 
   @Override
   public String toString() {
-    return String.format("Portfolio [id=%s, name=%s, master.id=%s, mutualfunds=%s, shareValueDate=%s, shares=%s, shareValue=%s, value=%s, benchmarkValue=%s]",
+    return String.format("Portfolio [id=%s, name=%s, master.id=%s, mutualfunds=%s, shareValueDate=%s, shares=%s, shareValue=%s, value=%s, benchmarkValue=%s, version=%s]",
         this.id, this.name, this.master != null ? this.master.getId() : null, this.mutualFund, this.shareValueDate, this.shares, this.shareValue, this.value,
-        this.benchmarkValue);
+        this.benchmarkValue, this.version);
   }
 }
@@ -0,0 +1,109 @@
+package br.com.rcrios.smartportfolio.model;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * Closure table of the portfolio hierarchy: one row for every (ancestor, descendant) pair, including each portfolio
+ * paired with itself at depth 0. Descendants of a portfolio are read through the primary key and ancestors through the
+ * descendant index, so subtree and master chain questions are answered by a single query, whatever the depth.
+ *
+ * Rows are written by br.com.rcrios.smartportfolio.service.PortfolioClosureMaintainer, in the same transaction that
+ * creates, moves or removes the portfolio. Ids aren't foreign keys, so portfolios can be removed in any order.
+ */
+@Entity
+@IdClass(PortfolioClosure.Key.class)
+@Table(indexes = @Index(columnList = "descendant_id, depth"))
+public class PortfolioClosure {
+
+  @Id
+  @Column(name = "ancestor_id")
+  private Long ancestorId;
+
+  @Id
+  @Column(name = "descendant_id")
+  private Long descendantId;
+
+  /**
+   * Number of master links between both portfolios. 0 when they are the same.
+   */
+  @Column(nullable = false)
+  private int depth;
+
+  public Long getAncestorId() {
+    return ancestorId;
+  }
+
+  public void setAncestorId(Long ancestorId) {
+    this.ancestorId = ancestorId;
+  }
+
+  public Long getDescendantId() {
+    return descendantId;
+  }
+
+  public void setDescendantId(Long descendantId) {
+    this.descendantId = descendantId;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public void setDepth(int depth) {
+    this.depth = depth;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("PortfolioClosure [ancestorId=%s, descendantId=%s, depth=%s]", ancestorId, descendantId, depth);
+  }
+
+  /**
+   * Primary key: ancestor and descendant ids.
+   */
+  public static class Key implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private Long ancestorId;
+    private Long descendantId;
+
+    public Key() {
+      // Required by JPA
+    }
+
+    public Key(Long ancestorId, Long descendantId) {
+      this.ancestorId = ancestorId;
+      this.descendantId = descendantId;
+    }
+
+    public Long getAncestorId() {
+      return ancestorId;
+    }
+
+    public Long getDescendantId() {
+      return descendantId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return Objects.equals(ancestorId, other.ancestorId) && Objects.equals(descendantId, other.descendantId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(ancestorId, descendantId);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package br.com.rcrios.smartportfolio.model;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+
+/**
+ * Read-only view of a {@link Portfolio} used by listings. It holds only ids, names and valuation columns: mutual funds
+ * are left out and the master is reduced to its id and name, so it can be built by a single join query without loading
+ * any entity.
+ */
+public class PortfolioSummary implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Long id;
+  private final String name;
+  private final Long masterId;
+  private final String masterName;
+
+  @JsonFormat(pattern = DateCodec.JSON_PATTERN, locale = "US")
+  private final Date shareValueDate;
+
+  private final BigDecimal shares;
+  private final BigDecimal shareValue;
+  private final BigDecimal value;
+  private final BigDecimal benchmarkValue;
+
+  @JsonFormat(pattern = DateCodec.JSON_PATTERN, locale = "US")
+  private final Date lastUpdated;
+
+  /**
+   * Filled by {@link br.com.rcrios.smartportfolio.service.PortfolioFactsEngine}, not by the query.
+   */
+  private PortfolioFacts facts;
+
+  /**
+   * Used by JPQL constructor expressions. Argument order must match the repository queries.
+   */
+  public PortfolioSummary(Long id, String name, Long masterId, String masterName, Date shareValueDate, BigDecimal shares, BigDecimal shareValue,
+      BigDecimal value, BigDecimal benchmarkValue, Date lastUpdated) {
+    this.id = id;
+    this.name = name;
+    this.masterId = masterId;
+    this.masterName = masterName;
+    this.shareValueDate = shareValueDate != null ? new Date(shareValueDate.getTime()) : null;
+    this.shares = shares;
+    this.shareValue = shareValue;
+    this.value = value;
+    this.benchmarkValue = benchmarkValue;
+    this.lastUpdated = lastUpdated != null ? new Date(lastUpdated.getTime()) : null;
+  }
+
+  public Long getId() {
+    return this.id;
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  public Long getMasterId() {
+    return this.masterId;
+  }
+
+  public String getMasterName() {
+    return this.masterName;
+  }
+
+  public Date getShareValueDate() {
+    if (this.shareValueDate != null) {
+      return new Date(this.shareValueDate.getTime());
+    }
+    return null;
+  }
+
+  public BigDecimal getShares() {
+    return this.shares;
+  }
+
+  public BigDecimal getShareValue() {
+    return this.shareValue;
+  }
+
+  public BigDecimal getValue() {
+    return this.value;
+  }
+
+  public BigDecimal getBenchmarkValue() {
+    return this.benchmarkValue;
+  }
+
+  public Date getLastUpdated() {
+    if (this.lastUpdated != null) {
+      return new Date(this.lastUpdated.getTime());
+    }
+    return null;
+  }
+
+  public PortfolioFacts getFacts() {
+    return this.facts;
+  }
+
+  public void setFacts(PortfolioFacts facts) {
+    this.facts = facts;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("PortfolioSummary [id=%s, name=%s, master.id=%s, shareValueDate=%s, shares=%s, shareValue=%s, value=%s, benchmarkValue=%s]", this.id,
+        this.name, this.masterId, this.shareValueDate, this.shares, this.shareValue, this.value, this.benchmarkValue);
+  }
+}
@@ -0,0 +1,68 @@
+package br.com.rcrios.smartportfolio.model;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * Shares of a mutual fund held at a date, and the amount paid for them, as derived from its deals.
+ *
+ * The date is formatted as {@link br.com.rcrios.smartportfolio.Utils#DEFAULT_DATE_PATTERN}. It's the requested date of
+ * as-of positions and the date of the last deal of current positions (null if there are no deals).
+ */
+public class Position implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private Long mutualFundId;
+  private String date;
+  private BigDecimal shares;
+  private BigDecimal cost;
+
+  public Position() {
+    // Empty
+  }
+
+  public Position(Long mutualFundId, String date, BigDecimal shares, BigDecimal cost) {
+    this.mutualFundId = mutualFundId;
+    this.date = date;
+    this.shares = shares;
+    this.cost = cost;
+  }
+
+  public Long getMutualFundId() {
+    return mutualFundId;
+  }
+
+  public void setMutualFundId(Long mutualFundId) {
+    this.mutualFundId = mutualFundId;
+  }
+
+  public String getDate() {
+    return date;
+  }
+
+  public void setDate(String date) {
+    this.date = date;
+  }
+
+  public BigDecimal getShares() {
+    return shares;
+  }
+
+  public void setShares(BigDecimal shares) {
+    this.shares = shares;
+  }
+
+  public BigDecimal getCost() {
+    return cost;
+  }
+
+  public void setCost(BigDecimal cost) {
+    this.cost = cost;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Position [mutualFundId=%s, date=%s, shares=%s, cost=%s]", mutualFundId, date, shares, cost);
+  }
+}
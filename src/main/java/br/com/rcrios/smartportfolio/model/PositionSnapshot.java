@@ -0,0 +1,96 @@
+package br.com.rcrios.smartportfolio.model;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Position (shares and cost) of a mutual fund after all its deals up to a date, inclusive. Written periodically by
+ * {@link br.com.rcrios.smartportfolio.service.PositionEngine}, so positions can be rebuilt by replaying only the deals
+ * after the latest snapshot.
+ */
+@Entity
+@Table(indexes = @Index(columnList = "mutual_fund_id, date"))
+public class PositionSnapshot {
+  /**
+   * Primary key. Internal system ID for snapshots.
+   */
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  @ManyToOne(fetch = FetchType.LAZY, optional = false)
+  private MutualFund mutualFund;
+
+  /**
+   * Date of the last deal included in the snapshot.
+   */
+  @Temporal(TemporalType.DATE)
+  @Column(nullable = false)
+  private Date date;
+
+  @Column(precision = 16, scale = 6, nullable = false)
+  private BigDecimal shares;
+
+  /**
+   * Amount paid for the shares still held (average cost).
+   */
+  @Column(precision = 16, scale = 6, nullable = false)
+  private BigDecimal cost;
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public MutualFund getMutualFund() {
+    return mutualFund;
+  }
+
+  public void setMutualFund(MutualFund mutualFund) {
+    this.mutualFund = mutualFund;
+  }
+
+  public Date getDate() {
+    return date;
+  }
+
+  public void setDate(Date date) {
+    this.date = date;
+  }
+
+  public BigDecimal getShares() {
+    return shares;
+  }
+
+  public void setShares(BigDecimal shares) {
+    this.shares = shares;
+  }
+
+  public BigDecimal getCost() {
+    return cost;
+  }
+
+  public void setCost(BigDecimal cost) {
+    this.cost = cost;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("PositionSnapshot [id=%s, date=%s, shares=%s, cost=%s]", id, date, shares, cost);
+  }
+}
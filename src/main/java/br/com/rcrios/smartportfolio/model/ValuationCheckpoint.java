@@ -0,0 +1,93 @@
+package br.com.rcrios.smartportfolio.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * A partition (root subtree) of a {@link ValuationRun} whose values were committed. It's written in the same
+ * transaction as the values, so a resumed run skips exactly the partitions already valued.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = { "run_id", "portfolio_id" }))
+public class ValuationCheckpoint {
+  /**
+   * Primary key. Internal system ID for checkpoints.
+   */
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  @ManyToOne(fetch = FetchType.LAZY, optional = false)
+  private ValuationRun run;
+
+  /**
+   * Id of the partition portfolio. Not a foreign key, so portfolios can be removed while runs are kept.
+   */
+  @Column(name = "portfolio_id", nullable = false)
+  private Long portfolioId;
+
+  private int portfolios;
+  private int mutualFunds;
+  private int unquoted;
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public ValuationRun getRun() {
+    return run;
+  }
+
+  public void setRun(ValuationRun run) {
+    this.run = run;
+  }
+
+  public Long getPortfolioId() {
+    return portfolioId;
+  }
+
+  public void setPortfolioId(Long portfolioId) {
+    this.portfolioId = portfolioId;
+  }
+
+  public int getPortfolios() {
+    return portfolios;
+  }
+
+  public void setPortfolios(int portfolios) {
+    this.portfolios = portfolios;
+  }
+
+  public int getMutualFunds() {
+    return mutualFunds;
+  }
+
+  public void setMutualFunds(int mutualFunds) {
+    this.mutualFunds = mutualFunds;
+  }
+
+  public int getUnquoted() {
+    return unquoted;
+  }
+
+  public void setUnquoted(int unquoted) {
+    this.unquoted = unquoted;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ValuationCheckpoint [id=%s, portfolioId=%s, portfolios=%s, mutualFunds=%s, unquoted=%s]", id, portfolioId, portfolios,
+        mutualFunds, unquoted);
+  }
+}
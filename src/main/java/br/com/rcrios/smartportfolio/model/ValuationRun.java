@@ -0,0 +1,80 @@
+package br.com.rcrios.smartportfolio.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A revaluation of the portfolio tree at a date, run by
+ * {@link br.com.rcrios.smartportfolio.service.RevaluationService}. Runs without a finish time were interrupted and are
+ * resumed from their {@link ValuationCheckpoint}s.
+ */
+@Entity
+public class ValuationRun {
+  /**
+   * Primary key. Internal system ID for runs.
+   */
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  /**
+   * Valuation date. There is a single run per date.
+   */
+  @Temporal(TemporalType.DATE)
+  @Column(nullable = false, unique = true)
+  private Date asOf;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(nullable = false)
+  private Date started;
+
+  /**
+   * Null while the run isn't finished.
+   */
+  @Temporal(TemporalType.TIMESTAMP)
+  private Date finished;
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public Date getAsOf() {
+    return asOf;
+  }
+
+  public void setAsOf(Date asOf) {
+    this.asOf = asOf;
+  }
+
+  public Date getStarted() {
+    return started;
+  }
+
+  public void setStarted(Date started) {
+    this.started = started;
+  }
+
+  public Date getFinished() {
+    return finished;
+  }
+
+  public void setFinished(Date finished) {
+    this.finished = finished;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ValuationRun [id=%s, asOf=%s, started=%s, finished=%s]", id, asOf, started, finished);
+  }
+}
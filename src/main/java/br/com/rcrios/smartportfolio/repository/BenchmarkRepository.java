@@ -0,0 +1,66 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import br.com.rcrios.smartportfolio.model.Benchmark;
+import br.com.rcrios.smartportfolio.model.BenchmarkType;
+import br.com.rcrios.smartportfolio.model.DatedValue;
+
+/**
+ * Queries by type and date are served by the unique (type, date) index of Benchmark.
+ */
+@Repository
+public interface BenchmarkRepository extends JpaRepository<Benchmark, Long> {
+
+  /**
+   * Daily factors of a benchmark, without loading entities.
+   *
+   * @param type
+   *          Benchmark type
+   *
+   * @return Rows with date and daily factor, ordered by date.
+   */
+  @Query("SELECT b.date, b.dailyFactor FROM Benchmark b WHERE b.type = :type ORDER BY b.date")
+  public List<Object[]> findFactors(@Param("type") BenchmarkType type);
+
+  /**
+   * Streams the daily factors of a benchmark in a date window, without loading entities. Must be consumed inside a
+   * transaction and closed afterwards.
+   *
+   * @param type
+   *          Benchmark type
+   * @param from
+   *          First date, inclusive
+   * @param to
+   *          Last date, inclusive
+   *
+   * @return Daily factors ordered by date.
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+  @Query("SELECT NEW br.com.rcrios.smartportfolio.model.DatedValue(b.date, b.dailyFactor) FROM Benchmark b"
+      + " WHERE b.type = :type AND b.date BETWEEN :from AND :to ORDER BY b.date")
+  public Stream<DatedValue> streamRange(@Param("type") BenchmarkType type, @Param("from") Date from, @Param("to") Date to);
+
+  /**
+   * @param type
+   *          Benchmark type
+   * @param date
+   *          Latest date, inclusive
+   *
+   * @return The daily factor of the benchmark at the latest date on or before the given one.
+   */
+  public Optional<Benchmark> findFirstByTypeAndDateLessThanEqualOrderByDateDesc(BenchmarkType type, Date date);
+}
@@ -0,0 +1,76 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import br.com.rcrios.smartportfolio.model.Deal;
+
+/**
+ * Queries by mutual fund and date are served by the (mutual_fund_id, date) index of Deal.
+ */
+@Repository
+public interface DealRepository extends JpaRepository<Deal, Long> {
+
+  /**
+   * @return Ids of all mutual funds with deals.
+   */
+  @Query("SELECT DISTINCT d.mutualFund.id FROM Deal d")
+  public List<Long> findMutualFundIds();
+
+  /**
+   * Streams the deals of a mutual fund in the order they are replayed, without loading entities. Must be consumed
+   * inside a transaction and closed afterwards.
+   *
+   * @param id
+   *          MutualFund id
+   *
+   * @return Rows with deal id, date, type, shares, value and fund (LegalEntity) id, ordered by date and id.
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+  @Query("SELECT d.id, d.date, d.type, d.shares, d.value, m.fund.id FROM Deal d JOIN d.mutualFund m WHERE m.id = :id ORDER BY d.date, d.id")
+  public Stream<Object[]> streamPositionDeals(@Param("id") Long id);
+
+  /**
+   * Same as {@link #streamPositionDeals(Long)}, but only for deals after a date.
+   *
+   * @param after
+   *          Deals of this date are not included
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+  @Query("SELECT d.id, d.date, d.type, d.shares, d.value, m.fund.id FROM Deal d JOIN d.mutualFund m WHERE m.id = :id AND d.date > :after ORDER BY d.date, d.id")
+  public Stream<Object[]> streamPositionDealsAfter(@Param("id") Long id, @Param("after") Date after);
+
+  /**
+   * @param id
+   *          MutualFund id
+   * @param from
+   *          First date, inclusive
+   * @param to
+   *          Last date, inclusive
+   *
+   * @return Deals of the mutual fund in the date window, ordered by date and id.
+   */
+  public List<Deal> findByMutualFundIdAndDateBetweenOrderByDateAscIdAsc(Long id, Date from, Date to);
+
+  /**
+   * @param id
+   *          MutualFund id
+   * @param date
+   *          Latest date, inclusive
+   *
+   * @return The last deal of the mutual fund on or before the date.
+   */
+  public Optional<Deal> findFirstByMutualFundIdAndDateLessThanEqualOrderByDateDescIdDesc(Long id, Date date);
+}
@@ -1,22 +1,65 @@
 package br.com.rcrios.smartportfolio.repository;
 
-import java.util.Optional;
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
 
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
+
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
 
 import br.com.rcrios.smartportfolio.model.LegalEntity;
 
 @Repository
-public interface LegalEntityRepository extends JpaRepository<LegalEntity, Long> {
+public interface LegalEntityRepository extends JpaRepository<LegalEntity, Long>, LegalEntityRepositoryCustom {
+
+  /**
+   * Results are kept in the query cache, until legal_entity is written again.
+   */
+  @Override
+  @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
+  public List<LegalEntity> findAll();
+
+  /**
+   * Keyset (cursor) pagination.
+   *
+   * @param id
+   *          Cursor. Only legal entities with greater ids are returned.
+   * @param pageable
+   *          Only its page size is relevant. Page number must be 0.
+   *
+   * @return Legal entities ordered by id. Pages are kept in the query cache.
+   */
+  @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
+  public List<LegalEntity> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+  /**
+   * Cheap change detection for the whole table: the number of legal entities, the sum of their versions and the greatest
+   * id, in a single row. An insert raises the greatest id, an update raises the sum and a delete lowers the count, so any
+   * write changes it. Kept in the query cache, until legal_entity is written again.
+   */
+  @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
+  @Query("SELECT COUNT(le), COALESCE(SUM(le.version), 0), COALESCE(MAX(le.id), 0) FROM LegalEntity le")
+  public List<Object[]> findStamp();
+
+  /**
+   * @return {@link #findStamp()} as a string, to be compared with a previous one or embedded in an ETag.
+   */
+  public default String stamp() {
+    final Object[] row = this.findStamp().get(0);
+    return row[0] + "." + row[1] + "." + row[2];
+  }
 
   /**
-   * Locates a LegalEntity by its national tax payer id (in Brazil, CNPJ).
-   * 
-   * @param nationalTaxPayerId
-   *          Id that will be used to locate a LegalEntity.
-   * 
-   * @return A LegalEntity wrapped by an {@link Optional} container.
+   * Streams all legal entities ordered by id. Must be consumed inside a transaction and closed afterwards.
    */
-  public Optional<LegalEntity> findByNationalTaxPayerId(String nationalTaxPayerId);
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "100"))
+  @Query("SELECT le FROM LegalEntity le ORDER BY le.id")
+  public Stream<LegalEntity> streamAll();
 }
@@ -0,0 +1,22 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.util.Optional;
+
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+
+/**
+ * Lookups of {@link LegalEntityRepository} that go through the Hibernate session instead of a query.
+ */
+public interface LegalEntityRepositoryCustom {
+
+  /**
+   * Locates a LegalEntity by its national tax payer id (in Brazil, CNPJ). It's a natural id lookup: both the id
+   * resolution and the entity come from the second level cache when possible.
+   * 
+   * @param nationalTaxPayerId
+   *          Id that will be used to locate a LegalEntity.
+   * 
+   * @return A LegalEntity wrapped by an {@link Optional} container.
+   */
+  public Optional<LegalEntity> findByNationalTaxPayerId(String nationalTaxPayerId);
+}
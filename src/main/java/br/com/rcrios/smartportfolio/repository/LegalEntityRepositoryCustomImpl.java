@@ -0,0 +1,30 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.util.Optional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+
+/**
+ * Picked up by Spring Data as the implementation of {@link LegalEntityRepositoryCustom}.
+ */
+public class LegalEntityRepositoryCustomImpl implements LegalEntityRepositoryCustom {
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
+  @Override
+  @Transactional(readOnly = true)
+  public Optional<LegalEntity> findByNationalTaxPayerId(String nationalTaxPayerId) {
+    if (nationalTaxPayerId == null) {
+      return Optional.empty();
+    }
+
+    return this.entityManager.unwrap(Session.class).bySimpleNaturalId(LegalEntity.class).loadOptional(nationalTaxPayerId);
+  }
+}
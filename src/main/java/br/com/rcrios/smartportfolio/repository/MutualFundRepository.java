@@ -0,0 +1,23 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import br.com.rcrios.smartportfolio.model.MutualFund;
+
+@Repository
+public interface MutualFundRepository extends JpaRepository<MutualFund, Long> {
+
+  /**
+   * @param fundId
+   *          LegalEntity id of the fund
+   *
+   * @return Ids of the mutual funds of the fund.
+   */
+  @Query("SELECT m.id FROM MutualFund m WHERE m.fund.id = :fundId")
+  public List<Long> findIdsByFundId(@Param("fundId") Long fundId);
+}
@@ -0,0 +1,111 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import br.com.rcrios.smartportfolio.model.DatedValue;
+import br.com.rcrios.smartportfolio.model.MutualFundShare;
+
+/**
+ * Queries by fund and date are served by the unique (mutual_fund_id, date) index of MutualFundShare.
+ */
+@Repository
+public interface MutualFundShareRepository extends JpaRepository<MutualFundShare, Long> {
+
+  /**
+   * Fingerprint of a fund's share history, used to check if a copy of it is up to date.
+   *
+   * @param id
+   *          Fund (LegalEntity) id
+   *
+   * @return A single row with: number of shares, first date, last date, sum of values and sum of values weighted by
+   *         their date ordinal (year * 372 + month * 31 + day).
+   */
+  @Query("SELECT COUNT(s), MIN(s.date), MAX(s.date), SUM(s.value), SUM(s.value * (YEAR(s.date) * 372 + MONTH(s.date) * 31 + DAY(s.date))) FROM MutualFundShare s WHERE s.mutualFund.id = :id")
+  public List<Object[]> summarize(@Param("id") Long id);
+
+  /**
+   * Streams the share history of a fund, without loading entities. Must be consumed inside a transaction and closed
+   * afterwards.
+   *
+   * @param id
+   *          Fund (LegalEntity) id
+   *
+   * @return Rows with date and value, ordered by date.
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+  @Query("SELECT s.date, s.value FROM MutualFundShare s WHERE s.mutualFund.id = :id ORDER BY s.date")
+  public Stream<Object[]> streamHistory(@Param("id") Long id);
+
+  /**
+   * Streams the share history of every fund held through a mutual fund, in a date window, without loading entities.
+   * Must be consumed inside a transaction and closed afterwards.
+   *
+   * @param from
+   *          First date, inclusive
+   * @param to
+   *          Last date, inclusive
+   *
+   * @return Rows with fund (LegalEntity) id, fund name, date and value, ordered by fund and date.
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+  @Query("SELECT e.id, e.name, s.date, s.value FROM MutualFundShare s INNER JOIN s.mutualFund e WHERE s.date BETWEEN :from AND :to"
+      + " AND e.id IN (SELECT f.fund.id FROM MutualFund f) ORDER BY e.id, s.date")
+  public Stream<Object[]> streamHeldHistory(@Param("from") Date from, @Param("to") Date to);
+
+  /**
+   * Streams the share values of a fund in a date window, without loading entities. Must be consumed inside a
+   * transaction and closed afterwards.
+   *
+   * @param id
+   *          Fund (LegalEntity) id
+   * @param from
+   *          First date, inclusive
+   * @param to
+   *          Last date, inclusive
+   *
+   * @return Share values ordered by date.
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+  @Query("SELECT NEW br.com.rcrios.smartportfolio.model.DatedValue(s.date, s.value) FROM MutualFundShare s"
+      + " WHERE s.mutualFund.id = :id AND s.date BETWEEN :from AND :to ORDER BY s.date")
+  public Stream<DatedValue> streamRange(@Param("id") Long id, @Param("from") Date from, @Param("to") Date to);
+
+  /**
+   * @param id
+   *          Fund (LegalEntity) id
+   * @param date
+   *          Latest date, inclusive
+   *
+   * @return The share value of the fund at the latest date on or before the given one.
+   */
+  public Optional<MutualFundShare> findFirstByMutualFundIdAndDateLessThanEqualOrderByDateDesc(Long id, Date date);
+
+  /**
+   * Share values already stored for some funds in a date window. Used to skip them on imports.
+   *
+   * @param ids
+   *          Funds (LegalEntity) ids
+   * @param from
+   *          First date, inclusive
+   * @param to
+   *          Last date, inclusive
+   *
+   * @return Rows with fund id and date.
+   */
+  @Query("SELECT s.mutualFund.id, s.date FROM MutualFundShare s WHERE s.mutualFund.id IN :ids AND s.date BETWEEN :from AND :to")
+  public List<Object[]> findDates(@Param("ids") Collection<Long> ids, @Param("from") Date from, @Param("to") Date to);
+}
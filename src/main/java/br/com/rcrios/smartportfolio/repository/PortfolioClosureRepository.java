@@ -0,0 +1,56 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import br.com.rcrios.smartportfolio.model.PortfolioClosure;
+
+/**
+ * Rows are written by br.com.rcrios.smartportfolio.service.PortfolioClosureMaintainer only. This repository just reads
+ * them.
+ */
+@Repository
+public interface PortfolioClosureRepository extends JpaRepository<PortfolioClosure, PortfolioClosure.Key> {
+
+  /**
+   * @return True if 'descendantId' is in the subtree of 'ancestorId', including 'ancestorId' itself.
+   */
+  boolean existsByAncestorIdAndDescendantId(Long ancestorId, Long descendantId);
+
+  /**
+   * @return Ids of every master of a portfolio, nearest first. Empty for the root portfolio.
+   */
+  @Query("SELECT c.ancestorId FROM PortfolioClosure c WHERE c.descendantId = :id AND c.depth > 0 ORDER BY c.depth")
+  List<Long> findAncestorIds(@Param("id") Long id);
+
+  /**
+   * @return Ids of a portfolio and of every portfolio below it, ordered by depth and id.
+   */
+  @Query("SELECT c.descendantId FROM PortfolioClosure c WHERE c.ancestorId = :id ORDER BY c.depth, c.descendantId")
+  List<Long> findSubtreeIds(@Param("id") Long id);
+
+  /**
+   * @return Number of portfolios linked to themselves, which must be the number of portfolios.
+   */
+  @Query("SELECT COUNT(c) FROM PortfolioClosure c WHERE c.depth = 0")
+  long countNodes();
+
+  /**
+   * Totals of a whole subtree, in a single query over the closure rows of its top portfolio and the mutual funds they
+   * hold.
+   *
+   * @param id
+   *          Top portfolio of the subtree.
+   *
+   * @return Totals. Portfolio count is 0 if there is no such portfolio.
+   */
+  @Query(nativeQuery = true, value = "SELECT COUNT(DISTINCT c.descendant_id) AS \"portfolios\", COALESCE(MAX(c.depth), 0) AS \"height\","
+      + " COUNT(f.id) AS \"mutualFunds\", COALESCE(SUM(f.value), 0) AS \"mutualFundValue\""
+      + " FROM portfolio_closure c LEFT JOIN portfolio_mutual_fund pf ON pf.portfolio_id = c.descendant_id"
+      + " LEFT JOIN mutual_fund f ON f.id = pf.mutual_fund_id WHERE c.ancestor_id = :id")
+  PortfolioSubtree findSubtree(@Param("id") Long id);
+}
@@ -0,0 +1,22 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.math.BigDecimal;
+
+/**
+ * Lightweight read-only view of a portfolio position in the master hierarchy. Holds only what is needed to roll values
+ * up the chain, so no entity (and none of its eager associations) gets loaded.
+ */
+public interface PortfolioNode {
+  Long getId();
+
+  BigDecimal getShares();
+
+  BigDecimal getShareValue();
+
+  BigDecimal getValue();
+
+  /**
+   * @return Distance from the portfolio that originated the query. The portfolio itself has depth 1.
+   */
+  Integer getDepth();
+}
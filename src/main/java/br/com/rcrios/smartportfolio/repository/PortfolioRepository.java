@@ -1,20 +1,133 @@
 package br.com.rcrios.smartportfolio.repository;
 
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.model.PortfolioSummary;
 
 @Repository
 public interface PortfolioRepository extends JpaRepository<Portfolio, Long> {
+  String SUMMARY_SELECT = "SELECT new br.com.rcrios.smartportfolio.model.PortfolioSummary(p.id, p.name, m.id, m.name, p.shareValueDate, p.shares,"
+      + " p.shareValue, p.value, p.benchmarkValue, p.lastUpdated) FROM Portfolio p LEFT JOIN p.master m";
+
   List<Portfolio> findByMutualFundId(Long mfId);
 
   Optional<Portfolio> findFirstByNameIgnoreCase(String name);
 
-  @Query("SELECT p FROM Portfolio p WHERE p.master = null")
+  @Query("SELECT p FROM Portfolio p WHERE p.master IS NULL")
   Optional<Portfolio> getRootPortfolio();
+
+  /**
+   * Retrieves, in a single query over the closure table (see {@link PortfolioClosureRepository}), a portfolio and its
+   * whole master chain up to the root portfolio.
+   *
+   * @param id
+   *          Id of the first portfolio of the chain
+   *
+   * @return Chain nodes ordered by depth. The portfolio identified by 'id' has depth 1, its master has depth 2 and so on.
+   */
+  @Query(nativeQuery = true, value = "SELECT p.id AS \"id\", p.shares AS \"shares\", p.share_value AS \"shareValue\", p.value AS \"value\", c.depth + 1 AS \"depth\""
+      + " FROM portfolio_closure c INNER JOIN portfolio p ON p.id = c.ancestor_id WHERE c.descendant_id = :id ORDER BY c.depth")
+  List<PortfolioNode> findAncestry(@Param("id") Long id);
+
+  /**
+   * Retrieves a portfolio and every portfolio below it as summaries, with a single query over the closure table.
+   *
+   * @return Summaries ordered by depth and id. Empty if there is no such portfolio.
+   */
+  @Query(SUMMARY_SELECT + ", PortfolioClosure c WHERE c.ancestorId = :id AND c.descendantId = p.id ORDER BY c.depth, p.id")
+  List<PortfolioSummary> findSubtreeSummaries(@Param("id") Long id);
+
+  /**
+   * Same as {@link LegalEntityRepository#findStamp()}, for portfolios. It isn't cached, since writes that bypass
+   * Hibernate, which also increase versions, don't invalidate the query cache.
+   */
+  @Query("SELECT COUNT(p), COALESCE(SUM(p.version), 0), COALESCE(MAX(p.id), 0) FROM Portfolio p")
+  List<Object[]> findStamp();
+
+  /**
+   * Valuation columns of every portfolio, without loading entities.
+   *
+   * @return Rows with id, master id (null for the root), shares, share value, value and version.
+   */
+  @Query("SELECT p.id, m.id, p.shares, p.shareValue, p.value, p.version FROM Portfolio p LEFT JOIN p.master m")
+  List<Object[]> findValuationNodes();
+
+  /**
+   * Mutual funds held by every portfolio, without loading entities.
+   *
+   * @return Rows with portfolio id, mutual fund id, fund (LegalEntity) id, shares and value.
+   */
+  @Query("SELECT p.id, f.id, f.fund.id, f.shares, f.value FROM Portfolio p INNER JOIN p.mutualFund f")
+  List<Object[]> findValuationHoldings();
+
+  /**
+   * Keyset (cursor) pagination.
+   *
+   * @param id
+   *          Cursor. Only portfolios with greater ids are returned.
+   * @param pageable
+   *          Only its page size is relevant. Page number must be 0.
+   *
+   * @return Portfolios ordered by id.
+   */
+  List<Portfolio> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+  /**
+   * Retrieves all portfolios as summaries, with a single join query that loads no entity.
+   *
+   * @return Summaries ordered by id.
+   */
+  @Query(SUMMARY_SELECT + " ORDER BY p.id")
+  List<PortfolioSummary> findAllSummaries();
+
+  /**
+   * Keyset (cursor) pagination of portfolio summaries.
+   *
+   * @see #findAllSummaries()
+   * @see #findByIdGreaterThanOrderByIdAsc(Long, Pageable)
+   */
+  @Query(SUMMARY_SELECT + " WHERE p.id > :id ORDER BY p.id")
+  List<PortfolioSummary> findSummariesAfter(@Param("id") Long id, Pageable pageable);
+
+  /**
+   * Streams all portfolios as summaries, ordered by id. Must be consumed inside a transaction and closed afterwards.
+   *
+   * @see #findAllSummaries()
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+  @Query(SUMMARY_SELECT + " ORDER BY p.id")
+  Stream<PortfolioSummary> streamSummaries();
+
+  /**
+   * Streams the mutual funds held by every portfolio, without loading entities. Must be consumed inside a transaction
+   * and closed afterwards.
+   *
+   * @return Rows with portfolio id, portfolio name, mutual fund id, fund (LegalEntity) id, fund name, shares, value and
+   *         last updated date, ordered by portfolio and mutual fund ids.
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+  @Query("SELECT p.id, p.name, f.id, e.id, e.name, f.shares, f.value, f.lastUpdated FROM Portfolio p INNER JOIN p.mutualFund f"
+      + " INNER JOIN f.fund e ORDER BY p.id, f.id")
+  Stream<Object[]> streamHoldings();
+
+  /**
+   * Streams all portfolios ordered by id. Must be consumed inside a transaction and closed afterwards.
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "100"))
+  @Query("SELECT p FROM Portfolio p ORDER BY p.id")
+  Stream<Portfolio> streamAll();
 }
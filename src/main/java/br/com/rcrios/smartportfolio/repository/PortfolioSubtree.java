@@ -0,0 +1,30 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.math.BigDecimal;
+
+/**
+ * Read-only totals of a portfolio and every portfolio below it, computed from the closure table.
+ *
+ * @see PortfolioClosureRepository#findSubtree(Long)
+ */
+public interface PortfolioSubtree {
+  /**
+   * @return Number of portfolios, including the top one.
+   */
+  Long getPortfolios();
+
+  /**
+   * @return Depth of the deepest portfolio, relative to the top one. 0 if it has no children.
+   */
+  Integer getHeight();
+
+  /**
+   * @return Number of mutual funds held by all portfolios.
+   */
+  Long getMutualFunds();
+
+  /**
+   * @return Sum of the values of all mutual funds held.
+   */
+  BigDecimal getMutualFundValue();
+}
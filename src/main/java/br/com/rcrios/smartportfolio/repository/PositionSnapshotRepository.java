@@ -0,0 +1,44 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import br.com.rcrios.smartportfolio.model.PositionSnapshot;
+
+@Repository
+public interface PositionSnapshotRepository extends JpaRepository<PositionSnapshot, Long> {
+
+  /**
+   * @param id
+   *          MutualFund id
+   *
+   * @return The latest snapshot of a mutual fund as a row with date, shares and cost. Empty if there is none.
+   */
+  @Query("SELECT s.date, s.shares, s.cost FROM PositionSnapshot s WHERE s.mutualFund.id = :id AND s.date = "
+      + "(SELECT MAX(t.date) FROM PositionSnapshot t WHERE t.mutualFund.id = :id)")
+  public List<Object[]> findLatest(@Param("id") Long id);
+
+  /**
+   * Same as {@link #findLatest(Long)}, for the latest snapshot on or before a date.
+   */
+  @Query("SELECT s.date, s.shares, s.cost FROM PositionSnapshot s WHERE s.mutualFund.id = :id AND s.date = "
+      + "(SELECT MAX(t.date) FROM PositionSnapshot t WHERE t.mutualFund.id = :id AND t.date <= :date)")
+  public List<Object[]> findLatestOnOrBefore(@Param("id") Long id, @Param("date") Date date);
+
+  /**
+   * Removes the snapshots of a mutual fund from a date on, inclusive.
+   *
+   * @return Number of removed snapshots.
+   */
+  @Transactional
+  @Modifying
+  @Query("DELETE FROM PositionSnapshot s WHERE s.mutualFund.id = :id AND s.date >= :date")
+  public int deleteFrom(@Param("id") Long id, @Param("date") Date date);
+}
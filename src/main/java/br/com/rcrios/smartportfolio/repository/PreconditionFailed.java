@@ -14,7 +14,7 @@ import br.com.rcrios.smartportfolio.model.MutualFundShare;
  *
  * Examples of system preconditions:
  * <ul>
- * <li>SmartPortfolio must have only one root portfolio ({@link PortfolioController#getRootValue()}</li>
+ * <li>SmartPortfolio must have only one root portfolio ({@link PortfolioController#getRootValue}</li>
  * <li>A {@link MutualFundShare} must exist before a {@link Deal}
  * </ul>
  */
@@ -0,0 +1,114 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Times every call to the instrumented repositories as the {@code smartportfolio.repository} timer, tagged by
+ * repository, method and exception ("None" for successful calls). The timing advice is added first to the repository
+ * proxy, so it includes the transaction of the call. Methods returning a Stream are timed until the stream is returned,
+ * not until it's consumed.
+ */
+@Component
+public class RepositoryMetrics implements BeanPostProcessor, BeanFactoryAware {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryMetrics.class);
+
+  private static final Class<?>[] INSTRUMENTED = { PortfolioRepository.class, LegalEntityRepository.class };
+
+  private static final String NO_EXCEPTION = "None";
+
+  private BeanFactory beanFactory;
+
+  /**
+   * Looked up on first use, since post processors are created before the registry.
+   */
+  private volatile MeterRegistry registry;
+
+  @Override
+  public void setBeanFactory(BeanFactory beanFactory) {
+    this.beanFactory = beanFactory;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName) {
+    for (final Class<?> repository : INSTRUMENTED) {
+      if (repository.isInstance(bean)) {
+        final TimingInterceptor interceptor = new TimingInterceptor(repository.getSimpleName());
+        LOGGER.debug("Timing calls to {}", repository.getSimpleName());
+
+        if (bean instanceof Advised && !((Advised) bean).isFrozen()) {
+          ((Advised) bean).addAdvice(0, interceptor);
+          return bean;
+        }
+        final ProxyFactory factory = new ProxyFactory(bean);
+        factory.addAdvice(interceptor);
+        return factory.getProxy();
+      }
+    }
+    return bean;
+  }
+
+  private MeterRegistry registry() {
+    MeterRegistry result = this.registry;
+    if (result == null) {
+      result = this.beanFactory.getBean(MeterRegistry.class);
+      this.registry = result;
+    }
+    return result;
+  }
+
+  private final class TimingInterceptor implements MethodInterceptor {
+    private final String repository;
+
+    /**
+     * Timers of successful calls, by method.
+     */
+    private final Map<Method, Timer> timers = new ConcurrentHashMap<>();
+
+    private TimingInterceptor(String repository) {
+      this.repository = repository;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+      final Method method = invocation.getMethod();
+      if (method.getDeclaringClass() == Object.class) {
+        return invocation.proceed();
+      }
+
+      final long start = System.nanoTime();
+      String exception = NO_EXCEPTION;
+      try {
+        return invocation.proceed();
+      } catch (final Throwable e) {
+        exception = e.getClass().getSimpleName();
+        throw e;
+      } finally {
+        final Timer timer = NO_EXCEPTION.equals(exception) ? this.timers.computeIfAbsent(method, m -> this.timer(m, NO_EXCEPTION))
+            : this.timer(method, exception);
+        timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    private Timer timer(Method method, String exception) {
+      return Timer.builder("smartportfolio.repository").description("Time spent by repository calls").tag("repository", this.repository)
+          .tag("method", method.getName()).tag("exception", exception).register(RepositoryMetrics.this.registry());
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.function.ToDoubleFunction;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Hibernate second level cache (see ehcache.xml). Publishes hits, misses, puts and size of every region, such as
+ * {@code smartportfolio.cache.gets{region=LegalEntity, result=hit}}, plus the query cache as region "queries". Also
+ * evicts entities written outside of Hibernate.
+ */
+@Component
+public class SecondLevelCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SecondLevelCache.class);
+
+  private static final String NATURAL_ID_SUFFIX = "##NaturalId";
+
+  private static final String GETS = "smartportfolio.cache.gets";
+  private static final String PUTS = "smartportfolio.cache.puts";
+  private static final String SIZE = "smartportfolio.cache.size";
+  private static final String REGION = "region";
+
+  private final EntityManagerFactory entityManagerFactory;
+
+  @Autowired
+  public SecondLevelCache(EntityManagerFactory entityManagerFactory, MeterRegistry registry) {
+    this.entityManagerFactory = entityManagerFactory;
+
+    final Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    if (!statistics.isStatisticsEnabled()) {
+      LOGGER.warn("Hibernate statistics are disabled. Cache metrics will not be updated.");
+    }
+
+    for (final String region : statistics.getSecondLevelCacheRegionNames()) {
+      final String name = region.substring(region.lastIndexOf('.') + 1);
+      LOGGER.debug("Binding metrics of cache region {} as {}", region, name);
+
+      if (region.endsWith(NATURAL_ID_SUFFIX)) {
+        bind(registry, name, statistics, s -> s.getNaturalIdCacheStatistics(region).getHitCount(),
+            s -> s.getNaturalIdCacheStatistics(region).getMissCount(), s -> s.getNaturalIdCacheStatistics(region).getPutCount());
+        Gauge.builder(SIZE, statistics, s -> s.getNaturalIdCacheStatistics(region).getElementCountInMemory()).tags(REGION, name).register(registry);
+      } else {
+        bind(registry, name, statistics, s -> s.getSecondLevelCacheStatistics(region).getHitCount(),
+            s -> s.getSecondLevelCacheStatistics(region).getMissCount(), s -> s.getSecondLevelCacheStatistics(region).getPutCount());
+        Gauge.builder(SIZE, statistics, s -> s.getSecondLevelCacheStatistics(region).getElementCountInMemory()).tags(REGION, name)
+            .register(registry);
+      }
+    }
+
+    // The query results region is only created by the first cacheable query
+    bind(registry, "queries", statistics, Statistics::getQueryCacheHitCount, Statistics::getQueryCacheMissCount, Statistics::getQueryCachePutCount);
+  }
+
+  private static void bind(MeterRegistry registry, String region, Statistics statistics, ToDoubleFunction<Statistics> hits,
+      ToDoubleFunction<Statistics> misses, ToDoubleFunction<Statistics> puts) {
+    FunctionCounter.builder(GETS, statistics, hits).tags(REGION, region, "result", "hit").register(registry);
+    FunctionCounter.builder(GETS, statistics, misses).tags(REGION, region, "result", "miss").register(registry);
+    FunctionCounter.builder(PUTS, statistics, puts).tags(REGION, region).register(registry);
+  }
+
+  /**
+   * Evicts the entities once the current transaction commits, or right away if there is none. For rows updated with
+   * JDBC, which the cache doesn't see.
+   */
+  public void evictAfterCommit(Class<?> entity, Collection<?> ids) {
+    final Collection<?> evicted = new ArrayList<>(ids);
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      this.evict(entity, evicted);
+      return;
+    }
+
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCommit() {
+        SecondLevelCache.this.evict(entity, evicted);
+      }
+    });
+  }
+
+  private void evict(Class<?> entity, Collection<?> ids) {
+    LOGGER.trace("Evicting {} {} from the second level cache", ids.size(), entity.getSimpleName());
+    final javax.persistence.Cache cache = this.entityManagerFactory.getCache();
+    for (final Object id : ids) {
+      cache.evict(entity, id);
+    }
+  }
+}
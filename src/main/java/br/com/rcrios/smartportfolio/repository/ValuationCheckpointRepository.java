@@ -0,0 +1,28 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import br.com.rcrios.smartportfolio.model.ValuationCheckpoint;
+
+@Repository
+public interface ValuationCheckpointRepository extends JpaRepository<ValuationCheckpoint, Long> {
+
+  List<ValuationCheckpoint> findByRunId(Long runId);
+
+  /**
+   * Removes all checkpoints of a run, so it starts over.
+   *
+   * @return Number of removed checkpoints.
+   */
+  @Transactional
+  @Modifying
+  @Query("DELETE FROM ValuationCheckpoint c WHERE c.run.id = :runId")
+  int deleteByRun(@Param("runId") Long runId);
+}
@@ -0,0 +1,20 @@
+package br.com.rcrios.smartportfolio.repository;
+
+import java.util.Date;
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import br.com.rcrios.smartportfolio.model.ValuationRun;
+
+@Repository
+public interface ValuationRunRepository extends JpaRepository<ValuationRun, Long> {
+
+  Optional<ValuationRun> findByAsOf(Date asOf);
+
+  /**
+   * @return The run of the latest valuation date. Empty if there is none.
+   */
+  Optional<ValuationRun> findFirstByOrderByAsOfDesc();
+}
@@ -0,0 +1,200 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.BenchmarkType;
+import br.com.rcrios.smartportfolio.repository.BenchmarkRepository;
+
+/**
+ * Cumulative factor (prefix product) index of each benchmark. For the n-th daily factor of a benchmark, the index holds
+ * the product of all factors before it, so the factor compounded over any period is a single division, instead of a
+ * multiplication per day.
+ *
+ * A period includes its start date and excludes its end date: a value invested on 'start' is worth value * factor on
+ * 'end'. Days without a daily factor (weekends, holidays or days outside the loaded history) count as 1.
+ *
+ * The index is built at startup. Committed inserts of later dates are appended to it. Any other change discards the
+ * index of the benchmark, which is rebuilt by the next read.
+ */
+@Service
+public class BenchmarkIndex {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkIndex.class);
+
+  /**
+   * Products are kept with more digits than {@link Utils#DEFAULT_MATHCONTEXT}, so rounding errors of thousands of
+   * multiplications don't reach the digits of the result.
+   */
+  private static final MathContext PRODUCT_MATHCONTEXT = MathContext.DECIMAL128;
+
+  private static final int MIN_CAPACITY = 256;
+
+  @Autowired
+  private BenchmarkRepository repo;
+
+  private final Map<BenchmarkType, Series> index = new ConcurrentHashMap<>();
+
+  /**
+   * Days and cumulative products of one benchmark. Only the writer changes it, under the index lock: a slot is written
+   * before the count is increased, so readers never see a partially written slot.
+   */
+  private static final class Series {
+    private final int[] days;
+    private final BigDecimal[] products;
+    private volatile int count;
+
+    private Series(int capacity) {
+      this.days = new int[capacity];
+      this.products = new BigDecimal[capacity + 1];
+      this.products[0] = BigDecimal.ONE;
+    }
+
+    private Series grow() {
+      final Series grown = new Series(this.days.length * 2);
+      System.arraycopy(this.days, 0, grown.days, 0, this.count);
+      System.arraycopy(this.products, 0, grown.products, 0, this.count + 1);
+      grown.count = this.count;
+      return grown;
+    }
+
+    private void append(int day, BigDecimal dailyFactor) {
+      final int n = this.count;
+      this.days[n] = day;
+      this.products[n + 1] = this.products[n].multiply(dailyFactor, PRODUCT_MATHCONTEXT);
+      this.count = n + 1;
+    }
+
+    /**
+     * @return Number of factors whose day is before the given one.
+     */
+    private int before(int day, int n) {
+      final int index = Arrays.binarySearch(this.days, 0, n, day);
+      if (index < 0) {
+        return -index - 1;
+      }
+      // Equal days (duplicated factors) must all be counted as not before
+      int first = index;
+      while (first > 0 && this.days[first - 1] == day) {
+        first--;
+      }
+      return first;
+    }
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void load() {
+    for (final BenchmarkType type : BenchmarkType.values()) {
+      this.series(type);
+    }
+  }
+
+  /**
+   * @param type
+   *          Benchmark
+   * @param start
+   *          First day of the period, inclusive
+   * @param end
+   *          Last day of the period, exclusive
+   *
+   * @return Product of all daily factors of the period. One if the period is empty or there are no factors in it.
+   */
+  public BigDecimal factor(BenchmarkType type, Date start, Date end) {
+    return this.factor(this.series(type), DateCodec.toEpochDay(start), DateCodec.toEpochDay(end));
+  }
+
+  /**
+   * Same as {@link #factor(BenchmarkType, Date, Date)} for many periods, all answered from the same version of the
+   * index.
+   *
+   * @param periods
+   *          Pairs of start (inclusive) and end (exclusive) dates.
+   *
+   * @return Factors in the same order as the periods.
+   */
+  public BigDecimal[] factors(BenchmarkType type, List<Date[]> periods) {
+    final Series series = this.series(type);
+    final BigDecimal[] result = new BigDecimal[periods.size()];
+    for (int i = 0; i < result.length; i++) {
+      final Date[] period = periods.get(i);
+      result[i] = this.factor(series, DateCodec.toEpochDay(period[0]), DateCodec.toEpochDay(period[1]));
+    }
+    return result;
+  }
+
+  private BigDecimal factor(Series series, int startDay, int endDay) {
+    final int n = series.count;
+    final int first = series.before(startDay, n);
+    final int last = series.before(endDay, n);
+    if (last <= first) {
+      return BigDecimal.ONE;
+    }
+    return series.products[last].divide(series.products[first], Utils.DEFAULT_MATHCONTEXT);
+  }
+
+  /**
+   * Appends a daily factor committed after the last one of the benchmark. Anything else discards the benchmark index.
+   */
+  synchronized void inserted(BenchmarkType type, Date date, BigDecimal dailyFactor) {
+    final Series series = this.index.get(type);
+    if (series == null) {
+      return;
+    }
+
+    final int day = DateCodec.toEpochDay(date);
+    if (series.count > 0 && series.days[series.count - 1] >= day) {
+      this.evict(type);
+      return;
+    }
+
+    if (series.count == series.days.length) {
+      final Series grown = series.grow();
+      grown.append(day, dailyFactor);
+      this.index.put(type, grown);
+    } else {
+      series.append(day, dailyFactor);
+    }
+  }
+
+  /**
+   * Discards the index of a benchmark. It will be rebuilt by the next read.
+   */
+  public synchronized void evict(BenchmarkType type) {
+    this.index.remove(type);
+    LOGGER.trace("Index of benchmark {} evicted", type);
+  }
+
+  private Series series(BenchmarkType type) {
+    final Series series = this.index.get(type);
+    return series != null ? series : this.build(type);
+  }
+
+  private synchronized Series build(BenchmarkType type) {
+    Series series = this.index.get(type);
+    if (series != null) {
+      return series;
+    }
+
+    final List<Object[]> rows = this.repo.findFactors(type);
+    series = new Series(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(rows.size(), 1)) * 2));
+    for (final Object[] row : rows) {
+      series.append(DateCodec.toEpochDay((Date) row[0]), (BigDecimal) row[1]);
+    }
+    this.index.put(type, series);
+    LOGGER.debug("Index of benchmark {} built with {} daily factors", type, series.count);
+    return series;
+  }
+}
@@ -0,0 +1,45 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import br.com.rcrios.smartportfolio.model.Benchmark;
+import br.com.rcrios.smartportfolio.model.BenchmarkType;
+
+/**
+ * Applies committed inserts, updates and deletes of Benchmark to {@link BenchmarkIndex}.
+ */
+@Component
+public class BenchmarkIndexSynchronizer extends EntityCommitListener<Benchmark> {
+
+  private static final long serialVersionUID = 1L;
+
+  @Autowired
+  private transient BenchmarkIndex index;
+
+  public BenchmarkIndexSynchronizer() {
+    super(Benchmark.class);
+  }
+
+  @Override
+  protected void inserted(Benchmark entity, Serializable id) {
+    this.index.inserted(entity.getType(), entity.getDate(), entity.getDailyFactor());
+  }
+
+  @Override
+  protected void updated(Benchmark entity, Serializable id, PostUpdateEvent event) {
+    final BenchmarkType previousType = (BenchmarkType) previousValue(event, "type");
+    if (previousType != null && previousType != entity.getType()) {
+      this.index.evict(previousType);
+    }
+    this.index.evict(entity.getType());
+  }
+
+  @Override
+  protected void deleted(Benchmark entity, Serializable id) {
+    this.index.evict(entity.getType());
+  }
+}
@@ -0,0 +1,49 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Directory of the files SmartPortfolio keeps besides the database, set by {@code smartportfolio.data.directory}.
+ *
+ * Those files outlive the process, so they are never kept in a temporary directory that is wiped on reboot. If the
+ * property isn't set, '.smartportfolio' under the home directory of the user is used and a warning is logged.
+ * Components that write files use a subdirectory of it unless their own directory property is set.
+ */
+@Component
+public class DataDirectory {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataDirectory.class);
+
+  private final Path root;
+
+  @Autowired
+  public DataDirectory(@Value("${smartportfolio.data.directory:}") String root) {
+    if (root.trim().isEmpty()) {
+      this.root = Paths.get(System.getProperty("user.home"), ".smartportfolio");
+      LOGGER.warn("smartportfolio.data.directory isn't configured. Data files will be kept at '{}'.", this.root);
+    } else {
+      this.root = Paths.get(root.trim());
+    }
+  }
+
+  /**
+   * @param configured
+   *          Directory set by the component property, possibly empty.
+   * @param child
+   *          Subdirectory of the data directory used when 'configured' is empty.
+   *
+   * @return The directory to be used by the component.
+   */
+  public Path resolve(String configured, String child) {
+    if (configured != null && !configured.trim().isEmpty()) {
+      return Paths.get(configured.trim());
+    }
+    return this.root.resolve(child);
+  }
+}
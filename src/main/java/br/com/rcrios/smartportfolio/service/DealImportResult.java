@@ -0,0 +1,58 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of one line of a bulk deal import.
+ */
+public class DealImportResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public enum Status {
+    IMPORTED, REJECTED
+  }
+
+  private long line;
+  private Status status;
+  private String message;
+
+  public DealImportResult() {
+    super();
+  }
+
+  public DealImportResult(long line, Status status, String message) {
+    this.line = line;
+    this.status = status;
+    this.message = message;
+  }
+
+  public long getLine() {
+    return this.line;
+  }
+
+  public void setLine(long line) {
+    this.line = line;
+  }
+
+  public Status getStatus() {
+    return this.status;
+  }
+
+  public void setStatus(Status status) {
+    this.status = status;
+  }
+
+  public String getMessage() {
+    return this.message;
+  }
+
+  public void setMessage(String message) {
+    this.message = message;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("DealImportResult [line=%s, status=%s, message=%s]", this.line, this.status, this.message);
+  }
+}
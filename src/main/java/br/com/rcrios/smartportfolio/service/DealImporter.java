@@ -0,0 +1,351 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+import br.com.rcrios.smartportfolio.model.Deal;
+import br.com.rcrios.smartportfolio.model.InvalidObject;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.TransactionType;
+import br.com.rcrios.smartportfolio.repository.MutualFundRepository;
+
+/**
+ * Imports deals from NDJSON: one JSON object per line, such as
+ *
+ * <pre>
+ * {"mutualFundId": 1, "date": "02/01/2018", "type": "BUY", "shares": 10, "value": 100.5, "comments": "..."}
+ * </pre>
+ *
+ * Lines are parsed one at a time with the streaming parser and deals are inserted in bounded JDBC batches, each one in
+ * its own transaction. Mutual funds are loaded and validated once per batch. A result is reported for every non blank
+ * line as soon as its batch is done, so neither the payload nor the results are held in memory.
+ *
+ * Inserts don't go through Hibernate, so the ledgers of {@link PositionEngine} are discarded explicitly.
+ */
+@Service
+public class DealImporter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DealImporter.class);
+
+  private static final String INSERT = "INSERT INTO deal (mutual_fund_id, date, type, shares, value, comments) VALUES (?, ?, ?, ?, ?, ?)";
+
+  /**
+   * Precision and scale of Deal shares and value.
+   */
+  private static final int PRECISION = 16;
+  private static final int SCALE = 6;
+
+  @Autowired
+  private MutualFundRepository mfRepo;
+
+  @Autowired
+  private PositionEngine engine;
+
+  @Autowired
+  private Journal journal;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Autowired
+  private ObjectMapper mapper;
+
+  @Value("${smartportfolio.import.batch-size:500}")
+  private int batchSize;
+
+  /**
+   * A parsed line waiting for its batch. Rejected lines keep the reason instead of the deal.
+   */
+  private static final class Line {
+    private final long number;
+    private Long mutualFundId;
+    private Deal deal;
+    private String rejection;
+
+    private Line(long number) {
+      this.number = number;
+    }
+  }
+
+  /**
+   * Imports all deals from the reader.
+   *
+   * @param reader
+   *          NDJSON content. Blank lines are ignored.
+   * @param results
+   *          Receives the result of each line, in order.
+   *
+   * @return Import counters.
+   */
+  public ImportSummary importNdjson(Reader reader, Consumer<DealImportResult> results) {
+    LOGGER.debug("Importing deals with batches of {}", this.batchSize);
+
+    final ImportSummary summary = new ImportSummary();
+    final List<Line> batch = new ArrayList<>(this.batchSize);
+    final JsonFactory factory = this.mapper.getFactory();
+
+    try {
+      final BufferedReader lines = new BufferedReader(reader);
+      long number = 0;
+      String content;
+      while ((content = lines.readLine()) != null) {
+        number++;
+        if (content.trim().isEmpty()) {
+          continue;
+        }
+        summary.read();
+
+        final Line line = new Line(number);
+        try {
+          this.parse(factory, content, line);
+          Deal.validateDetails(line.deal);
+        } catch (final JsonProcessingException e) {
+          line.rejection = e.getOriginalMessage();
+        } catch (final InvalidObject e) {
+          line.rejection = e.getMessage();
+        }
+
+        batch.add(line);
+        if (batch.size() >= this.batchSize) {
+          this.flush(batch, summary, results);
+        }
+      }
+    } catch (final IOException e) {
+      throw new SmartPortfolioRuntimeException("Failed to read deals.", e);
+    }
+
+    this.flush(batch, summary, results);
+
+    LOGGER.debug("Import finished. {}", summary);
+    return summary;
+  }
+
+  private void parse(JsonFactory factory, String content, Line line) throws IOException {
+    final Deal deal = new Deal();
+    line.deal = deal;
+
+    try (JsonParser parser = factory.createParser(content)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new InvalidObject("Line must be a JSON object.");
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.getCurrentName();
+        if (parser.nextToken() == JsonToken.VALUE_NULL) {
+          continue;
+        }
+
+        switch (field) {
+        case "mutualFundId":
+          if (parser.currentToken() != JsonToken.VALUE_NUMBER_INT) {
+            throw new InvalidObject("Mutual fund id must be an integer.");
+          }
+          line.mutualFundId = parser.getLongValue();
+          break;
+        case "date":
+          deal.setDate(toDate(parser.getText()));
+          break;
+        case "type":
+          deal.setType(toType(parser.getText()));
+          break;
+        case "shares":
+          deal.setShares(toNumber(parser, field));
+          break;
+        case "value":
+          deal.setValue(toNumber(parser, field));
+          break;
+        case "comments":
+          deal.setComments(parser.getText());
+          break;
+        default:
+          parser.skipChildren();
+        }
+      }
+
+      if (parser.nextToken() != null) {
+        throw new InvalidObject("Line must have a single JSON object.");
+      }
+    }
+
+    if (line.mutualFundId == null) {
+      throw new InvalidObject("Deal must have a mutual fund.");
+    }
+  }
+
+  private static Date toDate(String text) {
+    try {
+      return DateCodec.parse(text);
+    } catch (final DateTimeException e) {
+      throw new InvalidObject(String.format("Invalid date '%s'.", text));
+    }
+  }
+
+  private static TransactionType toType(String text) {
+    final TransactionType type = TransactionType.factory(text);
+    if (type == null) {
+      throw new InvalidObject(String.format("Invalid deal type '%s'.", text));
+    }
+    return type;
+  }
+
+  /**
+   * Numbers are rounded to the column scale up front, so a single out of range value doesn't fail the whole batch.
+   */
+  private static BigDecimal toNumber(JsonParser parser, String field) throws IOException {
+    BigDecimal number;
+    if (parser.currentToken().isNumeric()) {
+      number = parser.getDecimalValue();
+    } else {
+      try {
+        number = new BigDecimal(parser.getText().trim());
+      } catch (final NumberFormatException e) {
+        throw new InvalidObject(String.format("Invalid %s '%s'.", field, parser.getText()));
+      }
+    }
+
+    number = number.setScale(SCALE, RoundingMode.HALF_EVEN);
+    if (number.precision() > PRECISION) {
+      throw new InvalidObject(String.format("Invalid %s '%s'. It's out of range.", field, parser.getText()));
+    }
+    return number;
+  }
+
+  /**
+   * Inserts the deals of the batch in its own transaction and reports the result of each line.
+   */
+  private void flush(List<Line> batch, ImportSummary summary, Consumer<DealImportResult> results) {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    final List<Line> accepted = new ArrayList<>(batch.size());
+    final Map<Long, Date> changes = new HashMap<>();
+
+    try {
+      new TransactionTemplate(this.transactionManager).execute(status -> {
+        final Set<Long> validFunds = this.validFunds(batch);
+        for (final Line line : batch) {
+          if (line.rejection == null && !validFunds.contains(line.mutualFundId)) {
+            line.rejection = String.format("Mutual fund %s not found or invalid.", line.mutualFundId);
+          }
+          if (line.rejection == null) {
+            accepted.add(line);
+          }
+        }
+
+        this.jdbcTemplate.batchUpdate(INSERT, new BatchPreparedStatementSetter() {
+          @Override
+          public void setValues(PreparedStatement ps, int i) throws SQLException {
+            final Deal deal = accepted.get(i).deal;
+            ps.setLong(1, accepted.get(i).mutualFundId);
+            ps.setDate(2, new java.sql.Date(deal.getDate().getTime()));
+            ps.setInt(3, deal.getType().ordinal());
+            ps.setObject(4, deal.getShares(), Types.DECIMAL);
+            ps.setObject(5, deal.getValue(), Types.DECIMAL);
+            ps.setString(6, deal.getComments());
+          }
+
+          @Override
+          public int getBatchSize() {
+            return accepted.size();
+          }
+        });
+        return null;
+      });
+
+      for (final Line line : accepted) {
+        changes.merge(line.mutualFundId, line.deal.getDate(), (a, b) -> a.before(b) ? a : b);
+      }
+    } catch (final DataAccessException | TransactionException e) {
+      final String id = UUID.randomUUID().toString();
+      LOGGER.warn("Batch of deals from line {} failed. Id: {}", batch.get(0).number, id, e);
+      for (final Line line : accepted) {
+        line.rejection = String.format("Batch failed. Full stacktrace was logged with id %s.", id);
+      }
+      accepted.clear();
+    }
+
+    // Committed: ledgers must be rebuilt with the new deals
+    changes.forEach(this.engine::changed);
+
+    final List<JournalEntry> entries = new ArrayList<>(accepted.size());
+    for (final Line line : accepted) {
+      entries.add(this.journal.entry(line.deal.getType(), Deal.class, Collections.singleton(line.mutualFundId), line.deal));
+    }
+    this.journal.append(entries);
+
+    if (!accepted.isEmpty()) {
+      summary.imported(accepted.size());
+    }
+    for (final Line line : batch) {
+      if (line.rejection == null) {
+        results.accept(new DealImportResult(line.number, DealImportResult.Status.IMPORTED, null));
+      } else {
+        summary.skipped();
+        results.accept(new DealImportResult(line.number, DealImportResult.Status.REJECTED, line.rejection));
+      }
+    }
+
+    LOGGER.trace("Batch of {} deals persisted. {}", accepted.size(), summary);
+    batch.clear();
+  }
+
+  /**
+   * @return Ids of the mutual funds referenced by the batch that exist and are valid.
+   */
+  private Set<Long> validFunds(List<Line> batch) {
+    final Set<Long> ids = new HashSet<>();
+    for (final Line line : batch) {
+      if (line.rejection == null) {
+        ids.add(line.mutualFundId);
+      }
+    }
+
+    final Set<Long> valid = new HashSet<>();
+    for (final MutualFund mf : this.mfRepo.findAllById(ids)) {
+      if (mf.isValid()) {
+        valid.add(mf.getId());
+      }
+    }
+    return valid;
+  }
+}
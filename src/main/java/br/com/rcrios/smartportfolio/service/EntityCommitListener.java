@@ -0,0 +1,130 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.internal.SessionFactoryImpl;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Base class for beans that must react to committed changes of one entity type, no matter which repository call or
+ * controller did them. Listeners are registered into Hibernate as post commit listeners, so subclasses are only called
+ * once the change is visible to other transactions, and never for rolled back changes.
+ *
+ * Writes that bypass Hibernate (plain JDBC) are not seen by these listeners.
+ *
+ * @param <T>
+ *          Entity type
+ */
+public abstract class EntityCommitListener<T> implements PostCommitInsertEventListener, PostCommitUpdateEventListener, PostCommitDeleteEventListener {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Class<T> type;
+
+  @Autowired
+  private transient EntityManagerFactory entityManagerFactory;
+
+  protected EntityCommitListener(Class<T> type) {
+    this.type = type;
+  }
+
+  @PostConstruct
+  public void register() {
+    final EventListenerRegistry registry = this.entityManagerFactory.unwrap(SessionFactoryImpl.class).getServiceRegistry()
+        .getService(EventListenerRegistry.class);
+    registry.appendListeners(EventType.POST_COMMIT_INSERT, this);
+    registry.appendListeners(EventType.POST_COMMIT_UPDATE, this);
+    registry.appendListeners(EventType.POST_COMMIT_DELETE, this);
+  }
+
+  /**
+   * Called after an insert of an entity is committed.
+   */
+  protected abstract void inserted(T entity, Serializable id);
+
+  /**
+   * Called after an update of an entity is committed.
+   *
+   * @param event
+   *          Hibernate event, from which previous property values can be read with
+   *          {@link #previousValue(PostUpdateEvent, String)}.
+   */
+  protected abstract void updated(T entity, Serializable id, PostUpdateEvent event);
+
+  /**
+   * Called after a delete of an entity is committed.
+   */
+  protected abstract void deleted(T entity, Serializable id);
+
+  /**
+   * @return The value a property had before the update or null if Hibernate didn't load the previous state.
+   */
+  protected static Object previousValue(PostUpdateEvent event, String property) {
+    if (event.getOldState() == null) {
+      return null;
+    }
+    return event.getOldState()[event.getPersister().getEntityMetamodel().getPropertyIndex(property)];
+  }
+
+  @Override
+  public boolean requiresPostCommitHandling(EntityPersister persister) {
+    return this.type.equals(persister.getMappedClass());
+  }
+
+  /**
+   * @deprecated Still abstract in Hibernate 5.2, which only calls {@link #requiresPostCommitHandling(EntityPersister)}.
+   */
+  @Deprecated
+  @Override
+  public boolean requiresPostCommitHanding(EntityPersister persister) {
+    return this.requiresPostCommitHandling(persister);
+  }
+
+  @Override
+  public void onPostInsert(PostInsertEvent event) {
+    if (this.type.isInstance(event.getEntity())) {
+      this.inserted(this.type.cast(event.getEntity()), event.getId());
+    }
+  }
+
+  @Override
+  public void onPostUpdate(PostUpdateEvent event) {
+    if (this.type.isInstance(event.getEntity())) {
+      this.updated(this.type.cast(event.getEntity()), event.getId(), event);
+    }
+  }
+
+  @Override
+  public void onPostDelete(PostDeleteEvent event) {
+    if (this.type.isInstance(event.getEntity())) {
+      this.deleted(this.type.cast(event.getEntity()), event.getId());
+    }
+  }
+
+  @Override
+  public void onPostInsertCommitFailed(PostInsertEvent event) {
+    // Nothing was committed
+  }
+
+  @Override
+  public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+    // Nothing was committed
+  }
+
+  @Override
+  public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+    // Nothing was committed
+  }
+}
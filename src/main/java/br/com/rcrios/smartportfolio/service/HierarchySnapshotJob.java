@@ -0,0 +1,30 @@
+package br.com.rcrios.smartportfolio.service;
+
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.quartz.QuartzJobBean;
+
+/**
+ * Quartz job that runs {@link HierarchySnapshots#snapshot()}. Scheduled by
+ * {@link br.com.rcrios.smartportfolio.SchedulingConfiguration}.
+ */
+@DisallowConcurrentExecution
+public class HierarchySnapshotJob extends QuartzJobBean {
+
+  public static final JobKey KEY = JobKey.jobKey("hierarchySnapshot");
+
+  @Autowired
+  private HierarchySnapshots snapshots;
+
+  @Override
+  protected void executeInternal(JobExecutionContext context) throws JobExecutionException {
+    try {
+      this.snapshots.snapshot();
+    } catch (final RuntimeException e) {
+      throw new JobExecutionException(e);
+    }
+  }
+}
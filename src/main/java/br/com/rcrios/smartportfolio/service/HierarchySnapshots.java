@@ -0,0 +1,252 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+
+/**
+ * Snapshots of {@link PortfolioHierarchyCache}, so the cache can be rebuilt at startup from a single file and the
+ * {@link Journal} entries appended after it, instead of loading every portfolio, mutual fund and legal entity through
+ * JPA.
+ *
+ * A snapshot is written to the journal directory by {@link HierarchySnapshotJob}, every 15 minutes by default. Only the
+ * latest one is kept. It holds the journal sequence it's current to, the legal entity stamp and every node.
+ *
+ * When the application is ready, the latest snapshot is restored and the portfolios written by later journal entries
+ * are evicted, so they are reloaded by the first read. A journaled write of the whole hierarchy, such as a valuation, or
+ * a change of legal entities, which portfolios embed, makes the snapshot useless.
+ *
+ * Writes that aren't journaled are caught afterwards: the restored nodes are compared with
+ * {@link PortfolioRepository#findStamp()}. Every write increases versions and ids only grow, so any difference means a
+ * missed write, and the cache is cleared to be loaded from the repository as before.
+ */
+@Service
+public class HierarchySnapshots {
+  private static final Logger LOGGER = LoggerFactory.getLogger(HierarchySnapshots.class);
+
+  private static final String PREFIX = "hierarchy-";
+  private static final String SUFFIX = ".snapshot";
+
+  @Autowired
+  private PortfolioHierarchyCache cache;
+
+  @Autowired
+  private Journal journal;
+
+  @Autowired
+  private PortfolioRepository repo;
+
+  @Autowired
+  private LegalEntityRepository leRepo;
+
+  @Autowired
+  private ObjectMapper mapper;
+
+  /**
+   * Contents of a snapshot file.
+   */
+  public static class Snapshot {
+    private long sequence;
+    private String legalEntities;
+    private List<Portfolio> portfolios = new ArrayList<>();
+
+    public long getSequence() {
+      return this.sequence;
+    }
+
+    public void setSequence(long sequence) {
+      this.sequence = sequence;
+    }
+
+    public String getLegalEntities() {
+      return this.legalEntities;
+    }
+
+    public void setLegalEntities(String legalEntities) {
+      this.legalEntities = legalEntities;
+    }
+
+    public List<Portfolio> getPortfolios() {
+      return this.portfolios;
+    }
+
+    public void setPortfolios(List<Portfolio> portfolios) {
+      this.portfolios = portfolios;
+    }
+  }
+
+  /**
+   * Writes a snapshot of the cache and removes the previous ones.
+   *
+   * Journal entries are appended after the writes they record are evicted from the cache, so the exported nodes reflect
+   * at least every entry up to the sequence read before exporting them.
+   *
+   * @return The written file.
+   */
+  public synchronized Path snapshot() {
+    final Snapshot snapshot = new Snapshot();
+    snapshot.setSequence(this.journal.getSequence());
+    snapshot.setLegalEntities(this.leRepo.stamp());
+    snapshot.setPortfolios(this.cache.export());
+
+    final Path file = this.journal.getDirectory().resolve(String.format("%s%019d%s", PREFIX, snapshot.getSequence(), SUFFIX));
+    final Path tmp = this.journal.getDirectory().resolve(PREFIX + "tmp" + SUFFIX);
+    try {
+      Files.createDirectories(file.toAbsolutePath().getParent());
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+        this.mapper.writeValue(out, snapshot);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      for (final Path previous : this.snapshots()) {
+        if (!previous.equals(file)) {
+          Files.delete(previous);
+        }
+      }
+    } catch (final IOException e) {
+      throw new SmartPortfolioRuntimeException("Unable to write hierarchy snapshot '" + file + "'.", e);
+    }
+
+    LOGGER.debug("Hierarchy snapshot '{}' written with {} portfolios", file, snapshot.getPortfolios().size());
+    return file;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void restoreOnStartup() {
+    try {
+      this.restore();
+    } catch (final RuntimeException e) {
+      LOGGER.warn("Unable to restore portfolio hierarchy. It will be loaded from the database.", e);
+      this.cache.clear();
+    }
+  }
+
+  /**
+   * Restores the cache from the latest snapshot and the journal entries appended after it.
+   *
+   * @return True if the cache was restored. Otherwise it's loaded from the repository by the first read.
+   */
+  public synchronized boolean restore() {
+    final long start = System.currentTimeMillis();
+
+    final Optional<Snapshot> latest = this.latest();
+    if (!latest.isPresent()) {
+      return false;
+    }
+
+    final Snapshot snapshot = latest.get();
+    if (!this.leRepo.stamp().equals(snapshot.getLegalEntities())) {
+      LOGGER.debug("Legal entities changed since hierarchy snapshot {}. It won't be restored.", snapshot.getSequence());
+      return false;
+    }
+
+    final Set<Long> written = new HashSet<>();
+    final AtomicBoolean all = new AtomicBoolean();
+    final int replayed = this.journal.read(snapshot.getSequence(), entry -> {
+      if (entry.isAbout(Portfolio.class)) {
+        final long[] ids = entry.getIds();
+        all.compareAndSet(false, ids.length == 0);
+        for (final long id : ids) {
+          written.add(id);
+        }
+      }
+    });
+    if (all.get()) {
+      LOGGER.debug("The whole hierarchy was written after snapshot {}. It won't be restored.", snapshot.getSequence());
+      return false;
+    }
+
+    if (!this.cache.restore(snapshot.getPortfolios())) {
+      return false;
+    }
+    this.cache.evict(written);
+
+    if (!this.matches(this.cache.export())) {
+      LOGGER.info("Portfolios were changed by writes that weren't journaled after snapshot {}. Hierarchy will be loaded from the database.",
+          snapshot.getSequence());
+      this.cache.clear();
+      return false;
+    }
+
+    LOGGER.info("Portfolio hierarchy restored from snapshot {} and {} journal entries in {} ms", snapshot.getSequence(), replayed,
+        System.currentTimeMillis() - start);
+    return true;
+  }
+
+  private boolean matches(List<Portfolio> portfolios) {
+    long versions = 0;
+    long maxId = 0;
+    for (final Portfolio portfolio : portfolios) {
+      versions += portfolio.getVersion();
+      maxId = Math.max(maxId, portfolio.getId());
+    }
+
+    final Object[] row = this.repo.findStamp().get(0);
+    return ((Number) row[0]).longValue() == portfolios.size() && ((Number) row[1]).longValue() == versions
+        && ((Number) row[2]).longValue() == maxId;
+  }
+
+  private Optional<Snapshot> latest() {
+    final List<Path> files;
+    try {
+      files = this.snapshots();
+    } catch (final IOException e) {
+      LOGGER.warn("Unable to list hierarchy snapshots of '{}'.", this.journal.getDirectory(), e);
+      return Optional.empty();
+    }
+    if (files.isEmpty()) {
+      return Optional.empty();
+    }
+
+    final Path file = files.get(files.size() - 1);
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+      return Optional.of(this.mapper.readValue(in, Snapshot.class));
+    } catch (final IOException e) {
+      LOGGER.warn("Unable to read hierarchy snapshot '{}'. It will be ignored.", file, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * @return Snapshot files, oldest first.
+   */
+  private List<Path> snapshots() throws IOException {
+    final List<Path> files = new ArrayList<>();
+    final Path path = this.journal.getDirectory();
+    if (!Files.isDirectory(path)) {
+      return files;
+    }
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, PREFIX + "[0-9]*" + SUFFIX)) {
+      stream.forEach(files::add);
+    }
+    files.sort(null);
+    return files;
+  }
+}
@@ -0,0 +1,50 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of a bulk import. Only counters are kept, so the summary size doesn't depend on the amount of imported data.
+ */
+public class ImportSummary implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private long read;
+  private long imported;
+  private long skipped;
+  private long batches;
+
+  public void read() {
+    this.read++;
+  }
+
+  public void imported(int count) {
+    this.imported += count;
+    this.batches++;
+  }
+
+  public void skipped() {
+    this.skipped++;
+  }
+
+  public long getRead() {
+    return this.read;
+  }
+
+  public long getImported() {
+    return this.imported;
+  }
+
+  public long getSkipped() {
+    return this.skipped;
+  }
+
+  public long getBatches() {
+    return this.batches;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ImportSummary [read=%s, imported=%s, skipped=%s, batches=%s]", this.read, this.imported, this.skipped, this.batches);
+  }
+}
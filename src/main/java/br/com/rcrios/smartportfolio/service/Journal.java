@@ -0,0 +1,274 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+import br.com.rcrios.smartportfolio.model.TransactionType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Append-only journal of the committed writes, each one keyed by its {@link TransactionType}. It's the audit trail of
+ * SmartPortfolio and lets {@link HierarchySnapshots} replay the writes made after its latest snapshot.
+ *
+ * Entries are appended to memory mapped {@link JournalSegment segments} under {@code smartportfolio.journal.directory},
+ * or the 'journal' subdirectory of the {@link DataDirectory}. When the active segment is full, a new one is started,
+ * named after the sequence of its first entry. Segments are never removed. Unless {@code smartportfolio.journal.force}
+ * is false, every append is forced to the storage device before returning.
+ *
+ * Writers append after their transaction commits, so the journal never holds a write that was rolled back. A crash
+ * between the commit and the append loses the entry, never the write: the database stays authoritative.
+ *
+ * The directory is locked while the journal is open, so a single process writes to it.
+ */
+@Service
+public class Journal {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Journal.class);
+
+  private static final Pattern SEGMENT = Pattern.compile("segment-(\\d{19})\\.journal");
+
+  @Autowired
+  private ObjectMapper mapper;
+
+  @Autowired
+  private DataDirectory dataDirectory;
+
+  @Value("${smartportfolio.journal.directory:}")
+  private String configuredDirectory;
+
+  private Path directory;
+
+  @Value("${smartportfolio.journal.segment-size:16777216}")
+  private int segmentSize;
+
+  @Value("${smartportfolio.journal.force:true}")
+  private boolean force;
+
+  private final MeterRegistry registry;
+  private final Counter failures;
+
+  private FileChannel lockChannel;
+  private FileLock lock;
+  private final List<Long> segments = new ArrayList<>();
+  private JournalSegment active;
+
+  @Autowired
+  public Journal(MeterRegistry registry) {
+    this.registry = registry;
+    this.failures = Counter.builder("smartportfolio.journal.failures").description("Committed writes that couldn't be journaled")
+        .register(registry);
+  }
+
+  @PostConstruct
+  public synchronized void open() {
+    final Path path = this.dataDirectory.resolve(this.configuredDirectory, "journal");
+    this.directory = path;
+    try {
+      Files.createDirectories(path);
+      this.lockChannel = FileChannel.open(path.resolve("journal.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      this.lock = this.lockChannel.tryLock();
+    } catch (final IOException | OverlappingFileLockException e) {
+      throw new SmartPortfolioRuntimeException("Unable to lock journal directory '" + path + "'.", e);
+    }
+    if (this.lock == null) {
+      throw new SmartPortfolioRuntimeException("Journal directory '" + path + "' is in use by another process.");
+    }
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "segment-*.journal")) {
+      for (final Path file : files) {
+        final Matcher matcher = SEGMENT.matcher(file.getFileName().toString());
+        if (matcher.matches()) {
+          this.segments.add(Long.valueOf(matcher.group(1)));
+        }
+      }
+    } catch (final IOException e) {
+      throw new SmartPortfolioRuntimeException("Unable to list journal segments of '" + path + "'.", e);
+    }
+    Collections.sort(this.segments);
+
+    if (this.segments.isEmpty()) {
+      this.segments.add(1L);
+    }
+    this.active = this.segment(this.segments.get(this.segments.size() - 1), this.segmentSize);
+    LOGGER.debug("Journal opened at '{}' with {} segments. Last sequence is {}.", path, this.segments.size(), this.active.getLastSequence());
+  }
+
+  public Path getDirectory() {
+    return this.directory;
+  }
+
+  /**
+   * @return Sequence of the last appended entry, 0 if there is none.
+   */
+  public synchronized long getSequence() {
+    return this.active.getLastSequence();
+  }
+
+  /**
+   * Builds an entry to be appended by {@link #append(List)}.
+   *
+   * @param type
+   *          Type of the write
+   * @param aggregate
+   *          Class of the written entities
+   * @param ids
+   *          Ids of the written entities. Empty if the write touched all of them. Rows written in batches without their
+   *          ids, such as deals and share values, are recorded with the id of the mutual fund or fund they belong to.
+   * @param detail
+   *          Details of the write, stored as JSON. Usually the written object.
+   */
+  public JournalEntry entry(TransactionType type, Class<?> aggregate, Collection<Long> ids, Object detail) {
+    final long[] values = new long[ids.size()];
+    int i = 0;
+    for (final Long id : ids) {
+      values[i++] = id;
+    }
+
+    String payload;
+    try {
+      payload = this.mapper.writeValueAsString(detail);
+    } catch (final JsonProcessingException e) {
+      LOGGER.warn("Unable to write details of {} {} to the journal.", type, aggregate.getSimpleName(), e);
+      payload = "null";
+    }
+    return new JournalEntry(0, 0, type, aggregate.getSimpleName(), values, payload);
+  }
+
+  /**
+   * Appends a single entry.
+   *
+   * @see #entry(TransactionType, Class, Collection, Object)
+   */
+  public void append(TransactionType type, Class<?> aggregate, Collection<Long> ids, Object detail) {
+    this.append(Collections.singletonList(this.entry(type, aggregate, ids, detail)));
+  }
+
+  /**
+   * Appends entries built by {@link #entry(TransactionType, Class, Collection, Object)}, with a single force. Must be
+   * called after the writes were committed. Failures are logged and counted, never thrown, since the writes can't be
+   * undone anymore.
+   */
+  public void append(List<JournalEntry> entries) {
+    if (entries.isEmpty()) {
+      return;
+    }
+
+    try {
+      synchronized (this) {
+        final long timestamp = System.currentTimeMillis();
+        for (final JournalEntry entry : entries) {
+          final JournalEntry sequenced = entry.sequenced(this.active.getLastSequence() + 1, timestamp);
+          if (!this.active.append(sequenced)) {
+            this.roll(sequenced);
+          }
+        }
+        if (this.force) {
+          this.active.force();
+        }
+      }
+    } catch (final RuntimeException e) {
+      LOGGER.error("Unable to journal {} committed writes.", entries.size(), e);
+      this.failures.increment(entries.size());
+      return;
+    }
+
+    for (final JournalEntry entry : entries) {
+      this.registry.counter("smartportfolio.journal.entries", "type", entry.getType().name()).increment();
+    }
+  }
+
+  /**
+   * Reads all entries after a sequence, in order. Segments that end before it aren't read.
+   *
+   * @return Number of entries consumed.
+   */
+  public synchronized int read(long afterSequence, Consumer<JournalEntry> consumer) {
+    int consumed = 0;
+    for (int i = 0; i < this.segments.size(); i++) {
+      if (i + 1 < this.segments.size() && this.segments.get(i + 1) <= afterSequence + 1) {
+        continue;
+      }
+
+      final Long first = this.segments.get(i);
+      if (i == this.segments.size() - 1) {
+        consumed += this.active.read(afterSequence, consumer);
+      } else {
+        try (JournalSegment segment = this.segment(first, 0)) {
+          consumed += segment.read(afterSequence, consumer);
+        } catch (final IOException e) {
+          throw new SmartPortfolioRuntimeException("Unable to close journal segment " + first + ".", e);
+        }
+      }
+    }
+    return consumed;
+  }
+
+  @PreDestroy
+  public synchronized void close() {
+    try {
+      if (this.active != null) {
+        this.active.close();
+      }
+      if (this.lock != null) {
+        this.lock.release();
+        this.lockChannel.close();
+      }
+    } catch (final IOException e) {
+      LOGGER.warn("Unable to close journal at '{}'.", this.directory, e);
+    }
+  }
+
+  /**
+   * Closes the active segment and starts a new one with the entry, large enough for it. An empty active segment is
+   * replaced.
+   */
+  private void roll(JournalEntry entry) {
+    final boolean empty = this.active.getLastSequence() < this.active.getFirstSequence();
+    try {
+      this.active.close();
+      if (empty) {
+        Files.delete(this.active.getFile());
+        this.segments.remove(this.segments.size() - 1);
+      }
+    } catch (final IOException e) {
+      throw new SmartPortfolioRuntimeException("Unable to close journal segment '" + this.active.getFile() + "'.", e);
+    }
+
+    this.segments.add(entry.getSequence());
+    this.active = this.segment(entry.getSequence(), Math.max(this.segmentSize, JournalSegment.size(entry)));
+    if (!this.active.append(entry)) {
+      throw new SmartPortfolioRuntimeException("Journal entry " + entry + " doesn't fit a new segment.");
+    }
+    LOGGER.debug("Journal segment '{}' started", this.active.getFile());
+  }
+
+  private JournalSegment segment(long firstSequence, int capacity) {
+    return new JournalSegment(this.directory.resolve(String.format("segment-%019d.journal", firstSequence)), firstSequence, capacity);
+  }
+}
@@ -0,0 +1,82 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import br.com.rcrios.smartportfolio.model.TransactionType;
+
+/**
+ * A committed write, as recorded by {@link Journal}. Sequence and timestamp are assigned when the entry is appended.
+ */
+public class JournalEntry {
+  private final long sequence;
+  private final long timestamp;
+  private final TransactionType type;
+  private final String aggregate;
+  private final long[] ids;
+  private final String payload;
+
+  JournalEntry(long sequence, long timestamp, TransactionType type, String aggregate, long[] ids, String payload) {
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.type = type;
+    this.aggregate = aggregate;
+    this.ids = ids;
+    this.payload = payload;
+  }
+
+  JournalEntry sequenced(long sequence, long timestamp) {
+    return new JournalEntry(sequence, timestamp, this.type, this.aggregate, this.ids, this.payload);
+  }
+
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  public Date getTimestamp() {
+    return new Date(this.timestamp);
+  }
+
+  public TransactionType getType() {
+    return this.type;
+  }
+
+  /**
+   * @return Simple name of the written entity class.
+   */
+  public String getAggregate() {
+    return this.aggregate;
+  }
+
+  public boolean isAbout(Class<?> aggregate) {
+    return aggregate.getSimpleName().equals(this.aggregate);
+  }
+
+  /**
+   * @return Ids of the written entities, or of the entity they belong to. Empty if the write touched all of them.
+   */
+  public long[] getIds() {
+    return this.ids.clone();
+  }
+
+  /**
+   * @return JSON with the details of the write.
+   */
+  public String getPayload() {
+    return this.payload;
+  }
+
+  long timestamp() {
+    return this.timestamp;
+  }
+
+  long[] ids() {
+    return this.ids;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("JournalEntry [sequence=%s, timestamp=%s, type=%s, aggregate=%s, ids=%s]", this.sequence, this.timestamp, this.type,
+        this.aggregate, Arrays.toString(this.ids));
+  }
+}
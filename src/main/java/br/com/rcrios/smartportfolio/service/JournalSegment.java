@@ -0,0 +1,274 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+import br.com.rcrios.smartportfolio.model.TransactionType;
+
+/**
+ * A segment of {@link Journal}: a memory mapped file with a fixed capacity, where entries are appended one after the
+ * other.
+ *
+ * File layout: a 16 bytes header (magic, first sequence, unused), followed by the records. A record is the length of its
+ * body (int), the CRC32 of its body (int) and the body: sequence (long), timestamp (long), type name (short length and
+ * UTF-8 bytes), aggregate (short length and UTF-8 bytes), ids (int count and longs) and payload (int length and UTF-8
+ * bytes). A zero length ends the segment. Types are stored by name, so constants can be added to TransactionType in any
+ * order.
+ *
+ * When a segment is opened, records are scanned up to the first one whose length or checksum doesn't match. A record torn
+ * by a crash is discarded and overwritten by the next append.
+ *
+ * Reads can run concurrently. Appends are exclusive.
+ */
+public class JournalSegment implements Closeable {
+  private static final int MAGIC = 0x4A524E32; // JRN2
+  private static final int HEADER_SIZE = 16;
+  private static final int FIRST_SEQUENCE_OFFSET = 4;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int FIXED_BODY_SIZE = 8 + 8 + 2 + 2 + 4 + 4;
+
+  private final Path file;
+  private final long firstSequence;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private long lastSequence;
+  private int end;
+
+  /**
+   * Opens the segment file, creating it if needed.
+   *
+   * @param firstSequence
+   *          Sequence of the first entry the segment holds.
+   * @param capacity
+   *          Size of the file, if it's created.
+   */
+  public JournalSegment(Path file, long firstSequence, int capacity) {
+    this.file = file;
+    this.firstSequence = firstSequence;
+    this.lastSequence = firstSequence - 1;
+    try {
+      if (Files.exists(file) && Files.size(file) >= HEADER_SIZE) {
+        this.map((int) Files.size(file));
+        if (this.buffer.getInt(0) != MAGIC || this.buffer.getLong(FIRST_SEQUENCE_OFFSET) != firstSequence) {
+          throw new SmartPortfolioRuntimeException("File '" + file + "' isn't a journal segment starting at " + firstSequence + ".");
+        }
+        this.scan();
+      } else {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.map(Math.max(capacity, HEADER_SIZE + RECORD_HEADER_SIZE + FIXED_BODY_SIZE));
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putLong(FIRST_SEQUENCE_OFFSET, firstSequence);
+        this.end = HEADER_SIZE;
+      }
+    } catch (final IOException e) {
+      throw new SmartPortfolioRuntimeException("Unable to open journal segment '" + file + "'.", e);
+    }
+  }
+
+  /**
+   * @return Space needed by the entry in a segment, so a new segment can be made large enough for it.
+   */
+  public static int size(JournalEntry entry) {
+    return HEADER_SIZE + RECORD_HEADER_SIZE + bodySize(entry.getType().name().getBytes(StandardCharsets.UTF_8),
+        entry.getAggregate().getBytes(StandardCharsets.UTF_8), entry.ids().length, entry.getPayload().getBytes(StandardCharsets.UTF_8));
+  }
+
+  public Path getFile() {
+    return this.file;
+  }
+
+  public long getFirstSequence() {
+    return this.firstSequence;
+  }
+
+  /**
+   * @return Sequence of the last entry or {@link #getFirstSequence()} - 1 if the segment is empty.
+   */
+  public long getLastSequence() {
+    this.lock.readLock().lock();
+    try {
+      return this.lastSequence;
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Appends an entry, whose sequence must follow the last one.
+   *
+   * @return False if there is no room left for the entry. The segment isn't changed.
+   */
+  public boolean append(JournalEntry entry) {
+    final byte[] type = entry.getType().name().getBytes(StandardCharsets.UTF_8);
+    final byte[] aggregate = entry.getAggregate().getBytes(StandardCharsets.UTF_8);
+    final byte[] payload = entry.getPayload().getBytes(StandardCharsets.UTF_8);
+    final long[] ids = entry.ids();
+    final int length = bodySize(type, aggregate, ids.length, payload);
+
+    this.lock.writeLock().lock();
+    try {
+      if (entry.getSequence() != this.lastSequence + 1) {
+        throw new SmartPortfolioRuntimeException(
+            "Journal entry " + entry.getSequence() + " doesn't follow " + this.lastSequence + " in segment '" + this.file + "'.");
+      }
+      if ((long) this.end + RECORD_HEADER_SIZE + length > this.buffer.capacity()) {
+        return false;
+      }
+
+      final ByteBuffer body = this.slice(this.end + RECORD_HEADER_SIZE, length);
+      body.putLong(entry.getSequence());
+      body.putLong(entry.timestamp());
+      body.putShort((short) type.length);
+      body.put(type);
+      body.putShort((short) aggregate.length);
+      body.put(aggregate);
+      body.putInt(ids.length);
+      for (final long id : ids) {
+        body.putLong(id);
+      }
+      body.putInt(payload.length);
+      body.put(payload);
+
+      // Length goes last, so the record only becomes visible to a scan once it's complete
+      this.buffer.putInt(this.end + 4, crc(this.slice(this.end + RECORD_HEADER_SIZE, length)));
+      this.buffer.putInt(this.end, length);
+
+      this.end += RECORD_HEADER_SIZE + length;
+      this.lastSequence = entry.getSequence();
+      return true;
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Reads all entries after a sequence, in order.
+   *
+   * @return Number of entries consumed.
+   */
+  public int read(long afterSequence, Consumer<JournalEntry> consumer) {
+    this.lock.readLock().lock();
+    try {
+      int consumed = 0;
+      int position = HEADER_SIZE;
+      while (position < this.end) {
+        final int length = this.buffer.getInt(position);
+        final JournalEntry entry = this.decode(this.slice(position + RECORD_HEADER_SIZE, length));
+        if (entry.getSequence() > afterSequence) {
+          consumer.accept(entry);
+          consumed++;
+        }
+        position += RECORD_HEADER_SIZE + length;
+      }
+      return consumed;
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Forces appended entries to the storage device.
+   */
+  public void force() {
+    this.lock.writeLock().lock();
+    try {
+      this.buffer.force();
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.lock.writeLock().lock();
+    try {
+      this.buffer.force();
+      this.channel.close();
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  private void map(int size) throws IOException {
+    this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.buffer = this.channel.map(MapMode.READ_WRITE, 0, size);
+  }
+
+  private void scan() {
+    int position = HEADER_SIZE;
+    while (position + RECORD_HEADER_SIZE <= this.buffer.capacity()) {
+      final int length = this.buffer.getInt(position);
+      if (length < FIXED_BODY_SIZE || (long) position + RECORD_HEADER_SIZE + length > this.buffer.capacity()) {
+        break;
+      }
+      final ByteBuffer body = this.slice(position + RECORD_HEADER_SIZE, length);
+      if (crc(body) != this.buffer.getInt(position + 4)) {
+        break;
+      }
+      this.lastSequence = body.getLong(0);
+      position += RECORD_HEADER_SIZE + length;
+    }
+    this.end = position;
+
+    if (position + RECORD_HEADER_SIZE <= this.buffer.capacity() && this.buffer.getInt(position) != 0) {
+      for (int i = position; i < this.buffer.capacity(); i++) {
+        this.buffer.put(i, (byte) 0);
+      }
+      this.buffer.force();
+    }
+  }
+
+  private JournalEntry decode(ByteBuffer body) {
+    final long sequence = body.getLong();
+    final long timestamp = body.getLong();
+    final byte[] name = new byte[body.getShort()];
+    body.get(name);
+    final TransactionType type = TransactionType.factory(new String(name, StandardCharsets.UTF_8));
+    if (type == null) {
+      throw new SmartPortfolioRuntimeException(
+          "Unknown transaction type '" + new String(name, StandardCharsets.UTF_8) + "' in journal segment '" + this.file + "'.");
+    }
+    final byte[] aggregate = new byte[body.getShort()];
+    body.get(aggregate);
+    final long[] ids = new long[body.getInt()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = body.getLong();
+    }
+    final byte[] payload = new byte[body.getInt()];
+    body.get(payload);
+    return new JournalEntry(sequence, timestamp, type, new String(aggregate, StandardCharsets.UTF_8), ids,
+        new String(payload, StandardCharsets.UTF_8));
+  }
+
+  private ByteBuffer slice(int position, int length) {
+    final ByteBuffer view = this.buffer.duplicate();
+    view.position(position);
+    view.limit(position + length);
+    return view.slice();
+  }
+
+  private static int crc(ByteBuffer body) {
+    final CRC32 crc = new CRC32();
+    crc.update(body);
+    return (int) crc.getValue();
+  }
+
+  private static int bodySize(byte[] type, byte[] aggregate, int ids, byte[] payload) {
+    return FIXED_BODY_SIZE + type.length + aggregate.length + 8 * ids + payload.length;
+  }
+}
@@ -0,0 +1,51 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+
+/**
+ * Evicts from {@link PortfolioHierarchyCache} the portfolios whose mutual funds refer to a legal entity, as fund,
+ * manager or trustee, whenever Hibernate commits an update or delete of it, since cached portfolios embed those legal
+ * entities.
+ */
+@Component
+public class LegalEntityCacheInvalidator extends EntityCommitListener<LegalEntity> {
+
+  private static final long serialVersionUID = 1L;
+
+  @Autowired
+  private transient PortfolioHierarchyCache cache;
+
+  public LegalEntityCacheInvalidator() {
+    super(LegalEntity.class);
+  }
+
+  @Override
+  protected void inserted(LegalEntity entity, Serializable id) {
+    // Not referenced yet
+  }
+
+  @Override
+  protected void updated(LegalEntity entity, Serializable id, PostUpdateEvent event) {
+    this.cache.evictHolders(mf -> references(mf, id));
+  }
+
+  @Override
+  protected void deleted(LegalEntity entity, Serializable id) {
+    this.cache.evictHolders(mf -> references(mf, id));
+  }
+
+  private static boolean references(MutualFund mf, Serializable id) {
+    return is(mf.getFund(), id) || is(mf.getManager(), id) || is(mf.getTrustee(), id);
+  }
+
+  private static boolean is(LegalEntity legalEntity, Serializable id) {
+    return legalEntity != null && id.equals(legalEntity.getId());
+  }
+}
@@ -0,0 +1,203 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import br.com.rcrios.smartportfolio.FixedPoint;
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.repository.PortfolioNode;
+import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Rolls a value change of a portfolio up through all its masters. The whole master chain is read with a single query,
+ * every new share quantity and value is computed in memory and all masters are written with one JDBC batch, inside one
+ * transaction.
+ *
+ * Master shares are increased by the propagated value divided by the master share value, and master value by those
+ * shares times the share value. Share value is never changed. Both increments are computed in Java, rounded to the
+ * scale of the columns, and added to the current shares and value by the update, so concurrent propagations through a
+ * shared master (e.g. from different subtrees of the root, see {@link PortfolioLocks}) never overwrite each other, and
+ * the database never rounds anything on its own.
+ *
+ * Values can also be propagated in batches (see {@link PropagationQueue}): values reaching the same master through
+ * different portfolios are summed first, so every master is written once.
+ */
+@Service
+public class MasterPropagationService {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MasterPropagationService.class);
+
+  private static final String UPDATE_MASTER = "UPDATE portfolio SET shares = shares + ?, value = value + ?, last_updated = ?, version = version + 1"
+      + " WHERE id = ?";
+
+  @Autowired
+  private PortfolioRepository repo;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  private PortfolioHierarchyCache cache;
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
+  private final Timer timer;
+  private final DistributionSummary depth;
+
+  @Autowired
+  public MasterPropagationService(MeterRegistry registry) {
+    this.timer = Timer.builder("smartportfolio.propagation").description("Time spent propagating values through a master chain").register(registry);
+    this.depth = DistributionSummary.builder("smartportfolio.propagation.depth").description("Number of masters updated by a single propagation")
+        .register(registry);
+  }
+
+  /**
+   * Propagates a value added to a portfolio to all its masters.
+   *
+   * The masters reachable from 'portfolio' in memory are also updated (and detached from the persistence context, if
+   * managed), so the caller can return them without reloading.
+   *
+   * @param portfolio
+   *          Portfolio whose value changed. Only its master and last updated date are used.
+   * @param value
+   *          Value added to the portfolio.
+   *
+   * @return Number of masters updated.
+   */
+  @Transactional
+  public int propagate(Portfolio portfolio, BigDecimal value) {
+    final Portfolio master = portfolio.getMaster();
+    if (master == null || master.getId() == null) {
+      LOGGER.trace("Portfolio '{}' doesn't have a master. Nothing to propagate.", portfolio.getName());
+      return 0;
+    }
+
+    final Date lastUpdated = portfolio.getLastUpdated() != null ? portfolio.getLastUpdated() : new Date();
+    return this.timer.record(() -> this.propagate(master.getId(), value, lastUpdated, portfolio));
+  }
+
+  /**
+   * Propagates values added to many portfolios, in a single transaction. Masters are read with one query per distinct
+   * starting master and written with one JDBC batch, in id order.
+   *
+   * @param values
+   *          Values added, keyed by the id of the master of the portfolio that changed.
+   * @param lastUpdated
+   *          Last updated date of every master written.
+   *
+   * @return Number of masters updated.
+   */
+  @Transactional
+  public int propagateAll(Map<Long, BigDecimal> values, Date lastUpdated) {
+    return this.timer.record(() -> {
+      final int updated = this.write(values, lastUpdated).size();
+      this.depth.record(updated);
+      return updated;
+    });
+  }
+
+  private int propagate(Long masterId, BigDecimal value, Date lastUpdated, Portfolio portfolio) {
+    final Map<Long, Object[]> byId = this.write(Collections.singletonMap(masterId, value), lastUpdated);
+    this.refreshInMemoryChain(portfolio.getMaster(), byId, lastUpdated);
+
+    this.depth.record(byId.size());
+    LOGGER.trace("Propagation finished. {} masters updated.", byId.size());
+    return byId.size();
+  }
+
+  /**
+   * @return New shares and value of every master written, keyed by id.
+   */
+  private Map<Long, Object[]> write(Map<Long, BigDecimal> values, Date lastUpdated) {
+    final Map<Long, BigDecimal> valueById = new TreeMap<>();
+    final Map<Long, PortfolioNode> nodes = new HashMap<>();
+    for (final Map.Entry<Long, BigDecimal> entry : values.entrySet()) {
+      final List<PortfolioNode> chain = this.repo.findAncestry(entry.getKey());
+      LOGGER.debug("Propagating {} through {} masters, starting at '{}'", entry.getValue(), chain.size(), entry.getKey());
+      for (final PortfolioNode node : chain) {
+        nodes.putIfAbsent(node.getId(), node);
+        valueById.merge(node.getId(), entry.getValue(), BigDecimal::add);
+      }
+    }
+
+    final List<Object[]> updates = new ArrayList<>(valueById.size());
+    final Map<Long, Object[]> byId = new HashMap<>();
+    for (final Map.Entry<Long, BigDecimal> entry : valueById.entrySet()) {
+      final PortfolioNode node = nodes.get(entry.getKey());
+      final BigDecimal added = entry.getValue().divide(node.getShareValue(), Utils.DEFAULT_MATHCONTEXT).setScale(FixedPoint.SCALE, RoundingMode.HALF_EVEN);
+      final BigDecimal addedValue = added.multiply(node.getShareValue()).setScale(FixedPoint.SCALE, RoundingMode.HALF_EVEN);
+      final BigDecimal shares = node.getShares().add(added);
+      final BigDecimal total = node.getValue().add(addedValue);
+
+      updates.add(new Object[] { added, addedValue, node.getId() });
+      byId.put(node.getId(), new Object[] { shares, total });
+    }
+
+    final java.sql.Date sqlLastUpdated = new java.sql.Date(lastUpdated.getTime());
+    this.jdbcTemplate.batchUpdate(UPDATE_MASTER, new BatchPreparedStatementSetter() {
+      @Override
+      public void setValues(PreparedStatement ps, int i) throws SQLException {
+        final Object[] update = updates.get(i);
+        ps.setBigDecimal(1, (BigDecimal) update[0]);
+        ps.setBigDecimal(2, (BigDecimal) update[1]);
+        ps.setDate(3, sqlLastUpdated);
+        ps.setLong(4, (Long) update[2]);
+      }
+
+      @Override
+      public int getBatchSize() {
+        return updates.size();
+      }
+    });
+
+    this.cache.evictAfterCommit(byId.keySet());
+    return byId;
+  }
+
+  /**
+   * Applies the values written to the database to the in memory master chain. Managed instances are detached first,
+   * otherwise Hibernate would write them again on the next flush. Values are the ones computed from the chain read by
+   * this propagation, so they don't include concurrent propagations through the same masters.
+   */
+  private void refreshInMemoryChain(Portfolio master, Map<Long, Object[]> byId, Date lastUpdated) {
+    Portfolio current = master;
+    while (current != null) {
+      final Object[] update = byId.get(current.getId());
+      if (update != null) {
+        if (this.entityManager.contains(current)) {
+          this.entityManager.detach(current);
+        }
+        current.setShares((BigDecimal) update[0]);
+        current.setValue((BigDecimal) update[1]);
+        current.setLastUpdated(lastUpdated);
+        current.setVersion(current.getVersion() + 1);
+      }
+      current = current.getMaster();
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import br.com.rcrios.smartportfolio.model.MutualFund;
+
+/**
+ * Evicts the portfolios holding a mutual fund from {@link PortfolioHierarchyCache} whenever Hibernate commits an update
+ * or delete of it, since cached portfolios embed their mutual funds. A new mutual fund isn't held by any portfolio until
+ * one of them is written.
+ */
+@Component
+public class MutualFundCacheInvalidator extends EntityCommitListener<MutualFund> {
+
+  private static final long serialVersionUID = 1L;
+
+  @Autowired
+  private transient PortfolioHierarchyCache cache;
+
+  public MutualFundCacheInvalidator() {
+    super(MutualFund.class);
+  }
+
+  @Override
+  protected void inserted(MutualFund entity, Serializable id) {
+    // Not held yet
+  }
+
+  @Override
+  protected void updated(MutualFund entity, Serializable id, PostUpdateEvent event) {
+    this.cache.evictHolders(mf -> id.equals(mf.getId()));
+  }
+
+  @Override
+  protected void deleted(MutualFund entity, Serializable id) {
+    this.cache.evictHolders(mf -> id.equals(mf.getId()));
+  }
+}
@@ -0,0 +1,204 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.PoiUtils;
+import br.com.rcrios.smartportfolio.XlsxEventReader;
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFundShare;
+import br.com.rcrios.smartportfolio.model.TransactionType;
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundShareRepository;
+
+/**
+ * Imports mutual fund share values (NAV history) from XLSX workbooks. The workbook is read through
+ * {@link XlsxEventReader} and shares are persisted in bounded batches, each one in its own transaction, so memory usage
+ * stays flat regardless of the workbook size.
+ *
+ * Expected layout of the first sheet (rows that don't match it, like headers, are skipped):
+ * <ol>
+ * <li>Fund national tax payer id. The fund must already exist as a {@link LegalEntity}.</li>
+ * <li>Share value date. Must be a date formatted cell.</li>
+ * <li>Share value. Must be a numeric cell.</li>
+ * </ol>
+ *
+ * A fund has a single share value per date: rows whose fund and date are already stored, or repeated in the workbook,
+ * are skipped.
+ */
+@Service
+public class MutualFundShareImporter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MutualFundShareImporter.class);
+
+  public static final int FUND_COLUMN = 0;
+  public static final int DATE_COLUMN = 1;
+  public static final int VALUE_COLUMN = 2;
+
+  @Autowired
+  private MutualFundShareRepository repo;
+
+  @Autowired
+  private LegalEntityRepository leRepo;
+
+  @Autowired
+  private Journal journal;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
+  @Value("${smartportfolio.import.batch-size:500}")
+  private int batchSize;
+
+  /**
+   * Imports all share values from the first sheet of the provided workbook.
+   *
+   * @param xlsx
+   *          Workbook file
+   *
+   * @return Import counters.
+   */
+  public ImportSummary importXlsx(File xlsx) {
+    LOGGER.debug("Importing mutual fund shares from '{}' with batches of {}", xlsx, this.batchSize);
+
+    final ImportSummary summary = new ImportSummary();
+    final Map<String, Optional<LegalEntity>> funds = new HashMap<>();
+    final List<MutualFundShare> batch = new ArrayList<>(this.batchSize);
+
+    XlsxEventReader.read(xlsx, VALUE_COLUMN + 1, (rowIndex, cells) -> {
+      summary.read();
+
+      final MutualFundShare share = this.toShare(rowIndex, cells, funds);
+      if (share == null) {
+        summary.skipped();
+        return;
+      }
+
+      batch.add(share);
+      if (batch.size() >= this.batchSize) {
+        this.flush(batch, summary);
+      }
+    });
+
+    this.flush(batch, summary);
+
+    LOGGER.debug("Import finished. {}", summary);
+    return summary;
+  }
+
+  private MutualFundShare toShare(int rowIndex, Object[] cells, Map<String, Optional<LegalEntity>> funds) {
+    if (!(cells[DATE_COLUMN] instanceof Date) || !(cells[VALUE_COLUMN] instanceof Double)) {
+      LOGGER.trace("Skipping row {}. It doesn't have a date and a value.", rowIndex);
+      return null;
+    }
+
+    final String ntpid = toNationalTaxPayerId(cells[FUND_COLUMN]);
+    final Optional<LegalEntity> fund = funds.computeIfAbsent(ntpid, this.leRepo::findByNationalTaxPayerId);
+    if (!fund.isPresent()) {
+      LOGGER.warn("Skipping row {}. Fund '{}' not found.", rowIndex, ntpid);
+      return null;
+    }
+
+    final MutualFundShare share = new MutualFundShare();
+    share.setFund(fund.get());
+    share.setDate(PoiUtils.toDate(cells[DATE_COLUMN]));
+    share.setValue(PoiUtils.toNumber(cells[VALUE_COLUMN]));
+
+    return share.isValid() ? share : null;
+  }
+
+  /**
+   * National tax payer ids are usually typed as numbers, so Excel stores them as doubles.
+   */
+  private static String toNationalTaxPayerId(Object cellContent) {
+    if (cellContent instanceof Double) {
+      return PoiUtils.toNumber(cellContent).stripTrailingZeros().toPlainString();
+    }
+    return Objects.toString(cellContent, "").trim();
+  }
+
+  /**
+   * Persists the batch in its own transaction and detaches everything from the persistence context, so neither the
+   * batch nor the persistence context grow with the workbook size.
+   */
+  private void flush(List<MutualFundShare> batch, ImportSummary summary) {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    final List<MutualFundShare> fresh = new ArrayList<>(batch.size());
+    new TransactionTemplate(this.transactionManager).execute(status -> {
+      final Set<String> stored = this.stored(batch);
+      for (final MutualFundShare share : batch) {
+        if (stored.add(key(share.getFund().getId(), share.getDate()))) {
+          fresh.add(share);
+        } else {
+          LOGGER.trace("Skipping {}. Its fund already has a share value at this date.", share);
+          summary.skipped();
+        }
+      }
+
+      this.repo.saveAll(fresh);
+      this.repo.flush();
+      this.entityManager.clear();
+      return null;
+    });
+
+    final List<JournalEntry> entries = new ArrayList<>(fresh.size());
+    for (final MutualFundShare share : fresh) {
+      entries.add(this.journal.entry(TransactionType.CREATE_QUOTE, MutualFundShare.class, Collections.singleton(share.getFund().getId()), share));
+    }
+    this.journal.append(entries);
+
+    summary.imported(fresh.size());
+    LOGGER.trace("Batch of {} mutual fund shares persisted. {}", fresh.size(), summary);
+    batch.clear();
+  }
+
+  /**
+   * @return Keys of the share values already stored for the funds of the batch, within its date window.
+   */
+  private Set<String> stored(List<MutualFundShare> batch) {
+    final Set<Long> ids = new HashSet<>();
+    Date from = null;
+    Date to = null;
+    for (final MutualFundShare share : batch) {
+      ids.add(share.getFund().getId());
+      from = from == null || share.getDate().before(from) ? share.getDate() : from;
+      to = to == null || share.getDate().after(to) ? share.getDate() : to;
+    }
+
+    final Set<String> stored = new HashSet<>();
+    for (final Object[] row : this.repo.findDates(ids, from, to)) {
+      stored.add(key((Long) row[0], (Date) row[1]));
+    }
+    return stored;
+  }
+
+  private static String key(Long fundId, Date date) {
+    return fundId + "@" + DateCodec.toEpochDay(date);
+  }
+}
@@ -0,0 +1,346 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+
+/**
+ * Share value (NAV) time series of a single fund, stored column wise in a memory mapped file: one column of epoch days
+ * (int) and one of values as scale 6 fixed point numbers (long). Days are kept sorted and unique, so lookups are binary
+ * searches and reading a range touches only two contiguous memory regions.
+ *
+ * File layout: a 16 bytes header (magic, count, capacity, unused), followed by 'capacity' days and then 'capacity'
+ * values. When the file is full, it's extended in place to twice the capacity.
+ *
+ * Reads can run concurrently. Writes are exclusive.
+ */
+public class NavSeries implements Closeable {
+  /**
+   * Returned when a lookup doesn't find a value. No valid NAV is negative.
+   */
+  public static final long NO_VALUE = Long.MIN_VALUE;
+
+  private static final int MAGIC = 0x4E415631; // NAV1
+  private static final int HEADER_SIZE = 16;
+  private static final int COUNT_OFFSET = 4;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int MIN_CAPACITY = 256;
+
+  /**
+   * Receives the points of a range scan.
+   */
+  @FunctionalInterface
+  public interface PointConsumer {
+    void accept(int epochDay, long value);
+  }
+
+  private final Path file;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private int count;
+  private int capacity;
+
+  /**
+   * Opens the series file, creating it if needed.
+   */
+  public NavSeries(Path file) {
+    this.file = file;
+    try {
+      if (Files.exists(file) && Files.size(file) >= HEADER_SIZE) {
+        this.map(file);
+        if (this.buffer.getInt(0) != MAGIC) {
+          throw new SmartPortfolioRuntimeException("File '" + file + "' isn't a NAV series.");
+        }
+        this.count = this.buffer.getInt(COUNT_OFFSET);
+        this.capacity = this.buffer.getInt(CAPACITY_OFFSET);
+      } else {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.create(file, MIN_CAPACITY);
+        this.map(file);
+        this.count = 0;
+        this.capacity = MIN_CAPACITY;
+      }
+    } catch (final IOException e) {
+      throw new SmartPortfolioRuntimeException("Unable to open NAV series '" + file + "'.", e);
+    }
+  }
+
+  public int size() {
+    this.lock.readLock().lock();
+    try {
+      return this.count;
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return First epoch day of the series or {@link Integer#MIN_VALUE} if it's empty.
+   */
+  public int firstDay() {
+    this.lock.readLock().lock();
+    try {
+      return this.count == 0 ? Integer.MIN_VALUE : this.day(0);
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return Last epoch day of the series or {@link Integer#MIN_VALUE} if it's empty.
+   */
+  public int lastDay() {
+    this.lock.readLock().lock();
+    try {
+      return this.count == 0 ? Integer.MIN_VALUE : this.day(this.count - 1);
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return Value at exactly the given day or {@link #NO_VALUE}.
+   */
+  public long valueAt(int epochDay) {
+    this.lock.readLock().lock();
+    try {
+      final int index = this.search(epochDay);
+      return index >= 0 ? this.value(index) : NO_VALUE;
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return Value at the latest day on or before the given day or {@link #NO_VALUE} if there is none.
+   */
+  public long valueAsOf(int epochDay) {
+    this.lock.readLock().lock();
+    try {
+      final int index = this.floor(epochDay);
+      return index >= 0 ? this.value(index) : NO_VALUE;
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Scans all points between two days, both inclusive, in ascending order.
+   *
+   * @return Number of points consumed.
+   */
+  public int range(int fromDay, int toDay, PointConsumer consumer) {
+    this.lock.readLock().lock();
+    try {
+      int index = this.search(fromDay);
+      if (index < 0) {
+        index = -index - 1;
+      }
+
+      int consumed = 0;
+      for (; index < this.count; index++) {
+        final int day = this.day(index);
+        if (day > toDay) {
+          break;
+        }
+        consumer.accept(day, this.value(index));
+        consumed++;
+      }
+      return consumed;
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Sets the value of a day. Appending after the last day is O(1). Replacing a day is a binary search and inserting
+   * before the last day shifts the following points.
+   */
+  public void put(int epochDay, long value) {
+    this.lock.writeLock().lock();
+    try {
+      if (this.count > 0 && this.day(this.count - 1) == epochDay) {
+        this.setValue(this.count - 1, value);
+        return;
+      }
+
+      int index = this.count == 0 || this.day(this.count - 1) < epochDay ? -this.count - 1 : this.search(epochDay);
+      if (index >= 0) {
+        this.setValue(index, value);
+        return;
+      }
+
+      index = -index - 1;
+      if (this.count == this.capacity) {
+        this.grow();
+      }
+      for (int i = this.count; i > index; i--) {
+        this.setDay(i, this.day(i - 1));
+        this.setValue(i, this.value(i - 1));
+      }
+      this.setDay(index, epochDay);
+      this.setValue(index, value);
+      this.setCount(this.count + 1);
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes the value of a day, if present.
+   *
+   * @return True if a point was removed.
+   */
+  public boolean remove(int epochDay) {
+    this.lock.writeLock().lock();
+    try {
+      final int index = this.search(epochDay);
+      if (index < 0) {
+        return false;
+      }
+      for (int i = index; i < this.count - 1; i++) {
+        this.setDay(i, this.day(i + 1));
+        this.setValue(i, this.value(i + 1));
+      }
+      this.setCount(this.count - 1);
+      return true;
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes every point.
+   */
+  public void clear() {
+    this.lock.writeLock().lock();
+    try {
+      this.setCount(0);
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Forces pending changes to the storage device.
+   */
+  public void force() {
+    this.lock.writeLock().lock();
+    try {
+      this.buffer.force();
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.lock.writeLock().lock();
+    try {
+      this.buffer.force();
+      this.channel.close();
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  private int search(int epochDay) {
+    int low = 0;
+    int high = this.count - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int day = this.day(mid);
+      if (day < epochDay) {
+        low = mid + 1;
+      } else if (day > epochDay) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private int floor(int epochDay) {
+    final int index = this.search(epochDay);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  private int day(int index) {
+    return this.buffer.getInt(HEADER_SIZE + index * Integer.BYTES);
+  }
+
+  private long value(int index) {
+    return this.buffer.getLong(this.valuesOffset() + index * Long.BYTES);
+  }
+
+  private void setDay(int index, int epochDay) {
+    this.buffer.putInt(HEADER_SIZE + index * Integer.BYTES, epochDay);
+  }
+
+  private void setValue(int index, long value) {
+    this.buffer.putLong(this.valuesOffset() + index * Long.BYTES, value);
+  }
+
+  private void setCount(int count) {
+    this.count = count;
+    this.buffer.putInt(COUNT_OFFSET, count);
+  }
+
+  private int valuesOffset() {
+    return HEADER_SIZE + this.capacity * Integer.BYTES;
+  }
+
+  /**
+   * Doubles the capacity in place: the file is extended by mapping it with the new size, the values column is moved to
+   * its new offset (last element first, since both regions overlap) and only then the new capacity is written to the
+   * header.
+   */
+  private void grow() {
+    final int oldValuesOffset = this.valuesOffset();
+    final int newCapacity = this.capacity * 2;
+    final int newValuesOffset = HEADER_SIZE + newCapacity * Integer.BYTES;
+    try {
+      this.buffer = this.channel.map(MapMode.READ_WRITE, 0, size(newCapacity));
+      for (int i = this.count - 1; i >= 0; i--) {
+        this.buffer.putLong(newValuesOffset + i * Long.BYTES, this.buffer.getLong(oldValuesOffset + i * Long.BYTES));
+      }
+      this.buffer.putInt(CAPACITY_OFFSET, newCapacity);
+      this.buffer.force();
+      this.capacity = newCapacity;
+    } catch (final IOException e) {
+      throw new SmartPortfolioRuntimeException("Unable to grow NAV series '" + this.file + "'.", e);
+    }
+  }
+
+  private void create(Path path, int capacity) throws IOException {
+    try (FileChannel target = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      final MappedByteBuffer header = target.map(MapMode.READ_WRITE, 0, size(capacity));
+      header.putInt(0, MAGIC);
+      header.putInt(COUNT_OFFSET, 0);
+      header.putInt(CAPACITY_OFFSET, capacity);
+      header.force();
+    }
+  }
+
+  private void map(Path path) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.buffer = this.channel.map(MapMode.READ_WRITE, 0, this.channel.size());
+  }
+
+  private static long size(int capacity) {
+    return HEADER_SIZE + (long) capacity * (Integer.BYTES + Long.BYTES);
+  }
+}
@@ -0,0 +1,224 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.FixedPoint;
+import br.com.rcrios.smartportfolio.repository.MutualFundShareRepository;
+
+/**
+ * Keeps the share value history of each fund as a {@link NavSeries}, so analytics can scan years of NAVs without
+ * loading a MutualFundShare entity per day.
+ *
+ * Series files are kept under {@code smartportfolio.nav.directory}, or the 'nav' subdirectory of the
+ * {@link DataDirectory}.
+ *
+ * Series are opened on first use. The first time a series is opened by this process, it's compared with the
+ * MutualFundShare table (count, first and last dates, sum of values and sum of values weighted by date) and rebuilt
+ * from it if they differ. After that,
+ * {@link NavStoreSynchronizer} applies every committed change of MutualFundShare to the open series.
+ *
+ * Dates are stored as epoch days of the system default time zone (see {@link DateCodec#toEpochDay(Date)}), the same one
+ * used by Hibernate to read DATE columns. Values are stored as {@link FixedPoint} numbers, whose scale is the same as
+ * the MutualFundShare value column.
+ */
+@Service
+public class NavStore {
+  private static final Logger LOGGER = LoggerFactory.getLogger(NavStore.class);
+
+  @Autowired
+  private MutualFundShareRepository repo;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Autowired
+  private DataDirectory dataDirectory;
+
+  @Value("${smartportfolio.nav.directory:}")
+  private String configuredDirectory;
+
+  private Path directory;
+
+  private final Map<Long, NavSeries> series = new ConcurrentHashMap<>();
+
+  @PostConstruct
+  public void init() {
+    this.directory = this.dataDirectory.resolve(this.configuredDirectory, "nav");
+    LOGGER.debug("NAV series are kept at '{}'", this.directory);
+  }
+
+  /**
+   * @param fundId
+   *          Fund (LegalEntity) id
+   *
+   * @return The series of the fund, opened and checked against the database if needed.
+   */
+  public NavSeries get(Long fundId) {
+    final NavSeries open = this.series.get(fundId);
+    return open != null ? open : this.open(fundId);
+  }
+
+  /**
+   * @return Share value of the fund at the given date or null if there is none.
+   */
+  public BigDecimal valueAt(Long fundId, Date date) {
+    return fromFixed(this.get(fundId).valueAt(DateCodec.toEpochDay(date)));
+  }
+
+  /**
+   * @return Share value of the fund at the latest date on or before the given one or null if there is none.
+   */
+  public BigDecimal valueAsOf(Long fundId, Date date) {
+    return fromFixed(this.get(fundId).valueAsOf(DateCodec.toEpochDay(date)));
+  }
+
+  /**
+   * Scans the share values of a fund between two dates, both inclusive.
+   *
+   * @return Number of values consumed.
+   */
+  public int range(Long fundId, Date from, Date to, NavSeries.PointConsumer consumer) {
+    return this.get(fundId).range(DateCodec.toEpochDay(from), DateCodec.toEpochDay(to), consumer);
+  }
+
+  /**
+   * Adds or replaces a share value. Only changes the store: the MutualFundShare table must be updated by the caller.
+   */
+  public void put(Long fundId, Date date, BigDecimal value) {
+    this.get(fundId).put(DateCodec.toEpochDay(date), toFixed(value));
+  }
+
+  /**
+   * Applies a committed change to the series of a fund, but only if it's open. Series that aren't open will see the
+   * change when they are checked against the database.
+   */
+  synchronized void apply(Long fundId, Date removed, Date date, BigDecimal value) {
+    final NavSeries open = this.series.get(fundId);
+    if (open == null) {
+      return;
+    }
+    if (removed != null) {
+      open.remove(DateCodec.toEpochDay(removed));
+    }
+    if (date != null && value != null) {
+      open.put(DateCodec.toEpochDay(date), toFixed(value));
+    }
+  }
+
+  /**
+   * Opening holds the same lock as {@link #apply(Long, Date, Date, BigDecimal)}, so a change committed while a series is
+   * being rebuilt is applied to it afterwards instead of being lost.
+   */
+  private synchronized NavSeries open(Long fundId) {
+    NavSeries result = this.series.get(fundId);
+    if (result != null) {
+      return result;
+    }
+
+    final Path file = this.directory.resolve("fund-" + fundId + ".nav");
+    result = new NavSeries(file);
+    if (!this.isUpToDate(fundId, result)) {
+      this.rebuild(fundId, result);
+    }
+    this.series.put(fundId, result);
+    return result;
+  }
+
+  /**
+   * Compares the series with a fingerprint of the MutualFundShare table. The weighted sum catches a value corrected
+   * without changing the sum, when the difference is made up elsewhere, and values moved to other dates. Three or more
+   * changes can still cancel each other in both sums, in which case the stale series is kept until a rebuild.
+   */
+  private boolean isUpToDate(Long fundId, NavSeries nav) {
+    final List<Object[]> rows = this.repo.summarize(fundId);
+    final Object[] row = rows.isEmpty() ? new Object[5] : rows.get(0);
+    final long count = row[0] != null ? ((Number) row[0]).longValue() : 0;
+
+    if (count != nav.size()) {
+      return false;
+    }
+    if (count == 0) {
+      return true;
+    }
+    if (DateCodec.toEpochDay((Date) row[1]) != nav.firstDay() || DateCodec.toEpochDay((Date) row[2]) != nav.lastDay()) {
+      return false;
+    }
+
+    final long[] sum = new long[1];
+    final BigDecimal[] weighted = { BigDecimal.ZERO };
+    nav.range(nav.firstDay(), nav.lastDay(), (day, value) -> {
+      sum[0] += value;
+      weighted[0] = weighted[0].add(FixedPoint.toBigDecimal(value).multiply(BigDecimal.valueOf(ordinal(day))));
+    });
+    return toFixed((BigDecimal) row[3]) == sum[0] && row[4] != null && ((BigDecimal) row[4]).compareTo(weighted[0]) == 0;
+  }
+
+  /**
+   * @return Ordinal of the day used by {@link MutualFundShareRepository#summarize(Long)}: unique and increasing, but not
+   *         contiguous.
+   */
+  private static long ordinal(int epochDay) {
+    final LocalDate date = LocalDate.ofEpochDay(epochDay);
+    return date.getYear() * 372L + date.getMonthValue() * 31L + date.getDayOfMonth();
+  }
+
+  private void rebuild(Long fundId, NavSeries nav) {
+    final TransactionTemplate tx = new TransactionTemplate(this.transactionManager);
+    tx.setReadOnly(true);
+    tx.execute(status -> {
+      nav.clear();
+      try (Stream<Object[]> rows = this.repo.streamHistory(fundId)) {
+        rows.forEach(row -> nav.put(DateCodec.toEpochDay((Date) row[0]), toFixed((BigDecimal) row[1])));
+      }
+      return null;
+    });
+    nav.force();
+    LOGGER.debug("NAV series of fund {} rebuilt with {} values", fundId, nav.size());
+  }
+
+  @PreDestroy
+  public void close() {
+    for (final Map.Entry<Long, NavSeries> entry : this.series.entrySet()) {
+      try {
+        entry.getValue().close();
+      } catch (final IOException e) {
+        LOGGER.warn("Unable to close NAV series of fund {}.", entry.getKey(), e);
+      }
+    }
+    this.series.clear();
+  }
+
+  /**
+   * @see FixedPoint#valueOf(BigDecimal)
+   */
+  public static long toFixed(BigDecimal value) {
+    return FixedPoint.valueOf(value);
+  }
+
+  /**
+   * @return The value as a BigDecimal or null if it's {@link NavSeries#NO_VALUE}.
+   */
+  public static BigDecimal fromFixed(long value) {
+    return value != NavSeries.NO_VALUE ? FixedPoint.toBigDecimal(value) : null;
+  }
+}
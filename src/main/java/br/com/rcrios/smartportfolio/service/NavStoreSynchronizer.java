@@ -0,0 +1,61 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFundShare;
+
+/**
+ * Applies committed inserts, updates and deletes of MutualFundShare to the open series of {@link NavStore}, and then
+ * discards the positions of {@link PositionEngine} derived from the previous share values.
+ */
+@Component
+public class NavStoreSynchronizer extends EntityCommitListener<MutualFundShare> {
+
+  private static final long serialVersionUID = 1L;
+
+  @Autowired
+  private transient NavStore store;
+
+  @Autowired
+  private transient PositionEngine engine;
+
+  public NavStoreSynchronizer() {
+    super(MutualFundShare.class);
+  }
+
+  @Override
+  protected void inserted(MutualFundShare entity, Serializable id) {
+    this.store.apply(entity.getFund().getId(), null, entity.getDate(), entity.getValue());
+    this.engine.navChanged(entity.getFund().getId(), entity.getDate());
+  }
+
+  @Override
+  protected void updated(MutualFundShare entity, Serializable id, PostUpdateEvent event) {
+    final LegalEntity previousFund = (LegalEntity) previousValue(event, "mutualFund");
+    final Date previousDate = (Date) previousValue(event, "date");
+
+    if (previousFund != null && !previousFund.getId().equals(entity.getFund().getId())) {
+      this.store.apply(previousFund.getId(), previousDate, null, null);
+      this.store.apply(entity.getFund().getId(), null, entity.getDate(), entity.getValue());
+    } else {
+      this.store.apply(entity.getFund().getId(), previousDate, entity.getDate(), entity.getValue());
+    }
+
+    if (previousFund != null && previousDate != null) {
+      this.engine.navChanged(previousFund.getId(), previousDate);
+    }
+    this.engine.navChanged(entity.getFund().getId(), entity.getDate());
+  }
+
+  @Override
+  protected void deleted(MutualFundShare entity, Serializable id) {
+    this.store.apply(entity.getFund().getId(), entity.getDate(), null, null);
+    this.engine.navChanged(entity.getFund().getId(), entity.getDate());
+  }
+}
@@ -0,0 +1,42 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+import java.util.Collections;
+
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import br.com.rcrios.smartportfolio.model.Portfolio;
+
+/**
+ * Evicts portfolios from {@link PortfolioHierarchyCache} whenever Hibernate commits an insert, update or delete of a
+ * Portfolio. Writes that bypass Hibernate must evict the cache themselves.
+ */
+@Component
+public class PortfolioCacheInvalidator extends EntityCommitListener<Portfolio> {
+
+  private static final long serialVersionUID = 1L;
+
+  @Autowired
+  private transient PortfolioHierarchyCache cache;
+
+  public PortfolioCacheInvalidator() {
+    super(Portfolio.class);
+  }
+
+  @Override
+  protected void inserted(Portfolio entity, Serializable id) {
+    this.cache.evict(Collections.singleton((Long) id));
+  }
+
+  @Override
+  protected void updated(Portfolio entity, Serializable id, PostUpdateEvent event) {
+    this.cache.evict(Collections.singleton((Long) id));
+  }
+
+  @Override
+  protected void deleted(Portfolio entity, Serializable id) {
+    this.cache.evict(Collections.singleton((Long) id));
+  }
+}
@@ -0,0 +1,181 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.util.List;
+import java.util.Objects;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.internal.SessionFactoryImpl;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.model.PortfolioClosure;
+import br.com.rcrios.smartportfolio.repository.PortfolioClosureRepository;
+import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+
+/**
+ * Keeps {@link PortfolioClosure} in step with {@link Portfolio#getMaster()}. Unlike {@link EntityCommitListener}
+ * subclasses, it's registered into Hibernate as a plain post insert, update and delete listener, so closure rows are
+ * written with JDBC in the same transaction as the portfolio and are rolled back with it.
+ *
+ * A created portfolio gets its own row plus one row for each master. A portfolio moved to another master takes its
+ * whole subtree along: the rows linking the subtree to its former masters are deleted and the ones linking it to the
+ * new masters are inserted, with two statements whatever its size. Valuation and master propagation bypass Hibernate,
+ * but never change masters.
+ *
+ * When the application is ready, the closure table is rebuilt if it doesn't have a row for every portfolio, e.g. for a
+ * database written before it existed.
+ */
+@Component
+public class PortfolioClosureMaintainer implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PortfolioClosureMaintainer.class);
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String INSERT_SELF = "INSERT INTO portfolio_closure (ancestor_id, descendant_id, depth) VALUES (?, ?, 0)";
+  private static final String INSERT_MASTERS = "INSERT INTO portfolio_closure (ancestor_id, descendant_id, depth)"
+      + " SELECT ancestor_id, ?, depth + 1 FROM portfolio_closure WHERE descendant_id = ?";
+  private static final String SELECT_MASTER = "SELECT ancestor_id FROM portfolio_closure WHERE descendant_id = ? AND depth = 1";
+  private static final String IN_SUBTREE = "SELECT COUNT(*) FROM portfolio_closure WHERE ancestor_id = ? AND descendant_id = ?";
+  private static final String DETACH_SUBTREE = "DELETE FROM portfolio_closure WHERE descendant_id IN"
+      + " (SELECT descendant_id FROM portfolio_closure WHERE ancestor_id = ?)"
+      + " AND ancestor_id NOT IN (SELECT descendant_id FROM portfolio_closure WHERE ancestor_id = ?)";
+  private static final String ATTACH_SUBTREE = "INSERT INTO portfolio_closure (ancestor_id, descendant_id, depth)"
+      + " SELECT m.ancestor_id, s.descendant_id, m.depth + s.depth + 1 FROM portfolio_closure m, portfolio_closure s"
+      + " WHERE m.descendant_id = ? AND s.ancestor_id = ?";
+  private static final String DELETE = "DELETE FROM portfolio_closure WHERE descendant_id = ? OR ancestor_id = ?";
+
+  @Autowired
+  private transient EntityManagerFactory entityManagerFactory;
+
+  @Autowired
+  private transient JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  private transient PortfolioClosureRepository closures;
+
+  @Autowired
+  private transient PortfolioRepository repo;
+
+  @PostConstruct
+  public void register() {
+    final EventListenerRegistry registry = this.entityManagerFactory.unwrap(SessionFactoryImpl.class).getServiceRegistry()
+        .getService(EventListenerRegistry.class);
+    registry.appendListeners(EventType.POST_INSERT, this);
+    registry.appendListeners(EventType.POST_UPDATE, this);
+    registry.appendListeners(EventType.POST_DELETE, this);
+  }
+
+  @Transactional
+  @EventListener(ApplicationReadyEvent.class)
+  public void verifyOnStartup() {
+    final long portfolios = this.repo.count();
+    if (this.closures.countNodes() != portfolios) {
+      LOGGER.info("Portfolio closure table is out of date. Rebuilding it for {} portfolios.", portfolios);
+      this.rebuild();
+    }
+  }
+
+  /**
+   * Rebuilds the whole closure table from {@link Portfolio#getMaster()}, with one statement per hierarchy level.
+   *
+   * @return Number of rows written.
+   */
+  @Transactional
+  public int rebuild() {
+    this.jdbcTemplate.update("DELETE FROM portfolio_closure");
+    int rows = this.jdbcTemplate.update("INSERT INTO portfolio_closure (ancestor_id, descendant_id, depth) SELECT id, id, 0 FROM portfolio");
+
+    int level = 0;
+    int inserted = rows;
+    while (inserted > 0) {
+      inserted = this.jdbcTemplate.update("INSERT INTO portfolio_closure (ancestor_id, descendant_id, depth) SELECT c.ancestor_id, p.id, c.depth + 1"
+          + " FROM portfolio p INNER JOIN portfolio_closure c ON c.descendant_id = p.master_id WHERE c.depth = ?", level++);
+      rows += inserted;
+    }
+
+    LOGGER.debug("Portfolio closure table rebuilt with {} rows for {} levels", rows, level);
+    return rows;
+  }
+
+  @Override
+  public void onPostInsert(PostInsertEvent event) {
+    if (!(event.getEntity() instanceof Portfolio)) {
+      return;
+    }
+
+    final Long id = (Long) event.getId();
+    this.jdbcTemplate.update(INSERT_SELF, id, id);
+
+    final Long masterId = masterId((Portfolio) event.getEntity());
+    if (masterId != null) {
+      this.jdbcTemplate.update(INSERT_MASTERS, id, masterId);
+    }
+  }
+
+  @Override
+  public void onPostUpdate(PostUpdateEvent event) {
+    if (!(event.getEntity() instanceof Portfolio)) {
+      return;
+    }
+
+    final Long id = (Long) event.getId();
+    final Long masterId = masterId((Portfolio) event.getEntity());
+    final List<Long> current = this.jdbcTemplate.queryForList(SELECT_MASTER, Long.class, id);
+    if (Objects.equals(masterId, current.isEmpty() ? null : current.get(0))) {
+      return;
+    }
+
+    // Hibernate is flushing, so only JDBC can be used here
+    if (masterId != null && this.jdbcTemplate.queryForObject(IN_SUBTREE, Long.class, id, masterId) > 0) {
+      throw new SmartPortfolioRuntimeException("Portfolio '" + id + "' can't be moved below its own subtree ('" + masterId + "').");
+    }
+
+    final int detached = this.jdbcTemplate.update(DETACH_SUBTREE, id, id);
+    final int attached = masterId != null ? this.jdbcTemplate.update(ATTACH_SUBTREE, masterId, id) : 0;
+    LOGGER.debug("Portfolio '{}' moved to master '{}'. {} closure rows deleted, {} inserted.", id, masterId, detached, attached);
+  }
+
+  @Override
+  public void onPostDelete(PostDeleteEvent event) {
+    if (event.getEntity() instanceof Portfolio) {
+      this.jdbcTemplate.update(DELETE, event.getId(), event.getId());
+    }
+  }
+
+  @Override
+  public boolean requiresPostCommitHandling(EntityPersister persister) {
+    return false;
+  }
+
+  /**
+   * @deprecated Still abstract in Hibernate 5.2, which only calls {@link #requiresPostCommitHandling(EntityPersister)}.
+   */
+  @Deprecated
+  @Override
+  public boolean requiresPostCommitHanding(EntityPersister persister) {
+    return this.requiresPostCommitHandling(persister);
+  }
+
+  private static Long masterId(Portfolio portfolio) {
+    return portfolio.getMaster() != null ? portfolio.getMaster().getId() : null;
+  }
+}
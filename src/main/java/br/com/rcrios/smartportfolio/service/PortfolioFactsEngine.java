@@ -0,0 +1,161 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.model.PortfolioFacts;
+import br.com.rcrios.smartportfolio.model.PortfolioSummary;
+import br.com.rcrios.smartportfolio.model.TrendType;
+
+/**
+ * Computes the {@link PortfolioFacts} of every portfolio in a single pass over {@link PortfolioHierarchyCache}:
+ * <ul>
+ * <li>variation of the share value since the previous valuation, and its trend (FLAT when there is no previous
+ * valuation);</li>
+ * <li>whether the portfolio is an asset, i.e. holds mutual funds itself;</li>
+ * <li>its share of the value of its master (null for the root).</li>
+ * </ul>
+ *
+ * Facts are memoized per valuation date (the share value date of the root) and hierarchy generation, so they are only
+ * computed again after a valuation or a write. Attaching them to responses is a map lookup per portfolio. The same
+ * PortfolioFacts instances are attached to every response and must not be changed.
+ */
+@Service
+public class PortfolioFactsEngine {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PortfolioFactsEngine.class);
+
+  /**
+   * Scale of Portfolio numbers.
+   */
+  private static final int SCALE = 6;
+
+  private static final int NOT_VALUED = Integer.MIN_VALUE;
+
+  @Autowired
+  private PortfolioHierarchyCache cache;
+
+  private volatile Memo memo;
+
+  private static final class Memo {
+    private final int valuationDay;
+    private final long generation;
+    private final Map<Long, PortfolioFacts> facts;
+
+    private Memo(int valuationDay, long generation, Map<Long, PortfolioFacts> facts) {
+      this.valuationDay = valuationDay;
+      this.generation = generation;
+      this.facts = facts;
+    }
+  }
+
+  /**
+   * @return Facts of every portfolio, keyed by portfolio id.
+   */
+  public Map<Long, PortfolioFacts> getFacts() {
+    // Read before the portfolios: a change in between is only seen by the next call, never missed
+    final long generation = this.cache.getGeneration();
+    final int valuationDay = valuationDay(this.cache.getRoot());
+
+    final Memo current = this.memo;
+    if (current != null && current.generation == generation && current.valuationDay == valuationDay) {
+      return current.facts;
+    }
+
+    final List<Portfolio> all = this.cache.getAll();
+    final Map<Long, PortfolioFacts> facts = new HashMap<>(all.size() * 2);
+    for (final Portfolio portfolio : all) {
+      facts.put(portfolio.getId(), compute(portfolio));
+    }
+
+    LOGGER.debug("Facts of {} portfolios computed for valuation day {} (generation {})", facts.size(), valuationDay, generation);
+    this.memo = new Memo(valuationDay, generation, Collections.unmodifiableMap(facts));
+    return this.memo.facts;
+  }
+
+  /**
+   * Attaches facts to the portfolio and to its master chain.
+   */
+  public Portfolio attach(Portfolio portfolio) {
+    return attach(this.getFacts(), portfolio);
+  }
+
+  /**
+   * Attaches facts to the portfolios and to their master chains, so a listed portfolio carries the same facts as when
+   * it's retrieved alone.
+   */
+  public List<Portfolio> attach(List<Portfolio> portfolios) {
+    final Map<Long, PortfolioFacts> facts = this.getFacts();
+    for (final Portfolio portfolio : portfolios) {
+      attach(facts, portfolio);
+    }
+    return portfolios;
+  }
+
+  /**
+   * Same as {@link #attach(Portfolio)}, with facts read once by {@link #getFacts()}, e.g. for every portfolio of a
+   * stream.
+   */
+  public static Portfolio attach(Map<Long, PortfolioFacts> facts, Portfolio portfolio) {
+    for (Portfolio current = portfolio; current != null; current = current.getMaster()) {
+      current.setFacts(facts.get(current.getId()));
+    }
+    return portfolio;
+  }
+
+  public List<PortfolioSummary> attachSummaries(List<PortfolioSummary> summaries) {
+    final Map<Long, PortfolioFacts> facts = this.getFacts();
+    for (final PortfolioSummary summary : summaries) {
+      summary.setFacts(facts.get(summary.getId()));
+    }
+    return summaries;
+  }
+
+  private static int valuationDay(Optional<Portfolio> root) {
+    final Date date = root.isPresent() ? root.get().getShareValueDate() : null;
+    return date != null ? DateCodec.toEpochDay(date) : NOT_VALUED;
+  }
+
+  private static PortfolioFacts compute(Portfolio portfolio) {
+    final PortfolioFacts facts = new PortfolioFacts();
+    facts.setAsset(!portfolio.getMutualFund().isEmpty());
+
+    final BigDecimal previous = portfolio.getPreviousShareValue();
+    final BigDecimal shareValue = portfolio.getShareValue();
+    if (previous != null && previous.signum() != 0 && shareValue != null) {
+      facts.setVariation(ratio(shareValue, previous).subtract(BigDecimal.ONE));
+    }
+    facts.setTrendType(trend(facts.getVariation()));
+
+    final Portfolio master = portfolio.getMaster();
+    if (master != null && master.getValue() != null && master.getValue().signum() != 0 && portfolio.getValue() != null) {
+      facts.setShare(ratio(portfolio.getValue(), master.getValue()));
+    }
+
+    return facts;
+  }
+
+  private static BigDecimal ratio(BigDecimal dividend, BigDecimal divisor) {
+    return dividend.divide(divisor, Utils.DEFAULT_MATHCONTEXT).setScale(SCALE, RoundingMode.HALF_EVEN);
+  }
+
+  private static TrendType trend(BigDecimal variation) {
+    if (variation == null || variation.signum() == 0) {
+      return TrendType.FLAT;
+    }
+    return variation.signum() > 0 ? TrendType.UP : TrendType.DOWN;
+  }
+}
@@ -0,0 +1,515 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+
+/**
+ * In memory copy of the portfolio hierarchy, used to serve reads without hitting the database. It keeps three indexes:
+ * id to node, master id to children ids and upper cased name to ids (matching
+ * {@link PortfolioRepository#findFirstByNameIgnoreCase(String)}).
+ *
+ * The whole hierarchy is loaded from the repository on first use. Writes don't update the cache directly: they
+ * {@link #evict(Collection) evict} the nodes they touched, which marks them and their masters as dirty. Dirty nodes are
+ * reloaded, with a single query, by the next read. Since each node stores only its master id, a reloaded master is
+ * immediately seen by all its descendants.
+ *
+ * Nodes embed their mutual funds and the legal entities of those, so committed changes of either also evict the
+ * portfolios holding them (see {@link #evictHolders(Predicate)}).
+ *
+ * Nodes are kept as detached snapshots and every read returns new Portfolio instances, with their own mutual funds and
+ * legal entities, so callers are free to change them.
+ */
+@Service
+public class PortfolioHierarchyCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PortfolioHierarchyCache.class);
+
+  private static final Long NO_MASTER = -1L;
+
+  @Autowired
+  private PortfolioRepository repo;
+
+  private final Map<Long, Portfolio> nodes = new ConcurrentHashMap<>();
+  private final Map<Long, Long> masters = new ConcurrentHashMap<>();
+  private final Map<Long, NavigableSet<Long>> children = new ConcurrentHashMap<>();
+  private final Map<String, NavigableSet<Long>> names = new ConcurrentHashMap<>();
+  private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong generation = new AtomicLong();
+
+  private volatile boolean loaded;
+
+  /**
+   * @see PortfolioRepository#findById(Object)
+   */
+  public Optional<Portfolio> getById(Long id) {
+    this.refresh();
+    return Optional.ofNullable(this.assemble(id));
+  }
+
+  /**
+   * @see PortfolioRepository#findFirstByNameIgnoreCase(String)
+   */
+  public Optional<Portfolio> getByName(String name) {
+    return this.getIdByName(name).map(this::assemble);
+  }
+
+  /**
+   * Same as {@link #getByName(String)}, without assembling the portfolio.
+   */
+  public Optional<Long> getIdByName(String name) {
+    this.refresh();
+
+    final NavigableSet<Long> ids = name != null ? this.names.get(key(name)) : null;
+    if (ids == null || ids.isEmpty()) {
+      return Optional.empty();
+    }
+    return Optional.of(ids.first());
+  }
+
+  /**
+   * @see PortfolioRepository#getRootPortfolio()
+   */
+  public Optional<Portfolio> getRoot() {
+    return this.getChildren(NO_MASTER).stream().findFirst();
+  }
+
+  /**
+   * Same as {@link #getRoot()}, without assembling the portfolio.
+   */
+  public Optional<Long> getRootId() {
+    this.refresh();
+
+    final NavigableSet<Long> ids = this.children.get(NO_MASTER);
+    return ids != null ? ids.stream().findFirst() : Optional.empty();
+  }
+
+  /**
+   * @return All portfolios, ordered by id.
+   */
+  public List<Portfolio> getAll() {
+    this.refresh();
+
+    final List<Long> ids = new ArrayList<>(this.nodes.keySet());
+    Collections.sort(ids);
+
+    final List<Portfolio> result = new ArrayList<>(ids.size());
+    for (final Long id : ids) {
+      final Portfolio portfolio = this.assemble(id);
+      if (portfolio != null) {
+        result.add(portfolio);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return A number that changes whenever portfolios are loaded, reloaded or removed, after pending evictions are
+   *         applied. Results derived from the whole hierarchy can be memoized by it.
+   */
+  public long getGeneration() {
+    this.refresh();
+    return this.generation.get();
+  }
+
+  /**
+   * @param id
+   *          Portfolio id
+   *
+   * @return Stamp of the portfolio and of its master chain, which is part of its representation: ids and versions from
+   *         the root down to the portfolio. Empty if there is no such portfolio.
+   */
+  public Optional<PortfolioStamp> getStamp(Long id) {
+    final List<Long> path = this.getRootPath(id);
+    if (path.isEmpty()) {
+      return Optional.empty();
+    }
+
+    final StringBuilder version = new StringBuilder();
+    Date lastUpdated = null;
+    for (final Long current : path) {
+      final Portfolio node = this.nodes.get(current);
+      if (node == null) {
+        return Optional.empty();
+      }
+      version.append(version.length() > 0 ? "." : "").append(current).append('v').append(node.getVersion());
+      lastUpdated = latest(lastUpdated, node.getLastUpdated());
+    }
+    return Optional.of(new PortfolioStamp(version.toString(), lastUpdated));
+  }
+
+  /**
+   * @return Stamp of the whole hierarchy: the number of portfolios and a hash of their ids and versions, which doesn't
+   *         depend on iteration order.
+   */
+  public PortfolioStamp getStamp() {
+    this.refresh();
+
+    long hash = 0;
+    int count = 0;
+    Date lastUpdated = null;
+    for (final Portfolio node : this.nodes.values()) {
+      hash += mix(node.getId() * 0x9E3779B97F4A7C15L + node.getVersion());
+      count++;
+      lastUpdated = latest(lastUpdated, node.getLastUpdated());
+    }
+    return new PortfolioStamp(count + "x" + Long.toHexString(hash), lastUpdated);
+  }
+
+  /**
+   * @param id
+   *          Master portfolio id
+   *
+   * @return All portfolios directly attached to the master, ordered by id.
+   */
+  public List<Portfolio> getChildren(Long id) {
+    this.refresh();
+
+    final NavigableSet<Long> ids = this.children.get(id);
+    if (ids == null) {
+      return Collections.emptyList();
+    }
+
+    final List<Portfolio> result = new ArrayList<>(ids.size());
+    for (final Long childId : ids) {
+      final Portfolio child = this.assemble(childId);
+      if (child != null) {
+        result.add(child);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param id
+   *          Portfolio id
+   *
+   * @return Ids of the master chain of the portfolio, from the root down to the portfolio itself. Empty if there is no
+   *         such portfolio.
+   */
+  public List<Long> getRootPath(Long id) {
+    this.refresh();
+
+    final LinkedList<Long> path = new LinkedList<>();
+    Long current = id;
+    while (current != null && !NO_MASTER.equals(current) && this.masters.containsKey(current) && path.size() <= this.masters.size()) {
+      path.addFirst(current);
+      current = this.masters.get(current);
+    }
+    return path;
+  }
+
+  /**
+   * Marks portfolios, and all their masters, as dirty. They will be reloaded by the next read. Must be called after the
+   * changes were committed.
+   *
+   * @param ids
+   *          Ids of the portfolios that were created, changed or removed.
+   */
+  public void evict(Collection<Long> ids) {
+    for (final Long id : ids) {
+      Long current = id;
+      while (current != null && !NO_MASTER.equals(current) && this.dirty.add(current)) {
+        current = this.masters.get(current);
+      }
+    }
+    LOGGER.trace("Portfolios {} evicted. Dirty nodes: {}", ids, this.dirty);
+  }
+
+  /**
+   * Evicts the portfolios holding a mutual fund that matches. Must be called after the changes were committed.
+   */
+  public void evictHolders(Predicate<MutualFund> holds) {
+    final List<Long> ids = new ArrayList<>();
+    this.nodes.forEach((id, node) -> {
+      if (node.getMutualFund().stream().anyMatch(holds)) {
+        ids.add(id);
+      }
+    });
+    if (!ids.isEmpty()) {
+      this.evict(ids);
+    }
+  }
+
+  /**
+   * Same as {@link #evict(Collection)}, but if there is an active transaction, eviction is delayed until it commits.
+   * Meant for writes that bypass Hibernate, which are not seen by {@link PortfolioCacheInvalidator}.
+   *
+   * @param ids
+   *          Ids of the portfolios that were created, changed or removed.
+   */
+  public void evictAfterCommit(Collection<Long> ids) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      this.evict(ids);
+      return;
+    }
+
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCommit() {
+        PortfolioHierarchyCache.this.evict(ids);
+      }
+    });
+  }
+
+  /**
+   * @return Copies of all nodes, ordered by id, to be given back to {@link #restore(Collection)}. Their masters are
+   *         Portfolio instances with only the id.
+   */
+  public List<Portfolio> export() {
+    this.refresh();
+
+    final List<Long> ids = new ArrayList<>(this.nodes.keySet());
+    Collections.sort(ids);
+
+    final List<Portfolio> result = new ArrayList<>(ids.size());
+    for (final Long id : ids) {
+      final Portfolio node = this.nodes.get(id);
+      final Long masterId = this.masters.get(id);
+      if (node == null || masterId == null) {
+        continue;
+      }
+
+      final Portfolio copy = copy(node);
+      copy.setFacts(null);
+      if (!NO_MASTER.equals(masterId)) {
+        final Portfolio master = new Portfolio();
+        master.setId(masterId);
+        copy.setMaster(master);
+      }
+      result.add(copy);
+    }
+    return result;
+  }
+
+  /**
+   * Fills the cache with nodes exported by {@link #export()}, instead of loading them from the repository. Pending
+   * evictions, and those made afterwards, are applied by the next read, as usual.
+   *
+   * @return False if the cache was already loaded. It isn't changed.
+   */
+  public synchronized boolean restore(Collection<Portfolio> portfolios) {
+    if (this.loaded) {
+      return false;
+    }
+
+    // Evictions made before the snapshot was read may be newer than it
+    final Set<Long> pending = new HashSet<>(this.dirty);
+    this.clear();
+    portfolios.forEach(this::index);
+    this.evict(pending);
+    this.loaded = true;
+    LOGGER.debug("Portfolio hierarchy cache restored with {} nodes", portfolios.size());
+    return true;
+  }
+
+  /**
+   * Discards the whole cache. It will be loaded again by the next read.
+   */
+  public synchronized void clear() {
+    this.loaded = false;
+    this.generation.incrementAndGet();
+    this.dirty.clear();
+    this.nodes.clear();
+    this.masters.clear();
+    this.children.clear();
+    this.names.clear();
+  }
+
+  private void refresh() {
+    if (this.loaded && this.dirty.isEmpty()) {
+      return;
+    }
+
+    synchronized (this) {
+      if (!this.loaded) {
+        // Only ids evicted before the query are surely seen by it. Those evicted while it runs stay dirty and are evicted
+        // again once their masters are known.
+        final Set<Long> seen = new HashSet<>(this.dirty);
+        final List<Portfolio> all = this.repo.findAll();
+        this.dirty.removeAll(seen);
+        all.forEach(this::index);
+        final Set<Long> pending = new HashSet<>(this.dirty);
+        this.dirty.removeAll(pending);
+        this.evict(pending);
+        this.generation.incrementAndGet();
+        this.loaded = true;
+        LOGGER.debug("Portfolio hierarchy cache loaded with {} nodes", all.size());
+        return;
+      }
+
+      if (this.dirty.isEmpty()) {
+        return;
+      }
+
+      // Ids are removed before the query, so an eviction that happens while reloading will be seen by the next read
+      final Set<Long> ids = new HashSet<>(this.dirty);
+      this.dirty.removeAll(ids);
+
+      final List<Portfolio> reloaded;
+      try {
+        reloaded = this.repo.findAllById(ids);
+      } catch (final RuntimeException e) {
+        this.dirty.addAll(ids);
+        throw e;
+      }
+      reloaded.forEach(p -> ids.remove(p.getId()));
+      ids.forEach(this::unindex);
+      reloaded.forEach(this::index);
+      this.generation.incrementAndGet();
+      LOGGER.debug("{} portfolios reloaded and {} removed from hierarchy cache", reloaded.size(), ids.size());
+    }
+  }
+
+  /**
+   * Adds or replaces a node. The previous snapshot is only replaced after the indexes are updated, so concurrent readers
+   * never miss a node that is being reloaded.
+   */
+  private void index(Portfolio portfolio) {
+    final Long id = portfolio.getId();
+    final Portfolio snapshot = copy(portfolio);
+    final Long masterId = portfolio.getMaster() != null ? portfolio.getMaster().getId() : NO_MASTER;
+
+    final Portfolio previous = this.nodes.get(id);
+    final Long previousMasterId = this.masters.put(id, masterId);
+    this.children.computeIfAbsent(masterId, k -> new ConcurrentSkipListSet<>()).add(id);
+    this.names.computeIfAbsent(key(snapshot.getName()), k -> new ConcurrentSkipListSet<>()).add(id);
+    this.nodes.put(id, snapshot);
+
+    if (previousMasterId != null && !previousMasterId.equals(masterId)) {
+      remove(this.children, previousMasterId, id);
+    }
+    if (previous != null && !key(previous.getName()).equals(key(snapshot.getName()))) {
+      remove(this.names, key(previous.getName()), id);
+    }
+  }
+
+  private void unindex(Long id) {
+    final Portfolio previous = this.nodes.remove(id);
+    final Long masterId = this.masters.remove(id);
+    if (masterId != null) {
+      remove(this.children, masterId, id);
+    }
+    if (previous != null) {
+      remove(this.names, key(previous.getName()), id);
+    }
+  }
+
+  private static <K> void remove(Map<K, NavigableSet<Long>> index, K key, Long id) {
+    final NavigableSet<Long> ids = index.get(key);
+    if (ids != null) {
+      ids.remove(id);
+    }
+  }
+
+  /**
+   * Builds a new Portfolio instance from the snapshot, whose master chain is also assembled from the cache.
+   */
+  private Portfolio assemble(Long id) {
+    final Portfolio snapshot = this.nodes.get(id);
+    if (snapshot == null) {
+      return null;
+    }
+
+    final Portfolio result = copy(snapshot);
+    final Long masterId = this.masters.get(id);
+    if (masterId != null && !NO_MASTER.equals(masterId)) {
+      result.setMaster(this.assemble(masterId));
+    }
+    return result;
+  }
+
+  private static Portfolio copy(Portfolio source) {
+    final Portfolio copy = new Portfolio();
+    copy.setId(source.getId());
+    copy.setName(source.getName());
+    final List<MutualFund> mutualFunds = new ArrayList<>(source.getMutualFund().size());
+    source.getMutualFund().forEach(mf -> mutualFunds.add(copy(mf)));
+    copy.setMutualFund(mutualFunds);
+    copy.setShareValueDate(source.getShareValueDate());
+    copy.setShares(source.getShares());
+    copy.setShareValue(source.getShareValue());
+    copy.setValue(source.getValue());
+    copy.setPreviousShareValue(source.getPreviousShareValue());
+    copy.setPreviousShareValueDate(source.getPreviousShareValueDate());
+    copy.setBenchmarkValue(source.getBenchmarkValue());
+    copy.setLastUpdated(source.getLastUpdated());
+    copy.setVersion(source.getVersion());
+    copy.setFacts(source.getFacts());
+    return copy;
+  }
+
+  private static MutualFund copy(MutualFund source) {
+    final MutualFund copy = new MutualFund();
+    copy.setId(source.getId());
+    copy.setFund(copy(source.getFund()));
+    copy.setManager(copy(source.getManager()));
+    copy.setTrustee(copy(source.getTrustee()));
+    copy.setShares(source.getShares());
+    copy.setValue(source.getValue());
+    copy.setCreationDate(source.getCreationDate());
+    copy.setLastUpdated(source.getLastUpdated());
+    return copy;
+  }
+
+  private static LegalEntity copy(LegalEntity source) {
+    if (source == null) {
+      return null;
+    }
+
+    final LegalEntity copy = new LegalEntity();
+    copy.setId(source.getId());
+    copy.setName(source.getName());
+    copy.setNickname(source.getNickname());
+    copy.setNationalTaxPayerId(source.getNationalTaxPayerId());
+    copy.setVersion(source.getVersion());
+    return copy;
+  }
+
+  private static Date latest(Date a, Date b) {
+    return a == null || (b != null && b.after(a)) ? b : a;
+  }
+
+  /**
+   * Finalizer of MurmurHash3: spreads every bit of the input over the whole result, so summing mixed values is a fair
+   * order independent hash.
+   */
+  private static long mix(long value) {
+    long h = value;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static String key(String name) {
+    return name.toUpperCase(Locale.ROOT);
+  }
+}
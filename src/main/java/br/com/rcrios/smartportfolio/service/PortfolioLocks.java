@@ -0,0 +1,190 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Striped in-process locks for writes to the portfolio hierarchy. A write is keyed by the root path of the portfolio it
+ * changes: the first portfolio of the path below the root (or the root itself). Writes to the same subtree of the root
+ * wait for each other, while writes to different subtrees take different stripes, unless their keys share one, and run
+ * in parallel. The masters they share are written by relative updates (see {@link MasterPropagationService}).
+ *
+ * The lock only queues writers of this process. Writes rejected by the optimistic lock of Portfolio, because something
+ * else changed the portfolio after it was read, are retried up to {@code smartportfolio.portfolios.write-attempts}
+ * times, each attempt reading again in the fresh persistence context of its own transaction, unless the version was
+ * supplied by the client (see {@link #writeVersioned(Collection, Supplier)}): retrying it would fail the same way.
+ * Waits, retries and conflicts are measured by the {@code smartportfolio.portfolios.lock.wait} timer and the
+ * {@code smartportfolio.portfolios.write.*} counters.
+ */
+@Service
+public class PortfolioLocks {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PortfolioLocks.class);
+
+  @Autowired
+  private PortfolioHierarchyCache cache;
+
+  private final ReentrantLock[] stripes;
+  private final Timer wait;
+  private final Counter retries;
+  private final Counter conflicts;
+  private final long timeout;
+  private final int attempts;
+
+  /**
+   * @param stripes
+   *          Number of locks shared by all subtrees.
+   * @param timeout
+   *          Milliseconds a writer waits for its stripe.
+   * @param attempts
+   *          Number of times a write is tried before reporting a conflict.
+   */
+  @Autowired
+  public PortfolioLocks(MeterRegistry registry, @Value("${smartportfolio.portfolios.lock-stripes:64}") int stripes, @Value("${smartportfolio.portfolios.lock-timeout:10000}") long timeout,
+      @Value("${smartportfolio.portfolios.write-attempts:3}") int attempts) {
+    this.stripes = new ReentrantLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new ReentrantLock();
+    }
+    this.timeout = timeout;
+    this.attempts = attempts;
+    this.wait = Timer.builder("smartportfolio.portfolios.lock.wait").description("Time spent by portfolio writers waiting for their stripe").register(registry);
+    this.retries = Counter.builder("smartportfolio.portfolios.write.retries").description("Portfolio writes retried after an optimistic lock failure")
+        .register(registry);
+    this.conflicts = Counter.builder("smartportfolio.portfolios.write.conflicts").description("Portfolio writes that failed with a WriteConflict")
+        .register(registry);
+  }
+
+  /**
+   * Runs a write holding the stripe of a portfolio, retrying it on optimistic lock failures.
+   *
+   * @param portfolioId
+   *          Portfolio changed by the write. May be null, then no stripe is held.
+   * @param write
+   *          The write. Must read everything it changes, since it may run more than once.
+   *
+   * @return Result of the write.
+   */
+  public <T> T write(Long portfolioId, Supplier<T> write) {
+    for (int attempt = 1;; attempt++) {
+      final List<ReentrantLock> locks = this.acquire(Collections.singletonList(portfolioId));
+      try {
+        return write.get();
+      } catch (final OptimisticLockingFailureException e) {
+        if (attempt >= this.attempts) {
+          this.conflicts.increment();
+          throw new WriteConflict(String.format("Portfolio '%s' is being changed concurrently. Write failed after %s attempts.", portfolioId, attempt), e);
+        }
+        LOGGER.debug("Write to portfolio '{}' conflicted with a concurrent one. Retrying ({}/{}).", portfolioId, attempt, this.attempts);
+        this.retries.increment();
+      } finally {
+        unlock(locks);
+      }
+    }
+  }
+
+  /**
+   * Runs a write of a portfolio version supplied by the client, holding the stripes of every given portfolio. It isn't
+   * retried, since it would be rejected again: an optimistic lock failure is reported as a {@link WriteConflict} at once.
+   *
+   * @param portfolioIds
+   *          Portfolios whose subtrees are changed by the write, e.g. the portfolio and its new master when it's moved.
+   *          Null ids are ignored.
+   * @param write
+   *          The write.
+   *
+   * @return Result of the write.
+   */
+  public <T> T writeVersioned(Collection<Long> portfolioIds, Supplier<T> write) {
+    final List<ReentrantLock> locks = this.acquire(portfolioIds);
+    try {
+      return write.get();
+    } catch (final OptimisticLockingFailureException e) {
+      this.conflicts.increment();
+      throw new WriteConflict(String.format("Portfolios %s were changed after the posted version was read.", portfolioIds), e);
+    } finally {
+      unlock(locks);
+    }
+  }
+
+  /**
+   * Locks the stripes of all portfolios in stripe order, so writers sharing some of them never wait for each other in a
+   * cycle.
+   */
+  private List<ReentrantLock> acquire(Collection<Long> portfolioIds) {
+    final long start = System.nanoTime();
+    while (true) {
+      final List<ReentrantLock> locks = this.stripes(portfolioIds);
+      final List<ReentrantLock> held = new ArrayList<>(locks.size());
+      try {
+        for (final ReentrantLock lock : locks) {
+          if (!lock.tryLock(this.timeout, TimeUnit.MILLISECONDS)) {
+            this.conflicts.increment();
+            throw new WriteConflict(String.format("Timed out waiting for concurrent writes to portfolios %s.", portfolioIds));
+          }
+          held.add(lock);
+        }
+      } catch (final InterruptedException e) {
+        unlock(held);
+        Thread.currentThread().interrupt();
+        throw new WriteConflict(String.format("Interrupted while waiting for concurrent writes to portfolios %s.", portfolioIds), e);
+      } catch (final WriteConflict e) {
+        unlock(held);
+        throw e;
+      }
+
+      // The portfolios may have been moved to other subtrees while waiting
+      if (locks.equals(this.stripes(portfolioIds))) {
+        this.wait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return held;
+      }
+      unlock(held);
+    }
+  }
+
+  private static void unlock(List<ReentrantLock> locks) {
+    for (int i = locks.size() - 1; i >= 0; i--) {
+      locks.get(i).unlock();
+    }
+  }
+
+  private List<ReentrantLock> stripes(Collection<Long> portfolioIds) {
+    final SortedSet<Integer> indexes = new TreeSet<>();
+    for (final Long portfolioId : portfolioIds) {
+      if (portfolioId != null) {
+        indexes.add(this.stripe(portfolioId));
+      }
+    }
+
+    final List<ReentrantLock> locks = new ArrayList<>(indexes.size());
+    indexes.forEach(i -> locks.add(this.stripes[i]));
+    return locks;
+  }
+
+  private int stripe(Long portfolioId) {
+    final List<Long> path = portfolioId != null ? this.cache.getRootPath(portfolioId) : null;
+    final Long key = path != null && path.size() > 1 ? path.get(1) : portfolioId;
+
+    // Spreads sequential ids across stripes
+    final int hash = Objects.hashCode(key) * 0x9E3779B9;
+    return Math.floorMod(hash ^ (hash >>> 16), this.stripes.length);
+  }
+}
@@ -0,0 +1,34 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.util.Date;
+
+/**
+ * Version of a portfolio, or of the whole hierarchy, read from {@link PortfolioHierarchyCache} without assembling any
+ * portfolio. Every write increases the version of the portfolios it touches, so the stamp changes whenever one of the
+ * portfolios it covers does.
+ */
+public class PortfolioStamp {
+  private final String version;
+  private final Date lastUpdated;
+
+  public PortfolioStamp(String version, Date lastUpdated) {
+    this.version = version;
+    this.lastUpdated = lastUpdated != null ? new Date(lastUpdated.getTime()) : null;
+  }
+
+  public String getVersion() {
+    return this.version;
+  }
+
+  /**
+   * @return The latest lastUpdated of the covered portfolios. Null if none has it.
+   */
+  public Date getLastUpdated() {
+    return this.lastUpdated != null ? new Date(this.lastUpdated.getTime()) : null;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("PortfolioStamp [version=%s, lastUpdated=%s]", this.version, this.lastUpdated);
+  }
+}
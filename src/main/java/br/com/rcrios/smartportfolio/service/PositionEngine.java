@@ -0,0 +1,553 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.FixedPoint;
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.Deal;
+import br.com.rcrios.smartportfolio.model.Position;
+import br.com.rcrios.smartportfolio.model.PositionSnapshot;
+import br.com.rcrios.smartportfolio.model.TransactionType;
+import br.com.rcrios.smartportfolio.repository.DealRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundRepository;
+import br.com.rcrios.smartportfolio.repository.PositionSnapshotRepository;
+
+/**
+ * Derives the position (shares and cost) of each mutual fund from its deals, replayed in date order:
+ * <ul>
+ * <li>BUY adds its shares and value to the position;</li>
+ * <li>SELL removes its shares, and their average cost;</li>
+ * <li>UPDATE sets the shares held, keeping the cost (e.g. shares taken by taxes or reported by the fund
+ * administrator);</li>
+ * <li>other types don't change positions.</li>
+ * </ul>
+ * A deal with only shares or only value has the other derived from the share value of the fund at the deal date (see
+ * {@link NavStore}). Deals whose share value is unknown are ignored. A committed change of a share value discards the
+ * ledgers of the fund from its date on (see {@link NavStoreSynchronizer}), so those deals are replayed again.
+ *
+ * Each mutual fund has a ledger, opened on first use, with its position after every deal, so current and as-of
+ * positions are a lookup. Committed deals of later dates are appended to open ledgers by {@link PositionSynchronizer}.
+ * Any other change discards the ledger, which is rebuilt by the next read.
+ *
+ * Every {@code smartportfolio.positions.snapshot-interval} deals a {@link PositionSnapshot} is written, so ledgers are
+ * rebuilt from the latest snapshot and only the deals after it are replayed. Snapshots are read and written by a single
+ * thread, in the order changes were committed.
+ *
+ * Ledgers are built and written under a lock of their mutual fund, so rebuilding the ledger of a fund with a long
+ * history doesn't hold back reads and writes of the other ones.
+ */
+@Service
+public class PositionEngine {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PositionEngine.class);
+
+  private static final String INSERT_SNAPSHOT = "INSERT INTO position_snapshot (mutual_fund_id, date, shares, cost) VALUES (?, ?, ?, ?)";
+
+  private static final int MIN_CAPACITY = 64;
+
+  /**
+   * Day of ledgers without a snapshot, before any deal.
+   */
+  private static final int NO_DAY = Integer.MIN_VALUE;
+
+  @Autowired
+  private DealRepository deals;
+
+  @Autowired
+  private PositionSnapshotRepository snapshots;
+
+  @Autowired
+  private MutualFundRepository mutualFunds;
+
+  @Autowired
+  private NavStore navStore;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Value("${smartportfolio.positions.snapshot-interval:100}")
+  private int snapshotInterval;
+
+  private final Map<Long, Ledger> ledgers = new ConcurrentHashMap<>();
+
+  private final Map<Long, Object> locks = new ConcurrentHashMap<>();
+
+  private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+
+  /**
+   * Positions of one mutual fund: a base (its latest snapshot) and the position after each later deal. Only the writer
+   * changes it, under the lock of its mutual fund: a slot is written before the count is increased, so readers never see a
+   * partially written slot.
+   */
+  private static final class Ledger {
+    private final int baseDay;
+    private final long baseShares;
+    private final long baseCost;
+    private final long[] ids;
+    private final int[] days;
+    private final long[] shares;
+    private final long[] costs;
+    private volatile int count;
+
+    /**
+     * Entries included in the latest snapshot and its day. Only used by the writer.
+     */
+    private int snapshotCount;
+    private int snapshotDay;
+
+    private Ledger(int capacity, int baseDay, long baseShares, long baseCost) {
+      this.baseDay = baseDay;
+      this.baseShares = baseShares;
+      this.baseCost = baseCost;
+      this.ids = new long[capacity];
+      this.days = new int[capacity];
+      this.shares = new long[capacity];
+      this.costs = new long[capacity];
+      this.snapshotDay = baseDay;
+    }
+
+    /**
+     * @return This ledger or, if it's full, a copy with twice its capacity and the entry appended.
+     */
+    private Ledger append(long id, int day, long shares, long cost) {
+      final Ledger ledger = this.count < this.days.length ? this : this.grow();
+      final int n = ledger.count;
+      ledger.ids[n] = id;
+      ledger.days[n] = day;
+      ledger.shares[n] = shares;
+      ledger.costs[n] = cost;
+      ledger.count = n + 1;
+      return ledger;
+    }
+
+    private Ledger grow() {
+      final Ledger grown = new Ledger(this.days.length * 2, this.baseDay, this.baseShares, this.baseCost);
+      System.arraycopy(this.ids, 0, grown.ids, 0, this.count);
+      System.arraycopy(this.days, 0, grown.days, 0, this.count);
+      System.arraycopy(this.shares, 0, grown.shares, 0, this.count);
+      System.arraycopy(this.costs, 0, grown.costs, 0, this.count);
+      grown.count = this.count;
+      grown.snapshotCount = this.snapshotCount;
+      grown.snapshotDay = this.snapshotDay;
+      return grown;
+    }
+
+    private int lastDay() {
+      final int n = this.count;
+      return n > 0 ? this.days[n - 1] : this.baseDay;
+    }
+
+    /**
+     * @return True if the last entry is of the given day and has a greater id, so a rebuild, which replays deals by date
+     *         and id, would replay the deal before it.
+     */
+    private boolean isAfter(long id, int day) {
+      final int n = this.count;
+      return n > 0 && this.days[n - 1] == day && id < this.ids[n - 1];
+    }
+
+    /**
+     * @return Index of the last entry on or before the day, or -1 if the position is the base.
+     */
+    private int indexAsOf(int day, int n) {
+      int low = 0;
+      int high = n;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (this.days[mid] <= day) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low - 1;
+    }
+
+    /**
+     * @return True if the deal, of the given day, was already replayed.
+     */
+    private boolean contains(long id, int day) {
+      for (int i = this.count - 1; i >= 0 && this.days[i] >= day; i--) {
+        if (this.ids[i] == id) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Running position while deals are replayed.
+   */
+  private static final class State {
+    private long shares;
+    private long cost;
+
+    private State(long shares, long cost) {
+      this.shares = shares;
+      this.cost = cost;
+    }
+  }
+
+  /**
+   * @param mutualFundId
+   *          MutualFund id
+   *
+   * @return Position after the last deal of the mutual fund.
+   */
+  public Position current(Long mutualFundId) {
+    final Ledger ledger = this.get(mutualFundId);
+    final int n = ledger.count;
+    if (n == 0) {
+      return position(mutualFundId, ledger.baseDay, ledger.baseShares, ledger.baseCost);
+    }
+    return position(mutualFundId, ledger.days[n - 1], ledger.shares[n - 1], ledger.costs[n - 1]);
+  }
+
+  /**
+   * @return Current positions of all mutual funds with deals.
+   */
+  public List<Position> current() {
+    final List<Long> ids = this.deals.findMutualFundIds();
+    final List<Position> result = new ArrayList<>(ids.size());
+    for (final Long id : ids) {
+      result.add(this.current(id));
+    }
+    return result;
+  }
+
+  /**
+   * Position after all deals of the mutual fund up to the given date, inclusive. Dates before the ledger base are
+   * replayed from the latest snapshot before them.
+   */
+  public Position asOf(Long mutualFundId, Date date) {
+    final int day = DateCodec.toEpochDay(date);
+    final Ledger ledger = this.get(mutualFundId);
+    if (day < ledger.baseDay) {
+      final State state = this.replay(mutualFundId, day);
+      return position(mutualFundId, day, state.shares, state.cost);
+    }
+
+    final int index = ledger.indexAsOf(day, ledger.count);
+    if (index < 0) {
+      return position(mutualFundId, day, ledger.baseShares, ledger.baseCost);
+    }
+    return position(mutualFundId, day, ledger.shares[index], ledger.costs[index]);
+  }
+
+  /**
+   * Writes a snapshot of the mutual fund, if it has deals after the latest one, and waits for it (and any pending
+   * snapshot) to be written.
+   */
+  public void checkpoint(Long mutualFundId) {
+    synchronized (this.lock(mutualFundId)) {
+      final Ledger ledger = this.ledgers.get(mutualFundId);
+      if (ledger != null) {
+        this.checkpoint(mutualFundId, ledger);
+      }
+    }
+    this.await(() -> null);
+  }
+
+  /**
+   * Discards the ledger of a mutual fund, keeping its snapshots. It will be rebuilt from the latest snapshot by the next
+   * read.
+   */
+  public void evict(Long mutualFundId) {
+    synchronized (this.lock(mutualFundId)) {
+      this.ledgers.remove(mutualFundId);
+    }
+    LOGGER.trace("Ledger of mutual fund {} evicted", mutualFundId);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    this.snapshotExecutor.shutdown();
+  }
+
+  /**
+   * Appends a committed deal to the ledger of its mutual fund. Deals before the last one of the ledger, in date and id
+   * order, or included in its latest snapshot, discard the ledger instead.
+   */
+  void inserted(Deal deal) {
+    final Long mutualFundId = deal.getMutualFund().getId();
+    synchronized (this.lock(mutualFundId)) {
+      this.append(mutualFundId, deal);
+    }
+  }
+
+  private void append(Long mutualFundId, Deal deal) {
+    final int day = DateCodec.toEpochDay(deal.getDate());
+
+    final Ledger ledger = this.ledgers.get(mutualFundId);
+    if (ledger == null) {
+      // Snapshots of the same day or later don't include the deal
+      this.discardSnapshots(mutualFundId, day);
+      return;
+    }
+    if (ledger.contains(deal.getId(), day)) {
+      return;
+    }
+    if (day < ledger.lastDay() || day <= ledger.snapshotDay || ledger.isAfter(deal.getId(), day)) {
+      this.changed(mutualFundId, deal.getDate());
+      return;
+    }
+
+    final int n = ledger.count;
+    final State state = n > 0 ? new State(ledger.shares[n - 1], ledger.costs[n - 1]) : new State(ledger.baseShares, ledger.baseCost);
+    this.apply(state, deal.getId(), day, deal.getType(), deal.getShares(), deal.getValue(), deal.getMutualFund().getFund().getId());
+
+    final Ledger appended = ledger.append(deal.getId(), day, state.shares, state.cost);
+    if (appended != ledger) {
+      this.ledgers.put(mutualFundId, appended);
+    }
+    if (appended.count - appended.snapshotCount >= this.snapshotInterval) {
+      this.checkpoint(mutualFundId, appended);
+    }
+  }
+
+  /**
+   * Discards the ledger of a mutual fund and its snapshots from a date on, because a deal of that date was changed. The
+   * ledger will be rebuilt by the next read.
+   */
+  void changed(Long mutualFundId, Date date) {
+    synchronized (this.lock(mutualFundId)) {
+      this.ledgers.remove(mutualFundId);
+      this.discardSnapshots(mutualFundId, DateCodec.toEpochDay(date));
+    }
+    LOGGER.trace("Ledger of mutual fund {} discarded from {}", mutualFundId, Utils.toString(date));
+  }
+
+  /**
+   * Discards the ledgers of every mutual fund of a fund and their snapshots from a date on, because the share value of
+   * that date was changed: deals without shares or value derive them from it.
+   *
+   * @param fundId
+   *          LegalEntity id of the fund
+   */
+  void navChanged(Long fundId, Date date) {
+    for (final Long mutualFundId : this.mutualFunds.findIdsByFundId(fundId)) {
+      this.changed(mutualFundId, date);
+    }
+  }
+
+  private void discardSnapshots(Long mutualFundId, int day) {
+    this.write(() -> this.snapshots.deleteFrom(mutualFundId, DateCodec.fromEpochDay(day)));
+  }
+
+  /**
+   * Snapshots the position before the last day of the ledger, since more deals of that day may still come.
+   */
+  private void checkpoint(Long mutualFundId, Ledger ledger) {
+    final int n = ledger.count;
+    int last = n - 1;
+    while (last >= 0 && ledger.days[last] == ledger.days[n - 1]) {
+      last--;
+    }
+    if (last < ledger.snapshotCount) {
+      return;
+    }
+
+    final java.sql.Date date = new java.sql.Date(DateCodec.fromEpochDay(ledger.days[last]).getTime());
+    final BigDecimal shares = FixedPoint.toBigDecimal(ledger.shares[last]);
+    final BigDecimal cost = FixedPoint.toBigDecimal(ledger.costs[last]);
+    ledger.snapshotCount = last + 1;
+    ledger.snapshotDay = ledger.days[last];
+
+    this.write(() -> {
+      this.jdbcTemplate.update(INSERT_SNAPSHOT, mutualFundId, date, shares, cost);
+      LOGGER.debug("Position of mutual fund {} at {} saved: shares={}, cost={}", mutualFundId, Utils.toString(date), shares, cost);
+    });
+  }
+
+  /**
+   * Queues a change of the snapshot table. Failures are only logged: a missing snapshot just makes rebuilds replay more
+   * deals.
+   */
+  private void write(Runnable task) {
+    this.snapshotExecutor.execute(() -> {
+      try {
+        task.run();
+      } catch (final RuntimeException e) {
+        LOGGER.warn("Unable to update position snapshots.", e);
+      }
+    });
+  }
+
+  private Ledger get(Long mutualFundId) {
+    final Ledger ledger = this.ledgers.get(mutualFundId);
+    return ledger != null ? ledger : this.open(mutualFundId);
+  }
+
+  private Object lock(Long mutualFundId) {
+    return this.locks.computeIfAbsent(mutualFundId, id -> new Object());
+  }
+
+  /**
+   * Opening holds the same lock as {@link #inserted(Deal)}, so a deal committed while a ledger is being built is
+   * appended to it afterwards, unless the replay already included it. Only the lock of the mutual fund is held.
+   */
+  private Ledger open(Long mutualFundId) {
+    synchronized (this.lock(mutualFundId)) {
+      return this.build(mutualFundId);
+    }
+  }
+
+  private Ledger build(Long mutualFundId) {
+    final Ledger open = this.ledgers.get(mutualFundId);
+    if (open != null) {
+      return open;
+    }
+
+    final List<Object[]> rows = this.await(() -> this.snapshots.findLatest(mutualFundId));
+    final Object[] base = rows.isEmpty() ? null : rows.get(0);
+    final Ledger[] ledger = new Ledger[1];
+    if (base == null) {
+      ledger[0] = new Ledger(MIN_CAPACITY, NO_DAY, 0, 0);
+    } else {
+      ledger[0] = new Ledger(MIN_CAPACITY, DateCodec.toEpochDay((Date) base[0]), FixedPoint.valueOf((BigDecimal) base[1]),
+          FixedPoint.valueOf((BigDecimal) base[2]));
+    }
+
+    final State state = new State(ledger[0].baseShares, ledger[0].baseCost);
+    this.replay(mutualFundId, base, Integer.MAX_VALUE, (id, day) -> ledger[0] = ledger[0].append(id, day, state.shares, state.cost), state);
+
+    this.ledgers.put(mutualFundId, ledger[0]);
+    LOGGER.debug("Ledger of mutual fund {} built with {} deals", mutualFundId, ledger[0].count);
+    return ledger[0];
+  }
+
+  /**
+   * @return Position at a day before the ledger base, replayed from the latest snapshot on or before it.
+   */
+  private State replay(Long mutualFundId, int day) {
+    final Date date = DateCodec.fromEpochDay(day);
+    final List<Object[]> rows = this.await(() -> this.snapshots.findLatestOnOrBefore(mutualFundId, date));
+    final Object[] base = rows.isEmpty() ? null : rows.get(0);
+
+    final State state = base == null ? new State(0, 0) : new State(FixedPoint.valueOf((BigDecimal) base[1]), FixedPoint.valueOf((BigDecimal) base[2]));
+    this.replay(mutualFundId, base, day, (id, d) -> {
+      // Only the final state matters
+    }, state);
+    return state;
+  }
+
+  /**
+   * Replays the deals after a snapshot, up to a day, inclusive.
+   */
+  private void replay(Long mutualFundId, Object[] base, int lastDay, DealConsumer consumer, State state) {
+    final TransactionTemplate tx = new TransactionTemplate(this.transactionManager);
+    tx.setReadOnly(true);
+    tx.execute(status -> {
+      try (Stream<Object[]> rows = base == null ? this.deals.streamPositionDeals(mutualFundId)
+          : this.deals.streamPositionDealsAfter(mutualFundId, (Date) base[0])) {
+        final Iterator<Object[]> iterator = rows.iterator();
+        while (iterator.hasNext()) {
+          final Object[] row = iterator.next();
+          final long id = (Long) row[0];
+          final int day = DateCodec.toEpochDay((Date) row[1]);
+          if (day > lastDay) {
+            break;
+          }
+          this.apply(state, id, day, (TransactionType) row[2], (BigDecimal) row[3], (BigDecimal) row[4], (Long) row[5]);
+          consumer.accept(id, day);
+        }
+      }
+      return null;
+    });
+  }
+
+  @FunctionalInterface
+  private interface DealConsumer {
+    void accept(long id, int day);
+  }
+
+  private void apply(State state, long id, int day, TransactionType type, BigDecimal dealShares, BigDecimal dealValue, Long fundId) {
+    if (type != TransactionType.BUY && type != TransactionType.SELL && type != TransactionType.UPDATE) {
+      return;
+    }
+
+    long shares;
+    long value;
+    if (dealShares != null && dealValue != null) {
+      shares = FixedPoint.valueOf(dealShares);
+      value = FixedPoint.valueOf(dealValue);
+    } else {
+      final long shareValue = this.navStore.get(fundId).valueAsOf(day);
+      if (shareValue == NavSeries.NO_VALUE || (dealShares == null && shareValue == 0)) {
+        LOGGER.warn("Deal {} ignored: it has no {} and its fund has no share value up to {}.", id, dealShares == null ? "shares" : "value",
+            DateCodec.format(day));
+        return;
+      }
+      shares = dealShares != null ? FixedPoint.valueOf(dealShares) : FixedPoint.divide(FixedPoint.valueOf(dealValue), shareValue);
+      value = dealValue != null ? FixedPoint.valueOf(dealValue) : FixedPoint.multiply(shares, shareValue);
+    }
+
+    switch (type) {
+    case BUY:
+      state.shares = FixedPoint.add(state.shares, shares);
+      state.cost = FixedPoint.add(state.cost, value);
+      break;
+    case SELL:
+      if (shares > state.shares) {
+        LOGGER.warn("Deal {} sells {} shares, but only {} are held on {}. The position is closed.", id, FixedPoint.toBigDecimal(shares),
+            FixedPoint.toBigDecimal(state.shares), DateCodec.format(day));
+      }
+      if (shares >= state.shares) {
+        state.shares = 0;
+        state.cost = 0;
+      } else {
+        // Sold shares take their average cost with them
+        final BigDecimal soldCost = FixedPoint.toBigDecimal(state.cost).multiply(FixedPoint.toBigDecimal(shares))
+            .divide(FixedPoint.toBigDecimal(state.shares), Utils.DEFAULT_MATHCONTEXT);
+        state.cost = FixedPoint.subtract(state.cost, FixedPoint.valueOf(soldCost));
+        state.shares = FixedPoint.subtract(state.shares, shares);
+      }
+      break;
+    default:
+      state.shares = shares;
+      break;
+    }
+  }
+
+  private <T> T await(Callable<T> task) {
+    try {
+      return this.snapshotExecutor.submit(task).get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SmartPortfolioRuntimeException("Interrupted while waiting for position snapshots.", e);
+    } catch (final ExecutionException e) {
+      throw new SmartPortfolioRuntimeException("Unable to read position snapshots.", e.getCause());
+    }
+  }
+
+  private static Position position(Long mutualFundId, int day, long shares, long cost) {
+    return new Position(mutualFundId, day != NO_DAY ? DateCodec.format(day) : null, FixedPoint.toBigDecimal(shares), FixedPoint.toBigDecimal(cost));
+  }
+}
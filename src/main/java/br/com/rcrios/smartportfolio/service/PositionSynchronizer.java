@@ -0,0 +1,54 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import br.com.rcrios.smartportfolio.model.Deal;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+
+/**
+ * Applies committed inserts, updates and deletes of Deal to the ledgers of {@link PositionEngine}.
+ */
+@Component
+public class PositionSynchronizer extends EntityCommitListener<Deal> {
+
+  private static final long serialVersionUID = 1L;
+
+  @Autowired
+  private transient PositionEngine engine;
+
+  public PositionSynchronizer() {
+    super(Deal.class);
+  }
+
+  @Override
+  protected void inserted(Deal entity, Serializable id) {
+    if (entity.getMutualFund() != null && entity.getDate() != null) {
+      this.engine.inserted(entity);
+    }
+  }
+
+  @Override
+  protected void updated(Deal entity, Serializable id, PostUpdateEvent event) {
+    final MutualFund previousFund = (MutualFund) previousValue(event, "mutualFund");
+    final Date previousDate = (Date) previousValue(event, "date");
+
+    if (previousFund != null && previousDate != null) {
+      this.engine.changed(previousFund.getId(), previousDate);
+    }
+    if (entity.getMutualFund() != null && entity.getDate() != null) {
+      this.engine.changed(entity.getMutualFund().getId(), entity.getDate());
+    }
+  }
+
+  @Override
+  protected void deleted(Deal entity, Serializable id) {
+    if (entity.getMutualFund() != null && entity.getDate() != null) {
+      this.engine.changed(entity.getMutualFund().getId(), entity.getDate());
+    }
+  }
+}
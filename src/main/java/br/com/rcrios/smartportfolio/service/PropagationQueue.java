@@ -0,0 +1,254 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import br.com.rcrios.smartportfolio.model.Portfolio;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Asynchronous stage in front of {@link MasterPropagationService}, for writes that return as soon as the portfolio
+ * itself is committed. Values are held for {@code smartportfolio.propagation.window} milliseconds after the first one
+ * arrives, summed per master and then flushed by {@link MasterPropagationService#propagateAll(Map, Date)}. That flush
+ * also writes each ancestor shared by several masters only once.
+ *
+ * Masters don't include pending values until they are flushed. If a flush fails, its masters are propagated one at a
+ * time, so a value that can't be propagated (e.g. through a master with share value 0) doesn't hold back the others.
+ * Values that still fail are retried by the next flush, up to {@code smartportfolio.propagation.flush-attempts} times,
+ * and then dropped with an error. Pending values are flushed when the application stops, after the running flush ends,
+ * but a crash loses them, so synchronous propagation stays the default.
+ *
+ * Metrics: smartportfolio.propagation.queue.depth (values waiting), smartportfolio.propagation.queue.lag (age of the
+ * oldest one), smartportfolio.propagation.queue.coalesced (values summed into a pending one of the same master),
+ * smartportfolio.propagation.queue.dropped (values given up after failing every attempt) and
+ * smartportfolio.propagation.queue.flush (time spent by flushes).
+ */
+@Service
+public class PropagationQueue {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PropagationQueue.class);
+
+  @Autowired
+  private MasterPropagationService propagation;
+
+  private static final long SHUTDOWN_TIMEOUT = 30;
+
+  private final long window;
+  private final int attempts;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final Counter coalesced;
+  private final Counter dropped;
+  private final Timer flushes;
+
+  // Guarded by this
+  private final Map<Long, Pending> pending = new HashMap<>();
+  private Date lastUpdated;
+  private int depth;
+  private long oldest;
+
+  /**
+   * @param window
+   *          Milliseconds values wait for others aimed at the same masters.
+   * @param attempts
+   *          Number of flushes a value is tried by before being dropped.
+   */
+  @Autowired
+  public PropagationQueue(MeterRegistry registry, @Value("${smartportfolio.propagation.window:200}") long window,
+      @Value("${smartportfolio.propagation.flush-attempts:5}") int attempts) {
+    this.window = window;
+    this.attempts = attempts;
+    this.coalesced = Counter.builder("smartportfolio.propagation.queue.coalesced")
+        .description("Propagated values summed into a pending value of the same master").register(registry);
+    this.dropped = Counter.builder("smartportfolio.propagation.queue.dropped").description("Propagated values dropped after failing every flush attempt")
+        .register(registry);
+    this.flushes = Timer.builder("smartportfolio.propagation.queue.flush").description("Time spent flushing queued propagations").register(registry);
+    Gauge.builder("smartportfolio.propagation.queue.depth", this, PropagationQueue::getDepth).description("Propagated values waiting to be flushed")
+        .register(registry);
+    TimeGauge.builder("smartportfolio.propagation.queue.lag", this, TimeUnit.MILLISECONDS, PropagationQueue::getLag)
+        .description("Age of the oldest propagated value waiting to be flushed").register(registry);
+  }
+
+  /**
+   * Queues a value added to a portfolio, to be propagated to all its masters by the next flush. Inside a transaction,
+   * it's only queued once the transaction commits.
+   *
+   * @see MasterPropagationService#propagate(Portfolio, BigDecimal)
+   */
+  public void submit(Portfolio portfolio, BigDecimal value) {
+    final Portfolio master = portfolio.getMaster();
+    if (master == null || master.getId() == null) {
+      LOGGER.trace("Portfolio '{}' doesn't have a master. Nothing to propagate.", portfolio.getName());
+      return;
+    }
+
+    final Date updated = portfolio.getLastUpdated() != null ? portfolio.getLastUpdated() : new Date();
+    final Map<Long, Pending> values = Collections.singletonMap(master.getId(), new Pending(value, 1, 0));
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      this.enqueue(values, updated, System.nanoTime());
+      return;
+    }
+
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCommit() {
+        PropagationQueue.this.enqueue(values, updated, System.nanoTime());
+      }
+    });
+  }
+
+  /**
+   * Propagates every pending value now.
+   *
+   * @return Number of masters updated.
+   */
+  public int flush() {
+    final Map<Long, Pending> values;
+    final Date updated;
+    final int count;
+    final long since;
+    synchronized (this) {
+      if (this.pending.isEmpty()) {
+        return 0;
+      }
+      values = new TreeMap<>(this.pending);
+      updated = this.lastUpdated;
+      count = this.depth;
+      since = this.oldest;
+
+      this.pending.clear();
+      this.lastUpdated = null;
+      this.depth = 0;
+      this.oldest = 0;
+    }
+
+    final Map<Long, BigDecimal> sums = new TreeMap<>();
+    values.forEach((masterId, value) -> sums.put(masterId, value.value));
+    try {
+      final int updatedMasters = this.flushes.recordCallable(() -> this.propagation.propagateAll(sums, updated));
+      LOGGER.debug("{} queued propagations to {} masters flushed. {} masters updated.", count, values.size(), updatedMasters);
+      return updatedMasters;
+    } catch (final Exception e) {
+      LOGGER.warn("Flush of {} queued propagations failed. Propagating them one master at a time.", count, e);
+    }
+
+    int updatedMasters = 0;
+    for (final Map.Entry<Long, Pending> entry : values.entrySet()) {
+      try {
+        updatedMasters += this.flushes.recordCallable(() -> this.propagation.propagateAll(Collections.singletonMap(entry.getKey(), entry.getValue().value), updated));
+      } catch (final Exception e) {
+        this.failed(entry.getKey(), entry.getValue(), updated, since, e);
+      }
+    }
+    return updatedMasters;
+  }
+
+  /**
+   * @return Number of values waiting to be flushed.
+   */
+  public synchronized int getDepth() {
+    return this.depth;
+  }
+
+  /**
+   * @return Age, in milliseconds, of the oldest value waiting to be flushed. 0 if there is none.
+   */
+  public synchronized double getLag() {
+    return this.oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.oldest);
+  }
+
+  /**
+   * Waits for the running flush and flushes what is left. Values that keep failing are retried here until they are
+   * dropped, since no later flush would pick them up.
+   */
+  @PreDestroy
+  public void shutdown() {
+    this.executor.shutdown();
+    try {
+      if (!this.executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+        LOGGER.warn("Running flush didn't finish in {} seconds. Flushing pending propagations anyway.", SHUTDOWN_TIMEOUT);
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    while (this.getDepth() > 0) {
+      this.flush();
+    }
+  }
+
+  private void failed(Long masterId, Pending value, Date updated, long since, Exception e) {
+    final int failures = value.failures + 1;
+    if (failures >= this.attempts) {
+      LOGGER.error("Dropping {} queued propagations of {} to master '{}' after {} failed flushes. Its masters won't include them.", value.count,
+          value.value, masterId, failures, e);
+      this.dropped.increment(value.count);
+      return;
+    }
+
+    LOGGER.warn("Propagation of {} to master '{}' failed ({}/{}). It will be retried.", value.value, masterId, failures, this.attempts, e);
+    this.enqueue(Collections.singletonMap(masterId, new Pending(value.value, value.count, failures)), updated, since);
+  }
+
+  private void enqueue(Map<Long, Pending> values, Date updated, long since) {
+    synchronized (this) {
+      for (final Map.Entry<Long, Pending> entry : values.entrySet()) {
+        if (this.pending.containsKey(entry.getKey())) {
+          this.coalesced.increment();
+        }
+        this.pending.merge(entry.getKey(), entry.getValue(), Pending::add);
+        this.depth += entry.getValue().count;
+      }
+      this.lastUpdated = this.lastUpdated == null || updated.after(this.lastUpdated) ? updated : this.lastUpdated;
+
+      if (this.oldest != 0) {
+        this.oldest = since - this.oldest < 0 ? since : this.oldest;
+        return;
+      }
+      this.oldest = since;
+    }
+
+    if (!this.executor.isShutdown()) {
+      this.executor.schedule(this::flush, this.window, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Sum of the values waiting for a master.
+   */
+  private static final class Pending {
+    private final BigDecimal value;
+    private final int count;
+    private final int failures;
+
+    private Pending(BigDecimal value, int count, int failures) {
+      this.value = value;
+      this.count = count;
+      this.failures = failures;
+    }
+
+    private Pending add(Pending other) {
+      return new Pending(this.value.add(other.value), this.count + other.count, Math.max(this.failures, other.failures));
+    }
+  }
+}
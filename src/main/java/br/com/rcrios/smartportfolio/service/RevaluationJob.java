@@ -0,0 +1,65 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.util.Date;
+import java.util.Optional;
+
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.quartz.QuartzJobBean;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.Utils;
+
+/**
+ * Quartz job that runs {@link RevaluationService#revalue(Date)}. Scheduled nightly by
+ * {@link br.com.rcrios.smartportfolio.SchedulingConfiguration}.
+ *
+ * A scheduled run first resumes the run of an earlier date left unfinished by a failure, so that date isn't skipped.
+ * Today isn't valued if it fails again.
+ */
+@DisallowConcurrentExecution
+public class RevaluationJob extends QuartzJobBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RevaluationJob.class);
+
+  public static final JobKey KEY = JobKey.jobKey("revaluation");
+
+  /**
+   * Optional job data with the valuation date, formatted as {@link Utils#DEFAULT_DATE_PATTERN}. Today if absent.
+   */
+  public static final String DATE = "date";
+
+  @Autowired
+  private RevaluationService service;
+
+  @Override
+  protected void executeInternal(JobExecutionContext context) throws JobExecutionException {
+    final String date = context.getMergedJobDataMap().getString(DATE);
+    final Date asOf = date != null ? Utils.toDate(date) : new Date();
+    if (asOf == null) {
+      throw new JobExecutionException("Invalid valuation date '" + date + "'.");
+    }
+
+    if (date == null) {
+      final Optional<Date> interrupted = this.service.interrupted();
+      if (interrupted.isPresent() && DateCodec.toEpochDay(interrupted.get()) != DateCodec.toEpochDay(asOf)) {
+        LOGGER.info("Valuation run at {} was interrupted. Resuming it before {}.", Utils.toString(interrupted.get()), Utils.toString(asOf));
+        this.revalue(interrupted.get());
+      }
+    }
+    this.revalue(asOf);
+  }
+
+  private void revalue(Date asOf) throws JobExecutionException {
+    try {
+      this.service.revalue(asOf);
+    } catch (final RuntimeException e) {
+      LOGGER.error("Valuation run at {} failed. It will be resumed by the next scheduled run.", Utils.toString(asOf), e);
+      throw new JobExecutionException(e);
+    }
+  }
+}
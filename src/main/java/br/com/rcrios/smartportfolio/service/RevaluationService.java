@@ -0,0 +1,148 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.ValuationCheckpoint;
+import br.com.rcrios.smartportfolio.model.ValuationRun;
+import br.com.rcrios.smartportfolio.repository.ValuationCheckpointRepository;
+import br.com.rcrios.smartportfolio.repository.ValuationRunRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Revalues the whole portfolio tree at a date (see {@link RevaluationJob}), split by root subtree across a bounded pool
+ * of {@code smartportfolio.revaluation.workers} threads. Share values are the ones of {@link NavStore}, kept in sync
+ * with MutualFundShare, so the day's shares are used as soon as they are committed.
+ *
+ * Every committed partition is recorded as a {@link ValuationCheckpoint} of the {@link ValuationRun} of the date. A run
+ * interrupted by a crash or a failure is resumed from its checkpoints by the next revaluation of the same date.
+ *
+ * Runs are measured by the {@code smartportfolio.revaluation} timer, the {@code smartportfolio.revaluation.portfolios}
+ * and {@code smartportfolio.revaluation.partitions} counters and the {@code smartportfolio.revaluation.throughput}
+ * gauge (portfolios per second of the latest run), all exposed by the actuator metrics endpoint.
+ */
+@Service
+public class RevaluationService {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RevaluationService.class);
+
+  private static final String INSERT_CHECKPOINT = "INSERT INTO valuation_checkpoint (run_id, portfolio_id, portfolios, mutual_funds, unquoted)"
+      + " VALUES (?, ?, ?, ?, ?)";
+
+  @Autowired
+  private ValuationEngine engine;
+
+  @Autowired
+  private ValuationRunRepository runs;
+
+  @Autowired
+  private ValuationCheckpointRepository checkpoints;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  private final ExecutorService workers;
+  private final Timer timer;
+  private final Counter portfolios;
+  private final Counter partitions;
+
+  /**
+   * Portfolios per second of the latest run, as raw double bits.
+   */
+  private final AtomicLong throughput = new AtomicLong();
+
+  /**
+   * @param workers
+   *          Number of partitions valued at the same time.
+   */
+  @Autowired
+  public RevaluationService(MeterRegistry registry, @Value("${smartportfolio.revaluation.workers:2}") int workers) {
+    this.workers = Executors.newFixedThreadPool(workers);
+    this.timer = Timer.builder("smartportfolio.revaluation").description("Time spent by revaluation runs").register(registry);
+    this.portfolios = Counter.builder("smartportfolio.revaluation.portfolios").description("Portfolios valued by revaluation runs").register(registry);
+    this.partitions = Counter.builder("smartportfolio.revaluation.partitions").description("Partitions committed by revaluation runs").register(registry);
+    Gauge.builder("smartportfolio.revaluation.throughput", this.throughput, t -> Double.longBitsToDouble(t.get()))
+        .description("Portfolios valued per second by the latest revaluation run").register(registry);
+  }
+
+  /**
+   * Values every portfolio at the given date. An unfinished run of the date is resumed. A finished one starts over.
+   *
+   * @param asOf
+   *          Valuation date. Time of the day is ignored.
+   *
+   * @return Counters of the partitions valued by this call. Partitions valued before a resume aren't included.
+   */
+  public synchronized ValuationSummary revalue(Date asOf) {
+    final Date day = DateCodec.fromEpochDay(DateCodec.toEpochDay(asOf));
+    final ValuationRun run = this.start(day);
+
+    final Set<Long> completed = new HashSet<>();
+    for (final ValuationCheckpoint checkpoint : this.checkpoints.findByRunId(run.getId())) {
+      completed.add(checkpoint.getPortfolioId());
+    }
+    if (!completed.isEmpty()) {
+      LOGGER.info("Resuming valuation run at {}. {} partitions were already valued.", Utils.toString(day), completed.size());
+    }
+
+    final ValuationSummary summary = this.timer.record(() -> this.engine.value(day, this.workers, completed, (partition, counters) -> {
+      this.jdbcTemplate.update(INSERT_CHECKPOINT, run.getId(), partition, counters.getPortfolios(), counters.getMutualFunds(), counters.getUnquoted());
+      this.partitions.increment();
+    }));
+
+    run.setFinished(new Date());
+    this.runs.save(run);
+
+    this.portfolios.increment(summary.getPortfolios());
+    this.throughput.set(Double.doubleToLongBits(summary.getPortfolios() * 1000.0 / Math.max(1, summary.getElapsed())));
+    LOGGER.info("Valuation run at {} finished: {}", Utils.toString(day), summary);
+    return summary;
+  }
+
+  /**
+   * @return Date of the latest run, if it isn't finished.
+   */
+  public Optional<Date> interrupted() {
+    return this.runs.findFirstByOrderByAsOfDesc().filter(r -> r.getFinished() == null).map(ValuationRun::getAsOf);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    this.workers.shutdown();
+  }
+
+  private ValuationRun start(Date day) {
+    final Optional<ValuationRun> existing = this.runs.findByAsOf(day);
+    if (existing.isPresent() && existing.get().getFinished() == null) {
+      return existing.get();
+    }
+
+    final ValuationRun run = existing.orElseGet(ValuationRun::new);
+    if (run.getId() != null) {
+      this.checkpoints.deleteByRun(run.getId());
+    }
+    run.setAsOf(day);
+    run.setStarted(new Date());
+    run.setFinished(null);
+    return this.runs.save(run);
+  }
+}
@@ -0,0 +1,514 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import br.com.rcrios.smartportfolio.DateCodec;
+import br.com.rcrios.smartportfolio.FixedPoint;
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+import br.com.rcrios.smartportfolio.repository.SecondLevelCache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Values the whole portfolio tree at a given date. Every mutual fund is valued by its shares times the latest share
+ * value of its fund on or before the date (read from {@link NavStore}), and portfolio values are rolled up from the
+ * leaves to the root: a portfolio is worth its mutual funds plus its child portfolios. Share value is the new value
+ * divided by the portfolio shares.
+ *
+ * The tree is read with two queries and valued in memory, with {@link FixedPoint} arithmetic, each subtree as a task of
+ * a {@link ForkJoinPool}. All new values are then written with JDBC batches in a single transaction, so the tree is
+ * never seen partially valued.
+ *
+ * Portfolios without mutual funds or children keep their values, since they are maintained by clients. Mutual funds
+ * without a share value up to the date also keep their values.
+ *
+ * Long runs may be split by root subtree (see {@link #value(Date, ExecutorService, Set, BiConsumer)}): each child of a
+ * root portfolio is a partition, valued and committed on its own, and the roots are rolled up last from the committed
+ * values of their children.
+ *
+ * Portfolios are only written if their version is still the one read, since writers holding {@link PortfolioLocks}
+ * (e.g. {@link MasterPropagationService}) may change their shares meanwhile. If any of them changed, the transaction is
+ * rolled back and the run, or the partition, is read and valued again, up to
+ * {@code smartportfolio.valuation.write-attempts} times.
+ */
+@Service
+public class ValuationEngine {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ValuationEngine.class);
+
+  /**
+   * The previous share value is only replaced when the valuation date moves forward, so valuing the same date again
+   * keeps it.
+   */
+  private static final String UPDATE_PORTFOLIO = "UPDATE portfolio SET"
+      + " previous_share_value = CASE WHEN share_value_date < ? THEN share_value ELSE previous_share_value END,"
+      + " previous_share_value_date = CASE WHEN share_value_date < ? THEN share_value_date ELSE previous_share_value_date END,"
+      + " value = ?, share_value = ?, share_value_date = ?, last_updated = ?, version = version + 1 WHERE id = ? AND version = ?";
+  private static final String UPDATE_MUTUAL_FUND = "UPDATE mutual_fund SET value = ?, last_updated = ? WHERE id = ?";
+
+  @Autowired
+  private PortfolioRepository repo;
+
+  @Autowired
+  private NavStore navStore;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Autowired
+  private PortfolioHierarchyCache cache;
+
+  @Autowired
+  private SecondLevelCache secondLevelCache;
+
+  private final ForkJoinPool pool;
+  private final Timer timer;
+  private final int attempts;
+
+  /**
+   * @param parallelism
+   *          Number of threads used to value the tree. Zero means the number of available processors.
+   * @param attempts
+   *          Number of times a run, or a partition, is valued before reporting a conflict.
+   */
+  @Autowired
+  public ValuationEngine(MeterRegistry registry, @Value("${smartportfolio.valuation.parallelism:0}") int parallelism,
+      @Value("${smartportfolio.valuation.write-attempts:3}") int attempts) {
+    this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    this.attempts = attempts;
+    this.timer = Timer.builder("smartportfolio.valuation").description("Time spent valuing the whole portfolio tree").register(registry);
+  }
+
+  /**
+   * Values every portfolio and mutual fund at the given date and commits the new values.
+   *
+   * @param asOf
+   *          Valuation date. Becomes the share value date of every valued portfolio.
+   *
+   * @return Counters of the valuation.
+   */
+  public ValuationSummary value(Date asOf) {
+    return this.timer.record(() -> {
+      for (int attempt = 1;; attempt++) {
+        try {
+          return this.run(asOf);
+        } catch (final OptimisticLockingFailureException e) {
+          this.conflicted("Portfolio tree", attempt, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #value(Date)}, split by root subtree. Partitions are valued by the workers, each one committed in its
+   * own transaction, then the root portfolios are valued from the committed values of their children.
+   *
+   * @param workers
+   *          Bounded pool that values and commits the partitions.
+   * @param completed
+   *          Ids of partitions already committed for this date. They are skipped and their committed values are rolled
+   *          up.
+   * @param committed
+   *          Called with the partition id (a portfolio id) and its counters inside the transaction of the partition, so
+   *          whatever it writes is committed along with the values.
+   *
+   * @return Counters of the partitions valued by this call.
+   */
+  public ValuationSummary value(Date asOf, ExecutorService workers, Set<Long> completed, BiConsumer<Long, ValuationSummary> committed) {
+    return this.timer.record(() -> this.run(asOf, workers, completed, committed));
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    this.pool.shutdown();
+  }
+
+  private ValuationSummary run(Date asOf) {
+    final long start = System.currentTimeMillis();
+
+    final Tree tree = this.load();
+    final int asOfDay = DateCodec.toEpochDay(asOf);
+    final AtomicInteger unquoted = new AtomicInteger();
+    this.pool.invoke(new RecursiveAction() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void compute() {
+        ForkJoinTask.invokeAll(ValuationEngine.this.tasks(tree.roots, asOfDay, unquoted));
+      }
+    });
+
+    final List<Node> valued = new ArrayList<>();
+    tree.nodes.values().stream().filter(n -> n.valued).forEach(valued::add);
+    this.commit(valued, tree.holdings, asOf, null);
+
+    final ValuationSummary summary = new ValuationSummary(valued.size(), tree.holdings.size(), unquoted.get(), System.currentTimeMillis() - start);
+    LOGGER.debug("Portfolio tree valued at {}: {}", Utils.toString(asOf), summary);
+    return summary;
+  }
+
+  private ValuationSummary run(Date asOf, ExecutorService workers, Set<Long> completed, BiConsumer<Long, ValuationSummary> committed) {
+    final long start = System.currentTimeMillis();
+
+    final Tree tree = this.load();
+    final int asOfDay = DateCodec.toEpochDay(asOf);
+
+    final List<Future<ValuationSummary>> partitions = new ArrayList<>();
+    for (final Node root : tree.roots) {
+      for (final Node partition : root.children) {
+        if (!completed.contains(partition.id)) {
+          partitions.add(workers.submit(() -> this.retry(partition, asOf, asOfDay, committed)));
+        }
+      }
+    }
+
+    int portfolios = 0;
+    int mutualFunds = 0;
+    int unquoted = 0;
+    for (final Future<ValuationSummary> partition : partitions) {
+      final ValuationSummary summary = await(partition);
+      portfolios += summary.getPortfolios();
+      mutualFunds += summary.getMutualFunds();
+      unquoted += summary.getUnquoted();
+    }
+
+    // Roots are valued on their own from the committed values of their children, which may have been read again
+    for (final Node root : this.load().roots) {
+      if (!completed.contains(root.id)) {
+        final ValuationSummary summary = this.retry(root, asOf, asOfDay, committed);
+        portfolios += summary.getPortfolios();
+        mutualFunds += summary.getMutualFunds();
+        unquoted += summary.getUnquoted();
+      }
+    }
+
+    final ValuationSummary summary = new ValuationSummary(portfolios, mutualFunds, unquoted, System.currentTimeMillis() - start);
+    LOGGER.debug("Portfolio tree valued at {} in {} partitions: {}", Utils.toString(asOf), partitions.size(), summary);
+    return summary;
+  }
+
+  /**
+   * Values and commits a partition, reading it again whenever a portfolio changed after it was read.
+   */
+  private ValuationSummary retry(Node partition, Date asOf, int asOfDay, BiConsumer<Long, ValuationSummary> committed) {
+    Node current = partition;
+    for (int attempt = 1;; attempt++) {
+      try {
+        return this.partition(current, asOf, asOfDay, committed);
+      } catch (final OptimisticLockingFailureException e) {
+        this.conflicted("Partition " + partition.id, attempt, e);
+      }
+
+      current = this.load().nodes.get(partition.id);
+      if (current == null) {
+        LOGGER.debug("Partition {} was deleted while being valued.", partition.id);
+        return new ValuationSummary(0, 0, 0, 0);
+      }
+    }
+  }
+
+  private void conflicted(String what, int attempt, OptimisticLockingFailureException e) {
+    if (attempt >= this.attempts) {
+      throw new WriteConflict(String.format("%s is being changed concurrently. Valuation failed after %s attempts.", what, attempt), e);
+    }
+    LOGGER.debug("{} changed while being valued. Valuing it again ({}/{}).", what, attempt, this.attempts);
+  }
+
+  /**
+   * Values and commits a partition: the whole subtree of a root's child or a root by itself.
+   */
+  private ValuationSummary partition(Node partition, Date asOf, int asOfDay, BiConsumer<Long, ValuationSummary> committed) {
+    final long start = System.currentTimeMillis();
+    final AtomicInteger unquoted = new AtomicInteger();
+
+    final List<Node> subtree = new ArrayList<>();
+    final List<Holding> holdings = new ArrayList<>();
+    if (partition.master == null) {
+      this.value(partition, asOfDay, unquoted);
+      subtree.add(partition);
+    } else {
+      this.pool.invoke(new ValuationTask(partition, asOfDay, unquoted));
+      collect(partition, subtree);
+    }
+    subtree.forEach(n -> holdings.addAll(n.holdings));
+    subtree.removeIf(n -> !n.valued);
+
+    final ValuationSummary summary = new ValuationSummary(subtree.size(), holdings.size(), unquoted.get(), System.currentTimeMillis() - start);
+    this.commit(subtree, holdings, asOf, () -> committed.accept(partition.id, summary));
+    LOGGER.trace("Partition {} valued at {}: {}", partition.id, Utils.toString(asOf), summary);
+    return summary;
+  }
+
+  private static void collect(Node node, List<Node> subtree) {
+    subtree.add(node);
+    for (final Node child : node.children) {
+      collect(child, subtree);
+    }
+  }
+
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SmartPortfolioRuntimeException("Interrupted while valuing the portfolio tree.", e);
+    } catch (final ExecutionException e) {
+      throw new SmartPortfolioRuntimeException("Failed to value a partition of the portfolio tree.", e.getCause());
+    }
+  }
+
+  /**
+   * Reads the whole tree with two queries and opens the share value series of every fund held.
+   */
+  private Tree load() {
+    final Tree tree = new Tree();
+    final List<Long[]> links = new ArrayList<>();
+    for (final Object[] row : this.repo.findValuationNodes()) {
+      final Node node = new Node((Long) row[0], FixedPoint.valueOf((BigDecimal) row[2]), FixedPoint.valueOf((BigDecimal) row[3]),
+          FixedPoint.valueOf((BigDecimal) row[4]), (Long) row[5]);
+      tree.nodes.put(node.id, node);
+      links.add(new Long[] { node.id, (Long) row[1] });
+    }
+
+    for (final Long[] link : links) {
+      final Node node = tree.nodes.get(link[0]);
+      final Node master = link[1] != null ? tree.nodes.get(link[1]) : null;
+      if (master != null) {
+        master.children.add(node);
+        node.master = master;
+      } else {
+        tree.roots.add(node);
+      }
+    }
+
+    final Set<Long> funds = new HashSet<>();
+    for (final Object[] row : this.repo.findValuationHoldings()) {
+      final Holding holding = new Holding((Long) row[1], (Long) row[2], FixedPoint.valueOf((BigDecimal) row[3]), FixedPoint.valueOf((BigDecimal) row[4]));
+      tree.nodes.get(row[0]).holdings.add(holding);
+      tree.holdings.add(holding);
+      funds.add(holding.fundId);
+    }
+
+    // Series are opened (and checked against the database) before the parallel phase, which only reads memory
+    funds.forEach(this.navStore::get);
+    return tree;
+  }
+
+  private List<ValuationTask> tasks(List<Node> nodes, int asOfDay, AtomicInteger unquoted) {
+    final List<ValuationTask> tasks = new ArrayList<>(nodes.size());
+    for (final Node node : nodes) {
+      tasks.add(new ValuationTask(node, asOfDay, unquoted));
+    }
+    return tasks;
+  }
+
+  /**
+   * Values a subtree: child subtrees are forked and valued in parallel, then the node itself is valued.
+   */
+  private final class ValuationTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Node node;
+    private final int asOfDay;
+    private final transient AtomicInteger unquoted;
+
+    private ValuationTask(Node node, int asOfDay, AtomicInteger unquoted) {
+      this.node = node;
+      this.asOfDay = asOfDay;
+      this.unquoted = unquoted;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.node.children.size() == 1) {
+        new ValuationTask(this.node.children.get(0), this.asOfDay, this.unquoted).compute();
+      } else if (!this.node.children.isEmpty()) {
+        ForkJoinTask.invokeAll(ValuationEngine.this.tasks(this.node.children, this.asOfDay, this.unquoted));
+      }
+
+      ValuationEngine.this.value(this.node, this.asOfDay, this.unquoted);
+    }
+  }
+
+  /**
+   * Values a node from its holdings and the values of its children.
+   */
+  private void value(Node node, int asOfDay, AtomicInteger unquoted) {
+    if (node.children.isEmpty() && node.holdings.isEmpty()) {
+      return;
+    }
+
+    long total = 0;
+    for (final Holding holding : node.holdings) {
+      final long shareValue = this.navStore.get(holding.fundId).valueAsOf(asOfDay);
+      if (shareValue != NavSeries.NO_VALUE) {
+        holding.value = FixedPoint.multiply(holding.shares, shareValue);
+      } else {
+        unquoted.incrementAndGet();
+      }
+      total = FixedPoint.add(total, holding.value);
+    }
+    for (final Node child : node.children) {
+      total = FixedPoint.add(total, child.value);
+    }
+
+    node.value = total;
+    if (node.shares != 0) {
+      node.shareValue = FixedPoint.divide(total, node.shares);
+    }
+    node.valued = true;
+  }
+
+  /**
+   * @param inTransaction
+   *          Optional. Runs inside the transaction, after the values are written.
+   *
+   * @throws OptimisticLockingFailureException
+   *           If a portfolio changed after it was read. Nothing is committed.
+   */
+  private void commit(List<Node> valued, List<Holding> holdings, Date asOf, Runnable inTransaction) {
+    final java.sql.Date shareValueDate = new java.sql.Date(asOf.getTime());
+    final java.sql.Date lastUpdated = new java.sql.Date(System.currentTimeMillis());
+
+    new TransactionTemplate(this.transactionManager).execute(status -> {
+      this.jdbcTemplate.batchUpdate(UPDATE_MUTUAL_FUND, new BatchPreparedStatementSetter() {
+        @Override
+        public void setValues(PreparedStatement ps, int i) throws SQLException {
+          final Holding holding = holdings.get(i);
+          ps.setBigDecimal(1, FixedPoint.toBigDecimal(holding.value));
+          ps.setDate(2, lastUpdated);
+          ps.setLong(3, holding.id);
+        }
+
+        @Override
+        public int getBatchSize() {
+          return holdings.size();
+        }
+      });
+
+      final int[] written = this.jdbcTemplate.batchUpdate(UPDATE_PORTFOLIO, new BatchPreparedStatementSetter() {
+        @Override
+        public void setValues(PreparedStatement ps, int i) throws SQLException {
+          final Node node = valued.get(i);
+          ps.setDate(1, shareValueDate);
+          ps.setDate(2, shareValueDate);
+          ps.setBigDecimal(3, FixedPoint.toBigDecimal(node.value));
+          ps.setBigDecimal(4, FixedPoint.toBigDecimal(node.shareValue));
+          ps.setDate(5, shareValueDate);
+          ps.setDate(6, lastUpdated);
+          ps.setLong(7, node.id);
+          ps.setLong(8, node.version);
+        }
+
+        @Override
+        public int getBatchSize() {
+          return valued.size();
+        }
+      });
+      for (int i = 0; i < written.length; i++) {
+        if (written[i] == 0) {
+          throw new OptimisticLockingFailureException("Portfolio '" + valued.get(i).id + "' changed after it was read for valuation.");
+        }
+      }
+
+      final List<Long> ids = new ArrayList<>(valued.size());
+      valued.forEach(n -> ids.add(n.id));
+      this.cache.evictAfterCommit(ids);
+
+      final List<Long> funds = new ArrayList<>(holdings.size());
+      holdings.forEach(h -> funds.add(h.id));
+      this.secondLevelCache.evictAfterCommit(MutualFund.class, funds);
+
+      if (inTransaction != null) {
+        inTransaction.run();
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Every portfolio and holding of the tree.
+   */
+  private static final class Tree {
+    private final Map<Long, Node> nodes = new HashMap<>();
+    private final List<Node> roots = new ArrayList<>();
+    private final List<Holding> holdings = new ArrayList<>();
+  }
+
+  /**
+   * A portfolio being valued. Each node is only written by its own task, and read by its master's task after it
+   * finishes.
+   */
+  private static final class Node {
+    private final Long id;
+    private final long shares;
+    private final long version;
+    private final List<Node> children = new ArrayList<>();
+    private final List<Holding> holdings = new ArrayList<>();
+    private Node master;
+    private long shareValue;
+    private long value;
+    private boolean valued;
+
+    private Node(Long id, long shares, long shareValue, long value, long version) {
+      this.id = id;
+      this.shares = shares;
+      this.shareValue = shareValue;
+      this.value = value;
+      this.version = version;
+    }
+  }
+
+  /**
+   * A mutual fund held by a portfolio.
+   */
+  private static final class Holding {
+    private final Long id;
+    private final Long fundId;
+    private final long shares;
+    private long value;
+
+    private Holding(Long id, Long fundId, long shares, long value) {
+      this.id = id;
+      this.fundId = fundId;
+      this.shares = shares;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of a {@link ValuationEngine} run.
+ */
+public class ValuationSummary implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int portfolios;
+  private final int mutualFunds;
+  private final int unquoted;
+  private final long elapsed;
+
+  public ValuationSummary(int portfolios, int mutualFunds, int unquoted, long elapsed) {
+    this.portfolios = portfolios;
+    this.mutualFunds = mutualFunds;
+    this.unquoted = unquoted;
+    this.elapsed = elapsed;
+  }
+
+  /**
+   * @return Number of portfolios written.
+   */
+  public int getPortfolios() {
+    return this.portfolios;
+  }
+
+  /**
+   * @return Number of mutual funds written.
+   */
+  public int getMutualFunds() {
+    return this.mutualFunds;
+  }
+
+  /**
+   * @return Number of mutual funds without a share value on or before the valuation date. Their values were kept.
+   */
+  public int getUnquoted() {
+    return this.unquoted;
+  }
+
+  /**
+   * @return Elapsed time in milliseconds.
+   */
+  public long getElapsed() {
+    return this.elapsed;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ValuationSummary [portfolios=%s, mutualFunds=%s, unquoted=%s, elapsed=%s]", this.portfolios, this.mutualFunds, this.unquoted,
+        this.elapsed);
+  }
+}
@@ -0,0 +1,217 @@
+package br.com.rcrios.smartportfolio.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import br.com.rcrios.smartportfolio.model.PortfolioSummary;
+import br.com.rcrios.smartportfolio.repository.MutualFundShareRepository;
+import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Writes the back office workbook: the portfolio tree, every mutual fund held and the share history of their funds,
+ * one sheet each. Rows are read from streamed repository queries that load no entity and are written through a
+ * {@link SXSSFWorkbook}, which keeps only the last {@code smartportfolio.export.row-window} rows of a sheet in memory
+ * and spools the older ones to compressed temporary files. Heap usage doesn't depend on the size of the history.
+ *
+ * A sheet holds at most {@link SpreadsheetVersion#EXCEL2007} rows. Longer listings continue on sheets named after the
+ * first one, with a sequence number: 'NAV history (2)' and so on.
+ */
+@Service
+public class WorkbookExporter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WorkbookExporter.class);
+
+  public static final String CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+  private static final String PORTFOLIOS = "Portfolios";
+  private static final String HOLDINGS = "Holdings";
+  private static final String HISTORY = "NAV history";
+
+  @Autowired
+  private PortfolioRepository pRepo;
+
+  @Autowired
+  private MutualFundShareRepository mfsRepo;
+
+  private final int window;
+  private final Timer timer;
+  private final DistributionSummary rows;
+
+  /**
+   * @param window
+   *          Rows of each sheet kept in memory while writing.
+   */
+  @Autowired
+  public WorkbookExporter(MeterRegistry registry, @Value("${smartportfolio.export.row-window:100}") int window) {
+    this.window = window;
+    this.timer = Timer.builder("smartportfolio.export").description("Time spent writing exported workbooks").register(registry);
+    this.rows = DistributionSummary.builder("smartportfolio.export.rows").description("Number of rows written by a single export")
+        .register(registry);
+  }
+
+  /**
+   * Writes the workbook. The output stream isn't closed.
+   *
+   * @param from
+   *          First date of the share history, inclusive
+   * @param to
+   *          Last date of the share history, inclusive
+   *
+   * @return Number of data rows written, headers excluded.
+   */
+  @Transactional(readOnly = true)
+  public long export(Date from, Date to, OutputStream out) throws IOException {
+    final long start = System.nanoTime();
+
+    final SXSSFWorkbook workbook = new SXSSFWorkbook(this.window);
+    workbook.setCompressTempFiles(true);
+    try {
+      final Styles styles = new Styles(workbook);
+
+      long written = 0;
+      try (Stream<PortfolioSummary> portfolios = this.pRepo.streamSummaries()) {
+        written += new SheetWriter(workbook, PORTFOLIOS, styles, "Id", "Name", "Master id", "Master name", "Share value date", "Shares", "Share value",
+            "Value", "Benchmark value", "Last updated").write(portfolios.map(p -> new Object[] { p.getId(), p.getName(), p.getMasterId(),
+                p.getMasterName(), p.getShareValueDate(), p.getShares(), p.getShareValue(), p.getValue(), p.getBenchmarkValue(), p.getLastUpdated() }));
+      }
+      try (Stream<Object[]> holdings = this.pRepo.streamHoldings()) {
+        written += new SheetWriter(workbook, HOLDINGS, styles, "Portfolio id", "Portfolio name", "Mutual fund id", "Fund id", "Fund name", "Shares",
+            "Value", "Last updated").write(holdings);
+      }
+      try (Stream<Object[]> history = this.mfsRepo.streamHeldHistory(from, to)) {
+        written += new SheetWriter(workbook, HISTORY, styles, "Fund id", "Fund name", "Date", "Share value").write(history);
+      }
+
+      workbook.write(out);
+      out.flush();
+
+      this.rows.record(written);
+      final long elapsed = System.nanoTime() - start;
+      this.timer.record(elapsed, TimeUnit.NANOSECONDS);
+      LOGGER.debug("Workbook exported with {} rows in {} ms", written, TimeUnit.NANOSECONDS.toMillis(elapsed));
+      return written;
+    } finally {
+      workbook.close();
+      workbook.dispose();
+    }
+  }
+
+  /**
+   * Cell styles are shared by the whole workbook, so they are created once.
+   */
+  private static class Styles {
+    private final CellStyle header;
+    private final CellStyle date;
+    private final CellStyle number;
+
+    Styles(SXSSFWorkbook workbook) {
+      this.header = workbook.createCellStyle();
+      final Font bold = workbook.createFont();
+      bold.setBold(true);
+      this.header.setFont(bold);
+
+      this.date = workbook.createCellStyle();
+      this.date.setDataFormat(workbook.createDataFormat().getFormat("dd/mm/yyyy"));
+
+      this.number = workbook.createCellStyle();
+      this.number.setDataFormat(workbook.createDataFormat().getFormat("#,##0.000000"));
+    }
+  }
+
+  /**
+   * Appends rows to a sheet, moving on to a new one when it's full.
+   */
+  private static class SheetWriter {
+    private static final int MAX_ROWS = SpreadsheetVersion.EXCEL2007.getMaxRows();
+
+    private final SXSSFWorkbook workbook;
+    private final String name;
+    private final Styles styles;
+    private final String[] headers;
+
+    private Sheet sheet;
+    private int sheets;
+    private int next;
+
+    SheetWriter(SXSSFWorkbook workbook, String name, Styles styles, String... headers) {
+      this.workbook = workbook;
+      this.name = name;
+      this.styles = styles;
+      this.headers = headers;
+      this.newSheet();
+    }
+
+    long write(Stream<Object[]> values) {
+      long count = 0;
+      final Iterator<Object[]> it = values.iterator();
+      while (it.hasNext()) {
+        if (this.next == MAX_ROWS) {
+          this.newSheet();
+        }
+
+        final Object[] value = it.next();
+        final Row row = this.sheet.createRow(this.next++);
+        for (int i = 0; i < value.length; i++) {
+          this.cell(row, i, value[i]);
+        }
+        count++;
+      }
+      return count;
+    }
+
+    private void newSheet() {
+      this.sheets++;
+      this.sheet = this.workbook.createSheet(this.sheets == 1 ? this.name : this.name + " (" + this.sheets + ")");
+      this.sheet.createFreezePane(0, 1);
+
+      final Row row = this.sheet.createRow(0);
+      for (int i = 0; i < this.headers.length; i++) {
+        final Cell cell = row.createCell(i);
+        cell.setCellValue(this.headers[i]);
+        cell.setCellStyle(this.styles.header);
+      }
+      this.next = 1;
+    }
+
+    private void cell(Row row, int column, Object value) {
+      if (value == null) {
+        return;
+      }
+
+      final Cell cell = row.createCell(column);
+      if (value instanceof Date) {
+        cell.setCellValue((Date) value);
+        cell.setCellStyle(this.styles.date);
+      } else if (value instanceof BigDecimal) {
+        cell.setCellValue(((BigDecimal) value).doubleValue());
+        cell.setCellStyle(this.styles.number);
+      } else if (value instanceof Number) {
+        cell.setCellValue(((Number) value).doubleValue());
+      } else {
+        cell.setCellValue(value.toString());
+      }
+    }
+  }
+}
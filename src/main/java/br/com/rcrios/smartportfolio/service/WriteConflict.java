@@ -0,0 +1,28 @@
+package br.com.rcrios.smartportfolio.service;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import br.com.rcrios.smartportfolio.SmartPortfolioRuntimeException;
+
+/**
+ * Runtime exception that is used to report writes that couldn't be applied because of concurrent writes to the same
+ * data, even after being retried. When reported through a response, will have a {@link HttpStatus#CONFLICT}
+ */
+@ResponseStatus(value = HttpStatus.CONFLICT)
+public class WriteConflict extends SmartPortfolioRuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public WriteConflict() {
+    super();
+  }
+
+  public WriteConflict(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+  public WriteConflict(String message) {
+    super(message);
+  }
+}
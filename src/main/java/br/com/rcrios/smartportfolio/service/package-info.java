@@ -0,0 +1,5 @@
+/**
+ * Business services shared by controllers. Services that write to more than one entity are responsible for their own
+ * transaction boundaries.
+ */
+package br.com.rcrios.smartportfolio.service;
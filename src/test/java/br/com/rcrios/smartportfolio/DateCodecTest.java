@@ -0,0 +1,101 @@
+package br.com.rcrios.smartportfolio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.junit.Test;
+
+public class DateCodecTest {
+
+  @Test
+  public void defaultPattern() {
+    final Date date = Utils.toDate("02/01/2018");
+    assertEquals(LocalDate.of(2018, 1, 2), DateCodec.toLocalDate(date));
+    assertEquals("02/01/2018", Utils.toString(date));
+    assertEquals(date, Utils.toDate("2/1/2018"));
+    assertEquals("2018-01-02", Utils.toString(date, "yyyy-MM-dd"));
+    assertEquals(date, Utils.toDate("2018-01-02", "yyyy-MM-dd"));
+    assertEquals("", Utils.toString((Date) null));
+
+    assertNull(Utils.toDate("invalid"));
+    assertNull(Utils.toDate("32/01/2018"));
+  }
+
+  /**
+   * Accepted, and rolled over, by the lenient SimpleDateFormat that parsed dates before.
+   */
+  @Test
+  public void strictDefaultPattern() {
+    assertEquals(Utils.toDate("29/02/2016"), DateCodec.fromEpochDay(Math.toIntExact(LocalDate.of(2016, 2, 29).toEpochDay())));
+
+    assertNull(Utils.toDate("02/01/2018 10:00"));
+    assertNull(Utils.toDate("02/01/2018x"));
+    assertNull(Utils.toDate("31/02/2018"));
+    assertNull(Utils.toDate("29/02/2018"));
+    assertNull(Utils.toDate("00/01/2018"));
+    assertNull(Utils.toDate("02/13/2018"));
+    assertNull(Utils.toDate("2/1/18"));
+  }
+
+  @Test
+  public void jsonPattern() {
+    final Date date = new Date(1514894400000L);
+    assertEquals(date.toString(), DateCodec.toJson(date));
+    assertEquals(date, DateCodec.fromJson(date.toString()));
+  }
+
+  @Test
+  public void epochDay() {
+    final Date date = Utils.toDate("02/01/2018");
+    assertEquals(LocalDate.of(2018, 1, 2).toEpochDay(), DateCodec.toEpochDay(date));
+    assertEquals(date, DateCodec.fromEpochDay(DateCodec.toEpochDay(date)));
+    assertEquals(DateCodec.toEpochDay(date), DateCodec.toEpochDay(new java.sql.Date(date.getTime())));
+    assertEquals("02/01/2018", DateCodec.format(DateCodec.toEpochDay(date)));
+  }
+
+  /**
+   * Starts at 1901, since Calendar and java.time disagree on local mean time offsets before that.
+   */
+  @Test
+  public void matchesPoi() {
+    for (int day = 367; day < 80_000; day += 7) {
+      for (final double fraction : new double[] { 0, 0.25, 0.5, 0.999, 1d / 3 }) {
+        final double serial = day + fraction;
+        assertEquals("serial=" + serial, DateUtil.getJavaDate(serial), DateCodec.fromExcel(serial));
+      }
+    }
+  }
+
+  @Test
+  public void concurrentUse() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> {
+          for (int day = 0; day < 20_000; day++) {
+            final Date date = DateCodec.fromEpochDay(day);
+            if (!date.equals(Utils.toDate(Utils.toString(date))) || !date.toString().equals(DateCodec.toJson(date))) {
+              return false;
+            }
+          }
+          return true;
+        }));
+      }
+      for (final Future<Boolean> result : results) {
+        assertEquals(Boolean.TRUE, result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
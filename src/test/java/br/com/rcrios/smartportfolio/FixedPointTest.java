@@ -0,0 +1,132 @@
+package br.com.rcrios.smartportfolio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FixedPointTest {
+
+  private static final BigDecimal TEN_DIGITS = new BigDecimal("10000000000");
+  private static final BigDecimal MAX = BigDecimal.valueOf(Long.MAX_VALUE, FixedPoint.SCALE);
+
+  @Test
+  public void conversions() {
+    assertEquals(1_500_000L, FixedPoint.valueOf(new BigDecimal("1.5")));
+    assertEquals(2L, FixedPoint.valueOf(new BigDecimal("0.0000015")));
+    assertEquals(2L, FixedPoint.valueOf(new BigDecimal("0.0000025")));
+    assertEquals(-2L, FixedPoint.valueOf(new BigDecimal("-0.0000025")));
+    assertEquals(3 * FixedPoint.ONE, FixedPoint.valueOf(3));
+    assertEquals(new BigDecimal("1.500000"), FixedPoint.toBigDecimal(1_500_000L));
+    assertEquals("-0.000001", FixedPoint.toString(-1L));
+  }
+
+  @Test
+  public void halfEvenRounding() {
+    // 0.000001 * 0.5 = 0.0000005, rounded to the even neighbor 0
+    assertEquals(0L, FixedPoint.multiply(1L, 500_000L));
+    // 0.000003 * 0.5 = 0.0000015, rounded to 0.000002
+    assertEquals(2L, FixedPoint.multiply(3L, 500_000L));
+    assertEquals(-2L, FixedPoint.multiply(-3L, 500_000L));
+    assertEquals(-2L, FixedPoint.multiply(3L, -500_000L));
+    // 0.000001 * 0.6 = 0.0000006, rounded up
+    assertEquals(1L, FixedPoint.multiply(1L, 600_000L));
+
+    assertEquals(0L, FixedPoint.divide(1L, 2 * FixedPoint.ONE));
+    assertEquals(2L, FixedPoint.divide(3L, 2 * FixedPoint.ONE));
+    assertEquals(-2L, FixedPoint.divide(-3L, 2 * FixedPoint.ONE));
+    assertEquals(333_333L, FixedPoint.divide(FixedPoint.ONE, 3 * FixedPoint.ONE));
+    assertEquals(666_667L, FixedPoint.divide(2 * FixedPoint.ONE, 3 * FixedPoint.ONE));
+  }
+
+  @Test
+  public void largeOperands() {
+    final long almostTenDigits = 9_999_999_999_999_999L;
+    assertEquals(3_333_333_333_333_333L, FixedPoint.divide(almostTenDigits, 3 * FixedPoint.ONE));
+    assertEquals(almostTenDigits, FixedPoint.multiply(almostTenDigits, FixedPoint.ONE));
+    assertEquals(almostTenDigits, FixedPoint.divide(almostTenDigits, FixedPoint.ONE));
+    assertEquals(FixedPoint.valueOf(new BigDecimal("5000000000.0000000000005")), FixedPoint.multiply(almostTenDigits, 500_000L));
+  }
+
+  @Test
+  public void overflow() {
+    expectArithmeticException(() -> FixedPoint.multiply(Long.MAX_VALUE, 2 * FixedPoint.ONE));
+    expectArithmeticException(() -> FixedPoint.divide(Long.MAX_VALUE, 1L));
+    expectArithmeticException(() -> FixedPoint.divide(FixedPoint.ONE, 0L));
+    expectArithmeticException(() -> FixedPoint.add(Long.MAX_VALUE, 1L));
+    expectArithmeticException(() -> FixedPoint.valueOf(Long.MIN_VALUE));
+  }
+
+  /**
+   * Compares every operation with the exact BigDecimal result rounded to scale 6 and, when the result has up to 10
+   * integer digits, with the result of the DECIMAL64 operation rounded to scale 6. The latter may be off by one unit
+   * when DECIMAL64 rounds to a tie (double rounding).
+   */
+  @Test
+  public void matchesBigDecimal() {
+    final Random random = new Random(20180102L);
+    for (int i = 0; i < 200_000; i++) {
+      final long a = randomValue(random);
+      final long b = randomValue(random);
+      final BigDecimal ba = FixedPoint.toBigDecimal(a);
+      final BigDecimal bb = FixedPoint.toBigDecimal(b);
+
+      this.check(ba.multiply(bb), ba.multiply(bb, Utils.DEFAULT_MATHCONTEXT), () -> FixedPoint.multiply(a, b), a, b);
+
+      if (b != 0) {
+        this.check(ba.divide(bb, FixedPoint.SCALE, RoundingMode.HALF_EVEN), ba.divide(bb, Utils.DEFAULT_MATHCONTEXT), () -> FixedPoint.divide(a, b), a, b);
+      }
+    }
+  }
+
+  private void check(BigDecimal exact, BigDecimal decimal64, Operation operation, long a, long b) {
+    final BigDecimal expected = exact.setScale(FixedPoint.SCALE, RoundingMode.HALF_EVEN);
+    if (expected.abs().compareTo(MAX) > 0) {
+      expectArithmeticException(operation);
+      return;
+    }
+
+    final long actual = operation.apply();
+    assertEquals("a=" + a + ", b=" + b, expected, FixedPoint.toBigDecimal(actual));
+    if (expected.abs().compareTo(TEN_DIGITS) < 0) {
+      final BigDecimal tie = decimal64.movePointRight(FixedPoint.SCALE + 1).remainder(BigDecimal.TEN).abs();
+      if (decimal64.stripTrailingZeros().scale() == FixedPoint.SCALE + 1 && tie.compareTo(new BigDecimal(5)) == 0) {
+        // DECIMAL64 rounded the exact result to a tie, so rounding it again to scale 6 may differ by one unit
+        assertEquals("a=" + a + ", b=" + b, 1, decimal64.subtract(FixedPoint.toBigDecimal(actual)).abs().movePointRight(FixedPoint.SCALE + 1).intValue() / 5);
+      } else {
+        assertEquals("a=" + a + ", b=" + b, decimal64.setScale(FixedPoint.SCALE, RoundingMode.HALF_EVEN), FixedPoint.toBigDecimal(actual));
+      }
+    }
+  }
+
+  /**
+   * @return Values from 0.000001 up to 10 integer digits, uniformly distributed in number of digits.
+   */
+  private static long randomValue(Random random) {
+    final int digits = 1 + random.nextInt(16);
+    long bound = 1;
+    for (int i = 0; i < digits; i++) {
+      bound *= 10;
+    }
+    final long value = (long) (random.nextDouble() * bound);
+    return random.nextBoolean() ? value : -value;
+  }
+
+  private static void expectArithmeticException(Operation operation) {
+    try {
+      operation.apply();
+      fail("ArithmeticException expected");
+    } catch (final ArithmeticException e) {
+      // Expected
+    }
+  }
+
+  @FunctionalInterface
+  private interface Operation {
+    long apply();
+  }
+}
@@ -0,0 +1,136 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.Benchmark;
+import br.com.rcrios.smartportfolio.model.BenchmarkPeriod;
+import br.com.rcrios.smartportfolio.model.BenchmarkType;
+import br.com.rcrios.smartportfolio.model.DatedValue;
+import br.com.rcrios.smartportfolio.repository.BenchmarkRepository;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class BenchmarkControllerTest {
+
+  private static final String RESOURCE_URL = "/api/benchmarks/v1/SELIC/factors";
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @Autowired
+  private BenchmarkRepository repo;
+
+  @Autowired
+  private TestHelper testHelper;
+
+  @After
+  public void cleanup() {
+    this.repo.deleteAll();
+  }
+
+  @Test
+  public void factorsTest() throws JSONException {
+    this.repo.save(objFactory("02/01/2018", "1.1"));
+    this.repo.save(objFactory("03/01/2018", "1.2"));
+    this.repo.save(objFactory("05/01/2018", "1.5"));
+
+    final JSONArray body = new JSONArray();
+    body.put(jsonFactory("02/01/2018", "04/01/2018"));
+    body.put(jsonFactory("03/01/2018", "06/01/2018"));
+    body.put(jsonFactory("01/01/2018", "31/12/2018"));
+    body.put(jsonFactory("06/01/2018", "07/01/2018"));
+    body.put(jsonFactory("05/01/2018", "05/01/2018"));
+
+    ResponseEntity<List<BenchmarkPeriod>> responseEntity = this.post(body);
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+    List<BenchmarkPeriod> periods = responseEntity.getBody();
+    assertEquals(5, periods.size());
+    assertEquals("02/01/2018", periods.get(0).getStart());
+    assertEquals(0, new BigDecimal("1.32").compareTo(periods.get(0).getFactor()));
+    assertEquals(0, new BigDecimal("1.8").compareTo(periods.get(1).getFactor()));
+    assertEquals(0, new BigDecimal("1.98").compareTo(periods.get(2).getFactor()));
+    assertEquals(0, BigDecimal.ONE.compareTo(periods.get(3).getFactor()));
+    assertEquals(0, BigDecimal.ONE.compareTo(periods.get(4).getFactor()));
+
+    // Later factors are appended to the index; earlier ones rebuild it
+    this.repo.save(objFactory("06/01/2018", "2"));
+    this.repo.save(objFactory("04/01/2018", "0.5"));
+
+    responseEntity = this.post(body);
+    periods = responseEntity.getBody();
+    assertEquals(0, new BigDecimal("0.9").compareTo(periods.get(1).getFactor()));
+    assertEquals(0, new BigDecimal("2").compareTo(periods.get(3).getFactor()));
+
+    final JSONArray invalid = new JSONArray();
+    invalid.put(jsonFactory("invalid", "04/01/2018"));
+    responseEntity = this.post(invalid);
+    assertEquals(HttpStatus.BAD_REQUEST, responseEntity.getStatusCode());
+  }
+
+  @Test
+  public void historyTest() {
+    this.repo.save(objFactory("02/01/2018", "1.1"));
+    this.repo.save(objFactory("03/01/2018", "1.2"));
+    this.repo.save(objFactory("05/01/2018", "1.5"));
+
+    final ResponseEntity<List<DatedValue>> responseEntity = this.restTemplate.exchange("/api/benchmarks/v1/SELIC/history?from=03/01/2018&to=05/01/2018",
+        HttpMethod.GET, null, new ParameterizedTypeReference<List<DatedValue>>() {
+        });
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    assertEquals(2, responseEntity.getBody().size());
+    assertEquals("03/01/2018", responseEntity.getBody().get(0).getDate());
+    assertEquals(0, new BigDecimal("1.5").compareTo(responseEntity.getBody().get(1).getValue()));
+
+    assertEquals(HttpStatus.BAD_REQUEST,
+        this.restTemplate.getForEntity("/api/benchmarks/v1/SELIC/history?from=03/01/2018&to=invalid", String.class).getStatusCode());
+
+    final ResponseEntity<DatedValue> asOf = this.restTemplate.getForEntity("/api/benchmarks/v1/SELIC/asof?date=04/01/2018", DatedValue.class);
+    assertEquals(HttpStatus.OK, asOf.getStatusCode());
+    assertEquals("03/01/2018", asOf.getBody().getDate());
+    assertEquals(0, new BigDecimal("1.2").compareTo(asOf.getBody().getValue()));
+
+    assertEquals(HttpStatus.NOT_FOUND, this.restTemplate.getForEntity("/api/benchmarks/v1/SELIC/asof?date=01/01/2018", Map.class).getStatusCode());
+  }
+
+  private ResponseEntity<List<BenchmarkPeriod>> post(JSONArray body) {
+    return this.restTemplate.exchange(RESOURCE_URL, HttpMethod.POST, this.testHelper.getPostRequestHeaders(body.toString()),
+        new ParameterizedTypeReference<List<BenchmarkPeriod>>() {
+        });
+  }
+
+  private static Benchmark objFactory(String date, String dailyFactor) {
+    final Benchmark benchmark = new Benchmark();
+    benchmark.setType(BenchmarkType.SELIC);
+    benchmark.setDate(Utils.toDate(date));
+    benchmark.setDailyFactor(new BigDecimal(dailyFactor));
+    return benchmark;
+  }
+
+  private static JSONObject jsonFactory(String start, String end) throws JSONException {
+    final JSONObject json = new JSONObject();
+    json.put("start", start);
+    json.put("end", end);
+    return json;
+  }
+}
@@ -0,0 +1,274 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.Deal;
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.MutualFundShare;
+import br.com.rcrios.smartportfolio.model.Position;
+import br.com.rcrios.smartportfolio.model.TransactionType;
+import br.com.rcrios.smartportfolio.repository.DealRepository;
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundShareRepository;
+import br.com.rcrios.smartportfolio.repository.PositionSnapshotRepository;
+import br.com.rcrios.smartportfolio.service.PositionEngine;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+    "smartportfolio.positions.snapshot-interval=3", "smartportfolio.import.batch-size=3" })
+public class DealControllerTest {
+
+  private static final String RESOURCE_URL = "/api/deals/v1/positions/";
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @Autowired
+  private DealRepository repo;
+
+  @Autowired
+  private PositionSnapshotRepository snapshotRepository;
+
+  @Autowired
+  private MutualFundRepository mfRepository;
+
+  @Autowired
+  private MutualFundShareRepository mfsRepository;
+
+  @Autowired
+  private LegalEntityRepository leRepository;
+
+  @Autowired
+  private PositionEngine engine;
+
+  @Autowired
+  private TestHelper testHelper;
+
+  @Autowired
+  private ObjectMapper mapper;
+
+  private MutualFund mf;
+
+  @After
+  public void cleanup() {
+    if (this.mf != null) {
+      // Waits for pending snapshots
+      this.engine.checkpoint(this.mf.getId());
+    }
+    // Snapshots first: removing deals only queues the removal of their snapshots
+    this.snapshotRepository.deleteAll();
+    this.repo.deleteAll();
+    this.mfRepository.deleteAll();
+    this.mfsRepository.deleteAll();
+    this.leRepository.deleteAll();
+  }
+
+  @Test
+  public void positionsTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    final LegalEntity manager = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test manager", "2", "manager"));
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "05/01/2018", "2"));
+    this.mf = this.mfRepository.save(MutualFundShareControllerTest.mutualFundFactory(fund, manager));
+
+    this.repo.save(objFactory(this.mf, "02/01/2018", TransactionType.BUY, "10", "100"));
+    assertPosition(this.get(""), "02/01/2018", "10", "100");
+
+    // Appended to the open ledger: a snapshot is written every 3 deals, up to the day before the last one
+    this.repo.save(objFactory(this.mf, "03/01/2018", TransactionType.BUY, "10", "200"));
+    this.repo.save(objFactory(this.mf, "04/01/2018", TransactionType.SELL, "5", "150"));
+    this.repo.save(objFactory(this.mf, "05/01/2018", TransactionType.BUY, null, "20"));
+    this.repo.save(objFactory(this.mf, "08/01/2018", TransactionType.UPDATE, "24", null));
+    this.repo.save(objFactory(this.mf, "08/01/2018", TransactionType.CREATE_QUOTE, "1", "1"));
+    this.engine.checkpoint(this.mf.getId());
+    assertEquals(2, this.snapshotRepository.count());
+
+    assertEquals(3, this.repo.findByMutualFundIdAndDateBetweenOrderByDateAscIdAsc(this.mf.getId(), Utils.toDate("03/01/2018"), Utils.toDate("05/01/2018"))
+        .size());
+    assertEquals(TransactionType.SELL,
+        this.repo.findFirstByMutualFundIdAndDateLessThanEqualOrderByDateDescIdDesc(this.mf.getId(), Utils.toDate("04/01/2018")).get().getType());
+
+    assertPosition(this.get(""), "08/01/2018", "24", "245");
+    assertPosition(this.get("?date=04/01/2018"), "04/01/2018", "15", "225");
+    assertPosition(this.get("?date=06/01/2018"), "06/01/2018", "25", "245");
+    assertPosition(this.get("?date=01/01/2018"), "01/01/2018", "0", "0");
+
+    // A deal before the snapshots discards them
+    this.repo.save(objFactory(this.mf, "03/01/2018", TransactionType.BUY, "1", "10"));
+    assertPosition(this.get(""), "08/01/2018", "24", "256.190476");
+    this.engine.checkpoint(this.mf.getId());
+    assertEquals(1, this.snapshotRepository.count());
+
+    // Rebuilt from the snapshot (05/01/2018); earlier dates are replayed from the deal log
+    this.engine.evict(this.mf.getId());
+    assertPosition(this.get(""), "08/01/2018", "24", "256.190476");
+    assertPosition(this.get("?date=04/01/2018"), "04/01/2018", "16", "236.190476");
+
+    final ResponseEntity<List<Position>> all = this.restTemplate.exchange(RESOURCE_URL, HttpMethod.GET, this.testHelper.getRequestHeaders(),
+        new ParameterizedTypeReference<List<Position>>() {
+        });
+    assertEquals(HttpStatus.OK, all.getStatusCode());
+    assertEquals(1, all.getBody().size());
+    assertEquals(this.mf.getId(), all.getBody().get(0).getMutualFundId());
+
+    assertEquals(HttpStatus.BAD_REQUEST, this.get("?date=invalid").getStatusCode());
+    assertEquals(HttpStatus.NOT_FOUND, this.restTemplate.exchange(RESOURCE_URL + "0", HttpMethod.GET, this.testHelper.getRequestHeaders(), Position.class)
+        .getStatusCode());
+  }
+
+  @Test
+  public void oversoldTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    this.mf = this.mfRepository.save(MutualFundShareControllerTest.mutualFundFactory(fund, fund));
+
+    // Selling more than is held closes the position instead of taking it below zero
+    this.repo.save(objFactory(this.mf, "02/01/2018", TransactionType.BUY, "10", "100"));
+    this.repo.save(objFactory(this.mf, "03/01/2018", TransactionType.SELL, "15", "150"));
+    assertPosition(this.get(""), "03/01/2018", "0", "0");
+
+    this.repo.save(objFactory(this.mf, "04/01/2018", TransactionType.BUY, "2", "30"));
+    assertPosition(this.get(""), "04/01/2018", "2", "30");
+  }
+
+  @Test
+  public void shareAfterDealTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    this.mf = this.mfRepository.save(MutualFundShareControllerTest.mutualFundFactory(fund, fund));
+
+    // Without a share value, the first deal is ignored, also by the snapshot
+    this.repo.save(objFactory(this.mf, "02/01/2018", TransactionType.BUY, null, "100"));
+    this.repo.save(objFactory(this.mf, "03/01/2018", TransactionType.BUY, "10", "100"));
+    this.repo.save(objFactory(this.mf, "04/01/2018", TransactionType.BUY, "10", "100"));
+    this.repo.save(objFactory(this.mf, "05/01/2018", TransactionType.BUY, "10", "100"));
+    assertPosition(this.get(""), "05/01/2018", "30", "300");
+    this.engine.checkpoint(this.mf.getId());
+    assertEquals(2, this.snapshotRepository.count());
+
+    // A share value committed later is applied to the deal, and discards the snapshots that ignored it
+    final MutualFundShare share = this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "01/01/2018", "2"));
+    this.engine.checkpoint(this.mf.getId());
+    assertEquals(0, this.snapshotRepository.count());
+    assertPosition(this.get(""), "05/01/2018", "80", "400");
+    this.engine.checkpoint(this.mf.getId());
+    this.engine.evict(this.mf.getId());
+    assertPosition(this.get(""), "05/01/2018", "80", "400");
+
+    // And so are changes of it
+    share.setValue(new BigDecimal("4"));
+    this.mfsRepository.save(share);
+    assertPosition(this.get(""), "05/01/2018", "55", "400");
+
+    this.mfsRepository.delete(share);
+    assertPosition(this.get(""), "05/01/2018", "30", "300");
+  }
+
+  @Test
+  public void noDealsTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    this.mf = this.mfRepository.save(MutualFundShareControllerTest.mutualFundFactory(fund, fund));
+
+    final ResponseEntity<Position> responseEntity = this.get("");
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    assertNull(responseEntity.getBody().getDate());
+    assertEquals(0, BigDecimal.ZERO.compareTo(responseEntity.getBody().getShares()));
+  }
+
+  @Test
+  public void importTest() throws Exception {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    this.mf = this.mfRepository.save(MutualFundShareControllerTest.mutualFundFactory(fund, fund));
+    final Long id = this.mf.getId();
+
+    final String body = String.join("\n",
+        "{\"mutualFundId\": " + id + ", \"date\": \"02/01/2018\", \"type\": \"BUY\", \"shares\": 10, \"value\": 100}",
+        "{\"mutualFundId\": " + id + ", \"date\": \"3/1/2018\", \"type\": \"BUY\", \"shares\": \"10\", \"value\": 200, \"extra\": {\"a\": [1]}}",
+        "",
+        "{\"mutualFundId\": 0, \"date\": \"04/01/2018\", \"type\": \"BUY\", \"shares\": 1, \"value\": 1}",
+        "{\"mutualFundId\": " + id + ", \"date\": \"invalid\", \"type\": \"BUY\", \"shares\": 1, \"value\": 1}",
+        "{\"mutualFundId\": " + id + ", \"date\": \"04/01/2018\", \"type\": \"GIFT\", \"shares\": 1}",
+        "{\"mutualFundId\": " + id + ", \"date\": \"04/01/2018\", \"type\": \"SELL\"",
+        "{\"mutualFundId\": " + id + ", \"date\": \"04/01/2018\", \"type\": \"SELL\", \"shares\": 5, \"value\": 150, \"comments\": \"partial\"}");
+
+    // Opens the ledger: imported deals must discard it
+    assertEquals(HttpStatus.OK, this.get("").getStatusCode());
+
+    final HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.parseMediaType(ResponseStreams.NDJSON_VALUE));
+    final ResponseEntity<String> responseEntity = this.restTemplate.exchange("/api/deals/v1/import", HttpMethod.POST, new HttpEntity<>(body, headers),
+        String.class);
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+    final String[] lines = responseEntity.getBody().split("\n");
+    assertEquals(8, lines.length);
+    assertResult(lines[0], 1, "IMPORTED");
+    assertResult(lines[1], 2, "IMPORTED");
+    assertResult(lines[2], 4, "REJECTED");
+    assertResult(lines[3], 5, "REJECTED");
+    assertResult(lines[4], 6, "REJECTED");
+    assertResult(lines[5], 7, "REJECTED");
+    assertResult(lines[6], 8, "IMPORTED");
+    assertTrue(this.mapper.readTree(lines[2]).get("message").asText().contains("not found"));
+
+    final JsonNode summary = this.mapper.readTree(lines[7]);
+    assertEquals(7, summary.get("read").asInt());
+    assertEquals(3, summary.get("imported").asInt());
+    assertEquals(4, summary.get("skipped").asInt());
+    assertEquals(2, summary.get("batches").asInt());
+
+    assertEquals(3, this.repo.count());
+    assertPosition(this.get(""), "04/01/2018", "15", "225");
+  }
+
+  private void assertResult(String line, int number, String status) throws Exception {
+    final JsonNode result = this.mapper.readTree(line);
+    assertEquals(number, result.get("line").asInt());
+    assertEquals(status, result.get("status").asText());
+  }
+
+  private ResponseEntity<Position> get(String query) {
+    return this.restTemplate.exchange(RESOURCE_URL + this.mf.getId() + query, HttpMethod.GET, this.testHelper.getRequestHeaders(), Position.class);
+  }
+
+  private static void assertPosition(ResponseEntity<Position> responseEntity, String date, String shares, String cost) {
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    final Position position = responseEntity.getBody();
+    assertEquals(date, position.getDate());
+    assertEquals(0, new BigDecimal(shares).compareTo(position.getShares()));
+    assertEquals(0, new BigDecimal(cost).compareTo(position.getCost()));
+  }
+
+  private static Deal objFactory(MutualFund mf, String date, TransactionType type, String shares, String value) {
+    final Deal deal = new Deal();
+    deal.setMutualFund(mf);
+    deal.setDate(Utils.toDate(date));
+    deal.setType(type);
+    deal.setShares(shares != null ? new BigDecimal(shares) : null);
+    deal.setValue(value != null ? new BigDecimal(value) : null);
+    return deal;
+  }
+}
@@ -3,6 +3,7 @@ package br.com.rcrios.smartportfolio.controller;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.List;
@@ -17,6 +18,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -26,6 +29,8 @@ import org.springframework.test.context.junit4.SpringRunner;
 import br.com.rcrios.smartportfolio.model.LegalEntity;
 import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 public class LegalEntityControllerTest {
@@ -40,6 +45,9 @@ public class LegalEntityControllerTest {
   @Autowired
   private TestHelper testHelper;
 
+  @Autowired
+  private MeterRegistry registry;
+
   @After
   public void cleanup() {
     this.leRepository.deleteAll();
@@ -121,6 +129,52 @@ public class LegalEntityControllerTest {
     assertFalse(list.isEmpty());
   }
 
+  @Test
+  public void getPageTest() {
+    for (int i = 0; i < 3; i++) {
+      this.leRepository.save(objFactory(name + i, ntpid + i, nickname));
+    }
+
+    final String resourceUrl = "/api/legalentities/v1/?limit=2";
+
+    ResponseEntity<Object> responseEntity = this.restTemplate.exchange(resourceUrl, HttpMethod.GET, this.testHelper.getRequestHeaders(), Object.class);
+
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    assertEquals(2, ((List<?>) responseEntity.getBody()).size());
+
+    final String cursor = responseEntity.getHeaders().getFirst(ResponseStreams.NEXT_CURSOR_HEADER);
+    assertNotNull(cursor);
+
+    responseEntity = this.restTemplate.exchange(resourceUrl + "&after=" + cursor, HttpMethod.GET, this.testHelper.getRequestHeaders(), Object.class);
+
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    assertEquals(1, ((List<?>) responseEntity.getBody()).size());
+    assertNull(responseEntity.getHeaders().getFirst(ResponseStreams.NEXT_CURSOR_HEADER));
+  }
+
+  @Test
+  public void streamTest() {
+    for (int i = 0; i < 3; i++) {
+      this.leRepository.save(objFactory(name + i, ntpid + i, nickname));
+    }
+
+    final ResponseEntity<Object> arrayResponse = this.restTemplate.exchange("/api/legalentities/v1/stream", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), Object.class);
+
+    assertEquals(HttpStatus.OK, arrayResponse.getStatusCode());
+    assertEquals(3, ((List<?>) arrayResponse.getBody()).size());
+
+    final ResponseEntity<String> ndjsonResponse = this.restTemplate.exchange("/api/legalentities/v1/stream?format=ndjson", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), String.class);
+
+    assertEquals(HttpStatus.OK, ndjsonResponse.getStatusCode());
+    assertEquals(ResponseStreams.NDJSON_VALUE, ndjsonResponse.getHeaders().getContentType().toString().split(";")[0]);
+
+    final String[] lines = ndjsonResponse.getBody().split("\n");
+    assertEquals(3, lines.length);
+    assertTrue(lines[0].contains(ntpid + 0));
+  }
+
   @Test
   public void getLegalEntityTest() {
     final LegalEntity createdLegalEntity = this.leRepository.save(objFactory());
@@ -140,6 +194,93 @@ public class LegalEntityControllerTest {
     assertEquals(createdLegalEntity.getNickname(), parsedContact.getNickname());
   }
 
+  @Test
+  public void conditionalGetTest() {
+    this.leRepository.save(objFactory());
+    final String url = "/api/legalentities/v1/" + ntpid;
+
+    final ResponseEntity<LegalEntity> first = this.restTemplate.exchange(url, HttpMethod.GET, this.testHelper.getRequestHeaders(), LegalEntity.class);
+    assertEquals(HttpStatus.OK, first.getStatusCode());
+    final String etag = first.getHeaders().getETag();
+    final String listEtag = this.restTemplate.exchange("/api/legalentities/v1/", HttpMethod.GET, this.testHelper.getRequestHeaders(), String.class)
+        .getHeaders().getETag();
+
+    final ResponseEntity<String> unchanged = this.conditionalGet(url, etag);
+    assertEquals(HttpStatus.NOT_MODIFIED, unchanged.getStatusCode());
+    assertNull(unchanged.getBody());
+    assertEquals(HttpStatus.NOT_MODIFIED, this.conditionalGet("/api/legalentities/v1/", listEtag).getStatusCode());
+    assertEquals(HttpStatus.NOT_MODIFIED, this.conditionalGet("/api/legalentities/v1/stream", listEtag).getStatusCode());
+
+    // Saved with the version that was read
+    first.getBody().setNickname("changed");
+    final ResponseEntity<LegalEntity> changed = this.restTemplate.exchange("/api/legalentities/v1/", HttpMethod.POST,
+        new HttpEntity<>(first.getBody(), this.testHelper.getRequestHeaders().getHeaders()), LegalEntity.class);
+    assertEquals(HttpStatus.CREATED, changed.getStatusCode());
+    assertEquals(1, changed.getBody().getVersion());
+
+    assertEquals(HttpStatus.OK, this.conditionalGet(url, etag).getStatusCode());
+    assertEquals(HttpStatus.OK, this.conditionalGet("/api/legalentities/v1/", listEtag).getStatusCode());
+
+    // A stale ETag in If-Match is rejected
+    final HttpHeaders ifMatch = new HttpHeaders();
+    ifMatch.putAll(this.testHelper.getRequestHeaders().getHeaders());
+    ifMatch.setIfMatch(etag);
+    final ResponseEntity<String> stale = this.restTemplate.exchange("/api/legalentities/v1/", HttpMethod.POST, new HttpEntity<>(first.getBody(), ifMatch),
+        String.class);
+    assertEquals(HttpStatus.PRECONDITION_FAILED, stale.getStatusCode());
+
+    // The current one is accepted
+    ifMatch.setIfMatch(this.restTemplate.exchange(url, HttpMethod.GET, this.testHelper.getRequestHeaders(), LegalEntity.class).getHeaders().getETag());
+    first.getBody().setNickname("matched");
+    assertEquals(HttpStatus.CREATED,
+        this.restTemplate.exchange("/api/legalentities/v1/", HttpMethod.POST, new HttpEntity<>(first.getBody(), ifMatch), LegalEntity.class).getStatusCode());
+
+    // Without If-Match, the posted version is ignored and the save goes over the current one
+    first.getBody().setNickname("unconditional");
+    final ResponseEntity<LegalEntity> unconditional = this.restTemplate.exchange("/api/legalentities/v1/", HttpMethod.POST,
+        new HttpEntity<>(first.getBody(), this.testHelper.getRequestHeaders().getHeaders()), LegalEntity.class);
+    assertEquals(HttpStatus.CREATED, unconditional.getStatusCode());
+    assertEquals(3, unconditional.getBody().getVersion());
+    assertEquals("unconditional", unconditional.getBody().getNickname());
+  }
+
+  private ResponseEntity<String> conditionalGet(String url, String etag) {
+    final HttpHeaders headers = new HttpHeaders();
+    headers.setIfNoneMatch(etag);
+    return this.restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+  }
+
+  @Test
+  public void cacheTest() {
+    final LegalEntity saved = this.leRepository.save(objFactory());
+
+    final double naturalIdHits = this.hits("LegalEntity##NaturalId");
+    final double entityHits = this.hits("LegalEntity");
+    assertEquals(saved.getId(), this.leRepository.findByNationalTaxPayerId(ntpid).get().getId());
+    assertEquals(saved.getId(), this.leRepository.findByNationalTaxPayerId(ntpid).get().getId());
+    assertTrue(this.hits("LegalEntity##NaturalId") > naturalIdHits);
+    assertTrue(this.hits("LegalEntity") > entityHits);
+    assertFalse(this.leRepository.findByNationalTaxPayerId("666").isPresent());
+    assertFalse(this.leRepository.findByNationalTaxPayerId(null).isPresent());
+
+    // Saved again with a corrected id: the cached one must not resolve anymore
+    saved.setNationalTaxPayerId(ntpid + "0");
+    this.leRepository.save(saved);
+    assertFalse(this.leRepository.findByNationalTaxPayerId(ntpid).isPresent());
+    assertEquals(saved.getId(), this.leRepository.findByNationalTaxPayerId(ntpid + "0").get().getId());
+
+    assertTrue(this.registry.get("smartportfolio.cache.size").tag("region", "LegalEntity").gauge().value() > 0);
+
+    final double queryHits = this.hits("queries");
+    assertEquals(1, this.leRepository.findAll().size());
+    assertEquals(1, this.leRepository.findAll().size());
+    assertTrue(this.hits("queries") > queryHits);
+  }
+
+  private double hits(String region) {
+    return this.registry.get("smartportfolio.cache.gets").tag("region", region).tag("result", "hit").functionCounter().count();
+  }
+
   @Test
   public void handleNotFound() {
     this.leRepository.save(objFactory());
@@ -182,6 +323,10 @@ public class LegalEntityControllerTest {
   }
 
   public static LegalEntity objFactory() {
+    return objFactory(name, ntpid, nickname);
+  }
+
+  public static LegalEntity objFactory(String name, String ntpid, String nickname) {
     final LegalEntity le = new LegalEntity();
     le.setName(name);
     le.setNationalTaxPayerId(ntpid);
@@ -0,0 +1,57 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class MetricsTest {
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @Autowired
+  private LegalEntityRepository leRepository;
+
+  @Autowired
+  private MeterRegistry registry;
+
+  @Autowired
+  private TestHelper testHelper;
+
+  @Test
+  public void metricsTest() {
+    this.restTemplate.exchange("/api/legalentities/v1/", HttpMethod.GET, this.testHelper.getRequestHeaders(), String.class);
+    this.restTemplate.exchange("/api/portfolios/v1/", HttpMethod.GET, this.testHelper.getRequestHeaders(), String.class);
+    this.leRepository.findByNationalTaxPayerId("none");
+
+    assertTrue(this.registry.get("smartportfolio.controller").tag("controller", "legalentities").timer().count() > 0);
+    assertTrue(this.registry.get("smartportfolio.controller").tag("controller", "portfolios").timer().count() > 0);
+    assertTrue(this.registry.get("smartportfolio.repository").tag("repository", "LegalEntityRepository").tag("method", "findByNationalTaxPayerId")
+        .timer().count() > 0);
+    assertTrue(this.registry.get("smartportfolio.repository").tag("repository", "PortfolioRepository").timer().count() > 0);
+
+    final ResponseEntity<String> metrics = this.restTemplate.getForEntity("/actuator/metrics/smartportfolio.repository", String.class);
+    assertEquals(HttpStatus.OK, metrics.getStatusCode());
+
+    final ResponseEntity<String> prometheus = this.restTemplate.getForEntity("/actuator/prometheus", String.class);
+    assertEquals(HttpStatus.OK, prometheus.getStatusCode());
+    assertTrue(prometheus.getBody().contains("smartportfolio_controller_seconds_count"));
+    assertTrue(prometheus.getBody().contains("smartportfolio_repository_seconds_count"));
+    assertTrue(prometheus.getBody().contains("smartportfolio_propagation_depth"));
+  }
+}
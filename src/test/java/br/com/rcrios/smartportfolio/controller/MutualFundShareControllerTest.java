@@ -0,0 +1,250 @@
+package br.com.rcrios.smartportfolio.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.DatedValue;
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.MutualFundShare;
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundShareRepository;
+import br.com.rcrios.smartportfolio.service.NavStore;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class MutualFundShareControllerTest {
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @Autowired
+  private MutualFundShareRepository mfsRepository;
+
+  @Autowired
+  private LegalEntityRepository leRepository;
+
+  @Autowired
+  private NavStore navStore;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @After
+  public void cleanup() {
+    this.mfsRepository.deleteAll();
+    this.leRepository.deleteAll();
+  }
+
+  @Test
+  public void importXlsx() throws IOException {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory());
+
+    final XSSFWorkbook workbook = new XSSFWorkbook();
+    final CellStyle dateStyle = workbook.createCellStyle();
+    dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat(Utils.DEFAULT_DATE_PATTERN));
+
+    final Sheet sheet = workbook.createSheet();
+    final Row header = sheet.createRow(0);
+    header.createCell(0).setCellValue("fund");
+    header.createCell(1).setCellValue("date");
+    header.createCell(2).setCellValue("value");
+
+    this.createRow(sheet, 1, fund.getNationalTaxPayerId(), Utils.toDate("02/01/2018"), 1.5, dateStyle);
+    this.createRow(sheet, 2, fund.getNationalTaxPayerId(), Utils.toDate("03/01/2018"), 1.25, dateStyle);
+    this.createRow(sheet, 3, fund.getNationalTaxPayerId(), Utils.toDate("04/01/2018"), 1.125, dateStyle);
+    this.createRow(sheet, 4, "unknown fund", Utils.toDate("04/01/2018"), 1.0, dateStyle);
+    // Same fund and date of the first row
+    this.createRow(sheet, 5, fund.getNationalTaxPayerId(), Utils.toDate("02/01/2018"), 2.0, dateStyle);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    workbook.write(out);
+    workbook.close();
+
+    final MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+    body.add("file", new ByteArrayResource(out.toByteArray()) {
+      @Override
+      public String getFilename() {
+        return "shares.xlsx";
+      }
+    });
+
+    final HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+
+    final ResponseEntity<Object> responseEntity = this.restTemplate.exchange("/api/mutualfundshares/v1/import", HttpMethod.POST,
+        new HttpEntity<>(body, headers), Object.class);
+
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+    @SuppressWarnings("unchecked")
+    final Map<String, Number> summary = (Map<String, Number>) responseEntity.getBody();
+    assertEquals(6, summary.get("read").intValue());
+    assertEquals(3, summary.get("imported").intValue());
+    assertEquals(3, summary.get("skipped").intValue());
+
+    final List<MutualFundShare> shares = this.mfsRepository.findAll();
+    assertEquals(3, shares.size());
+    for (final MutualFundShare share : shares) {
+      assertEquals(fund.getId(), share.getFund().getId());
+      assertTrue(share.getValue().compareTo(BigDecimal.ONE) > 0);
+    }
+  }
+
+  @Test
+  public void navTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory());
+
+    this.mfsRepository.save(shareFactory(fund, "05/01/2018", "1.3"));
+    this.mfsRepository.save(shareFactory(fund, "02/01/2018", "1.1"));
+    final MutualFundShare third = this.mfsRepository.save(shareFactory(fund, "03/01/2018", "1.2"));
+
+    final String url = "/api/mutualfundshares/v1/" + fund.getId() + "/nav";
+    ResponseEntity<Object> responseEntity = this.restTemplate.getForEntity(url + "?from=01/01/2018&to=04/01/2018", Object.class);
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+    @SuppressWarnings("unchecked")
+    final Map<String, Number> range = (Map<String, Number>) responseEntity.getBody();
+    assertEquals(2, range.size());
+    final Iterator<Map.Entry<String, Number>> it = range.entrySet().iterator();
+    Map.Entry<String, Number> entry = it.next();
+    assertEquals("02/01/2018", entry.getKey());
+    assertEquals(0, new BigDecimal("1.1").compareTo(new BigDecimal(entry.getValue().toString())));
+    entry = it.next();
+    assertEquals("03/01/2018", entry.getKey());
+
+    // Committed changes are applied to the open series
+    third.setDate(Utils.toDate("04/01/2018"));
+    third.setValue(new BigDecimal("1.25"));
+    this.mfsRepository.save(third);
+    this.mfsRepository.save(shareFactory(fund, "08/01/2018", "1.4"));
+
+    assertNull(this.navStore.valueAt(fund.getId(), Utils.toDate("03/01/2018")));
+    assertEquals(0, new BigDecimal("1.25").compareTo(this.navStore.valueAt(fund.getId(), Utils.toDate("04/01/2018"))));
+
+    responseEntity = this.restTemplate.getForEntity(url + "/asof?date=07/01/2018", Object.class);
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    assertEquals(0, new BigDecimal("1.3").compareTo(new BigDecimal(responseEntity.getBody().toString())));
+
+    this.mfsRepository.delete(third);
+    assertNull(this.navStore.valueAt(fund.getId(), Utils.toDate("04/01/2018")));
+
+    responseEntity = this.restTemplate.getForEntity(url + "/asof?date=01/01/2018", Object.class);
+    assertEquals(HttpStatus.NOT_FOUND, responseEntity.getStatusCode());
+
+    responseEntity = this.restTemplate.getForEntity(url + "/asof?date=invalid", Object.class);
+    assertEquals(HttpStatus.BAD_REQUEST, responseEntity.getStatusCode());
+  }
+
+  @Test
+  public void navFingerprintTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory());
+    this.mfsRepository.save(shareFactory(fund, "02/01/2018", "1.1"));
+    this.mfsRepository.save(shareFactory(fund, "03/01/2018", "1.2"));
+    this.mfsRepository.save(shareFactory(fund, "04/01/2018", "1.3"));
+    assertEquals(0, new BigDecimal("1.1").compareTo(this.navStore.valueAt(fund.getId(), Utils.toDate("02/01/2018"))));
+    this.navStore.close();
+
+    // Swapped values keep the count, the dates and the sum, but the series is still rebuilt when reopened
+    final String update = "UPDATE mutual_fund_share SET value = ? WHERE mutual_fund_id = ? AND date = ?";
+    this.jdbcTemplate.update(update, new BigDecimal("1.3"), fund.getId(), new java.sql.Date(Utils.toDate("02/01/2018").getTime()));
+    this.jdbcTemplate.update(update, new BigDecimal("1.1"), fund.getId(), new java.sql.Date(Utils.toDate("04/01/2018").getTime()));
+
+    assertEquals(0, new BigDecimal("1.3").compareTo(this.navStore.valueAt(fund.getId(), Utils.toDate("02/01/2018"))));
+    assertEquals(0, new BigDecimal("1.1").compareTo(this.navStore.valueAt(fund.getId(), Utils.toDate("04/01/2018"))));
+  }
+
+  @Test
+  public void historyTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory());
+
+    this.mfsRepository.save(shareFactory(fund, "05/01/2018", "1.3"));
+    this.mfsRepository.save(shareFactory(fund, "02/01/2018", "1.1"));
+    this.mfsRepository.save(shareFactory(fund, "03/01/2018", "1.2"));
+
+    final String url = "/api/mutualfundshares/v1/" + fund.getId() + "/history";
+    final ResponseEntity<List<DatedValue>> responseEntity = this.restTemplate.exchange(url + "?from=03/01/2018&to=31/01/2018", HttpMethod.GET, null,
+        new ParameterizedTypeReference<List<DatedValue>>() {
+        });
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    assertEquals(2, responseEntity.getBody().size());
+    assertEquals("03/01/2018", responseEntity.getBody().get(0).getDate());
+    assertEquals(0, new BigDecimal("1.2").compareTo(responseEntity.getBody().get(0).getValue()));
+    assertEquals("05/01/2018", responseEntity.getBody().get(1).getDate());
+
+    final ResponseEntity<String> ndjson = this.restTemplate.getForEntity(url + "?from=01/01/2018&to=04/01/2018&format=ndjson", String.class);
+    assertEquals(HttpStatus.OK, ndjson.getStatusCode());
+    assertEquals(2, ndjson.getBody().split("\n").length);
+
+    assertEquals(HttpStatus.BAD_REQUEST, this.restTemplate.getForEntity(url + "?from=invalid&to=04/01/2018", String.class).getStatusCode());
+
+    assertEquals(0, new BigDecimal("1.2").compareTo(
+        this.mfsRepository.findFirstByMutualFundIdAndDateLessThanEqualOrderByDateDesc(fund.getId(), Utils.toDate("04/01/2018")).get().getValue()));
+    assertFalse(this.mfsRepository.findFirstByMutualFundIdAndDateLessThanEqualOrderByDateDesc(fund.getId(), Utils.toDate("01/01/2018")).isPresent());
+  }
+
+  /**
+   * @return A mutual fund created on 02/01/2018, with no shares nor value. The manager is also its trustee.
+   */
+  public static MutualFund mutualFundFactory(LegalEntity fund, LegalEntity manager) {
+    final MutualFund mf = new MutualFund();
+    mf.setFund(fund);
+    mf.setManager(manager);
+    mf.setTrustee(manager);
+    mf.setShares(BigDecimal.ZERO);
+    mf.setValue(BigDecimal.ZERO);
+    mf.setCreationDate(Utils.toDate("02/01/2018"));
+    mf.setLastUpdated(Utils.toDate("02/01/2018"));
+    return mf;
+  }
+
+  public static MutualFundShare shareFactory(LegalEntity fund, String date, String value) {
+    final MutualFundShare share = new MutualFundShare();
+    share.setFund(fund);
+    share.setDate(Utils.toDate(date));
+    share.setValue(new BigDecimal(value));
+    return share;
+  }
+
+  private void createRow(Sheet sheet, int index, String ntpid, Date date, double value, CellStyle dateStyle) {
+    final Row row = sheet.createRow(index);
+    row.createCell(0).setCellValue(ntpid);
+    row.createCell(1).setCellValue(date);
+    row.getCell(1).setCellStyle(dateStyle);
+    row.createCell(2).setCellValue(value);
+  }
+}
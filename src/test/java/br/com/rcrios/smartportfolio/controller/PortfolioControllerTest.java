@@ -3,14 +3,28 @@ package br.com.rcrios.smartportfolio.controller;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.math.BigDecimal;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -21,16 +35,37 @@ import org.springframework.boot.configurationprocessor.json.JSONException;
 import org.springframework.boot.configurationprocessor.json.JSONObject;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.model.LegalEntity;
 import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.InvalidObject;
 import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.model.PortfolioFacts;
+import br.com.rcrios.smartportfolio.model.TrendType;
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundShareRepository;
+import br.com.rcrios.smartportfolio.repository.PortfolioClosureRepository;
+import br.com.rcrios.smartportfolio.repository.PortfolioNode;
 import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+import br.com.rcrios.smartportfolio.service.PortfolioClosureMaintainer;
+import br.com.rcrios.smartportfolio.service.PortfolioFactsEngine;
+import br.com.rcrios.smartportfolio.service.PropagationQueue;
+import br.com.rcrios.smartportfolio.service.WriteConflict;
+
+import io.micrometer.core.instrument.MeterRegistry;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
@@ -43,12 +78,54 @@ public class PortfolioControllerTest {
   @Autowired
   private PortfolioRepository pRepository;
 
+  @Autowired
+  private MutualFundRepository mfRepository;
+
+  @Autowired
+  private MutualFundShareRepository mfsRepository;
+
+  @Autowired
+  private LegalEntityRepository leRepository;
+
   @Autowired
   private TestHelper testHelper;
 
+  @Autowired
+  private PortfolioController controller;
+
+  @Autowired
+  private PortfolioFactsEngine factsEngine;
+
+  @Autowired
+  private PropagationQueue queue;
+
+  @Autowired
+  private PortfolioClosureRepository closures;
+
+  @Autowired
+  private PortfolioClosureMaintainer closureMaintainer;
+
+  @Autowired
+  private MeterRegistry registry;
+
   @After
   public void cleanup() {
-    this.pRepository.deleteAll();
+    // Children must be removed before their masters
+    final List<Portfolio> all = this.pRepository.findAll();
+    all.sort((a, b) -> Integer.compare(depth(b), depth(a)));
+    this.pRepository.deleteAll(all);
+
+    this.mfRepository.deleteAll();
+    this.mfsRepository.deleteAll();
+    this.leRepository.deleteAll();
+  }
+
+  private static int depth(Portfolio portfolio) {
+    int depth = 0;
+    for (Portfolio master = portfolio.getMaster(); master != null; master = master.getMaster()) {
+      depth++;
+    }
+    return depth;
   }
 
   private static final String name = "unit test " + System.nanoTime();
@@ -74,14 +151,12 @@ public class PortfolioControllerTest {
     assertEquals(HttpStatus.CREATED, responseEntity.getStatusCode());
     assertEquals(MediaType.APPLICATION_JSON_UTF8, responseEntity.getHeaders().getContentType());
 
-    final SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
-
     final Portfolio created = responseEntity.getBody();
     assertNotNull(created.getId());
     assertEquals(name, created.getName());
     assertTrue(shares.compareTo(created.getShares()) == 0);
     assertTrue(shareValue.compareTo(created.getShareValue()) == 0);
-    assertEquals(sdf.format(shareValueDate), sdf.format(created.getShareValueDate()));
+    assertEquals(Utils.toString(shareValueDate), Utils.toString(created.getShareValueDate()));
     assertTrue(value.compareTo(created.getValue()) == 0);
     assertTrue(benchmarkValue.compareTo(created.getBenchmarkValue()) == 0);
 
@@ -92,7 +167,7 @@ public class PortfolioControllerTest {
     assertEquals(name, retrived.getName());
     assertTrue(shares.compareTo(retrived.getShares()) == 0);
     assertTrue(shareValue.compareTo(retrived.getShareValue()) == 0);
-    assertEquals(sdf.format(shareValueDate), sdf.format(retrived.getShareValueDate()));
+    assertEquals(Utils.toString(shareValueDate), Utils.toString(retrived.getShareValueDate()));
     assertTrue(value.compareTo(retrived.getValue()) == 0);
     assertTrue(benchmarkValue.compareTo(retrived.getBenchmarkValue()) == 0);
   }
@@ -130,12 +205,568 @@ public class PortfolioControllerTest {
     final BigDecimal updtShares = master.getShares().add(child.getValue().divide(master.getShareValue()));
     final BigDecimal updtValue = master.getShareValue().multiply(updtShares);
 
-    final SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
-
     assertTrue(updtShares.compareTo(masterPostUpdate.getShares()) == 0);
     assertTrue(updtValue.compareTo(masterPostUpdate.getValue()) == 0);
     assertTrue(master.getShareValue().compareTo(masterPostUpdate.getShareValue()) == 0);
-    assertEquals(sdf.format(child.getLastUpdated()), sdf.format(masterPostUpdate.getLastUpdated()));
+    assertEquals(Utils.toString(child.getLastUpdated()), Utils.toString(masterPostUpdate.getLastUpdated()));
+  }
+
+  @Test
+  public void success_save_propagates_to_all_masters() {
+    final Portfolio root = this.pRepository.save(objFactory());
+
+    final Portfolio master = objFactory();
+    master.setName("unit test master " + System.nanoTime());
+    master.setMaster(root);
+    final Portfolio savedMaster = this.pRepository.save(master);
+
+    final JSONObject childBody = jsonFactory("unit test child " + System.nanoTime(), shares, shareValue, shareValueDate, value, benchmarkValue, lastUpdated,
+        savedMaster);
+    final ResponseEntity<Portfolio> responseEntity = this.restTemplate.exchange("/api/portfolios/v1/", HttpMethod.POST,
+        this.testHelper.getPostRequestHeaders(childBody.toString()), Portfolio.class);
+    assertEquals(HttpStatus.CREATED, responseEntity.getStatusCode());
+
+    final BigDecimal updtShares = shares.add(value.divide(shareValue));
+
+    for (final Long id : new Long[] { root.getId(), savedMaster.getId() }) {
+      final Portfolio updated = this.pRepository.findById(id).get();
+      assertTrue(updtShares.compareTo(updated.getShares()) == 0);
+      assertTrue(shareValue.multiply(updtShares).compareTo(updated.getValue()) == 0);
+    }
+  }
+
+  @Test
+  public void valuationTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    final LegalEntity manager = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test manager", "2", "manager"));
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "02/01/2018", "1.5"));
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "05/01/2018", "2"));
+
+    final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, manager);
+    mf.setShares(new BigDecimal("100"));
+
+    final Portfolio root = objFactory();
+    root.setShares(BigDecimal.TEN);
+    this.pRepository.save(root);
+
+    final Portfolio holder = objFactory();
+    holder.setMaster(root);
+    holder.add(this.mfRepository.save(mf));
+    this.pRepository.save(holder);
+
+    final Portfolio leaf = objFactory();
+    leaf.setMaster(root);
+    this.pRepository.save(leaf);
+
+    final ResponseEntity<Object> responseEntity = this.restTemplate.exchange("/api/portfolios/v1/valuation?date=03/01/2018", HttpMethod.POST,
+        this.testHelper.getRequestHeaders(), Object.class);
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+    @SuppressWarnings("unchecked")
+    final Map<String, Number> summary = (Map<String, Number>) responseEntity.getBody();
+    assertEquals(2, summary.get("portfolios").intValue());
+    assertEquals(1, summary.get("mutualFunds").intValue());
+    assertEquals(0, summary.get("unquoted").intValue());
+
+    assertEquals(0, new BigDecimal("150").compareTo(this.mfRepository.findById(mf.getId()).get().getValue()));
+
+    final Portfolio valuedHolder = this.pRepository.findById(holder.getId()).get();
+    assertEquals(0, new BigDecimal("150").compareTo(valuedHolder.getValue()));
+    assertEquals(0, new BigDecimal("150").compareTo(valuedHolder.getShareValue()));
+    assertEquals("03/01/2018", Utils.toString(valuedHolder.getShareValueDate()));
+
+    final Portfolio unchangedLeaf = this.pRepository.findById(leaf.getId()).get();
+    assertEquals(0, value.compareTo(unchangedLeaf.getValue()));
+
+    // Read through the hierarchy cache, which must have been evicted
+    final ResponseEntity<Portfolio> rootEntity = this.restTemplate.exchange("/api/portfolios/v1/root", HttpMethod.GET, this.testHelper.getRequestHeaders(),
+        Portfolio.class);
+    assertEquals(0, new BigDecimal("160").compareTo(rootEntity.getBody().getValue()));
+    assertEquals(0, new BigDecimal("16").compareTo(rootEntity.getBody().getShareValue()));
+  }
+
+  @Test
+  public void concurrentAttachTest() throws Exception {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    final LegalEntity manager = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test manager", "2", "manager"));
+
+    final Portfolio root = this.pRepository.save(objFactory());
+    final Portfolio[] siblings = new Portfolio[2];
+    for (int i = 0; i < siblings.length; i++) {
+      siblings[i] = objFactory();
+      siblings[i].setMaster(root);
+      this.pRepository.save(siblings[i]);
+    }
+
+    // The default client doesn't support PATCH, so the controller is called directly.
+    // Siblings take different stripes, attaches to the same sibling wait for each other, and all of them update the root
+    final int attaches = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<ResponseEntity<Portfolio>>> responses = new ArrayList<>();
+      for (int i = 0; i < attaches * siblings.length; i++) {
+        final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, manager);
+        mf.setShares(BigDecimal.ONE);
+        mf.setValue(BigDecimal.TEN);
+        final MutualFund saved = this.mfRepository.save(mf);
+
+        final Long id = siblings[i % siblings.length].getId();
+        responses.add(executor.submit(() -> this.controller.attach(id, saved, false)));
+      }
+      for (final Future<ResponseEntity<Portfolio>> response : responses) {
+        assertEquals(HttpStatus.OK, response.get().getStatusCode());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    // Every portfolio starts with value 10 and each attach adds 10
+    for (final Portfolio sibling : siblings) {
+      final Portfolio updated = this.pRepository.findById(sibling.getId()).get();
+      assertEquals(attaches, updated.getMutualFund().size());
+      assertEquals(0, new BigDecimal(10 + 10 * attaches).compareTo(updated.getValue()));
+    }
+    final Portfolio updatedRoot = this.pRepository.findById(root.getId()).get();
+    assertEquals(0, new BigDecimal(10 + 10 * attaches * siblings.length).compareTo(updatedRoot.getValue()));
+    assertTrue(updatedRoot.getVersion() >= attaches * siblings.length);
+  }
+
+  @Test
+  public void propagationRoundingTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    final LegalEntity manager = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test manager", "2", "manager"));
+
+    // 10 / 3 doesn't fit the scale of the columns
+    final Portfolio root = objFactory();
+    root.setShareValue(new BigDecimal("3"));
+    root.setValue(new BigDecimal("3"));
+    this.pRepository.save(root);
+
+    final Portfolio child = objFactory();
+    child.setMaster(root);
+    this.pRepository.save(child);
+
+    final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, manager);
+    mf.setShares(BigDecimal.ONE);
+    mf.setValue(BigDecimal.TEN);
+    final Portfolio attached = this.controller.attach(child.getId(), this.mfRepository.save(mf), false).getBody();
+
+    // The master returned is the one that was written
+    final Portfolio written = this.pRepository.findById(root.getId()).get();
+    assertEquals(written.getShares(), attached.getMaster().getShares());
+    assertEquals(written.getValue(), attached.getMaster().getValue());
+    assertEquals(0, new BigDecimal("4.333333").compareTo(written.getShares()));
+    assertEquals(0, new BigDecimal("12.999999").compareTo(written.getValue()));
+  }
+
+  @Test
+  public void staleSaveTest() {
+    final Portfolio master = this.pRepository.save(objFactory());
+    final Portfolio created = objFactory();
+    created.setMaster(master);
+    this.pRepository.save(created);
+
+    final Portfolio stale = this.pRepository.findById(created.getId()).get();
+    final Portfolio current = this.pRepository.findById(created.getId()).get();
+    current.setName("unit test renamed " + System.nanoTime());
+    this.pRepository.save(current);
+
+    // A posted version that is no longer current is rejected at once, since retrying it would fail the same way
+    final double retries = this.registry.get("smartportfolio.portfolios.write.retries").counter().count();
+    try {
+      this.controller.save(stale, false);
+      fail("Stale version was saved");
+    } catch (final WriteConflict e) {
+      LOGGER.trace("Expected conflict", e);
+    }
+    assertEquals(retries, this.registry.get("smartportfolio.portfolios.write.retries").counter().count(), 0);
+    assertEquals(current.getName(), this.pRepository.findById(created.getId()).get().getName());
+  }
+
+  @Test
+  public void asyncAttachTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+
+    final Portfolio root = this.pRepository.save(objFactory());
+    final Portfolio[] siblings = new Portfolio[2];
+    for (int i = 0; i < siblings.length; i++) {
+      siblings[i] = objFactory();
+      siblings[i].setMaster(root);
+      this.pRepository.save(siblings[i]);
+    }
+
+    final double coalesced = this.registry.get("smartportfolio.propagation.queue.coalesced").counter().count();
+    final int attaches = 4;
+    for (int i = 0; i < attaches * siblings.length; i++) {
+      final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, fund);
+      mf.setShares(BigDecimal.ONE);
+      mf.setValue(BigDecimal.TEN);
+
+      final ResponseEntity<Portfolio> response = this.controller.attach(siblings[i % siblings.length].getId(), this.mfRepository.save(mf), true);
+      assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    // Children are committed, the root is still waiting for the flush (the window is long in tests)
+    for (final Portfolio sibling : siblings) {
+      assertEquals(0, new BigDecimal(10 + 10 * attaches).compareTo(this.pRepository.findById(sibling.getId()).get().getValue()));
+    }
+    assertEquals(0, value.compareTo(this.pRepository.findById(root.getId()).get().getValue()));
+    assertEquals(attaches * siblings.length, this.registry.get("smartportfolio.propagation.queue.depth").gauge().value(), 0);
+    // Both siblings have the root as master, so all values are summed into one
+    assertEquals(coalesced + attaches * siblings.length - 1,
+        this.registry.get("smartportfolio.propagation.queue.coalesced").counter().count(), 0);
+    assertTrue(this.registry.get("smartportfolio.propagation.queue.lag").timeGauge().value(TimeUnit.MILLISECONDS) >= 0);
+
+    // Values of both siblings reach the root in a single write
+    final long version = this.pRepository.findById(root.getId()).get().getVersion();
+    assertEquals(1, this.queue.flush());
+    final Portfolio updatedRoot = this.pRepository.findById(root.getId()).get();
+    assertEquals(0, new BigDecimal(10 + 10 * attaches * siblings.length).compareTo(updatedRoot.getValue()));
+    assertEquals(version + 1, updatedRoot.getVersion());
+    assertEquals(0, this.registry.get("smartportfolio.propagation.queue.depth").gauge().value(), 0);
+    assertEquals(0, this.registry.get("smartportfolio.propagation.queue.lag").timeGauge().value(TimeUnit.MILLISECONDS), 0);
+
+    // Reads go through the hierarchy cache, which must have been evicted
+    final ResponseEntity<Portfolio> rootEntity = this.restTemplate.exchange("/api/portfolios/v1/root", HttpMethod.GET, this.testHelper.getRequestHeaders(),
+        Portfolio.class);
+    assertEquals(0, updatedRoot.getValue().compareTo(rootEntity.getBody().getValue()));
+  }
+
+  @Test
+  public void failedFlushTest() {
+    final Portfolio master = this.pRepository.save(objFactory());
+    final Portfolio child = objFactory();
+    child.setMaster(master);
+    this.pRepository.save(child);
+
+    // Nothing can be propagated through a master with share value 0
+    final Portfolio broken = objFactory();
+    broken.setShareValue(BigDecimal.ZERO);
+    this.pRepository.save(broken);
+    final Portfolio brokenChild = objFactory();
+    brokenChild.setMaster(broken);
+    this.pRepository.save(brokenChild);
+
+    final double dropped = this.registry.get("smartportfolio.propagation.queue.dropped").counter().count();
+    this.queue.submit(child, BigDecimal.TEN);
+    this.queue.submit(brokenChild, BigDecimal.TEN);
+
+    // The broken value doesn't hold back the other one
+    assertEquals(1, this.queue.flush());
+    assertEquals(0, new BigDecimal("20").compareTo(this.pRepository.findById(master.getId()).get().getValue()));
+    assertEquals(1, this.queue.getDepth());
+
+    // It's retried by the following flushes, then dropped
+    int flushes = 1;
+    while (this.queue.getDepth() > 0) {
+      assertEquals(0, this.queue.flush());
+      flushes++;
+    }
+    assertEquals(5, flushes);
+    assertEquals(dropped + 1, this.registry.get("smartportfolio.propagation.queue.dropped").counter().count(), 0);
+    assertEquals(0, this.queue.flush());
+  }
+
+  @Test
+  public void factsTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "02/01/2018", "1.5"));
+
+    final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, fund);
+    mf.setShares(new BigDecimal("100"));
+
+    final Portfolio root = objFactory();
+    root.setShares(BigDecimal.TEN);
+    root.setShareValueDate(Utils.toDate("01/01/2018"));
+    this.pRepository.save(root);
+
+    final Portfolio holder = objFactory();
+    holder.setMaster(root);
+    holder.setShareValueDate(Utils.toDate("01/01/2018"));
+    holder.add(this.mfRepository.save(mf));
+    this.pRepository.save(holder);
+
+    final Portfolio leaf = objFactory();
+    leaf.setMaster(root);
+    this.pRepository.save(leaf);
+
+    // Root 10 -> 16, holder 10 -> 150. The leaf isn't valued.
+    this.controller.value("03/01/2018");
+    this.controller.value("03/01/2018");
+
+    final Map<Long, PortfolioFacts> facts = this.factsEngine.getFacts();
+    assertSame(facts, this.factsEngine.getFacts());
+
+    final PortfolioFacts rootFacts = facts.get(root.getId());
+    assertEquals(TrendType.UP, rootFacts.getTrendType());
+    assertEquals(0, new BigDecimal("0.6").compareTo(rootFacts.getVariation()));
+    assertFalse(rootFacts.isAsset());
+    assertNull(rootFacts.getShare());
+
+    final PortfolioFacts leafFacts = facts.get(leaf.getId());
+    assertEquals(TrendType.FLAT, leafFacts.getTrendType());
+    assertNull(leafFacts.getVariation());
+    assertEquals(0, new BigDecimal("0.0625").compareTo(leafFacts.getShare()));
+
+    // Attached to responses
+    final ResponseEntity<Portfolio> holderEntity = this.restTemplate.exchange("/api/portfolios/v1/" + holder.getId(), HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), Portfolio.class);
+    final PortfolioFacts holderFacts = holderEntity.getBody().getFacts();
+    assertEquals(TrendType.UP, holderFacts.getTrendType());
+    assertEquals(0, new BigDecimal("14").compareTo(holderFacts.getVariation()));
+    assertTrue(holderFacts.isAsset());
+    assertEquals(0, new BigDecimal("0.9375").compareTo(holderFacts.getShare()));
+    assertEquals(TrendType.UP, holderEntity.getBody().getMaster().getFacts().getTrendType());
+
+    // Lists and streams also attach facts to masters, even when the master isn't listed
+    final ResponseEntity<List<Portfolio>> page = this.restTemplate.exchange("/api/portfolios/v1/?after=" + root.getId(), HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), new ParameterizedTypeReference<List<Portfolio>>() {
+        });
+    assertEquals(holder.getId(), page.getBody().get(0).getId());
+    assertEquals(TrendType.UP, page.getBody().get(0).getMaster().getFacts().getTrendType());
+    final ResponseEntity<List<Portfolio>> streamed = this.restTemplate.exchange("/api/portfolios/v1/stream", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), new ParameterizedTypeReference<List<Portfolio>>() {
+        });
+    assertEquals(leaf.getId(), streamed.getBody().get(2).getId());
+    assertEquals(TrendType.UP, streamed.getBody().get(2).getMaster().getFacts().getTrendType());
+
+    final ResponseEntity<Object> summaries = this.restTemplate.exchange("/api/portfolios/v1/?view=summary", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), Object.class);
+    @SuppressWarnings("unchecked")
+    final List<Map<String, Map<String, Object>>> list = (List<Map<String, Map<String, Object>>>) summaries.getBody();
+    assertEquals(3, list.size());
+    assertEquals(Boolean.TRUE, list.get(1).get("facts").get("asset"));
+
+    // A later valuation moves the previous share value forward: 150 -> 200
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "05/01/2018", "2"));
+    this.controller.value("05/01/2018");
+
+    final Map<Long, PortfolioFacts> later = this.factsEngine.getFacts();
+    assertNotSame(facts, later);
+    assertEquals(0, new BigDecimal("0.333333").compareTo(later.get(holder.getId()).getVariation()));
+    assertEquals("03/01/2018", Utils.toString(this.pRepository.findById(holder.getId()).get().getPreviousShareValueDate()));
+  }
+
+  @Test
+  public void conditionalGetTest() {
+    final Portfolio root = this.pRepository.save(objFactory());
+    final Portfolio child = objFactory();
+    child.setMaster(root);
+    child.setLastUpdated(Utils.toDate("02/01/2018"));
+    this.pRepository.save(child);
+
+    final String url = "/api/portfolios/v1/" + child.getId();
+    final ResponseEntity<String> first = this.conditionalGet(url, null, null);
+    assertEquals(HttpStatus.OK, first.getStatusCode());
+    final String etag = first.getHeaders().getETag();
+    assertNotNull(etag);
+    // lastUpdated of the root is today
+    assertEquals(-1, first.getHeaders().getLastModified());
+
+    final ResponseEntity<String> unchanged = this.conditionalGet(url, etag, null);
+    assertEquals(HttpStatus.NOT_MODIFIED, unchanged.getStatusCode());
+    assertNull(unchanged.getBody());
+    assertEquals(etag, unchanged.getHeaders().getETag());
+    assertEquals(HttpStatus.NOT_MODIFIED, this.conditionalGet("/api/portfolios/v1?name=" + name, this.conditionalGet("/api/portfolios/v1?name=" + name, null, null)
+        .getHeaders().getETag(), null).getStatusCode());
+
+    // Masters are part of the representation
+    final String listEtag = this.conditionalGet("/api/portfolios/v1/", null, null).getHeaders().getETag();
+    root.setValue(new BigDecimal("20"));
+    this.pRepository.save(root);
+    final ResponseEntity<String> changed = this.conditionalGet(url, etag, null);
+    assertEquals(HttpStatus.OK, changed.getStatusCode());
+    assertFalse(etag.equals(changed.getHeaders().getETag()));
+    assertEquals(HttpStatus.OK, this.conditionalGet("/api/portfolios/v1/", listEtag, null).getStatusCode());
+
+    // And so are legal entities
+    final String rootEtag = this.conditionalGet("/api/portfolios/v1/root", null, null).getHeaders().getETag();
+    assertEquals(HttpStatus.NOT_MODIFIED, this.conditionalGet("/api/portfolios/v1/root", rootEtag, null).getStatusCode());
+    this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    assertEquals(HttpStatus.OK, this.conditionalGet("/api/portfolios/v1/root", rootEtag, null).getStatusCode());
+
+    // Summaries have a Last-Modified once the day of their latest lastUpdated is over
+    final Portfolio stored = this.pRepository.findById(root.getId()).get();
+    stored.setLastUpdated(Utils.toDate("01/01/2018"));
+    this.pRepository.save(stored);
+    final ResponseEntity<String> summaries = this.conditionalGet("/api/portfolios/v1/?view=summary", null, null);
+    assertEquals(Utils.toDate("02/01/2018").getTime(), summaries.getHeaders().getLastModified());
+    assertEquals(HttpStatus.NOT_MODIFIED,
+        this.conditionalGet("/api/portfolios/v1/?view=summary", null, summaries.getHeaders().getLastModified()).getStatusCode());
+    assertEquals(HttpStatus.NOT_MODIFIED, this.conditionalGet("/api/portfolios/v1/stream", this.conditionalGet("/api/portfolios/v1/stream", null, null)
+        .getHeaders().getETag(), null).getStatusCode());
+  }
+
+  @Test
+  public void smileTest() throws Exception {
+    final Portfolio root = this.pRepository.save(objFactory());
+    for (int i = 0; i < 20; i++) {
+      final Portfolio child = objFactory();
+      child.setMaster(root);
+      this.pRepository.save(child);
+    }
+
+    final HttpHeaders headers = new HttpHeaders();
+    headers.setAccept(Arrays.asList(SmileSupport.SMILE, MediaType.parseMediaType("application/json;q=0.5")));
+    final ResponseEntity<byte[]> smile = this.restTemplate.exchange("/api/portfolios/v1/", HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+    assertEquals(HttpStatus.OK, smile.getStatusCode());
+    assertTrue(SmileSupport.SMILE.includes(smile.getHeaders().getContentType()));
+
+    final ObjectMapper reader = new ObjectMapper(new SmileFactory());
+    final List<?> list = reader.readValue(smile.getBody(), List.class);
+    assertEquals(21, list.size());
+
+    final ResponseEntity<byte[]> json = this.restTemplate.exchange("/api/portfolios/v1/", HttpMethod.GET, this.testHelper.getRequestHeaders(), byte[].class);
+    assertTrue(smile.getBody().length < json.getBody().length);
+    assertFalse(json.getHeaders().getETag().equals(smile.getHeaders().getETag()));
+    assertTrue(smile.getHeaders().getVary().contains(HttpHeaders.ACCEPT));
+
+    final ResponseEntity<byte[]> stream = this.restTemplate.exchange("/api/portfolios/v1/stream", HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+    assertTrue(SmileSupport.SMILE.includes(stream.getHeaders().getContentType()));
+    assertEquals(21, reader.readValue(stream.getBody(), List.class).size());
+
+    headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+    final ResponseEntity<byte[]> gzip = this.restTemplate.exchange("/api/portfolios/v1/", HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+    assertEquals("gzip", gzip.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.getBody()))) {
+      assertEquals(21, reader.readValue(in, List.class).size());
+    }
+  }
+
+  private ResponseEntity<String> conditionalGet(String url, String etag, Long lastModified) {
+    final HttpHeaders headers = new HttpHeaders();
+    headers.setAccept(this.testHelper.getRequestHeaders().getHeaders().getAccept());
+    if (etag != null) {
+      headers.setIfNoneMatch(etag);
+    }
+    if (lastModified != null) {
+      headers.setIfModifiedSince(lastModified);
+    }
+    return this.restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+  }
+
+  @Test
+  public void subtreeTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("subtree test fund", "1", "fund"));
+    final LegalEntity manager = this.leRepository.save(LegalEntityControllerTest.objFactory("subtree test manager", "2", "manager"));
+    final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, manager);
+    mf.setShares(new BigDecimal("100"));
+    mf.setValue(new BigDecimal("150"));
+
+    // root <- a <- b, root <- c
+    final Portfolio root = this.pRepository.save(objFactory());
+    final Portfolio a = objFactory();
+    a.setMaster(root);
+    this.pRepository.save(a);
+    final Portfolio b = objFactory();
+    b.setMaster(a);
+    b.add(this.mfRepository.save(mf));
+    this.pRepository.save(b);
+    final Portfolio c = objFactory();
+    c.setMaster(root);
+    this.pRepository.save(c);
+
+    assertEquals(Arrays.asList(a.getId(), root.getId()), this.closures.findAncestorIds(b.getId()));
+    assertEquals(Arrays.asList(root.getId(), a.getId(), c.getId(), b.getId()), this.closures.findSubtreeIds(root.getId()));
+
+    final List<PortfolioNode> ancestry = this.pRepository.findAncestry(b.getId());
+    assertEquals(3, ancestry.size());
+    assertEquals(b.getId(), ancestry.get(0).getId());
+    assertEquals(3, ancestry.get(2).getDepth().intValue());
+
+    ResponseEntity<Object> responseEntity = this.restTemplate.exchange("/api/portfolios/v1/" + a.getId() + "/subtree", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), Object.class);
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    @SuppressWarnings("unchecked")
+    final List<Map<String, Object>> subtree = (List<Map<String, Object>>) responseEntity.getBody();
+    assertEquals(2, subtree.size());
+    assertEquals(b.getId().intValue(), ((Number) subtree.get(1).get("id")).intValue());
+
+    responseEntity = this.restTemplate.exchange("/api/portfolios/v1/" + root.getId() + "/subtree/totals", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), Object.class);
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    @SuppressWarnings("unchecked")
+    final Map<String, Object> totals = (Map<String, Object>) responseEntity.getBody();
+    assertEquals(4, ((Number) totals.get("portfolios")).intValue());
+    assertEquals(2, ((Number) totals.get("height")).intValue());
+    assertEquals(1, ((Number) totals.get("mutualFunds")).intValue());
+    assertEquals(0, new BigDecimal("150").compareTo(new BigDecimal(totals.get("mutualFundValue").toString())));
+
+    assertEquals(HttpStatus.NOT_FOUND, this.restTemplate
+        .exchange("/api/portfolios/v1/" + (b.getId() + 1000) + "/subtree/totals", HttpMethod.GET, this.testHelper.getRequestHeaders(), Object.class)
+        .getStatusCode());
+
+    // Moving a portfolio takes its subtree along
+    final Portfolio movedA = this.pRepository.findById(a.getId()).get();
+    movedA.setMaster(c);
+    this.controller.save(movedA, false);
+    assertEquals(Arrays.asList(a.getId(), c.getId(), root.getId()), this.closures.findAncestorIds(b.getId()));
+    assertEquals(Arrays.asList(c.getId(), a.getId(), b.getId()), this.closures.findSubtreeIds(c.getId()));
+
+    // But never below itself
+    final Portfolio cycle = this.pRepository.findById(c.getId()).get();
+    cycle.setMaster(b);
+    try {
+      this.controller.save(cycle, false);
+      fail("Moving a portfolio below itself must fail");
+    } catch (final InvalidObject e) {
+      assertEquals(Arrays.asList(root.getId()), this.closures.findAncestorIds(c.getId()));
+    }
+
+    // A rebuild from masters yields the same rows
+    final long rows = this.closures.count();
+    assertEquals(rows, this.closureMaintainer.rebuild());
+    assertEquals(Arrays.asList(a.getId(), c.getId(), root.getId()), this.closures.findAncestorIds(b.getId()));
+  }
+
+  @Test
+  public void exportTest() throws Exception {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("export test fund", "1", "fund"));
+    final LegalEntity other = this.leRepository.save(LegalEntityControllerTest.objFactory("export test other", "2", "other"));
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "02/01/2018", "1.5"));
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "05/01/2018", "2"));
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "05/02/2018", "2.5"));
+    // Not held by any portfolio
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(other, "05/01/2018", "3"));
+
+    final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, other);
+    mf.setShares(new BigDecimal("100"));
+    mf.setValue(new BigDecimal("150"));
+
+    final Portfolio root = this.pRepository.save(objFactory());
+    final Portfolio child = objFactory();
+    child.setMaster(root);
+    child.add(this.mfRepository.save(mf));
+    this.pRepository.save(child);
+
+    final ResponseEntity<byte[]> responseEntity = this.restTemplate.exchange("/api/portfolios/v1/export?to=31/01/2018", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), byte[].class);
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    assertEquals("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", responseEntity.getHeaders().getContentType().toString());
+    assertTrue(responseEntity.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION).contains("smartportfolio-20180131.xlsx"));
+
+    try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(responseEntity.getBody()))) {
+      assertEquals(3, workbook.getNumberOfSheets());
+
+      final Sheet portfolios = workbook.getSheet("Portfolios");
+      assertEquals(2, portfolios.getLastRowNum());
+      assertEquals(root.getId().doubleValue(), portfolios.getRow(2).getCell(2).getNumericCellValue(), 0);
+
+      final Sheet holdings = workbook.getSheet("Holdings");
+      assertEquals(1, holdings.getLastRowNum());
+      assertEquals(child.getId().doubleValue(), holdings.getRow(1).getCell(0).getNumericCellValue(), 0);
+      assertEquals("export test fund", holdings.getRow(1).getCell(4).getStringCellValue());
+      assertEquals(150, holdings.getRow(1).getCell(6).getNumericCellValue(), 0);
+
+      // Only held funds, up to 'to'
+      final Sheet history = workbook.getSheet("NAV history");
+      assertEquals(2, history.getLastRowNum());
+      assertEquals("05/01/2018", Utils.toString(history.getRow(2).getCell(2).getDateCellValue()));
+      assertEquals(2, history.getRow(2).getCell(3).getNumericCellValue(), 0);
+    }
+
+    assertEquals(HttpStatus.BAD_REQUEST, this.restTemplate
+        .exchange("/api/portfolios/v1/export?from=invalid", HttpMethod.GET, this.testHelper.getRequestHeaders(), byte[].class).getStatusCode());
   }
 
   @Test
@@ -154,6 +785,58 @@ public class PortfolioControllerTest {
     assertFalse(list.isEmpty());
   }
 
+  @Test
+  public void getAllSummariesTest() {
+    final Portfolio master = this.pRepository.save(objFactory());
+    final Portfolio child = objFactory();
+    child.setMaster(master);
+    this.pRepository.save(child);
+
+    final ResponseEntity<Object> responseEntity = this.restTemplate.exchange("/api/portfolios/v1/?view=summary", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), Object.class);
+
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+    @SuppressWarnings("unchecked")
+    final List<Map<String, Object>> list = (List<Map<String, Object>>) responseEntity.getBody();
+    assertEquals(2, list.size());
+    assertFalse(list.get(0).containsKey("mutualFund"));
+    assertEquals(master.getId().intValue(), ((Number) list.get(1).get("masterId")).intValue());
+    assertEquals(name, list.get(1).get("masterName"));
+  }
+
+  @Test
+  public void streamTest() {
+    this.pRepository.save(objFactory());
+    this.pRepository.save(objFactory());
+
+    final ResponseEntity<Object> responseEntity = this.restTemplate.exchange("/api/portfolios/v1/stream", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), Object.class);
+
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    assertEquals(MediaType.APPLICATION_JSON_UTF8, responseEntity.getHeaders().getContentType());
+    assertEquals(2, ((List<?>) responseEntity.getBody()).size());
+  }
+
+  @Test
+  public void streamClearsPersistenceContextTest() {
+    // More portfolios than the clear interval, all sharing a master loaded before the clear
+    final Portfolio root = this.pRepository.save(objFactory());
+    for (int i = 0; i < 150; i++) {
+      final Portfolio child = objFactory();
+      child.setMaster(root);
+      this.pRepository.save(child);
+    }
+
+    final ResponseEntity<String> responseEntity = this.restTemplate.exchange("/api/portfolios/v1/stream?format=ndjson", HttpMethod.GET,
+        this.testHelper.getRequestHeaders(), String.class);
+    assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+    final String[] portfolios = responseEntity.getBody().split("\n");
+    assertEquals(151, portfolios.length);
+    assertTrue(portfolios[150].contains("\"master\":{\"id\":" + root.getId()));
+  }
+
   @Test
   public void testGetByName() {
     final Portfolio created = this.pRepository.save(objFactory());
@@ -166,13 +849,11 @@ public class PortfolioControllerTest {
     assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
     assertEquals(MediaType.APPLICATION_JSON_UTF8, responseEntity.getHeaders().getContentType());
 
-    final SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
-
     final Portfolio parsed = responseEntity.getBody();
     assertEquals(parsed.getName(), created.getName());
     assertTrue(parsed.getShares().compareTo(created.getShares()) == 0);
     assertTrue(parsed.getShareValue().compareTo(created.getShareValue()) == 0);
-    assertEquals(sdf.format(parsed.getShareValueDate()), sdf.format(created.getShareValueDate()));
+    assertEquals(Utils.toString(parsed.getShareValueDate()), Utils.toString(created.getShareValueDate()));
     assertTrue(parsed.getValue().compareTo(created.getValue()) == 0);
     assertTrue(parsed.getBenchmarkValue().compareTo(created.getBenchmarkValue()) == 0);
   }
@@ -0,0 +1,224 @@
+package br.com.rcrios.smartportfolio.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import br.com.rcrios.smartportfolio.controller.PortfolioController;
+import br.com.rcrios.smartportfolio.controller.LegalEntityControllerTest;
+import br.com.rcrios.smartportfolio.controller.MutualFundShareControllerTest;
+import br.com.rcrios.smartportfolio.controller.PortfolioControllerTest;
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.model.TransactionType;
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundRepository;
+import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class JournalTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Autowired
+  private Journal journal;
+
+  @Autowired
+  private HierarchySnapshots snapshots;
+
+  @Autowired
+  private PortfolioHierarchyCache cache;
+
+  @Autowired
+  private PortfolioRepository pRepository;
+
+  @Autowired
+  private MutualFundRepository mfRepository;
+
+  @Autowired
+  private LegalEntityRepository leRepository;
+
+  @Autowired
+  private MeterRegistry registry;
+
+  @Autowired
+  private PortfolioController controller;
+
+  @After
+  public void cleanup() {
+    // Children must be removed before their masters
+    this.pRepository.findAll().stream().filter(p -> p.getMaster() != null).forEach(this.pRepository::delete);
+    this.pRepository.deleteAll();
+
+    this.mfRepository.deleteAll();
+    this.leRepository.deleteAll();
+    this.cache.clear();
+  }
+
+  @Test
+  public void segmentTest() throws Exception {
+    final Path file = this.folder.getRoot().toPath().resolve("segment.journal");
+
+    final List<JournalEntry> entries = Arrays.asList(entry(11, TransactionType.BUY, "{\"shares\":1}", 7L),
+        entry(12, TransactionType.SELL, "{\"shares\":2}", 7L, 8L), entry(13, TransactionType.UPDATE, "{}"));
+    int end = 0;
+    try (JournalSegment segment = new JournalSegment(file, 11, 1024)) {
+      for (final JournalEntry entry : entries) {
+        assertTrue(segment.append(entry));
+        end += JournalSegment.size(entry) - 16;
+      }
+      assertFalse(segment.append(entry(14, TransactionType.UPDATE, new String(new char[1024]).replace('\0', 'x'))));
+    }
+
+    try (JournalSegment segment = new JournalSegment(file, 11, 1024)) {
+      assertEquals(13, segment.getLastSequence());
+
+      final List<JournalEntry> read = new ArrayList<>();
+      assertEquals(2, segment.read(11, read::add));
+      assertEquals(12, read.get(0).getSequence());
+      assertEquals(TransactionType.SELL, read.get(0).getType());
+      assertEquals("Deal", read.get(0).getAggregate());
+      assertTrue(Arrays.equals(new long[] { 7L, 8L }, read.get(0).getIds()));
+      assertEquals("{\"shares\":2}", read.get(0).getPayload());
+      assertEquals(0, read.get(1).getIds().length);
+    }
+
+    // A record torn by a crash is discarded and overwritten
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.seek(16 + end - 1);
+      raf.write('!');
+    }
+    try (JournalSegment segment = new JournalSegment(file, 11, 1024)) {
+      assertEquals(12, segment.getLastSequence());
+      assertTrue(segment.append(entry(13, TransactionType.BUY, "{\"shares\":3}")));
+    }
+    try (JournalSegment segment = new JournalSegment(file, 11, 1024)) {
+      final List<JournalEntry> read = new ArrayList<>();
+      segment.read(12, read::add);
+      assertEquals(1, read.size());
+      assertEquals(TransactionType.BUY, read.get(0).getType());
+    }
+  }
+
+  @Test
+  public void journalTest() {
+    final long before = this.journal.getSequence();
+    final double buys = this.registry.counter("smartportfolio.journal.entries", "type", "BUY").count();
+
+    this.journal.append(TransactionType.CREATE_PERSON, LegalEntity.class, Collections.singleton(1L),
+        LegalEntityControllerTest.objFactory("journal test", "1", "journal"));
+    this.journal.append(Arrays.asList(this.journal.entry(TransactionType.BUY, MutualFund.class, Collections.singleton(2L), null),
+        this.journal.entry(TransactionType.BUY, MutualFund.class, Collections.singleton(3L), null)));
+    assertEquals(before + 3, this.journal.getSequence());
+    assertEquals(buys + 2, this.registry.counter("smartportfolio.journal.entries", "type", "BUY").count(), 0);
+
+    final List<JournalEntry> read = new ArrayList<>();
+    assertEquals(3, this.journal.read(before, read::add));
+    assertEquals(TransactionType.CREATE_PERSON, read.get(0).getType());
+    assertTrue(read.get(0).isAbout(LegalEntity.class));
+    assertTrue(read.get(0).getPayload().contains("\"journal test\""));
+    assertEquals(before + 3, read.get(2).getSequence());
+    assertEquals(3L, read.get(2).getIds()[0]);
+  }
+
+  @Test
+  public void snapshotTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("snapshot test fund", "1", "fund"));
+    final LegalEntity manager = this.leRepository.save(LegalEntityControllerTest.objFactory("snapshot test manager", "2", "manager"));
+    final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, manager);
+    mf.setShares(new BigDecimal("100"));
+    mf.setValue(new BigDecimal("150"));
+
+    final Portfolio root = this.pRepository.save(PortfolioControllerTest.objFactory());
+    final Portfolio child = PortfolioControllerTest.objFactory();
+    child.setMaster(root);
+    child.add(this.mfRepository.save(mf));
+    this.pRepository.save(child);
+
+    this.snapshots.snapshot();
+    this.cache.clear();
+    assertTrue(this.snapshots.restore());
+    assertEquals(2, this.cache.getAll().size());
+    final Portfolio restored = this.cache.getById(child.getId()).get();
+    assertEquals(root.getId(), restored.getMaster().getId());
+    assertEquals("snapshot test fund", restored.getMutualFund().get(0).getFund().getName());
+    assertEquals(0, new BigDecimal("150").compareTo(restored.getMutualFund().get(0).getValue()));
+
+    // A journaled write is replayed
+    final Portfolio renamed = this.pRepository.findById(child.getId()).get();
+    renamed.setName("renamed child");
+    this.pRepository.save(renamed);
+    this.journal.append(TransactionType.UPDATE, Portfolio.class, Collections.singleton(child.getId()), renamed);
+    this.cache.clear();
+    assertTrue(this.snapshots.restore());
+    assertEquals("renamed child", this.cache.getById(child.getId()).get().getName());
+    assertEquals(child.getId(), this.cache.getByName("RENAMED CHILD").get().getId());
+
+    // Writes that weren't journaled make the snapshot useless
+    this.snapshots.snapshot();
+    final Portfolio unjournaled = this.pRepository.findById(root.getId()).get();
+    unjournaled.setValue(BigDecimal.ONE);
+    this.pRepository.save(unjournaled);
+    this.cache.clear();
+    assertFalse(this.snapshots.restore());
+    assertEquals(0, BigDecimal.ONE.compareTo(this.cache.getById(root.getId()).get().getValue()));
+
+    // And so does a journaled write of the whole hierarchy
+    this.snapshots.snapshot();
+    this.journal.append(TransactionType.UPDATE, Portfolio.class, Collections.emptyList(), null);
+    this.cache.clear();
+    assertFalse(this.snapshots.restore());
+    assertEquals(2, this.cache.getAll().size());
+  }
+
+  @Test
+  public void controllerRestoreTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("restore test fund", "1", "fund"));
+    final Portfolio root = this.controller.save(PortfolioControllerTest.objFactory(), false).getBody();
+    this.snapshots.snapshot();
+
+    // The snapshot doesn't know the child, but its writes also changed the root
+    final Portfolio child = PortfolioControllerTest.objFactory();
+    child.setName("restore test child");
+    child.setMaster(root);
+    final Long childId = this.controller.save(child, false).getBody().getId();
+
+    final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, fund);
+    mf.setShares(BigDecimal.ONE);
+    mf.setValue(BigDecimal.TEN);
+    this.controller.attach(childId, this.mfRepository.save(mf), false);
+
+    this.cache.clear();
+    assertTrue(this.snapshots.restore());
+    assertEquals(2, this.cache.getAll().size());
+    assertEquals(this.pRepository.findById(root.getId()).get().getVersion(), this.cache.getById(root.getId()).get().getVersion());
+    assertEquals(0, this.pRepository.findById(root.getId()).get().getValue().compareTo(this.cache.getRoot().get().getValue()));
+    assertEquals(1, this.cache.getById(childId).get().getMutualFund().size());
+  }
+
+  private static JournalEntry entry(long sequence, TransactionType type, String payload, long... ids) {
+    return new JournalEntry(sequence, System.currentTimeMillis(), type, "Deal", ids, payload);
+  }
+}
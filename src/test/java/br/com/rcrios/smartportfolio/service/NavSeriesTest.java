@@ -0,0 +1,38 @@
+package br.com.rcrios.smartportfolio.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NavSeriesTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void growKeepsPointsAndSurvivesReopening() throws Exception {
+    final Path file = this.folder.getRoot().toPath().resolve("1.nav");
+    final int points = 600;
+
+    try (NavSeries nav = new NavSeries(file)) {
+      for (int day = 0; day < points; day++) {
+        nav.put(day, day * 1_000_000L + 7);
+      }
+      assertEquals(points, nav.size());
+      assertEquals(299_000_007L, nav.valueAt(299));
+    }
+
+    try (NavSeries nav = new NavSeries(file)) {
+      assertEquals(points, nav.size());
+      assertEquals(0, nav.firstDay());
+      assertEquals(points - 1, nav.lastDay());
+      for (int day = 0; day < points; day++) {
+        assertEquals(day * 1_000_000L + 7, nav.valueAt(day));
+      }
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package br.com.rcrios.smartportfolio.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import br.com.rcrios.smartportfolio.controller.LegalEntityControllerTest;
+import br.com.rcrios.smartportfolio.controller.MutualFundShareControllerTest;
+import br.com.rcrios.smartportfolio.controller.PortfolioControllerTest;
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundRepository;
+import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class PortfolioHierarchyCacheTest {
+
+  @Autowired
+  private PortfolioHierarchyCache cache;
+
+  @Autowired
+  private PortfolioRepository pRepository;
+
+  @Autowired
+  private MutualFundRepository mfRepository;
+
+  @Autowired
+  private LegalEntityRepository leRepository;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  private Portfolio root;
+  private Portfolio child;
+
+  @Before
+  public void setup() {
+    this.root = this.pRepository.save(named("cache test root"));
+    final Portfolio portfolio = named("cache test child");
+    portfolio.setMaster(this.root);
+    this.child = this.pRepository.save(portfolio);
+    this.cache.clear();
+  }
+
+  @After
+  public void cleanup() {
+    // Children must be removed before their masters
+    this.pRepository.findAll().stream().filter(p -> p.getMaster() != null).forEach(this.pRepository::delete);
+    this.pRepository.deleteAll();
+    this.mfRepository.deleteAll();
+    this.leRepository.deleteAll();
+    this.cache.clear();
+  }
+
+  @Test
+  public void lazyRefreshTest() {
+    assertEquals("cache test child", this.cache.getById(this.child.getId()).get().getName());
+    final long generation = this.cache.getGeneration();
+
+    // Writes that bypass Hibernate aren't seen until they are evicted
+    this.jdbcTemplate.update("UPDATE portfolio SET name = ?, version = version + 1 WHERE id = ?", "renamed child", this.child.getId());
+    assertEquals("cache test child", this.cache.getById(this.child.getId()).get().getName());
+    assertEquals(generation, this.cache.getGeneration());
+
+    // Evicted nodes are reloaded by the next read, and only once
+    this.cache.evict(Collections.singleton(this.child.getId()));
+    assertEquals(generation + 1, this.cache.getGeneration());
+    assertEquals("renamed child", this.cache.getById(this.child.getId()).get().getName());
+    assertEquals(this.child.getId(), this.cache.getIdByName("RENAMED CHILD").get());
+    assertFalse(this.cache.getIdByName("cache test child").isPresent());
+    assertEquals(generation + 1, this.cache.getGeneration());
+  }
+
+  @Test
+  public void dirtyEvictionTest() {
+    assertEquals(0, BigDecimal.TEN.compareTo(this.cache.getById(this.child.getId()).get().getMaster().getValue()));
+
+    // Evicting a portfolio also evicts its masters, as master propagation does
+    this.jdbcTemplate.update("UPDATE portfolio SET value = ?, version = version + 1 WHERE id = ?", new BigDecimal("20"), this.root.getId());
+    this.cache.evict(Collections.singleton(this.child.getId()));
+    assertEquals(0, new BigDecimal("20").compareTo(this.cache.getById(this.child.getId()).get().getMaster().getValue()));
+    assertEquals(0, new BigDecimal("20").compareTo(this.cache.getRoot().get().getValue()));
+
+    // Evicted portfolios that no longer exist are removed from every index
+    this.jdbcTemplate.update("DELETE FROM portfolio_closure WHERE descendant_id = ?", this.child.getId());
+    this.jdbcTemplate.update("DELETE FROM portfolio WHERE id = ?", this.child.getId());
+    this.cache.evict(Collections.singleton(this.child.getId()));
+    assertFalse(this.cache.getById(this.child.getId()).isPresent());
+    assertTrue(this.cache.getChildren(this.root.getId()).isEmpty());
+    assertEquals(1, this.cache.getAll().size());
+  }
+
+  @Test
+  public void postCommitInvalidationTest() {
+    assertEquals("cache test child", this.cache.getById(this.child.getId()).get().getName());
+
+    final TransactionTemplate transaction = new TransactionTemplate(this.transactionManager);
+    transaction.execute(status -> {
+      final Portfolio renamed = this.pRepository.findById(this.child.getId()).get();
+      renamed.setName("committed child");
+      this.pRepository.saveAndFlush(renamed);
+
+      // Not committed yet, so the cache keeps serving the previous state
+      assertEquals("cache test child", this.cache.getById(this.child.getId()).get().getName());
+      return null;
+    });
+    assertEquals("committed child", this.cache.getById(this.child.getId()).get().getName());
+
+    // Rolled back changes never evict
+    final long generation = this.cache.getGeneration();
+    transaction.execute(status -> {
+      final Portfolio renamed = this.pRepository.findById(this.child.getId()).get();
+      renamed.setName("rolled back child");
+      this.pRepository.saveAndFlush(renamed);
+      this.cache.evictAfterCommit(Collections.singleton(this.root.getId()));
+      status.setRollbackOnly();
+      return null;
+    });
+    assertEquals(generation, this.cache.getGeneration());
+    assertEquals("committed child", this.cache.getById(this.child.getId()).get().getName());
+  }
+
+  @Test
+  public void holdingEvictionTest() {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("cache test fund", "1", "fund"));
+    final MutualFund mf = this.mfRepository.save(MutualFundShareControllerTest.mutualFundFactory(fund, fund));
+    final Portfolio holder = named("cache test holder");
+    holder.setMaster(this.root);
+    holder.add(mf);
+    final Long holderId = this.pRepository.save(holder).getId();
+    assertEquals("cache test fund", this.cache.getById(holderId).get().getMutualFund().get(0).getFund().getName());
+
+    // Returned mutual funds and legal entities are copies
+    this.cache.getById(holderId).get().getMutualFund().get(0).getFund().setName("changed by the caller");
+    assertEquals("cache test fund", this.cache.getById(holderId).get().getMutualFund().get(0).getFund().getName());
+
+    // A committed change of a legal entity evicts the portfolios embedding it
+    final LegalEntity renamed = this.leRepository.findById(fund.getId()).get();
+    renamed.setName("renamed fund");
+    this.leRepository.save(renamed);
+    assertEquals("renamed fund", this.cache.getById(holderId).get().getMutualFund().get(0).getFund().getName());
+
+    // And so does a committed change of a mutual fund
+    final MutualFund revalued = this.mfRepository.findById(mf.getId()).get();
+    revalued.setValue(new BigDecimal("42"));
+    this.mfRepository.save(revalued);
+    assertEquals(0, new BigDecimal("42").compareTo(this.cache.getById(holderId).get().getMutualFund().get(0).getValue()));
+  }
+
+  @Test
+  public void evictionDuringLoadTest() {
+    // A write committed while the first load runs may not be seen by its query
+    final PortfolioRepository loading = (PortfolioRepository) Proxy.newProxyInstance(PortfolioRepository.class.getClassLoader(),
+        new Class<?>[] { PortfolioRepository.class }, (proxy, method, args) -> {
+          try {
+            final Object result = method.invoke(this.pRepository, args);
+            if ("findAll".equals(method.getName()) && args == null) {
+              this.jdbcTemplate.update("UPDATE portfolio SET name = ?, version = version + 1 WHERE id = ?", "loading child", this.child.getId());
+              this.cache.evict(Collections.singleton(this.child.getId()));
+            }
+            return result;
+          } catch (final InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+
+    ReflectionTestUtils.setField(this.cache, "repo", loading);
+    try {
+      assertEquals(2, this.cache.getAll().size());
+    } finally {
+      ReflectionTestUtils.setField(this.cache, "repo", this.pRepository);
+    }
+    assertEquals("loading child", this.cache.getById(this.child.getId()).get().getName());
+  }
+
+  @Test
+  public void evictionBeforeRestoreTest() {
+    final List<Portfolio> snapshot = this.cache.export();
+    this.cache.clear();
+
+    // Evicted after the snapshot was taken, so the restored node is stale
+    this.jdbcTemplate.update("UPDATE portfolio SET name = ?, version = version + 1 WHERE id = ?", "restored child", this.child.getId());
+    this.cache.evict(Collections.singleton(this.child.getId()));
+
+    assertTrue(this.cache.restore(snapshot));
+    assertEquals("restored child", this.cache.getById(this.child.getId()).get().getName());
+  }
+
+  private static Portfolio named(String name) {
+    final Portfolio portfolio = PortfolioControllerTest.objFactory();
+    portfolio.setName(name);
+    return portfolio;
+  }
+}
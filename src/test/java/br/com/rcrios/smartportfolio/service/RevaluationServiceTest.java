@@ -0,0 +1,190 @@
+package br.com.rcrios.smartportfolio.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.Scheduler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import br.com.rcrios.smartportfolio.Utils;
+import br.com.rcrios.smartportfolio.controller.LegalEntityControllerTest;
+import br.com.rcrios.smartportfolio.controller.MutualFundShareControllerTest;
+import br.com.rcrios.smartportfolio.controller.PortfolioControllerTest;
+import br.com.rcrios.smartportfolio.model.LegalEntity;
+import br.com.rcrios.smartportfolio.model.MutualFund;
+import br.com.rcrios.smartportfolio.model.Portfolio;
+import br.com.rcrios.smartportfolio.model.ValuationCheckpoint;
+import br.com.rcrios.smartportfolio.model.ValuationRun;
+import br.com.rcrios.smartportfolio.repository.LegalEntityRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundRepository;
+import br.com.rcrios.smartportfolio.repository.MutualFundShareRepository;
+import br.com.rcrios.smartportfolio.repository.PortfolioRepository;
+import br.com.rcrios.smartportfolio.repository.ValuationCheckpointRepository;
+import br.com.rcrios.smartportfolio.repository.ValuationRunRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class RevaluationServiceTest {
+
+  @Autowired
+  private RevaluationService service;
+
+  @Autowired
+  private ValuationRunRepository runRepository;
+
+  @Autowired
+  private ValuationCheckpointRepository checkpointRepository;
+
+  @Autowired
+  private PortfolioRepository pRepository;
+
+  @Autowired
+  private MutualFundRepository mfRepository;
+
+  @Autowired
+  private MutualFundShareRepository mfsRepository;
+
+  @Autowired
+  private LegalEntityRepository leRepository;
+
+  @Autowired
+  private MeterRegistry registry;
+
+  @Autowired
+  private Scheduler scheduler;
+
+  @Autowired
+  private AutowireCapableBeanFactory beanFactory;
+
+  @After
+  public void cleanup() {
+    this.checkpointRepository.deleteAll();
+    this.runRepository.deleteAll();
+
+    // Children must be removed before their masters
+    this.pRepository.findAll().stream().filter(p -> p.getMaster() != null).forEach(this.pRepository::delete);
+    this.pRepository.deleteAll();
+
+    this.mfRepository.deleteAll();
+    this.mfsRepository.deleteAll();
+    this.leRepository.deleteAll();
+  }
+
+  @Test
+  public void resumeTest() throws Exception {
+    assertTrue(this.scheduler.checkExists(RevaluationJob.KEY));
+    final long runs = this.registry.get("smartportfolio.revaluation").timer().count();
+    final double partitions = this.registry.get("smartportfolio.revaluation.partitions").counter().count();
+    final double portfolios = this.registry.get("smartportfolio.revaluation.portfolios").counter().count();
+
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    final LegalEntity manager = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test manager", "2", "manager"));
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "02/01/2018", "1.5"));
+
+    final Portfolio root = PortfolioControllerTest.objFactory();
+    root.setShares(BigDecimal.TEN);
+    this.pRepository.save(root);
+
+    final Portfolio done = this.child(root, this.holding(fund, manager));
+    final MutualFund pendingFund = this.holding(fund, manager);
+    final Portfolio pending = this.child(root, pendingFund);
+    this.child(root, null);
+
+    // A run interrupted after committing the first partition
+    final ValuationRun interrupted = new ValuationRun();
+    interrupted.setAsOf(Utils.toDate("03/01/2018"));
+    interrupted.setStarted(new Date());
+    this.runRepository.save(interrupted);
+    final ValuationCheckpoint checkpoint = new ValuationCheckpoint();
+    checkpoint.setRun(interrupted);
+    checkpoint.setPortfolioId(done.getId());
+    this.checkpointRepository.save(checkpoint);
+    assertEquals("03/01/2018", Utils.toString(this.service.interrupted().get()));
+
+    final ValuationSummary resumed = this.service.revalue(Utils.toDate("03/01/2018"));
+    assertEquals(2, resumed.getPortfolios());
+    assertEquals(1, resumed.getMutualFunds());
+    assertFalse(this.service.interrupted().isPresent());
+    assertNotNull(this.runRepository.findByAsOf(Utils.toDate("03/01/2018")).get().getFinished());
+    assertEquals(4, this.checkpointRepository.count());
+
+    // The checkpointed partition keeps its value: 10 + 150 + 10 (leaf)
+    assertValue(done, "10");
+    assertValue(pending, "150");
+    assertValue(root, "170");
+    // Written with JDBC: the cached mutual fund must have been evicted
+    assertEquals(0, new BigDecimal("150").compareTo(this.mfRepository.findById(pendingFund.getId()).get().getValue()));
+
+    // A finished run starts over
+    final ValuationSummary again = this.service.revalue(Utils.toDate("03/01/2018"));
+    assertEquals(3, again.getPortfolios());
+    assertEquals(4, this.checkpointRepository.count());
+    assertValue(done, "150");
+    assertValue(root, "310");
+
+    assertEquals(runs + 2, this.registry.get("smartportfolio.revaluation").timer().count());
+    assertEquals(partitions + 7, this.registry.get("smartportfolio.revaluation.partitions").counter().count(), 0);
+    assertEquals(portfolios + 5, this.registry.get("smartportfolio.revaluation.portfolios").counter().count(), 0);
+    assertTrue(this.registry.get("smartportfolio.revaluation.throughput").gauge().value() > 0);
+  }
+
+  @Test
+  public void scheduledResumeTest() throws Exception {
+    final LegalEntity fund = this.leRepository.save(LegalEntityControllerTest.objFactory("unit test fund", "1", "fund"));
+    this.mfsRepository.save(MutualFundShareControllerTest.shareFactory(fund, "02/01/2018", "1.5"));
+    final Portfolio root = this.pRepository.save(PortfolioControllerTest.objFactory());
+    this.child(root, this.holding(fund, fund));
+
+    final ValuationRun interrupted = new ValuationRun();
+    interrupted.setAsOf(Utils.toDate("03/01/2018"));
+    interrupted.setStarted(new Date());
+    this.runRepository.save(interrupted);
+
+    // A scheduled run, without a date, resumes the interrupted date before valuing today
+    final RevaluationJob job = new RevaluationJob();
+    this.beanFactory.autowireBean(job);
+    final JobExecutionContext context = mock(JobExecutionContext.class);
+    when(context.getMergedJobDataMap()).thenReturn(new JobDataMap());
+    job.executeInternal(context);
+
+    assertNotNull(this.runRepository.findByAsOf(Utils.toDate("03/01/2018")).get().getFinished());
+    assertNotNull(this.runRepository.findByAsOf(Utils.toDate(Utils.toString(new Date()))).get().getFinished());
+    assertFalse(this.service.interrupted().isPresent());
+  }
+
+  private Portfolio child(Portfolio master, MutualFund mf) {
+    final Portfolio child = PortfolioControllerTest.objFactory();
+    child.setMaster(master);
+    if (mf != null) {
+      child.add(mf);
+    }
+    return this.pRepository.save(child);
+  }
+
+  private MutualFund holding(LegalEntity fund, LegalEntity manager) {
+    final MutualFund mf = MutualFundShareControllerTest.mutualFundFactory(fund, manager);
+    mf.setShares(new BigDecimal("100"));
+    return this.mfRepository.save(mf);
+  }
+
+  private void assertValue(Portfolio portfolio, String value) {
+    assertEquals(0, new BigDecimal(value).compareTo(this.pRepository.findById(portfolio.getId()).get().getValue()));
+  }
+}